@@ -14,7 +14,8 @@ See the License for the specific language governing permissions and limitations
 package com.amazonaws.kinesisvideo.parser.examples;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.kinesisvideo.parser.examples.lambda.FragmentCheckpoint;
+import com.amazonaws.kinesisvideo.parser.examples.lambda.FragmentCheckpointManager;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
 import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
@@ -22,49 +23,86 @@ import com.amazonaws.kinesisvideo.parser.utilities.consumer.GetMediaResponseStre
 import com.amazonaws.kinesisvideo.parser.utilities.consumer.GetMediaResponseStreamConsumerFactory;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
 import com.amazonaws.services.kinesisvideo.model.APIName;
-import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaResult;
 import com.amazonaws.services.kinesisvideo.model.StartSelector;
 import com.amazonaws.services.kinesisvideo.model.StartSelectorType;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.Validate;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Worker used to make a GetMedia call to Kinesis Video and stream in data and parse it and apply a visitor.
+ *
+ * When a GetMedia call fails or its response ends, the worker reconnects after the last processed fragment, with the
+ * continuation token of that fragment if the response had one and with its fragment number otherwise. A fragment that
+ * was only partly delivered is delivered again from its start, its end is only reported once. Failed attempts are
+ * retried with exponential backoff and full jitter. With a {@link FragmentCheckpointManager}, the last processed
+ * fragment is checkpointed and a restarted worker resumes after it instead of at the start selector.
+ *
+ * Warm standby is off by default. When it is on and no fragment arrives for {@value #DEFAULT_STALL_MILLIS} ms, the
+ * response is considered stalled and the worker opens a second GetMedia call that starts after the last processed
+ * fragment. When the stalled response ends or fails, the worker switches to the standby call right away, without a
+ * new request or a backoff. The standby is closed as soon as the stalled response delivers another fragment. Each
+ * standby is an extra GetMedia session that counts against the per-stream GetMedia limits, so only turn it on for
+ * streams with a steady fragment rate and set the stall time well above the fragment duration.
  */
 @Slf4j
 public class ContinuousGetMediaWorker extends KinesisVideoCommon implements Runnable {
     private static final int HTTP_STATUS_OK = 200;
-    private final AmazonKinesisVideoMedia videoMedia;
+    private static final long INITIAL_BACKOFF_MILLIS = 200L;
+    private static final long MAX_BACKOFF_MILLIS = 10_000L;
+    public static final long DEFAULT_STALL_MILLIS = 5_000L;
+    private final KinesisVideoMediaClientPool clientPool;
     private final GetMediaResponseStreamConsumerFactory consumerFactory;
     private final StartSelector startSelector;
+    private final FragmentCheckpointManager checkpointManager;
+    private final ScheduledExecutorService standbyExecutor;
+    private final long stallMillis;
+    private final Object standbyLock = new Object();
     private Optional<String> fragmentNumberToStartAfter = Optional.empty();
+    private Optional<String> continuationToken = Optional.empty();
+    private int consecutiveFailures;
+    // Guarded by standbyLock.
+    private Standby standby;
+    private ScheduledFuture<?> stallCheck;
+    private long stallCheckGeneration;
+    private long getMediaStartNanos;
     private volatile AtomicBoolean shouldStop = new AtomicBoolean(false);
 
-    private ContinuousGetMediaWorker(Regions region,
+    ContinuousGetMediaWorker(Regions region,
             AWSCredentialsProvider credentialsProvider,
             String streamName,
             StartSelector startSelector,
-            String endPoint,
-            GetMediaResponseStreamConsumerFactory consumerFactory) {
+            KinesisVideoMediaClientPool clientPool,
+            GetMediaResponseStreamConsumerFactory consumerFactory,
+            FragmentCheckpointManager checkpointManager,
+            boolean warmStandby,
+            long stallMillis) {
         super(region, credentialsProvider, streamName);
-
-        AmazonKinesisVideoMediaClientBuilder builder = AmazonKinesisVideoMediaClientBuilder.standard()
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))
-                .withCredentials(getCredentialsProvider());
-
-        this.videoMedia = builder.build();
+        this.clientPool = clientPool;
         this.consumerFactory = consumerFactory;
         this.startSelector = startSelector;
+        this.checkpointManager = checkpointManager;
+        this.stallMillis = stallMillis;
+        this.standbyExecutor = warmStandby ? Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "ContinuousGetMedia-standby-" + streamName);
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
     }
 
     public static ContinuousGetMediaWorker create(Regions region,
@@ -73,10 +111,42 @@ public class ContinuousGetMediaWorker extends KinesisVideoCommon implements Runn
             StartSelector startSelector,
             AmazonKinesisVideo amazonKinesisVideo,
             GetMediaResponseStreamConsumerFactory consumer) {
-        String endPoint = amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest().withAPIName(APIName.GET_MEDIA)
-                .withStreamName(streamName)).getDataEndpoint();
+        return create(region, credentialsProvider, streamName, startSelector, amazonKinesisVideo, consumer, null,
+                false);
+    }
 
-        return new ContinuousGetMediaWorker(region, credentialsProvider, streamName, startSelector, endPoint, consumer);
+    /**
+     * @param checkpointManager Manager to resume from and checkpoint processed fragments with, or null.
+     * @param warmStandby Whether to open a standby GetMedia call when the response stalls, see the class
+     *                    documentation for its cost.
+     */
+    public static ContinuousGetMediaWorker create(Regions region,
+            AWSCredentialsProvider credentialsProvider,
+            String streamName,
+            StartSelector startSelector,
+            AmazonKinesisVideo amazonKinesisVideo,
+            GetMediaResponseStreamConsumerFactory consumer,
+            FragmentCheckpointManager checkpointManager,
+            boolean warmStandby) {
+        return create(streamName, startSelector,
+                KinesisVideoMediaClientPool.getShared(region, credentialsProvider, amazonKinesisVideo), consumer,
+                checkpointManager, warmStandby);
+    }
+
+    /**
+     * @param clientPool Pool to get the GetMedia client from.
+     * @param checkpointManager Manager to resume from and checkpoint processed fragments with, or null.
+     * @param warmStandby Whether to open a standby GetMedia call when the response stalls, see the class
+     *                    documentation for its cost.
+     */
+    public static ContinuousGetMediaWorker create(String streamName,
+            StartSelector startSelector,
+            KinesisVideoMediaClientPool clientPool,
+            GetMediaResponseStreamConsumerFactory consumer,
+            FragmentCheckpointManager checkpointManager,
+            boolean warmStandby) {
+        return new ContinuousGetMediaWorker(clientPool.getRegion(), clientPool.getCredentialsProvider(), streamName,
+                startSelector, clientPool, consumer, checkpointManager, warmStandby, DEFAULT_STALL_MILLIS);
     }
 
     public void stop() {
@@ -87,42 +157,190 @@ public class ContinuousGetMediaWorker extends KinesisVideoCommon implements Runn
     @Override
     public void run() {
         log.info("Start ContinuousGetMedia worker for stream {}", streamName);
-        while (!shouldStop.get()) {
-            GetMediaResult getMediaResult = null;
-            try {
-
-                StartSelector selectorToUse = fragmentNumberToStartAfter.map(fn -> new StartSelector().withStartSelectorType(StartSelectorType.FRAGMENT_NUMBER)
-                        .withAfterFragmentNumber(fn)).orElse(startSelector);
-
-                getMediaResult = videoMedia.getMedia(new GetMediaRequest().withStreamName(streamName).withStartSelector(selectorToUse));
-                log.info("Start processing GetMedia called for stream {} response {} requestId {}",
-                        streamName,
-                        getMediaResult.getSdkHttpMetadata().getHttpStatusCode(),
-                        getMediaResult.getSdkResponseMetadata().getRequestId());
-
-                if (getMediaResult.getSdkHttpMetadata().getHttpStatusCode() == HTTP_STATUS_OK) {
-                    try (GetMediaResponseStreamConsumer consumer = consumerFactory.createConsumer()) {
-                        consumer.process(getMediaResult.getPayload(), this::updateFragmentNumberToStartAfter);
+        try {
+            restoreFragmentNumberToStartAfter();
+            while (!shouldStop.get()) {
+                GetMediaResult getMediaResult = null;
+                boolean failed = true;
+                try {
+                    getMediaResult = getMedia();
+                    log.info("Start processing GetMedia called for stream {} response {} requestId {}",
+                            streamName,
+                            getMediaResult.getSdkHttpMetadata().getHttpStatusCode(),
+                            getMediaResult.getSdkResponseMetadata().getRequestId());
+
+                    if (getMediaResult.getSdkHttpMetadata().getHttpStatusCode() == HTTP_STATUS_OK) {
+                        try (GetMediaResponseStreamConsumer consumer = consumerFactory.createConsumer()) {
+                            consumer.process(clientPool.meter(streamName, getMediaStartNanos,
+                                    getMediaResult.getPayload()), this::updateFragmentNumberToStartAfter);
+                        }
+                        failed = false;
                     }
-                } else {
-                    Thread.sleep(200);
+                } catch (FrameProcessException e) {
+                    log.error("FrameProcessException in ContinuousGetMedia worker for stream: " + streamName, e);
+                    break;
+                } catch (IOException | MkvElementVisitException e) {
+                    log.error("Failure in ContinuousGetMedia worker for stream: " + streamName, e);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ie);
+                } catch (Throwable t) {
+                    log.error("Throwable",t);
+                } finally {
+                    closeGetMediaResponse(getMediaResult);
+                    log.info("Exit processing GetMedia called for stream {}", streamName);
+                }
+                if (failed && !shouldStop.get() && !isStandbyReady()) {
+                    // The stream may have moved to another data endpoint.
+                    clientPool.invalidateDataEndpoint(streamName, APIName.GET_MEDIA);
+                    backoff();
+                }
+            }
+        } finally {
+            if (standbyExecutor != null) {
+                synchronized (standbyLock) {
+                    cancelStallCheck();
+                    closeStandby();
                 }
-            } catch (FrameProcessException e) {
-                log.error("FrameProcessException in ContinuousGetMedia worker for stream: " + streamName, e);
-                break;
-            } catch (IOException | MkvElementVisitException e) {
-                log.error("Failure in ContinuousGetMedia worker for stream: " + streamName, e);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-                throw new RuntimeException(ie);
-            } catch (Throwable t) {
-                log.error("Throwable",t);
-            } finally {
-                closeGetMediaResponse(getMediaResult);
-                log.info("Exit processing GetMedia called for stream {}", streamName);
+                standbyExecutor.shutdown();
+            }
+            if (checkpointManager != null) {
+                checkpointManager.flush();
+            }
+        }
+        log.info("Exit ContinuousGetMedia worker for stream {} {}", streamName,
+                clientPool.getStreamMetrics(streamName));
+    }
+
+    private void restoreFragmentNumberToStartAfter() {
+        if (checkpointManager != null && !fragmentNumberToStartAfter.isPresent()) {
+            fragmentNumberToStartAfter = checkpointManager.getLastProcessedItem(streamName)
+                    .map(FragmentCheckpoint::getFragmentNumber);
+            fragmentNumberToStartAfter.ifPresent(fn ->
+                    log.info("Resume ContinuousGetMedia worker for stream {} after fragment {}", streamName, fn));
+        }
+    }
+
+    private GetMediaResult getMedia() throws InterruptedException {
+        final String startAfter = fragmentNumberToStartAfter.orElse(null);
+        final Standby ready;
+        synchronized (standbyLock) {
+            // The worker reconnects now, a standby opened from here on would not be used.
+            cancelStallCheck();
+            ready = standby;
+            standby = null;
+        }
+        if (ready != null) {
+            if (Objects.equals(ready.fragmentNumberToStartAfter, startAfter)) {
+                try {
+                    log.info("Switch to standby GetMedia for stream {}", streamName);
+                    getMediaStartNanos = ready.openedAtNanos;
+                    return ready.getMediaResult.get();
+                } catch (final ExecutionException e) {
+                    log.warn("Standby GetMedia failed for stream {}", streamName, e.getCause());
+                }
+            } else {
+                close(ready);
+            }
+        }
+        getMediaStartNanos = System.nanoTime();
+        return clientPool.getMediaClient(streamName).getMedia(getMediaRequest());
+    }
+
+    /**
+     * @return true if a standby call continues after the last processed fragment. The worker then switches to it
+     * right away, its endpoint is still serving the stream.
+     */
+    private boolean isStandbyReady() {
+        if (standbyExecutor == null) {
+            return false;
+        }
+        synchronized (standbyLock) {
+            return standby != null && !standby.getMediaResult.isCompletedExceptionally()
+                    && Objects.equals(standby.fragmentNumberToStartAfter, fragmentNumberToStartAfter.orElse(null));
+        }
+    }
+
+    private GetMediaRequest getMediaRequest() {
+        final StartSelector selectorToUse;
+        if (continuationToken.isPresent()) {
+            selectorToUse = new StartSelector().withStartSelectorType(StartSelectorType.CONTINUATION_TOKEN)
+                    .withContinuationToken(continuationToken.get());
+        } else {
+            selectorToUse = fragmentNumberToStartAfter.map(fn -> new StartSelector()
+                    .withStartSelectorType(StartSelectorType.FRAGMENT_NUMBER)
+                    .withAfterFragmentNumber(fn)).orElse(startSelector);
+        }
+        return new GetMediaRequest().withStreamName(streamName).withStartSelector(selectorToUse);
+    }
+
+    private void backoff() {
+        // Full jitter: spread reconnects of many workers over the whole backoff window.
+        final long maxDelayMillis = Math.min(MAX_BACKOFF_MILLIS,
+                INITIAL_BACKOFF_MILLIS << Math.min(consecutiveFailures, 16));
+        consecutiveFailures++;
+        final long delayMillis = ThreadLocalRandom.current().nextLong(maxDelayMillis + 1);
+        log.info("Retry GetMedia for stream {} in {} ms after {} consecutive failures", streamName, delayMillis,
+                consecutiveFailures);
+        try {
+            Thread.sleep(delayMillis);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        }
+    }
+
+    /**
+     * Open a standby call starting after the given fragment if no other fragment arrives within the stall time. A
+     * standby that starts after an earlier fragment is closed, it would deliver this fragment again.
+     */
+    private void scheduleStallCheck(final String startAfter) {
+        final GetMediaRequest request = getMediaRequest();
+        synchronized (standbyLock) {
+            cancelStallCheck();
+            closeStandby();
+            final long generation = stallCheckGeneration;
+            stallCheck = standbyExecutor.schedule(() -> openStandby(generation, startAfter, request), stallMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void openStandby(final long generation, final String startAfter, final GetMediaRequest request) {
+        final CompletableFuture<GetMediaResult> getMediaResult = new CompletableFuture<>();
+        synchronized (standbyLock) {
+            if (generation != stallCheckGeneration) {
+                return;
             }
+            log.info("No fragment of stream {} for {} ms after fragment {}, open standby GetMedia", streamName,
+                    stallMillis, startAfter);
+            standby = new Standby(startAfter, System.nanoTime(), getMediaResult);
+        }
+        try {
+            getMediaResult.complete(clientPool.getMediaClient(streamName).getMedia(request));
+        } catch (final RuntimeException e) {
+            getMediaResult.completeExceptionally(e);
         }
-        log.info("Exit ContinuousGetMedia worker for stream {}", streamName);
+    }
+
+    // Called with standbyLock held.
+    private void cancelStallCheck() {
+        stallCheckGeneration++;
+        if (stallCheck != null) {
+            stallCheck.cancel(false);
+            stallCheck = null;
+        }
+    }
+
+    // Called with standbyLock held.
+    private void closeStandby() {
+        if (standby != null) {
+            close(standby);
+            standby = null;
+        }
+    }
+
+    private void close(final Standby stale) {
+        stale.getMediaResult.whenComplete((result, e) -> closeGetMediaResponse(result));
     }
 
     private void closeGetMediaResponse(final GetMediaResult getMediaResult) {
@@ -139,8 +357,33 @@ public class ContinuousGetMediaWorker extends KinesisVideoCommon implements Runn
     }
 
     private void updateFragmentNumberToStartAfter(FragmentMetadata f) {
-        Validate.isTrue(!fragmentNumberToStartAfter.isPresent()
-                || f.getFragmentNumberString().compareTo(fragmentNumberToStartAfter.get()) > 0);
+        if (fragmentNumberToStartAfter.isPresent()
+                && f.getFragmentNumber().compareTo(new BigInteger(fragmentNumberToStartAfter.get())) <= 0) {
+            log.debug("Fragment {} of stream {} was already processed", f.getFragmentNumberString(), streamName);
+            return;
+        }
         fragmentNumberToStartAfter = Optional.of(f.getFragmentNumberString());
+        continuationToken = f.isCompleteFragment() ? f.getContinuationToken() : Optional.empty();
+        consecutiveFailures = 0;
+        if (checkpointManager != null) {
+            checkpointManager.saveCheckPoint(streamName, f.getFragmentNumberString(),
+                    f.getProducerSideTimestampMillis(), f.getServerSideTimestampMillis());
+        }
+        if (standbyExecutor != null) {
+            scheduleStallCheck(f.getFragmentNumberString());
+        }
+    }
+
+    private static final class Standby {
+        private final String fragmentNumberToStartAfter;
+        private final long openedAtNanos;
+        private final CompletableFuture<GetMediaResult> getMediaResult;
+
+        private Standby(final String fragmentNumberToStartAfter, final long openedAtNanos,
+                        final CompletableFuture<GetMediaResult> getMediaResult) {
+            this.fragmentNumberToStartAfter = fragmentNumberToStartAfter;
+            this.openedAtNanos = openedAtNanos;
+            this.getMediaResult = getMediaResult;
+        }
     }
 }
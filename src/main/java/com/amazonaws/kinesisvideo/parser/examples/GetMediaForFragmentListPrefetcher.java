@@ -0,0 +1,193 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples;
+
+import com.amazonaws.services.kinesisvideo.model.APIName;
+import com.amazonaws.services.kinesisvideo.model.GetMediaForFragmentListRequest;
+import com.amazonaws.services.kinesisvideo.model.GetMediaForFragmentListResult;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the media of a sequence of fragments with GetMediaForFragmentList, ahead of the caller.
+ *
+ * Fragment numbers are grouped into requests of up to batchSize fragments and up to maxInFlight requests are fetched
+ * concurrently, each one read into memory. The payloads are returned in the order of the fragment numbers, so that the
+ * caller parses one payload while the next ones are downloaded. A request that failed throws its exception from
+ * {@link #next()}, the following requests can still be read.
+ */
+@Slf4j
+public class GetMediaForFragmentListPrefetcher
+        implements Iterator<GetMediaForFragmentListPrefetcher.FragmentListPayload>, Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String streamName;
+    private final Iterator<String> fragmentNumbers;
+    private final KinesisVideoMediaClientPool clientPool;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+    private final Deque<CompletableFuture<FragmentListPayload>> inFlight = new ArrayDeque<>();
+
+    private GetMediaForFragmentListPrefetcher(final String streamName,
+                                              final Iterator<String> fragmentNumbers,
+                                              final KinesisVideoMediaClientPool clientPool,
+                                              final int batchSize,
+                                              final int maxInFlight) {
+        Validate.isTrue(batchSize > 0, "Batch size must be positive");
+        Validate.isTrue(maxInFlight > 0, "Max in flight requests must be positive");
+        this.streamName = streamName;
+        this.fragmentNumbers = fragmentNumbers;
+        this.clientPool = clientPool;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(maxInFlight, r -> {
+            final Thread thread = new Thread(r,
+                    "GetMediaForFragmentListPrefetcher-" + streamName + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param fragmentNumbers Fragment numbers to fetch, e.g. from {@link ListFragmentWorker#iterator()}. Consumed
+     *                        as requests are started.
+     * @param batchSize Maximum number of fragments per request.
+     * @param maxInFlight Maximum number of requests fetched ahead of the caller.
+     */
+    public static GetMediaForFragmentListPrefetcher create(final String streamName,
+                                                           final Iterator<String> fragmentNumbers,
+                                                           final KinesisVideoMediaClientPool clientPool,
+                                                           final int batchSize,
+                                                           final int maxInFlight) {
+        final GetMediaForFragmentListPrefetcher prefetcher = new GetMediaForFragmentListPrefetcher(streamName,
+                fragmentNumbers, clientPool, batchSize, maxInFlight);
+        prefetcher.fill();
+        return prefetcher;
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return !inFlight.isEmpty();
+    }
+
+    /**
+     * @return Payload of the next request.
+     * @throws RuntimeException thrown by the request, e.g. an AmazonServiceException.
+     */
+    @Override
+    public FragmentListPayload next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final CompletableFuture<FragmentListPayload> payload = inFlight.poll();
+        // Keep maxInFlight requests going while the caller processes this payload.
+        fill();
+        try {
+            return payload.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void fill() {
+        while (inFlight.size() < maxInFlight && fragmentNumbers.hasNext()) {
+            final List<String> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && fragmentNumbers.hasNext()) {
+                batch.add(fragmentNumbers.next());
+            }
+            inFlight.add(CompletableFuture.supplyAsync(() -> fetch(batch), executor));
+        }
+    }
+
+    private FragmentListPayload fetch(final List<String> batch) {
+        final long requestStartNanos = System.nanoTime();
+        final GetMediaForFragmentListResult result = clientPool
+                .getArchivedMediaClient(streamName, APIName.GET_MEDIA_FOR_FRAGMENT_LIST)
+                .getMediaForFragmentList(new GetMediaForFragmentListRequest()
+                        .withStreamName(streamName)
+                        .withFragments(batch));
+        try (InputStream payload = clientPool.meter(streamName, requestStartNanos, result.getPayload())) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(READ_BUFFER_SIZE);
+            final byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int count;
+            while ((count = payload.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            log.debug("Fetched {} bytes of fragments {} of stream {}", bytes.size(), batch, streamName);
+            return new FragmentListPayload(Collections.unmodifiableList(batch), bytes.toByteArray());
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to read fragments " + batch + " of stream " + streamName, e);
+        }
+    }
+
+    /**
+     * Stop fetching. Requests in flight are abandoned.
+     */
+    @Override
+    public void close() {
+        inFlight.forEach(payload -> payload.cancel(true));
+        inFlight.clear();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Media of the fragments of one GetMediaForFragmentList request.
+     */
+    public static final class FragmentListPayload {
+        private final List<String> fragmentNumbers;
+        private final byte[] payload;
+
+        private FragmentListPayload(final List<String> fragmentNumbers, final byte[] payload) {
+            this.fragmentNumbers = fragmentNumbers;
+            this.payload = payload;
+        }
+
+        public List<String> getFragmentNumbers() {
+            return fragmentNumbers;
+        }
+
+        public InputStream getPayload() {
+            return new ByteArrayInputStream(payload);
+        }
+
+        public int getPayloadSize() {
+            return payload.length;
+        }
+    }
+}
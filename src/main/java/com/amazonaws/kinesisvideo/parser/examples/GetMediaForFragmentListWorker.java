@@ -26,7 +26,6 @@ import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMediaClient;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMediaClientBuilder;
 import com.amazonaws.services.kinesisvideo.model.APIName;
-import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaForFragmentListRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaForFragmentListResult;
 import java.util.List;
@@ -36,6 +35,7 @@ import org.slf4j.LoggerFactory;
 public class GetMediaForFragmentListWorker extends KinesisVideoCommon implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(GetMediaForFragmentListWorker.class);
     private final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMedia;
+    private final KinesisVideoMediaClientPool clientPool;
     private final MkvElementVisitor elementVisitor;
     private final List<String> fragmentNumbers;
 
@@ -44,20 +44,29 @@ public class GetMediaForFragmentListWorker extends KinesisVideoCommon implements
         this.fragmentNumbers = fragmentNumbers;
         this.elementVisitor = elementVisitor;
         this.amazonKinesisVideoArchivedMedia = (AmazonKinesisVideoArchivedMedia)((AmazonKinesisVideoArchivedMediaClientBuilder)((AmazonKinesisVideoArchivedMediaClientBuilder)AmazonKinesisVideoArchivedMediaClient.builder().withCredentials(awsCredentialsProvider)).withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))).build();
+        this.clientPool = null;
+    }
+
+    public GetMediaForFragmentListWorker(String streamName, List<String> fragmentNumbers, KinesisVideoMediaClientPool clientPool, MkvElementVisitor elementVisitor) {
+        super(clientPool.getRegion(), clientPool.getCredentialsProvider(), streamName);
+        this.fragmentNumbers = fragmentNumbers;
+        this.elementVisitor = elementVisitor;
+        this.amazonKinesisVideoArchivedMedia = null;
+        this.clientPool = clientPool;
     }
 
     public static GetMediaForFragmentListWorker create(String streamName, List<String> fragmentNumbers, AWSCredentialsProvider awsCredentialsProvider, Regions region, AmazonKinesisVideo amazonKinesisVideo, MkvElementVisitor elementVisitor) {
-        GetDataEndpointRequest request = (new GetDataEndpointRequest()).withAPIName(APIName.GET_MEDIA_FOR_FRAGMENT_LIST).withStreamName(streamName);
-        String endpoint = amazonKinesisVideo.getDataEndpoint(request).getDataEndpoint();
-        return new GetMediaForFragmentListWorker(streamName, fragmentNumbers, awsCredentialsProvider, endpoint, region, elementVisitor);
+        return new GetMediaForFragmentListWorker(streamName, fragmentNumbers, KinesisVideoMediaClientPool.getShared(region, awsCredentialsProvider, amazonKinesisVideo), elementVisitor);
     }
 
     public void run() {
         try {
             log.info("Start GetMediaForFragmentList worker on stream {}", this.streamName);
-            GetMediaForFragmentListResult result = this.amazonKinesisVideoArchivedMedia.getMediaForFragmentList((new GetMediaForFragmentListRequest()).withFragments(this.fragmentNumbers).withStreamName(this.streamName));
+            long requestStartNanos = System.nanoTime();
+            AmazonKinesisVideoArchivedMedia archivedMedia = this.clientPool != null ? this.clientPool.getArchivedMediaClient(this.streamName, APIName.GET_MEDIA_FOR_FRAGMENT_LIST) : this.amazonKinesisVideoArchivedMedia;
+            GetMediaForFragmentListResult result = archivedMedia.getMediaForFragmentList((new GetMediaForFragmentListRequest()).withFragments(this.fragmentNumbers).withStreamName(this.streamName));
             log.info("GetMediaForFragmentList called on stream {} response {} requestId {}", new Object[]{this.streamName, result.getSdkHttpMetadata().getHttpStatusCode(), result.getSdkResponseMetadata().getRequestId()});
-            StreamingMkvReader mkvStreamReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(result.getPayload()));
+            StreamingMkvReader mkvStreamReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(this.clientPool != null ? this.clientPool.meter(this.streamName, requestStartNanos, result.getPayload()) : result.getPayload()));
             log.info("StreamingMkvReader created for stream {} ", this.streamName);
 
             try {
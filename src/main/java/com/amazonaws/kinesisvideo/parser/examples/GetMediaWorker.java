@@ -15,17 +15,12 @@ See the License for the specific language governing permissions and limitations
 package com.amazonaws.kinesisvideo.parser.examples;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
-import com.amazonaws.services.kinesisvideo.model.APIName;
-import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaResult;
 import com.amazonaws.services.kinesisvideo.model.StartSelector;
@@ -34,29 +29,32 @@ import org.slf4j.LoggerFactory;
 
 public class GetMediaWorker extends KinesisVideoCommon implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(GetMediaWorker.class);
-    private final AmazonKinesisVideoMedia videoMedia;
+    private final KinesisVideoMediaClientPool clientPool;
     private final MkvElementVisitor elementVisitor;
     private final StartSelector startSelector;
 
-    private GetMediaWorker(Regions region, AWSCredentialsProvider credentialsProvider, String streamName, StartSelector startSelector, String endPoint, MkvElementVisitor elementVisitor) {
+    private GetMediaWorker(Regions region, AWSCredentialsProvider credentialsProvider, String streamName, StartSelector startSelector, KinesisVideoMediaClientPool clientPool, MkvElementVisitor elementVisitor) {
         super(region, credentialsProvider, streamName);
-        AmazonKinesisVideoMediaClientBuilder builder = (AmazonKinesisVideoMediaClientBuilder)((AmazonKinesisVideoMediaClientBuilder)AmazonKinesisVideoMediaClientBuilder.standard().withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))).withCredentials(this.getCredentialsProvider());
-        this.videoMedia = (AmazonKinesisVideoMedia)builder.build();
+        this.clientPool = clientPool;
         this.elementVisitor = elementVisitor;
         this.startSelector = startSelector;
     }
 
     public static GetMediaWorker create(Regions region, AWSCredentialsProvider credentialsProvider, String streamName, StartSelector startSelector, AmazonKinesisVideo amazonKinesisVideo, MkvElementVisitor visitor) {
-        String endPoint = amazonKinesisVideo.getDataEndpoint((new GetDataEndpointRequest()).withAPIName(APIName.GET_MEDIA).withStreamName(streamName)).getDataEndpoint();
-        return new GetMediaWorker(region, credentialsProvider, streamName, startSelector, endPoint, visitor);
+        return create(streamName, startSelector, KinesisVideoMediaClientPool.getShared(region, credentialsProvider, amazonKinesisVideo), visitor);
+    }
+
+    public static GetMediaWorker create(String streamName, StartSelector startSelector, KinesisVideoMediaClientPool clientPool, MkvElementVisitor visitor) {
+        return new GetMediaWorker(clientPool.getRegion(), clientPool.getCredentialsProvider(), streamName, startSelector, clientPool, visitor);
     }
 
     public void run() {
         try {
             log.info("Start GetMedia worker on stream {}", this.streamName);
-            GetMediaResult result = this.videoMedia.getMedia((new GetMediaRequest()).withStreamName(this.streamName).withStartSelector(this.startSelector));
+            long requestStartNanos = System.nanoTime();
+            GetMediaResult result = this.clientPool.getMediaClient(this.streamName).getMedia((new GetMediaRequest()).withStreamName(this.streamName).withStartSelector(this.startSelector));
             log.info("GetMedia called on stream {} response {} requestId {} MediaResult {}", new Object[]{this.streamName, result.getSdkHttpMetadata().getHttpStatusCode(), result.getSdkResponseMetadata().getRequestId(), result});
-            StreamingMkvReader mkvStreamReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(result.getPayload()));
+            StreamingMkvReader mkvStreamReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(this.clientPool.meter(this.streamName, requestStartNanos, result.getPayload())));
             log.info("StreamingMkvReader created for stream {} ", this.streamName);
 
             try {
@@ -68,7 +66,7 @@ public class GetMediaWorker extends KinesisVideoCommon implements Runnable {
             log.error("Failure in GetMediaWorker for streamName {} {}", this.streamName, t.toString());
             throw t;
         } finally {
-            log.info("Exiting GetMediaWorker for stream {}", this.streamName);
+            log.info("Exiting GetMediaWorker for stream {} {}", this.streamName, this.clientPool.getStreamMetrics(this.streamName));
         }
 
     }
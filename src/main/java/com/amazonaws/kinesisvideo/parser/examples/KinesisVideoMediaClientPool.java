@@ -0,0 +1,320 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMediaClientBuilder;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
+import com.amazonaws.services.kinesisvideo.model.APIName;
+import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Pool of Kinesis Video media clients shared by the GetMedia, GetMediaForFragmentList and ListFragments workers.
+ *
+ * Data endpoints are cached per stream and API for a TTL instead of being looked up for every worker. Clients are
+ * created once per data endpoint with a tuned client configuration, so that streams served by the same endpoint share
+ * one connection pool. Payloads wrapped by {@link #meter} report bytes per second and time to first byte per stream.
+ * The clients and their connections are kept until the pool is closed.
+ */
+@Slf4j
+public class KinesisVideoMediaClientPool implements Closeable {
+    public static final long DEFAULT_ENDPOINT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_CONNECTIONS = 50;
+    private static final Map<List<Object>, KinesisVideoMediaClientPool> SHARED_POOLS = new ConcurrentHashMap<>();
+
+    @Getter
+    private final Regions region;
+    @Getter
+    private final AWSCredentialsProvider credentialsProvider;
+    private final AmazonKinesisVideo amazonKinesisVideo;
+    private final long endpointTtlMillis;
+    private final Function<String, AmazonKinesisVideoMedia> mediaClientFactory;
+    private final Function<String, AmazonKinesisVideoArchivedMedia> archivedMediaClientFactory;
+    private final Map<List<Object>, CachedEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, AmazonKinesisVideoMedia> mediaClients = new ConcurrentHashMap<>();
+    private final Map<String, AmazonKinesisVideoArchivedMedia> archivedMediaClients = new ConcurrentHashMap<>();
+    private final Map<String, StreamMetrics> streamMetrics = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    KinesisVideoMediaClientPool(final Regions region,
+                                final AWSCredentialsProvider credentialsProvider,
+                                final AmazonKinesisVideo amazonKinesisVideo,
+                                final long endpointTtlMillis,
+                                final Function<String, AmazonKinesisVideoMedia> mediaClientFactory,
+                                final Function<String, AmazonKinesisVideoArchivedMedia> archivedMediaClientFactory) {
+        Validate.isTrue(endpointTtlMillis >= 0, "Endpoint TTL must not be negative");
+        this.region = region;
+        this.credentialsProvider = credentialsProvider;
+        this.amazonKinesisVideo = amazonKinesisVideo;
+        this.endpointTtlMillis = endpointTtlMillis;
+        this.mediaClientFactory = mediaClientFactory;
+        this.archivedMediaClientFactory = archivedMediaClientFactory;
+    }
+
+    public static KinesisVideoMediaClientPool create(final Regions region,
+                                                     final AWSCredentialsProvider credentialsProvider,
+                                                     final AmazonKinesisVideo amazonKinesisVideo) {
+        return create(region, credentialsProvider, amazonKinesisVideo, DEFAULT_ENDPOINT_TTL_MILLIS,
+                defaultClientConfiguration());
+    }
+
+    /**
+     * @param amazonKinesisVideo Client used to look up data endpoints.
+     * @param endpointTtlMillis Time a data endpoint is cached for, 0 to look it up every time.
+     * @param clientConfiguration Configuration of the media clients.
+     */
+    public static KinesisVideoMediaClientPool create(final Regions region,
+                                                     final AWSCredentialsProvider credentialsProvider,
+                                                     final AmazonKinesisVideo amazonKinesisVideo,
+                                                     final long endpointTtlMillis,
+                                                     final ClientConfiguration clientConfiguration) {
+        return new KinesisVideoMediaClientPool(region, credentialsProvider, amazonKinesisVideo, endpointTtlMillis,
+                endpoint -> AmazonKinesisVideoMediaClientBuilder.standard()
+                        .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint,
+                                region.getName()))
+                        .withCredentials(credentialsProvider)
+                        .withClientConfiguration(clientConfiguration)
+                        .build(),
+                endpoint -> AmazonKinesisVideoArchivedMediaClientBuilder.standard()
+                        .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint,
+                                region.getName()))
+                        .withCredentials(credentialsProvider)
+                        .withClientConfiguration(clientConfiguration)
+                        .build());
+    }
+
+    /**
+     * Get the pool shared by all workers created for the region, credentials provider and Kinesis Video client,
+     * creating it on first use. A shared pool is kept until it is closed, so reuse one Kinesis Video client for all
+     * workers, or close the pool once the workers created with a client are done.
+     */
+    public static KinesisVideoMediaClientPool getShared(final Regions region,
+                                                        final AWSCredentialsProvider credentialsProvider,
+                                                        final AmazonKinesisVideo amazonKinesisVideo) {
+        return SHARED_POOLS.computeIfAbsent(Arrays.asList(region, credentialsProvider, amazonKinesisVideo),
+                key -> create(region, credentialsProvider, amazonKinesisVideo));
+    }
+
+    private static ClientConfiguration defaultClientConfiguration() {
+        return new ClientConfiguration()
+                .withMaxConnections(MAX_CONNECTIONS)
+                .withTcpKeepAlive(true)
+                // Media responses stream for as long as the consumer reads, only time out stalled reads.
+                .withSocketTimeout(ClientConfiguration.DEFAULT_SOCKET_TIMEOUT)
+                .withConnectionTimeout(ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT);
+    }
+
+    /**
+     * Get the data endpoint of the stream for the API, from the cache if it was looked up less than the TTL ago.
+     */
+    public String getDataEndpoint(final String streamName, final APIName apiName) {
+        final List<Object> key = Arrays.asList(streamName, apiName);
+        final long now = System.currentTimeMillis();
+        final CachedEndpoint cached = endpoints.get(key);
+        if (cached != null && now < cached.expiresAtMillis) {
+            return cached.endpoint;
+        }
+        final String endpoint = amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
+                .withAPIName(apiName)
+                .withStreamName(streamName)).getDataEndpoint();
+        log.debug("Data endpoint for stream {} and API {} is {}", streamName, apiName, endpoint);
+        endpoints.put(key, new CachedEndpoint(endpoint, now + endpointTtlMillis));
+        return endpoint;
+    }
+
+    /**
+     * Drop the cached data endpoint of the stream for the API, e.g. after calls to it failed.
+     */
+    public void invalidateDataEndpoint(final String streamName, final APIName apiName) {
+        endpoints.remove(Arrays.asList(streamName, apiName));
+    }
+
+    /**
+     * @return Client for the GetMedia data endpoint of the stream.
+     */
+    public AmazonKinesisVideoMedia getMediaClient(final String streamName) {
+        Validate.validState(!closed, "Client pool is closed");
+        return mediaClients.computeIfAbsent(getDataEndpoint(streamName, APIName.GET_MEDIA), mediaClientFactory);
+    }
+
+    /**
+     * @param apiName Archived media API to call, e.g. GET_MEDIA_FOR_FRAGMENT_LIST or LIST_FRAGMENTS.
+     * @return Client for the data endpoint of the stream for the API.
+     */
+    public AmazonKinesisVideoArchivedMedia getArchivedMediaClient(final String streamName, final APIName apiName) {
+        Validate.validState(!closed, "Client pool is closed");
+        return archivedMediaClients.computeIfAbsent(getDataEndpoint(streamName, apiName), archivedMediaClientFactory);
+    }
+
+    /**
+     * Shut down the media clients and their connection pools, and remove this pool from the shared pools. The workers
+     * using the pool must be done, the Kinesis Video client used to look up data endpoints is not shut down.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        SHARED_POOLS.values().remove(this);
+        mediaClients.values().forEach(AmazonKinesisVideoMedia::shutdown);
+        mediaClients.clear();
+        archivedMediaClients.values().forEach(AmazonKinesisVideoArchivedMedia::shutdown);
+        archivedMediaClients.clear();
+        endpoints.clear();
+    }
+
+    /**
+     * Wrap a response payload of the stream to record its metrics.
+     *
+     * @param requestStartNanos {@link System#nanoTime()} when the request was sent.
+     */
+    public InputStream meter(final String streamName, final long requestStartNanos, final InputStream payload) {
+        final StreamMetrics metrics = streamMetrics.computeIfAbsent(streamName, name -> new StreamMetrics());
+        metrics.responseCount.increment();
+        return new MeteredInputStream(payload, metrics, requestStartNanos);
+    }
+
+    /**
+     * @return Metrics of the payloads of the stream, all zero if none was metered.
+     */
+    public StreamMetrics getStreamMetrics(final String streamName) {
+        return streamMetrics.computeIfAbsent(streamName, name -> new StreamMetrics());
+    }
+
+    /**
+     * Metrics of the response payloads of a stream.
+     */
+    public static final class StreamMetrics {
+        private final LongAdder responseCount = new LongAdder();
+        private final LongAdder firstByteCount = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder transferNanos = new LongAdder();
+        private final LongAdder timeToFirstByteNanos = new LongAdder();
+        private volatile long lastTimeToFirstByteNanos;
+
+        private StreamMetrics() {
+        }
+
+        public long getResponseCount() {
+            return responseCount.sum();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        /**
+         * @return Bytes read per second, over the time from the first to the last byte read of each payload.
+         */
+        public double getBytesPerSecond() {
+            final long nanos = transferNanos.sum();
+            return nanos > 0 ? bytesRead.sum() * (double) TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+        }
+
+        public double getLastTimeToFirstByteMillis() {
+            return lastTimeToFirstByteNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public double getAverageTimeToFirstByteMillis() {
+            final long count = firstByteCount.sum();
+            return count > 0 ? timeToFirstByteNanos.sum() / (double) TimeUnit.MILLISECONDS.toNanos(1) / count : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("StreamMetrics(responses=%d, bytesRead=%d, bytesPerSecond=%.0f, "
+                            + "averageTimeToFirstByteMillis=%.1f)", getResponseCount(), getBytesRead(),
+                    getBytesPerSecond(), getAverageTimeToFirstByteMillis());
+        }
+    }
+
+    private static final class MeteredInputStream extends FilterInputStream {
+        private final StreamMetrics metrics;
+        private final long requestStartNanos;
+        private long lastReadNanos = -1;
+
+        private MeteredInputStream(final InputStream in, final StreamMetrics metrics, final long requestStartNanos) {
+            super(in);
+            this.metrics = metrics;
+            this.requestStartNanos = requestStartNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            record(b >= 0 ? 1 : 0);
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int count = super.read(b, off, len);
+            record(count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            record(skipped);
+            return skipped;
+        }
+
+        private void record(final long count) {
+            if (count <= 0) {
+                return;
+            }
+            final long now = System.nanoTime();
+            if (lastReadNanos < 0) {
+                final long timeToFirstByteNanos = now - requestStartNanos;
+                metrics.timeToFirstByteNanos.add(timeToFirstByteNanos);
+                metrics.firstByteCount.increment();
+                metrics.lastTimeToFirstByteNanos = timeToFirstByteNanos;
+            } else {
+                metrics.transferNanos.add(now - lastReadNanos);
+            }
+            lastReadNanos = now;
+            metrics.bytesRead.add(count);
+        }
+    }
+
+    private static final class CachedEndpoint {
+        private final String endpoint;
+        private final long expiresAtMillis;
+
+        private CachedEndpoint(final String endpoint, final long expiresAtMillis) {
+            this.endpoint = endpoint;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import com.amazonaws.kinesisvideo.parser.kinesis.KinesisDataStreamsWorker;
 import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognitionInput;
 import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedFragmentsIndex;
 import com.amazonaws.kinesisvideo.parser.rekognition.processor.RekognitionStreamProcessor;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameDropProcessor;
 import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
 import com.amazonaws.kinesisvideo.parser.utilities.H264BoundingBoxFrameRenderer;
 import com.amazonaws.regions.Regions;
@@ -43,6 +44,7 @@ public class KinesisVideoRekognitionIntegrationExample extends KinesisVideoCommo
     private static final int DEFAULT_FRAME_WIDTH =640;
     private static final int DEFAULT_FRAME_HEIGHT =480;
     private static final int INITIAL_DELAY=10_000;
+    private static final long MAX_MILLIS_BEHIND_NOW = 2000L;
     private final StreamOps streamOps;
     private final InputStream inputStream;
     private final ExecutorService executorService;
@@ -126,7 +128,11 @@ public class KinesisVideoRekognitionIntegrationExample extends KinesisVideoCommo
             h264BoundingBoxFrameRenderer.setMaxTimeout(rekognitionMaxTimeoutInMillis);
         }
 
-        final FrameVisitor frameVisitor = FrameVisitor.create(h264BoundingBoxFrameRenderer);
+        // Skip the rest of a GOP when rendering falls behind the live stream.
+        final FrameVisitor frameVisitor = FrameVisitor.create(FrameDropProcessor.builder()
+                .delegate(h264BoundingBoxFrameRenderer)
+                .maxMillisBehindNow(MAX_MILLIS_BEHIND_NOW)
+                .build());
         this.getMediaWorker = GetMediaWorker.create(getRegion(),
                 getCredentialsProvider(),
                 getStreamName(),
@@ -23,6 +23,7 @@ import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameDropProcessor;
 import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
 import com.amazonaws.kinesisvideo.parser.utilities.H264FrameRenderer;
 import com.amazonaws.regions.Regions;
@@ -55,6 +56,7 @@ public class KinesisVideoRendererExample extends KinesisVideoCommon {
 
     private static final int FRAME_WIDTH=640;
     private static final int FRAME_HEIGHT=480;
+    private static final long MAX_MILLIS_BEHIND_NOW = 2000L;
     private final InputStream inputStream;
     private final StreamOps streamOps;
     private final ExecutorService executorService;
@@ -135,8 +137,13 @@ public class KinesisVideoRendererExample extends KinesisVideoCommon {
                 Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor) throws IOException {
 
             KinesisVideoFrameViewer kinesisVideoFrameViewer = new KinesisVideoFrameViewer(FRAME_WIDTH, FRAME_HEIGHT);
+            // Skip the rest of a GOP when rendering falls behind the live stream.
+            final FrameDropProcessor frameDropProcessor = FrameDropProcessor.builder()
+                    .delegate(H264FrameRenderer.create(kinesisVideoFrameViewer))
+                    .maxMillisBehindNow(MAX_MILLIS_BEHIND_NOW)
+                    .build();
             return new GetMediaProcessingArguments(
-                    FrameVisitor.create(H264FrameRenderer.create(kinesisVideoFrameViewer), tagProcessor,
+                    FrameVisitor.create(frameDropProcessor, tagProcessor,
                             Optional.of(1L))); // Video track number
         }
 
@@ -1,9 +1,21 @@
 package com.amazonaws.kinesisvideo.parser.examples;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.regions.Regions;
@@ -12,14 +24,27 @@ import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMediaClient;
 import com.amazonaws.services.kinesisvideo.model.*;
 import lombok.extern.slf4j.Slf4j;
-
-/* This worker retrieves all fragments within the specified TimestampRange from a specified Kinesis Video Stream and returns them in a list */
-
+import org.apache.commons.lang3.Validate;
+
+/**
+ * This worker retrieves all fragments within the specified TimestampRange from a specified Kinesis Video Stream and
+ * returns them in a list.
+ *
+ * The timestamp range of the fragment selector is split into shards of equal duration that are listed concurrently,
+ * each one page after the other. {@link #iterator()} returns the fragment numbers of the first shard as soon as it is
+ * listed, while the later shards are still being listed. Fragment numbers are ordered numerically within a shard and
+ * shards are returned in time order, which is numeric order for server timestamps since fragment numbers increase
+ * with ingestion time. {@link #call()} sorts all fragment numbers numerically.
+ */
 @Slf4j
-public class ListFragmentWorker extends KinesisVideoCommon implements Callable {
+public class ListFragmentWorker extends KinesisVideoCommon implements Callable<List<String>> {
+    public static final int DEFAULT_SHARD_COUNT = 4;
+    private static final Comparator<String> NUMERIC_ORDER = Comparator.comparing(BigInteger::new);
     private final FragmentSelector fragmentSelector;
     private final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMedia;
-    private final long fragmentsPerRequest = 100;
+    private final KinesisVideoMediaClientPool clientPool;
+    private final int shardCount;
+    private final long fragmentsPerRequest = 1000;
 
     public ListFragmentWorker(final String streamName,
                               final AWSCredentialsProvider awsCredentialsProvider, final String endPoint,
@@ -27,6 +52,8 @@ public class ListFragmentWorker extends KinesisVideoCommon implements Callable {
                               final FragmentSelector fragmentSelector) {
         super(region, awsCredentialsProvider, streamName);
         this.fragmentSelector = fragmentSelector;
+        this.clientPool = null;
+        this.shardCount = DEFAULT_SHARD_COUNT;
 
         amazonKinesisVideoArchivedMedia = AmazonKinesisVideoArchivedMediaClient
                 .builder()
@@ -35,64 +62,172 @@ public class ListFragmentWorker extends KinesisVideoCommon implements Callable {
                 .build();
     }
 
+    /**
+     * @param shardCount Number of shards the timestamp range is split into and listed concurrently.
+     */
+    public ListFragmentWorker(final String streamName,
+                              final KinesisVideoMediaClientPool clientPool,
+                              final FragmentSelector fragmentSelector,
+                              final int shardCount) {
+        super(clientPool.getRegion(), clientPool.getCredentialsProvider(), streamName);
+        Validate.isTrue(shardCount > 0, "Shard count must be positive");
+        this.fragmentSelector = fragmentSelector;
+        this.clientPool = clientPool;
+        this.shardCount = shardCount;
+        this.amazonKinesisVideoArchivedMedia = null;
+    }
+
     public static ListFragmentWorker create(final String streamName,
                                             final AWSCredentialsProvider awsCredentialsProvider,
                                             final Regions region,
                                             final AmazonKinesisVideo amazonKinesisVideo,
                                             final FragmentSelector fragmentSelector) {
-        final GetDataEndpointRequest request = new GetDataEndpointRequest()
-                .withAPIName(APIName.LIST_FRAGMENTS).withStreamName(streamName);
-        final String endpoint = amazonKinesisVideo.getDataEndpoint(request).getDataEndpoint();
-
-        return new ListFragmentWorker(
-                streamName, awsCredentialsProvider, endpoint, region, fragmentSelector);
+        return new ListFragmentWorker(streamName,
+                KinesisVideoMediaClientPool.getShared(region, awsCredentialsProvider, amazonKinesisVideo),
+                fragmentSelector, DEFAULT_SHARD_COUNT);
     }
 
+    /**
+     * @return All fragment numbers, sorted numerically.
+     */
     @Override
     public List<String> call() {
-        List<String> fragmentNumbers = new ArrayList<>();
-        try {
-            log.info("Start ListFragment worker on stream {}", streamName);
-
-            ListFragmentsRequest request = new ListFragmentsRequest()
-                    .withStreamName(streamName).withFragmentSelector(fragmentSelector).withMaxResults(fragmentsPerRequest);
-
-            ListFragmentsResult result = amazonKinesisVideoArchivedMedia.listFragments(request);
-
+        final List<String> fragmentNumbers = new ArrayList<>();
+        iterator().forEachRemaining(fragmentNumbers::add);
+        fragmentNumbers.sort(NUMERIC_ORDER);
+        log.info("Retrieved {} Fragments and exiting ListFragmentWorker for stream {}", fragmentNumbers.size(),
+                streamName);
+        return fragmentNumbers;
+    }
 
-            log.info("List Fragments called on stream {} response {} request ID {}",
-                    streamName,
-                    result.getSdkHttpMetadata().getHttpStatusCode(),
-                    result.getSdkResponseMetadata().getRequestId());
+    /**
+     * Start listing all shards and return their fragment numbers as they become available. A failure to list a shard
+     * is thrown by the iterator when it reaches that shard.
+     */
+    public Iterator<String> iterator() {
+        log.info("Start ListFragment worker on stream {}", streamName);
+        final AmazonKinesisVideoArchivedMedia archivedMedia = clientPool != null
+                ? clientPool.getArchivedMediaClient(streamName, APIName.LIST_FRAGMENTS)
+                : amazonKinesisVideoArchivedMedia;
+        final List<FragmentSelector> shards = split(fragmentSelector, shardCount);
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(shards.size(), r -> {
+            final Thread thread = new Thread(r, "ListFragmentWorker-" + streamName + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final List<CompletableFuture<List<String>>> shardFragmentNumbers = new ArrayList<>();
+        try {
+            for (final FragmentSelector shard : shards) {
+                shardFragmentNumbers.add(CompletableFuture.supplyAsync(() -> listShard(archivedMedia, shard),
+                        executor));
+            }
+        } finally {
+            // Submitted shards still complete.
+            executor.shutdown();
+        }
+        return new ShardIterator(shardFragmentNumbers);
+    }
 
-            for (Fragment f: result.getFragments()) {
+    private List<String> listShard(final AmazonKinesisVideoArchivedMedia archivedMedia,
+                                   final FragmentSelector shard) {
+        final List<String> fragmentNumbers = new ArrayList<>();
+        ListFragmentsRequest request = new ListFragmentsRequest()
+                .withStreamName(streamName).withFragmentSelector(shard).withMaxResults(fragmentsPerRequest);
+        String nextToken;
+        /* If result is truncated, keep making requests until nextToken is empty */
+        do {
+            final ListFragmentsResult result = archivedMedia.listFragments(request);
+            for (Fragment f : result.getFragments()) {
                 fragmentNumbers.add(f.getFragmentNumber());
             }
-            String nextToken = result.getNextToken();
+            nextToken = result.getNextToken();
+            request = new ListFragmentsRequest()
+                    .withStreamName(streamName).withNextToken(nextToken).withMaxResults(fragmentsPerRequest);
+        } while (nextToken != null);
+        fragmentNumbers.sort(NUMERIC_ORDER);
+        log.debug("Retrieved {} fragments of stream {} for {}", fragmentNumbers.size(), streamName, shard);
+        return fragmentNumbers;
+    }
+
+    /**
+     * Split the timestamp range of the selector into at most shardCount ranges of equal duration. Selectors without a
+     * timestamp range are not split.
+     */
+    static List<FragmentSelector> split(final FragmentSelector fragmentSelector, final int shardCount) {
+        if (fragmentSelector == null || fragmentSelector.getTimestampRange() == null) {
+            return Collections.singletonList(fragmentSelector);
+        }
+        final long start = fragmentSelector.getTimestampRange().getStartTimestamp().getTime();
+        final long end = fragmentSelector.getTimestampRange().getEndTimestamp().getTime();
+        final int shards = (int) Math.max(1, Math.min(shardCount, end - start));
+        final List<FragmentSelector> selectors = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            final long shardStart = start + (end - start) * i / shards;
+            final long shardEnd = i == shards - 1 ? end : start + (end - start) * (i + 1) / shards;
+            selectors.add(new FragmentSelector()
+                    .withFragmentSelectorType(fragmentSelector.getFragmentSelectorType())
+                    .withTimestampRange(new TimestampRange()
+                            .withStartTimestamp(new Date(shardStart))
+                            .withEndTimestamp(new Date(shardEnd))));
+        }
+        return selectors;
+    }
 
-            /* If result is truncated, keep making requests until nextToken is empty */
-            while (nextToken != null) {
-                request = new ListFragmentsRequest()
-                        .withStreamName(streamName).withNextToken(nextToken);
-                result = amazonKinesisVideoArchivedMedia.listFragments(request);
+    /**
+     * Returns the fragment numbers of the shards in order. A fragment at the boundary of two shards can be listed by
+     * both, it is only returned once.
+     */
+    private static final class ShardIterator implements Iterator<String> {
+        private final Iterator<CompletableFuture<List<String>>> shards;
+        private Iterator<String> current = Collections.emptyIterator();
+        private Set<String> previousShard = Collections.emptySet();
+        private Set<String> currentShard = Collections.emptySet();
+        private String next;
+
+        private ShardIterator(final List<CompletableFuture<List<String>>> shards) {
+            this.shards = shards.iterator();
+        }
 
-                for (Fragment f: result.getFragments()) {
-                    fragmentNumbers.add(f.getFragmentNumber());
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (current.hasNext()) {
+                    final String fragmentNumber = current.next();
+                    if (!previousShard.contains(fragmentNumber)) {
+                        next = fragmentNumber;
+                    }
+                } else if (shards.hasNext()) {
+                    final List<String> fragmentNumbers = join(shards.next());
+                    previousShard = currentShard;
+                    currentShard = new HashSet<>(fragmentNumbers);
+                    current = fragmentNumbers.iterator();
+                } else {
+                    return false;
                 }
-                nextToken = result.getNextToken();
             }
-            Collections.sort(fragmentNumbers);
+            return true;
+        }
 
-            for (String f: fragmentNumbers) {
-                log.info("Retrieved fragment number {} ", f);
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            final String fragmentNumber = next;
+            next = null;
+            return fragmentNumber;
         }
-        catch (Throwable t) {
-            log.error("Failure in ListFragmentWorker for streamName {} {}", streamName, t.toString());
-            throw t;
-        } finally {
-            log.info("Retrieved {} Fragments and exiting ListFragmentWorker for stream {}", fragmentNumbers.size(), streamName);
-            return fragmentNumbers;
+
+        private static List<String> join(final CompletableFuture<List<String>> shard) {
+            try {
+                return shard.join();
+            } catch (final CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
         }
     }
 }
@@ -13,55 +13,117 @@ See the License for the specific language governing permissions and limitations
 */
 package com.amazonaws.kinesisvideo.parser.examples.lambda;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.kinesisvideo.parser.utilities.DynamoDBHelper;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * DynamdDB based FragmentCheckpoint Manager which manages the checkpoints for last processed fragments.
+ *
+ * Checkpoints are written behind: saving one only keeps it in memory as the latest checkpoint of its stream, replacing
+ * the one before it. Pending checkpoints are written every flush interval, once checkpoints of max pending streams are
+ * waiting, and on {@link #flush()} or {@link #close()}. A single pending checkpoint is written with one conditional
+ * UpdateItem that never moves a checkpoint back, more are written with BatchWriteItem. Checkpoints that fail to be
+ * written stay pending for the next flush.
+ *
+ * BatchWriteItem puts are unconditional, so the guarantee that a checkpoint never moves back only holds when a single
+ * stream has a pending checkpoint at flush time. When several managers write checkpoints of the same stream, e.g.
+ * during a handover between Lambda containers, use a max pending checkpoints of 1 or flush after each stream.
  */
 @Slf4j
-public class DDBBasedFragmentCheckpointManager implements FragmentCheckpointManager {
+public class DDBBasedFragmentCheckpointManager implements FragmentCheckpointManager, Closeable {
 
-    private static final String TABLE_NAME = "FragmentCheckpoint";
-    private static final String KVS_STREAM_NAME = "KVSStreamName";
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000L;
+    public static final int DEFAULT_MAX_PENDING_CHECKPOINTS = 25;
     private static final String FRAGMENT_NUMBER = "FragmentNumber";
     private static final String SERVER_TIME = "ServerTime";
     private static final String PRODUCER_TIME = "ProducerTime";
     private static final String UPDATED_TIME = "UpdatedTime";
     private final DynamoDBHelper dynamoDBHelper;
+    private final int maxPendingCheckpoints;
+    private final ConcurrentHashMap<String, FragmentCheckpoint> pendingCheckpoints = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FragmentCheckpoint> savedCheckpoints = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flushScheduler;
 
     public DDBBasedFragmentCheckpointManager(final Regions region, final AWSCredentialsProvider credentialsProvider) {
-        dynamoDBHelper = new DynamoDBHelper(region, credentialsProvider);
+        this(new DynamoDBHelper(region, credentialsProvider), DEFAULT_FLUSH_INTERVAL_MILLIS,
+                DEFAULT_MAX_PENDING_CHECKPOINTS);
+    }
+
+    /**
+     * @param dynamoDBHelper Helper to access the FragmentCheckpoint table, which is created if it doesn't exist.
+     * @param flushIntervalMillis Interval at which pending checkpoints are written, 0 to only write them on count,
+     *                            flush or close.
+     * @param maxPendingCheckpoints Number of streams with a pending checkpoint that triggers a write.
+     */
+    public DDBBasedFragmentCheckpointManager(final DynamoDBHelper dynamoDBHelper, final long flushIntervalMillis,
+                                             final int maxPendingCheckpoints) {
+        Validate.isTrue(flushIntervalMillis >= 0, "Flush interval must not be negative");
+        Validate.isTrue(maxPendingCheckpoints > 0, "Max pending checkpoints must be positive");
+        this.dynamoDBHelper = dynamoDBHelper;
+        this.maxPendingCheckpoints = maxPendingCheckpoints;
         dynamoDBHelper.createTableIfDoesntExist();
+        if (flushIntervalMillis > 0) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "fragment-checkpoint-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flushScheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            flushScheduler = null;
+        }
     }
 
     /**
-     * Get last processed fragment details from checkpoint for given stream name.
+     * Get last processed fragment details from checkpoint for given stream name. A checkpoint that is saved but not
+     * written yet is returned as well.
      *
      * @param streamName KVS Stream name
      * @return Optional of last processed fragment item if checkpoint exists. Empty otherwise
      */
     @Override
     public Optional<FragmentCheckpoint> getLastProcessedItem(final String streamName) {
+        final FragmentCheckpoint pending = pendingCheckpoints.get(streamName);
+        if (pending != null) {
+            return Optional.of(pending);
+        }
+        final FragmentCheckpoint saved = savedCheckpoints.get(streamName);
+        if (saved != null) {
+            return Optional.of(saved);
+        }
         final Map<String, AttributeValue> result = dynamoDBHelper.getItem(streamName);
         if (result != null && result.containsKey(FRAGMENT_NUMBER)) {
-            return Optional.of(new FragmentCheckpoint(streamName,
+            final FragmentCheckpoint checkpoint = new FragmentCheckpoint(streamName,
                     result.get(FRAGMENT_NUMBER).getS(),
-                    Long.parseLong(result.get(PRODUCER_TIME).getN()),
                     Long.parseLong(result.get(SERVER_TIME).getN()),
-                    Long.parseLong(result.get(UPDATED_TIME).getN())));
+                    Long.parseLong(result.get(PRODUCER_TIME).getN()),
+                    Long.parseLong(result.get(UPDATED_TIME).getN()));
+            savedCheckpoints.putIfAbsent(streamName, checkpoint);
+            return Optional.of(checkpoint);
         }
         return Optional.empty();
     }
 
     /**
-     * Save last processed fragment details checkpoint for the given stream name.
+     * Save last processed fragment details checkpoint for the given stream name. The checkpoint is written to
+     * DynamoDB later, see the class documentation.
      *
      * @param streamName KVS Stream name
      * @param fragmentNumber Last processed fragment's fragment number
@@ -72,16 +134,86 @@ public class DDBBasedFragmentCheckpointManager implements FragmentCheckpointMana
     public void saveCheckPoint(final String streamName, final String fragmentNumber,
                                final Long producerTime, final Long serverTime) {
         if (fragmentNumber != null) {
-            if (dynamoDBHelper.getItem(streamName) != null) {
-                log.info("Checkpoint for stream name {} already exists. So updating checkpoint with fragment number: {}",
-                        streamName, fragmentNumber);
-                dynamoDBHelper.updateItem(streamName, fragmentNumber, producerTime, serverTime, System.currentTimeMillis());
-            } else {
-                log.info("Creating checkpoint for stream name {} with fragment number: {}", streamName, fragmentNumber);
-                dynamoDBHelper.putItem(streamName, fragmentNumber, producerTime, serverTime, System.currentTimeMillis());
+            log.debug("Saving checkpoint for stream name {} with fragment number: {}", streamName, fragmentNumber);
+            pendingCheckpoints.put(streamName, new FragmentCheckpoint(streamName, fragmentNumber, serverTime,
+                    producerTime, System.currentTimeMillis()));
+            if (pendingCheckpoints.size() >= maxPendingCheckpoints) {
+                flushQuietly();
             }
         } else {
             log.info("Fragment number is null. Skipping save checkpoint...");
         }
     }
+
+    /**
+     * Write the pending checkpoints.
+     *
+     * @throws AmazonClientException if writing fails, the checkpoints that were not written stay pending.
+     */
+    @Override
+    public synchronized void flush() {
+        final List<FragmentCheckpoint> checkpoints = new ArrayList<>(pendingCheckpoints.values());
+        if (checkpoints.isEmpty()) {
+            return;
+        }
+        if (checkpoints.size() == 1) {
+            final FragmentCheckpoint checkpoint = checkpoints.get(0);
+            if (dynamoDBHelper.updateItemIfNewer(checkpoint.getStreamName(), checkpoint.getFragmentNumber(),
+                    checkpoint.getProducerTime(), checkpoint.getServerTime(), checkpoint.getUpdatedTime())) {
+                written(checkpoint);
+            } else {
+                superseded(checkpoint);
+            }
+        } else {
+            final Map<String, FragmentCheckpoint> checkpointsByStream = new HashMap<>();
+            final List<Map<String, AttributeValue>> items = new ArrayList<>();
+            for (final FragmentCheckpoint checkpoint : checkpoints) {
+                checkpointsByStream.put(checkpoint.getStreamName(), checkpoint);
+                items.add(DynamoDBHelper.toItem(checkpoint.getStreamName(), checkpoint.getFragmentNumber(),
+                        checkpoint.getProducerTime(), checkpoint.getServerTime(), checkpoint.getUpdatedTime()));
+            }
+            for (final Map<String, AttributeValue> unprocessed : dynamoDBHelper.batchPutItems(items)) {
+                checkpointsByStream.remove(DynamoDBHelper.getStreamName(unprocessed));
+            }
+            checkpointsByStream.values().forEach(this::written);
+            if (checkpointsByStream.size() < checkpoints.size()) {
+                log.warn("{} checkpoints were not written and stay pending",
+                        checkpoints.size() - checkpointsByStream.size());
+            }
+        }
+        log.debug("Wrote {} checkpoints", checkpoints.size());
+    }
+
+    private void written(final FragmentCheckpoint checkpoint) {
+        savedCheckpoints.put(checkpoint.getStreamName(), checkpoint);
+        // A checkpoint saved while writing stays pending.
+        pendingCheckpoints.remove(checkpoint.getStreamName(), checkpoint);
+    }
+
+    /**
+     * The table holds a newer checkpoint, written by another manager. It is read again on the next lookup.
+     */
+    private void superseded(final FragmentCheckpoint checkpoint) {
+        savedCheckpoints.remove(checkpoint.getStreamName());
+        pendingCheckpoints.remove(checkpoint.getStreamName(), checkpoint);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (final AmazonClientException e) {
+            log.warn("Error while writing checkpoints, retrying on the next flush", e);
+        }
+    }
+
+    /**
+     * Write the pending checkpoints and stop the periodic flush.
+     */
+    @Override
+    public void close() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdown();
+        }
+        flush();
+    }
 }
@@ -0,0 +1,380 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples.lambda;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * FragmentCheckpoint Manager backed by an append-only log on the local file system, for deployments without DynamoDB.
+ *
+ * Every saved checkpoint is appended to the log and is durable when saveCheckPoint returns. Appends are synced by a
+ * committer thread, so checkpoints saved concurrently share a single fsync (group commit). The latest checkpoint of
+ * every stream is kept in memory, which makes getLastProcessedItem O(1), and is rebuilt by replaying the log on
+ * creation. Once the log holds more records than the compaction threshold, it is replaced by a log with only the latest
+ * checkpoint of every stream.
+ *
+ * Each record is its length and CRC32 followed by the checkpoint. Replay stops at the first incomplete or corrupt
+ * record, which is what a crash in the middle of an append leaves, and the log is truncated there.
+ */
+@Slf4j
+public class FileBasedFragmentCheckpointManager implements FragmentCheckpointManager, Closeable {
+
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+    private static final int MAX_RECORD_SIZE = 1 << 16;
+
+    private final Path logFile;
+    private final int compactionThreshold;
+    private final Map<String, FragmentCheckpoint> latestCheckpoints = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    private final LogSync logSync;
+    private final Thread committer;
+    // Guarded by lock.
+    private FileChannel channel;
+    private long appendedSequence;
+    private long syncedSequence;
+    private int logRecords;
+    private long syncCount;
+    private IOException failure;
+    private boolean closed;
+
+    private FileBasedFragmentCheckpointManager(final Path logFile, final int compactionThreshold,
+                                               final LogSync logSync) throws IOException {
+        Validate.isTrue(compactionThreshold > 0, "Compaction threshold must be positive");
+        this.logFile = logFile;
+        this.compactionThreshold = compactionThreshold;
+        this.logSync = logSync;
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        replay();
+        this.committer = new Thread(this::commit, "fragment-checkpoint-committer-" + logFile.getFileName());
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    public static FileBasedFragmentCheckpointManager create(final Path logFile) throws IOException {
+        return create(logFile, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param logFile Checkpoint log, created if it doesn't exist.
+     * @param compactionThreshold Number of records in the log after which it is compacted.
+     */
+    public static FileBasedFragmentCheckpointManager create(final Path logFile, final int compactionThreshold)
+            throws IOException {
+        return create(logFile, compactionThreshold, channel -> channel.force(false));
+    }
+
+    static FileBasedFragmentCheckpointManager create(final Path logFile, final int compactionThreshold,
+                                                     final LogSync logSync) throws IOException {
+        return new FileBasedFragmentCheckpointManager(logFile, compactionThreshold, logSync);
+    }
+
+    /**
+     * Get last processed fragment details from checkpoint for given stream name.
+     *
+     * @param streamName KVS Stream name
+     * @return Optional of last processed fragment item if checkpoint exists. Empty otherwise
+     */
+    @Override
+    public Optional<FragmentCheckpoint> getLastProcessedItem(final String streamName) {
+        return Optional.ofNullable(latestCheckpoints.get(streamName));
+    }
+
+    /**
+     * Save last processed fragment details checkpoint for the given stream name. Returns once the checkpoint is synced
+     * to the log.
+     *
+     * @param streamName KVS Stream name
+     * @param fragmentNumber Last processed fragment's fragment number
+     * @param producerTime Last processed fragment's producer time
+     * @param serverTime Last processed fragment's server time
+     * @throws UncheckedIOException if the checkpoint can't be written.
+     */
+    @Override
+    public void saveCheckPoint(final String streamName, final String fragmentNumber,
+                               final Long producerTime, final Long serverTime) {
+        if (fragmentNumber == null) {
+            log.info("Fragment number is null. Skipping save checkpoint...");
+            return;
+        }
+        final FragmentCheckpoint checkpoint = new FragmentCheckpoint(streamName, fragmentNumber, serverTime,
+                producerTime, System.currentTimeMillis());
+        final ByteBuffer record = encode(checkpoint);
+        lock.lock();
+        try {
+            checkState();
+            writeFully(channel, record);
+            latestCheckpoints.put(streamName, checkpoint);
+            logRecords++;
+            final long sequence = ++appendedSequence;
+            appended.signal();
+            while (syncedSequence < sequence) {
+                if (failure != null) {
+                    throw new IOException("Checkpoint log " + logFile + " failed", failure);
+                }
+                synced.awaitUninterruptibly();
+            }
+        } catch (final IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            throw new UncheckedIOException("Unable to append checkpoint to " + logFile, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of times the log was synced, which is at most the number of saved checkpoints.
+     */
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commit() {
+        lock.lock();
+        try {
+            while (true) {
+                while (!closed && failure == null && appendedSequence == syncedSequence) {
+                    appended.awaitUninterruptibly();
+                }
+                if (failure != null || appendedSequence == syncedSequence) {
+                    return;
+                }
+                final long sequence = appendedSequence;
+                final FileChannel syncChannel = channel;
+                // Sync without the lock, so that checkpoints saved meanwhile are appended for the next sync.
+                lock.unlock();
+                try {
+                    logSync.sync(syncChannel);
+                } finally {
+                    lock.lock();
+                }
+                syncCount++;
+                syncedSequence = Math.max(syncedSequence, sequence);
+                if (logRecords > compactionThreshold) {
+                    compact();
+                }
+                synced.signalAll();
+            }
+        } catch (final IOException e) {
+            log.error("Unable to sync checkpoint log {}", logFile, e);
+            failure = e;
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace the log by one with the latest checkpoints only. Called with the lock held, so the table matches the log.
+     */
+    private void compact() throws IOException {
+        final Path compactedFile = logFile.resolveSibling(logFile.getFileName() + ".compact");
+        try (FileChannel compacted = FileChannel.open(compactedFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (final FragmentCheckpoint checkpoint : latestCheckpoints.values()) {
+                writeFully(compacted, encode(checkpoint));
+            }
+            compacted.force(false);
+        }
+        Files.move(compactedFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        channel.close();
+        channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        log.debug("Compacted checkpoint log {} from {} to {} records", logFile, logRecords, latestCheckpoints.size());
+        logRecords = latestCheckpoints.size();
+        syncedSequence = appendedSequence;
+    }
+
+    private void syncDirectory() {
+        final Path directory = logFile.toAbsolutePath().getParent();
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (final IOException e) {
+            // Not supported on every platform, the rename itself is atomic.
+            log.debug("Unable to sync directory {}", directory, e);
+        }
+    }
+
+    private void replay() throws IOException {
+        final ByteBuffer contents = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+        while (contents.hasRemaining() && channel.read(contents, contents.position()) >= 0) {
+            // Read the whole log.
+        }
+        contents.flip();
+        long validLength = 0;
+        while (contents.remaining() >= RECORD_HEADER_SIZE) {
+            final int length = contents.getInt(contents.position());
+            final int crc = contents.getInt(contents.position() + Integer.BYTES);
+            if (length <= 0 || length > MAX_RECORD_SIZE || contents.remaining() - RECORD_HEADER_SIZE < length) {
+                break;
+            }
+            final int start = contents.position() + RECORD_HEADER_SIZE;
+            final ByteBuffer payload = (ByteBuffer) contents.duplicate().position(start).limit(start + length);
+            if (crc32(payload.duplicate()) != crc) {
+                break;
+            }
+            final FragmentCheckpoint checkpoint = decode(payload);
+            latestCheckpoints.put(checkpoint.getStreamName(), checkpoint);
+            logRecords++;
+            contents.position(contents.position() + RECORD_HEADER_SIZE + length);
+            validLength = contents.position();
+        }
+        if (validLength < channel.size()) {
+            log.warn("Truncating checkpoint log {} from {} to {} bytes", logFile, channel.size(), validLength);
+            channel.truncate(validLength);
+            channel.force(false);
+        }
+        channel.position(validLength);
+    }
+
+    private static ByteBuffer encode(final FragmentCheckpoint checkpoint) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeInt(0);
+            writeString(out, checkpoint.getStreamName());
+            writeString(out, checkpoint.getFragmentNumber());
+            writeLong(out, checkpoint.getProducerTime());
+            writeLong(out, checkpoint.getServerTime());
+            writeLong(out, checkpoint.getUpdatedTime());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        Validate.isTrue(record.remaining() - RECORD_HEADER_SIZE <= MAX_RECORD_SIZE, "Checkpoint is too large");
+        record.putInt(0, record.remaining() - RECORD_HEADER_SIZE);
+        record.putInt(Integer.BYTES, crc32((ByteBuffer) record.duplicate().position(RECORD_HEADER_SIZE)));
+        return record;
+    }
+
+    private static FragmentCheckpoint decode(final ByteBuffer payload) {
+        final String streamName = readString(payload);
+        final String fragmentNumber = readString(payload);
+        final Long producerTime = readLong(payload);
+        final Long serverTime = readLong(payload);
+        final Long updatedTime = readLong(payload);
+        return new FragmentCheckpoint(streamName, fragmentNumber, serverTime, producerTime, updatedTime);
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer payload) {
+        final byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLong(final DataOutputStream out, final Long value) throws IOException {
+        out.writeBoolean(value != null);
+        out.writeLong(value != null ? value : 0L);
+    }
+
+    private static Long readLong(final ByteBuffer payload) {
+        final boolean present = payload.get() != 0;
+        final long value = payload.getLong();
+        return present ? value : null;
+    }
+
+    private static int crc32(final ByteBuffer data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer data) throws IOException {
+        final ByteBuffer source = data.duplicate();
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (failure != null) {
+            throw new IOException("Checkpoint log " + logFile + " failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Checkpoint manager is closed");
+        }
+    }
+
+    /**
+     * Wait for pending syncs and close the log.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs the log, making every checkpoint appended before the call durable.
+     */
+    interface LogSync {
+        void sync(FileChannel channel) throws IOException;
+    }
+}
@@ -36,4 +36,11 @@ public interface FragmentCheckpointManager {
      * @param serverTime Last processed fragment's server time
      */
     void saveCheckPoint(String streamName, String fragmentNumber, Long producerTime, Long serverTime);
+
+    /**
+     * Make sure the checkpoints saved so far are persisted. Managers that persist every checkpoint as it is saved
+     * don't need to do anything.
+     */
+    default void flush() {
+    }
 }
@@ -23,24 +23,33 @@ import com.amazonaws.kinesisvideo.java.client.KinesisVideoJavaClientFactory;
 import com.amazonaws.kinesisvideo.parser.examples.BoundingBoxImagePanel;
 import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedFragmentsIndex;
 import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedOutput;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedOutputs;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
 import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
 import com.amazonaws.kinesisvideo.parser.utilities.H264FrameDecoder;
 import com.amazonaws.kinesisvideo.parser.utilities.H264FrameEncoder;
+import com.amazonaws.kinesisvideo.parser.utilities.H264FrameEncoderCache;
+import com.amazonaws.kinesisvideo.parser.utilities.H264NalUnitIterator;
 import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.NalUnitIterator;
 import com.amazonaws.kinesisvideo.parser.utilities.ProducerStreamUtil;
+import com.amazonaws.kinesisvideo.parser.utilities.VideoCodec;
 import com.amazonaws.kinesisvideo.producer.StreamInfo.NalAdaptationFlags;
 import com.amazonaws.regions.Regions;
 import com.google.common.base.Preconditions;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
 import javax.imageio.ImageIO;
+import org.jcodec.codecs.h264.encode.RateControl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,25 +58,36 @@ public class H264FrameProcessor implements FrameVisitor.FrameProcessor {
     private static final int VIDEO_TRACK_NO = 1;
     private static final int MILLIS_IN_SEC = 1000;
     private static final int OFFSET_DELTA_THRESHOLD = 10;
+    private static final int ENCODER_CACHE_SIZE = 2;
     private final BoundingBoxImagePanel boundingBoxImagePanel = new BoundingBoxImagePanel();
     private final Regions regionName;
     private RekognizedOutput currentRekognizedOutput = null;
     private H264FrameEncoder h264Encoder;
+    private H264FrameEncoderCache encoderCache;
     private H264FrameDecoder h264Decoder;
+    private KinesisVideoClient kinesisVideoClient;
     private KVSMediaSource KVSMediaSource;
     private boolean isKVSProducerInitialized = false;
     private boolean isEncoderInitialized = false;
     private final AWSCredentialsProvider credentialsProvider;
     private final String outputKvsStreamName;
-    private List<RekognizedOutput> rekognizedOutputs;
+    private RekognizedOutputs rekognizedFragment;
     private int frameBitRate = 1024;
+    private int keyFrameInterval = 0;
+    private boolean followSourceKeyFrames = false;
+    private Supplier<RateControl> rateControlSupplier = null;
+    private boolean passThroughWithoutOverlay = false;
+    private boolean passThroughGop = false;
+    private ByteBuffer passThroughCodecPrivateData;
+    private byte[] passThroughParameterSets;
+    private NalUnitIterator passThroughNalUnits;
+    private ByteBuffer passThroughBuffer;
+    private String skippedCodecId;
     private int frameNo = 0;
-    private int currentWidth = 0;
-    private int currentHeight = 0;
     private long keyFrameTimecode;
     private long fragmentStartTime;
 
-    private H264FrameProcessor(AWSCredentialsProvider credentialsProvider, String outputKvsStreamName, Regions regionName) {
+    H264FrameProcessor(AWSCredentialsProvider credentialsProvider, String outputKvsStreamName, Regions regionName) {
         this.credentialsProvider = credentialsProvider;
         this.outputKvsStreamName = outputKvsStreamName;
         this.regionName = regionName;
@@ -78,27 +98,64 @@ public class H264FrameProcessor implements FrameVisitor.FrameProcessor {
     private void initializeKinesisVideoProducer(int width, int height, byte[] cpd) {
         try {
             log.info("Initializing KVS Producer with stream name {} and region : {}", this.outputKvsStreamName, this.regionName);
-            KinesisVideoClient kinesisVideoClient = KinesisVideoJavaClientFactory.createKinesisVideoClient(this.regionName, this.credentialsProvider);
+            this.kinesisVideoClient = KinesisVideoJavaClientFactory.createKinesisVideoClient(this.regionName, this.credentialsProvider);
             log.info("CameraMediaSourceConfiguration");
             CameraMediaSourceConfiguration configuration = (new CameraMediaSourceConfiguration.Builder()).withFrameRate(30).withRetentionPeriodInHours(1).withCameraId("/dev/video0").withIsEncoderHardwareAccelerated(false).withEncodingMimeType("video/avc").withNalAdaptationFlags(NalAdaptationFlags.NAL_ADAPTATION_ANNEXB_NALS).withIsAbsoluteTimecode(true).withEncodingBitRate(200000).withHorizontalResolution(width).withVerticalResolution(height).withCodecPrivateData(cpd).build();
             this.KVSMediaSource = new KVSMediaSource(ProducerStreamUtil.toStreamInfo(this.outputKvsStreamName, configuration));
             this.KVSMediaSource.configure(configuration);
-            kinesisVideoClient.registerMediaSource(this.KVSMediaSource);
+            this.kinesisVideoClient.registerMediaSource(this.KVSMediaSource);
         } catch (KinesisVideoException e) {
             log.error("Exception while initialize KVS Producer !", e);
         }
 
     }
 
+    /**
+     * Make the next transcoded frame a key frame. Does nothing before the first transcoded frame, as when every frame
+     * so far was passed through: a new encoder starts with a key frame anyway.
+     */
     public void resetEncoder() {
         if (this.isEncoderInitialized) {
             this.frameNo = 0;
             this.h264Encoder.setFrameNumber(this.frameNo);
-        } else {
-            throw new IllegalStateException("Encoder not initialized !");
         }
     }
 
+    /**
+     * Wait until all frames put so far have been handed to the Kinesis Video producer.
+     */
+    public void flush() {
+        if (this.isKVSProducerInitialized && this.KVSMediaSource != null) {
+            this.KVSMediaSource.flush();
+        }
+    }
+
+    /**
+     * Send the frames put so far, then stop the media source and its sender thread and free the producer client.
+     * The producer is initialized again by the next frame.
+     */
+    @Override
+    public void close() {
+        this.flush();
+        if (this.KVSMediaSource != null) {
+            this.KVSMediaSource.stop();
+            this.KVSMediaSource = null;
+        }
+        if (this.kinesisVideoClient != null) {
+            try {
+                this.kinesisVideoClient.free();
+            } catch (KinesisVideoException e) {
+                log.warn("Exception while freeing KVS Producer !", e);
+            }
+            this.kinesisVideoClient = null;
+        }
+        this.isKVSProducerInitialized = false;
+    }
+
+    public String getOutputKvsStreamName() {
+        return this.outputKvsStreamName;
+    }
+
     public static H264FrameProcessor create(AWSCredentialsProvider credentialsProvider, String rekognizedStreamName, Regions regionName) {
         return new H264FrameProcessor(credentialsProvider, rekognizedStreamName, regionName);
     }
@@ -116,16 +173,40 @@ public class H264FrameProcessor implements FrameVisitor.FrameProcessor {
     public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata) throws FrameProcessException {
         log.debug("H264FrameProcessor-Processing frame: {}", frame);
         this.printCallStack();
-        if (this.rekognizedOutputs != null) {
-            if (frame.getTrackNumber() == 1L) {
+        if (this.rekognizedFragment != null) {
+            if (frame.getTrackNumber() == 1L && VideoCodec.of(trackMetadata) != VideoCodec.H264) {
+                // Warn once when the track switches to a codec that can not be decoded, not for every frame.
+                if (!trackMetadata.getCodecId().equals(this.skippedCodecId)) {
+                    this.skippedCodecId = trackMetadata.getCodecId();
+                    log.warn("Skipping frames of a {} track, only H.264 frames can be decoded", this.skippedCodecId);
+                } else {
+                    log.debug("Skipping frame of a {} track", this.skippedCodecId);
+                }
+            } else if (frame.getTrackNumber() == 1L) {
+                this.skippedCodecId = null;
                 Preconditions.checkState(trackMetadata.getPixelWidth().isPresent() && trackMetadata.getPixelHeight().isPresent(), "Missing video resolution in track metadata !");
                 Preconditions.checkState(fragmentMetadata.isPresent(), "FragmentMetadata should be present !");
-                BufferedImage decodedFrame = this.h264Decoder.decodeH264Frame(frame, trackMetadata);
+                boolean forceKeyFrame = this.followSourceKeyFrames && frame.isKeyFrame();
+                if (frame.isKeyFrame() && this.passThroughWithoutOverlay) {
+                    // Switch between pass-through and transcoding on GOP boundaries only. A transcoded GOP that
+                    // follows a pass-through one must start with a key frame of its own.
+                    boolean wasPassThroughGop = this.passThroughGop;
+                    this.passThroughGop = !this.gopNeedsOverlay();
+                    forceKeyFrame |= wasPassThroughGop && !this.passThroughGop;
+                }
                 int timeCode = frame.getTimeCode();
-                log.debug("Decoded frame : {} with timecode : {} CachedTimeCode {} and fragment metadata : {}", new Object[]{this.frameNo, frame.getTimeCode(), timeCode, fragmentMetadata.get()});
-                Optional<RekognizedOutput> rekognizedOutput = this.findRekognizedOutputForFrame(frame, fragmentMetadata);
-                BufferedImage compositeFrame = this.renderFrame(decodedFrame, rekognizedOutput);
-                EncodedFrame encodedH264Frame = this.encodeH264Frame(compositeFrame);
+                EncodedFrame encodedH264Frame;
+                if (this.passThroughWithoutOverlay && this.passThroughGop) {
+                    this.findRekognizedOutputForFrame(frame, fragmentMetadata);
+                    encodedH264Frame = this.passThroughFrame(frame, trackMetadata);
+                    log.debug("Passing through frame : {} with timecode : {}", this.frameNo, timeCode);
+                } else {
+                    BufferedImage decodedFrame = this.h264Decoder.decodeH264Frame(frame, trackMetadata);
+                    log.debug("Decoded frame : {} with timecode : {} CachedTimeCode {} and fragment metadata : {}", new Object[]{this.frameNo, frame.getTimeCode(), timeCode, fragmentMetadata.get()});
+                    Optional<RekognizedOutput> rekognizedOutput = this.findRekognizedOutputForFrame(frame, fragmentMetadata);
+                    BufferedImage compositeFrame = this.renderFrame(decodedFrame, rekognizedOutput);
+                    encodedH264Frame = this.encodeH264Frame(compositeFrame, forceKeyFrame);
+                }
                 encodedH264Frame.setTimeCode((long)frame.getTimeCode());
                 encodedH264Frame.setProducerSideTimeStampMillis(((FragmentMetadata)fragmentMetadata.get()).getProducerSideTimestampMillis());
                 encodedH264Frame.setServerSideTimeStampMillis(((FragmentMetadata)fragmentMetadata.get()).getServerSideTimestampMillis());
@@ -166,7 +247,7 @@ public class H264FrameProcessor implements FrameVisitor.FrameProcessor {
 
     }
 
-    private void putFrame(EncodedFrame encodedH264Frame, int width, int height, int timeCode) {
+    void putFrame(EncodedFrame encodedH264Frame, int width, int height, int timeCode) {
         if (!this.isKVSProducerInitialized) {
             log.info("Initializing JNI...");
             this.initializeKinesisVideoProducer(width, height, encodedH264Frame.getCpd().array());
@@ -178,22 +259,64 @@ public class H264FrameProcessor implements FrameVisitor.FrameProcessor {
         log.debug("PutFrame successful for frame no : {}", this.frameNo);
     }
 
-    private EncodedFrame encodeH264Frame(BufferedImage bufferedImage) {
+    private EncodedFrame encodeH264Frame(BufferedImage bufferedImage, boolean forceKeyFrame) {
         try {
             this.initializeEncoder(bufferedImage);
-            return this.h264Encoder.encodeFrame(bufferedImage);
+            return this.h264Encoder.encodeFrame(bufferedImage, forceKeyFrame);
         } catch (Exception e) {
             throw new RuntimeException("Unable to encode the bufferedImage !", e);
         }
     }
 
+    /**
+     * A GOP needs an overlay if an earlier frame had detections, which are drawn on every following frame, or if the
+     * Rekognition output of the fragment has any detection.
+     */
+    private boolean gopNeedsOverlay() {
+        return hasDetections(this.currentRekognizedOutput) || this.rekognizedFragment.getRekognizedOutputs().stream().anyMatch(H264FrameProcessor::hasDetections);
+    }
+
+    private static boolean hasDetections(RekognizedOutput rekognizedOutput) {
+        return rekognizedOutput != null && rekognizedOutput.getFaceSearchOutputs() != null && !rekognizedOutput.getFaceSearchOutputs().isEmpty();
+    }
+
+    /**
+     * Forward the compressed frame unchanged, converted to Annex-B like the output of the encoder. Key frames carry the
+     * SPS and PPS of the source in-band, because the producer was configured with the codec private data of the first
+     * frame, which can come from either path.
+     */
+    private EncodedFrame passThroughFrame(Frame frame, MkvTrackMetadata trackMetadata) {
+        ByteBuffer codecPrivateData = trackMetadata.getCodecPrivateData();
+        if (codecPrivateData != this.passThroughCodecPrivateData) {
+            this.passThroughCodecPrivateData = codecPrivateData;
+            this.passThroughParameterSets = H264NalUnitIterator.parameterSetsToAnnexB(codecPrivateData);
+            this.passThroughNalUnits = NalUnitIterator.forTrack(trackMetadata);
+        }
+        ByteBuffer frameData = frame.getFrameData();
+        // A start code is at most 3 bytes longer than the length prefix of a NAL unit of at least 1 byte.
+        int capacity = this.passThroughParameterSets.length + frameData.remaining() * 3;
+        if (this.passThroughBuffer == null || this.passThroughBuffer.capacity() < capacity) {
+            this.passThroughBuffer = ByteBuffer.allocate(capacity);
+        }
+        this.passThroughBuffer.clear();
+        if (frame.isKeyFrame()) {
+            this.passThroughBuffer.put(this.passThroughParameterSets);
+        }
+        this.passThroughNalUnits.reset(frameData).writeRemainingAsAnnexB(this.passThroughBuffer);
+        this.passThroughBuffer.flip();
+        return EncodedFrame.builder()
+                .byteBuffer(this.passThroughBuffer)
+                .isKeyFrame(frame.isKeyFrame())
+                .cpd(codecPrivateData)
+                .build();
+    }
+
     private void initializeEncoder(BufferedImage bufferedImage) {
-        if (!this.isEncoderInitialized || this.currentWidth != bufferedImage.getWidth() || this.currentHeight != bufferedImage.getHeight()) {
-            this.h264Encoder = new H264FrameEncoder(bufferedImage.getWidth(), bufferedImage.getHeight(), this.frameBitRate);
-            this.isEncoderInitialized = true;
-            this.currentWidth = bufferedImage.getWidth();
-            this.currentHeight = bufferedImage.getHeight();
+        if (this.encoderCache == null) {
+            this.encoderCache = H264FrameEncoderCache.create(ENCODER_CACHE_SIZE, this::createEncoder);
         }
+        this.h264Encoder = this.encoderCache.get(bufferedImage.getWidth(), bufferedImage.getHeight());
+        this.isEncoderInitialized = true;
 
     }
 
@@ -210,13 +333,13 @@ public class H264FrameProcessor implements FrameVisitor.FrameProcessor {
             long frameOffset = (long)frame.getTimeCode() > this.keyFrameTimecode ? (long)frame.getTimeCode() - this.keyFrameTimecode : 0L;
             log.debug("Current Fragment Number : {} Computed Frame offset : {}", fragmentNumber, frameOffset);
             if (log.isDebugEnabled()) {
-                this.rekognizedOutputs.forEach((p) -> log.debug("frameOffsetInSeconds from Rekognition : {}", p.getFrameOffsetInSeconds()));
+                this.rekognizedFragment.getRekognizedOutputs().forEach((p) -> log.debug("frameOffsetInSeconds from Rekognition : {}", p.getFrameOffsetInSeconds()));
             }
 
-            rekognizedOutput = this.rekognizedOutputs.stream().filter((p) -> this.isOffsetDeltaWithinThreshold(frameOffset, p)).findFirst();
+            rekognizedOutput = this.rekognizedFragment.findNearest(frameOffset, OFFSET_DELTA_THRESHOLD);
             if (rekognizedOutput.isPresent()) {
                 log.debug("Computed offset matched with retrieved offset. Delta : {}", Math.abs((double)frameOffset - ((RekognizedOutput)rekognizedOutput.get()).getFrameOffsetInSeconds() * (double)1000.0F));
-                if (this.rekognizedOutputs.isEmpty()) {
+                if (this.rekognizedFragment.isEmpty()) {
                     log.debug("All frames processed for this fragment number : {}", fragmentNumber);
                 }
             }
@@ -225,9 +348,6 @@ public class H264FrameProcessor implements FrameVisitor.FrameProcessor {
         return rekognizedOutput;
     }
 
-    private boolean isOffsetDeltaWithinThreshold(long frameOffset, RekognizedOutput output) {
-        return Math.abs((double)frameOffset - output.getFrameOffsetInSeconds() * (double)1000.0F) <= (double)10.0F;
-    }
 
     private BufferedImage renderFrame(BufferedImage bufferedImage, Optional<RekognizedOutput> rekognizedOutput) {
         if (rekognizedOutput.isPresent()) {
@@ -245,11 +365,58 @@ public class H264FrameProcessor implements FrameVisitor.FrameProcessor {
     }
 
     public void setRekognizedOutputs(List<RekognizedOutput> rekognizedOutputs) {
-        this.rekognizedOutputs = rekognizedOutputs;
+        this.rekognizedFragment = RekognizedOutputs.of(rekognizedOutputs);
+    }
+
+    public void setRekognizedFragment(RekognizedFragmentsIndex.RekognizedFragment rekognizedFragment) {
+        this.rekognizedFragment = rekognizedFragment;
     }
 
     public void setFrameBitRate(int frameBitRate) {
         this.frameBitRate = frameBitRate;
+        this.encoderCache = null;
+    }
+
+    /**
+     * Start a new GOP in the output stream every keyFrameInterval frames, 0 to only start one per fragment.
+     */
+    public void setKeyFrameInterval(int keyFrameInterval) {
+        this.keyFrameInterval = keyFrameInterval;
+        this.encoderCache = null;
+    }
+
+    /**
+     * Start a new GOP in the output stream at every key frame of the input stream, so the output is fragmented like
+     * the input.
+     */
+    public void setFollowSourceKeyFrames(boolean followSourceKeyFrames) {
+        this.followSourceKeyFrames = followSourceKeyFrames;
+    }
+
+    /**
+     * Use a custom rate control instead of a fixed rate control with the frame bit rate. The supplier is called for
+     * every encoder that is created.
+     */
+    public void setRateControlSupplier(Supplier<RateControl> rateControlSupplier) {
+        this.rateControlSupplier = rateControlSupplier;
+        this.encoderCache = null;
+    }
+
+    /**
+     * Forward the original compressed frames of GOPs without anything to draw instead of decoding and re-encoding
+     * them. The decision is taken at every key frame of the input stream.
+     */
+    public void setPassThroughWithoutOverlay(boolean passThroughWithoutOverlay) {
+        this.passThroughWithoutOverlay = passThroughWithoutOverlay;
+        this.passThroughGop = false;
+    }
+
+    private H264FrameEncoder createEncoder(int width, int height) {
+        H264FrameEncoder encoder = this.rateControlSupplier == null
+                ? new H264FrameEncoder(width, height, this.frameBitRate)
+                : new H264FrameEncoder(width, height, this.rateControlSupplier.get());
+        encoder.setKeyFrameInterval(this.keyFrameInterval);
+        return encoder;
     }
 }
 
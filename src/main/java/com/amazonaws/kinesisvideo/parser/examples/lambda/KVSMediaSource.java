@@ -24,37 +24,94 @@ import com.amazonaws.kinesisvideo.internal.client.mediasource.MediaSourceSink;
 import com.amazonaws.kinesisvideo.producer.KinesisVideoFrame;
 import com.amazonaws.kinesisvideo.producer.StreamCallbacks;
 import com.amazonaws.kinesisvideo.producer.StreamInfo;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
+import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Media source that hands encoded frames to the producer SDK from a sender thread of its own, so that encoding is not
+ * held up by the latency of {@link MediaSourceSink#onFrame}. Frames are copied into (optionally pooled) buffers and
+ * put on a bounded queue, which blocks the caller of {@link #putFrameData} once it is full. The sender drains the queue
+ * in batches.
+ *
+ * Frame timestamps are the producer side timestamp of the source fragment plus the timecode of the frame in it, and
+ * the duration of a frame is the distance to the timestamp of the frame after it. The sender therefore holds back the
+ * last frame until the next one, a {@link #flush()} or {@link #stop()} arrives.
+ */
 public class KVSMediaSource implements MediaSource {
     private static final Logger log = LoggerFactory.getLogger(KVSMediaSource.class);
     private static final int FRAME_FLAG_KEY_FRAME = 1;
     private static final int FRAME_FLAG_NONE = 0;
     private static final long HUNDREDS_OF_NANOS_IN_MS = 10000L;
-    private static final long FRAME_DURATION_20_MS = 20L;
+    private static final long DEFAULT_FRAME_DURATION_MS = 20L;
+    private static final long POLL_TIMEOUT_MS = 100L;
+    private static final long STOP_TIMEOUT_MS = 60000L;
+    public static final int DEFAULT_QUEUE_CAPACITY = 120;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 30;
     private CameraMediaSourceConfiguration cameraMediaSourceConfiguration;
     private MediaSourceState mediaSourceState;
     private MediaSourceSink mediaSourceSink;
-    private int frameIndex;
     private final StreamInfo streamInfo;
-    private long prevTimeCode = 0L;
-    private long duration = 0L;
-    private long totalDuration = 0L;
-    private long putFrameTimeCode = 0L;
-    private boolean firstFrameReset = false;
-    private int frameWithinFragment = 1;
-
-    private void putFrame(KinesisVideoFrame kinesisVideoFrame) {
-        try {
-            log.debug("PutFrame for frame no : {} ; kinesisVideoFrame {}", this.frameIndex, kinesisVideoFrame);
-            this.mediaSourceSink.onFrame(kinesisVideoFrame);
-        } catch (KinesisVideoException ex) {
-            throw new RuntimeException(ex);
+    private final BlockingQueue<QueuedFrame> frameQueue;
+    @Nullable
+    private final BlockingQueue<ByteBuffer> bufferPool;
+    private final int maxBatchSize;
+    private Thread senderThread;
+    private volatile boolean running = false;
+    private volatile Throwable sendFailure;
+    // Only touched by the thread calling putFrameData.
+    private long wallClockBaseMillis = -1L;
+    private long lastEnqueuedTimestampMillis = -1L;
+    // Only touched by the sender thread.
+    private int frameIndex;
+    private QueuedFrame pendingFrame;
+    private long lastDurationMillis = DEFAULT_FRAME_DURATION_MS;
+
+    /**
+     * A frame waiting to be sent, or a flush marker if {@code flushed} is set.
+     */
+    private static final class QueuedFrame {
+        private final ByteBuffer data;
+        private final boolean keyFrame;
+        private final long timestampMillis;
+        private final CompletableFuture<Void> flushed;
+
+        private QueuedFrame(ByteBuffer data, boolean keyFrame, long timestampMillis, CompletableFuture<Void> flushed) {
+            this.data = data;
+            this.keyFrame = keyFrame;
+            this.timestampMillis = timestampMillis;
+            this.flushed = flushed;
         }
     }
 
+    public KVSMediaSource(StreamInfo streamInfo) {
+        this(streamInfo, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_QUEUE_CAPACITY + 2);
+    }
+
+    /**
+     * @param queueCapacity  Number of frames that can wait for the sender before {@link #putFrameData} blocks.
+     * @param maxBatchSize   Maximum number of frames the sender takes off the queue at once.
+     * @param framePoolSize  Number of frame buffers kept for reuse, 0 to allocate a buffer for every frame.
+     */
+    public KVSMediaSource(StreamInfo streamInfo, int queueCapacity, int maxBatchSize, int framePoolSize) {
+        Validate.isTrue(queueCapacity > 0, "Queue capacity must be positive");
+        Validate.isTrue(maxBatchSize > 0, "Max batch size must be positive");
+        Validate.isTrue(framePoolSize >= 0, "Frame pool size must not be negative");
+        this.streamInfo = streamInfo;
+        this.frameQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.bufferPool = framePoolSize > 0 ? new ArrayBlockingQueue<>(framePoolSize) : null;
+    }
+
     public MediaSourceState getMediaSourceState() {
         return this.mediaSourceState;
     }
@@ -67,8 +124,14 @@ public class KVSMediaSource implements MediaSource {
         return this.streamInfo;
     }
 
-    public void initialize(MediaSourceSink mediaSourceSink) {
+    public synchronized void initialize(MediaSourceSink mediaSourceSink) {
         this.mediaSourceSink = mediaSourceSink;
+        if (this.senderThread == null) {
+            this.running = true;
+            this.senderThread = new Thread(this::sendFrames, "KVSMediaSource-sender");
+            this.senderThread.setDaemon(true);
+            this.senderThread.start();
+        }
     }
 
     public void configure(MediaSourceConfiguration configuration) {
@@ -84,59 +147,182 @@ public class KVSMediaSource implements MediaSource {
         this.mediaSourceState = MediaSourceState.RUNNING;
     }
 
+    /**
+     * Queue a frame for the producer. The frame data is copied, so the buffer of the encoded frame can be reused as
+     * soon as this returns. Blocks while the queue is full.
+     *
+     * @throws RuntimeException if sending an earlier frame failed.
+     */
     public void putFrameData(EncodedFrame encodedFrame, int timeCode) {
         log.debug("putFrameData : {} producerSideTimeStampMillis {} serverSideTimeStampMillis {} ", new Object[]{encodedFrame, encodedFrame.getProducerSideTimeStampMillis(), encodedFrame.getServerSideTimeStampMillis()});
-        int flags = encodedFrame.isKeyFrame() ? 1 : 0;
-        if (encodedFrame.getByteBuffer() != null) {
-            if (encodedFrame.isKeyFrame()) {
-                this.duration = 5L;
-                this.totalDuration = 0L;
-                this.prevTimeCode = 0L;
-                this.putFrameTimeCode = System.currentTimeMillis();
-                this.firstFrameReset = true;
-                this.frameWithinFragment = 0;
-            } else {
-                if (this.firstFrameReset) {
-                    this.duration = encodedFrame.getTimeCode() - 5L;
-                    this.firstFrameReset = false;
-                } else {
-                    this.duration = encodedFrame.getTimeCode() - this.prevTimeCode;
-                }
+        this.checkSendFailure();
+        Validate.validState(this.running, "Media source is not initialized or already stopped");
+        ByteBuffer frameData = encodedFrame.getByteBuffer();
+        if (frameData == null) {
+            log.info("Frame Data is null !");
+            return;
+        }
+        if (!frameData.hasRemaining()) {
+            return;
+        }
 
-                this.totalDuration += this.duration;
-                if (this.totalDuration > 1998L) {
-                    this.duration = 1L;
-                }
+        long timestampMillis = this.frameTimestampMillis(encodedFrame, timeCode);
+        ByteBuffer copy = this.acquireBuffer(frameData.remaining());
+        copy.put(frameData.duplicate()).flip();
+        try {
+            this.frameQueue.put(new QueuedFrame(copy, encodedFrame.isKeyFrame(), timestampMillis, null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing frame", e);
+        }
+    }
 
-                this.prevTimeCode = encodedFrame.getTimeCode();
-                ++this.frameWithinFragment;
+    /**
+     * Timestamp of the frame from the source: the producer side timestamp of its fragment plus its timecode within the
+     * fragment. Sources without producer timestamps are anchored to the wall clock at their first frame. Timestamps
+     * are kept strictly increasing, as the producer rejects frames that go back in time.
+     */
+    private long frameTimestampMillis(EncodedFrame encodedFrame, int timeCode) {
+        long fragmentStartMillis = encodedFrame.getProducerSideTimeStampMillis();
+        if (fragmentStartMillis <= 0L) {
+            if (this.wallClockBaseMillis < 0L) {
+                this.wallClockBaseMillis = System.currentTimeMillis();
             }
+            fragmentStartMillis = this.wallClockBaseMillis;
+        }
+        long timestampMillis = fragmentStartMillis + timeCode;
+        if (timestampMillis <= this.lastEnqueuedTimestampMillis) {
+            log.debug("Frame timestamp {} is not after the previous one {}, adjusting", timestampMillis, this.lastEnqueuedTimestampMillis);
+            timestampMillis = this.lastEnqueuedTimestampMillis + 1L;
+        }
+        this.lastEnqueuedTimestampMillis = timestampMillis;
+        return timestampMillis;
+    }
+
+    /**
+     * Wait until every frame queued so far has been handed to the producer.
+     *
+     * @throws RuntimeException if sending a frame failed.
+     */
+    public void flush() {
+        if (!this.running) {
+            this.checkSendFailure();
+            return;
+        }
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        try {
+            this.frameQueue.put(new QueuedFrame(null, false, 0L, flushed));
+            flushed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while flushing frames", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to send frames", e.getCause());
+        }
+    }
 
-            if (this.putFrameTimeCode == 0L) {
-                this.putFrameTimeCode = System.currentTimeMillis();
+    private void sendFrames() {
+        List<QueuedFrame> batch = new ArrayList<>(this.maxBatchSize);
+        try {
+            while (this.running || !this.frameQueue.isEmpty()) {
+                QueuedFrame first = this.frameQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                this.frameQueue.drainTo(batch, this.maxBatchSize - 1);
+                for (QueuedFrame queuedFrame : batch) {
+                    this.handle(queuedFrame);
+                }
+                batch.clear();
             }
+            this.sendPendingFrame();
+        } catch (InterruptedException e) {
+            log.warn("Sender thread interrupted, {} frames are not sent", this.frameQueue.size());
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            log.debug(" frameTimeCode {} duration {} totalDurationMillis {} prevTimeCode {} currentTimeCode {}", new Object[]{encodedFrame.getTimeCode(), this.duration, this.totalDuration, this.prevTimeCode, encodedFrame.getTimeCode()});
-            log.debug(" putFrameTime code {} frameWithinFragment {} ", this.putFrameTimeCode, this.frameWithinFragment);
-            KinesisVideoFrame frame;
-            if (encodedFrame.isKeyFrame()) {
-                frame = new KinesisVideoFrame(this.frameIndex++, flags, this.putFrameTimeCode * 10000L, this.putFrameTimeCode * 10000L, 200000L, encodedFrame.getByteBuffer());
+    private void handle(QueuedFrame queuedFrame) {
+        if (queuedFrame.flushed != null) {
+            this.sendPendingFrame();
+            if (this.sendFailure != null) {
+                queuedFrame.flushed.completeExceptionally(this.sendFailure);
             } else {
-                frame = new KinesisVideoFrame(this.frameIndex++, flags, (this.putFrameTimeCode + (long)(this.frameWithinFragment * 20)) * 10000L, (this.putFrameTimeCode + (long)(this.frameWithinFragment * 20)) * 10000L, 200000L, encodedFrame.getByteBuffer());
+                queuedFrame.flushed.complete(null);
             }
+            return;
+        }
+        if (this.pendingFrame != null) {
+            this.lastDurationMillis = queuedFrame.timestampMillis - this.pendingFrame.timestampMillis;
+            this.sendPendingFrame();
+        }
+        this.pendingFrame = queuedFrame;
+    }
 
-            if (frame.getSize() == 0) {
-                return;
+    private void sendPendingFrame() {
+        QueuedFrame queuedFrame = this.pendingFrame;
+        if (queuedFrame == null) {
+            return;
+        }
+        this.pendingFrame = null;
+        try {
+            if (this.sendFailure == null) {
+                int flags = queuedFrame.keyFrame ? FRAME_FLAG_KEY_FRAME : FRAME_FLAG_NONE;
+                long timestamp = queuedFrame.timestampMillis * HUNDREDS_OF_NANOS_IN_MS;
+                KinesisVideoFrame frame = new KinesisVideoFrame(this.frameIndex++, flags, timestamp, timestamp, this.lastDurationMillis * HUNDREDS_OF_NANOS_IN_MS, queuedFrame.data);
+                log.debug("PutFrame for frame no : {} ; kinesisVideoFrame {}", frame.getIndex(), frame);
+                this.mediaSourceSink.onFrame(frame);
             }
+        } catch (KinesisVideoException | RuntimeException e) {
+            log.error("Unable to put frame, dropping the remaining frames", e);
+            this.sendFailure = e;
+        } finally {
+            this.releaseBuffer(queuedFrame.data);
+        }
+    }
 
-            this.putFrame(frame);
-        } else {
-            log.info("Frame Data is null !");
+    private void checkSendFailure() {
+        if (this.sendFailure != null) {
+            throw new RuntimeException("Unable to send frames", this.sendFailure);
         }
+    }
 
+    private ByteBuffer acquireBuffer(int size) {
+        ByteBuffer buffer = this.bufferPool != null ? this.bufferPool.poll() : null;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (this.bufferPool != null) {
+            this.bufferPool.offer(buffer);
+        }
     }
 
+    /**
+     * Send the queued frames and stop the sender thread.
+     */
     public void stop() {
+        Thread sender;
+        synchronized (this) {
+            sender = this.senderThread;
+            this.senderThread = null;
+            this.running = false;
+        }
+        if (sender != null) {
+            try {
+                sender.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (sender.isAlive()) {
+                log.warn("Sender thread did not finish in {} ms", STOP_TIMEOUT_MS);
+            }
+        }
         this.mediaSourceState = MediaSourceState.STOPPED;
     }
 
@@ -145,6 +331,7 @@ public class KVSMediaSource implements MediaSource {
     }
 
     public void free() {
+        this.stop();
     }
 
     public MediaSourceSink getMediaSourceSink() {
@@ -155,10 +342,4 @@ public class KVSMediaSource implements MediaSource {
     public StreamCallbacks getStreamCallbacks() {
         return null;
     }
-
-    public KVSMediaSource(StreamInfo streamInfo) {
-        this.streamInfo = streamInfo;
-    }
 }
-
-
@@ -15,13 +15,13 @@ package com.amazonaws.kinesisvideo.parser.examples.lambda;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
-import com.amazonaws.kinesisvideo.parser.examples.GetMediaForFragmentListWorker;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.examples.GetMediaForFragmentListPrefetcher;
+import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoMediaClientPool;
 import com.amazonaws.kinesisvideo.parser.examples.StreamOps;
 import com.amazonaws.kinesisvideo.parser.kinesis.KinesisDataStreamsWorker;
-import com.amazonaws.kinesisvideo.parser.rekognition.pojo.DetectedFace;
-import com.amazonaws.kinesisvideo.parser.rekognition.pojo.FaceSearchResponse;
-import com.amazonaws.kinesisvideo.parser.rekognition.pojo.MatchedFace;
-import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognitionOutput;
+import com.amazonaws.kinesisvideo.parser.kinesis.RekognizedOutputReader;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedFragmentsIndex;
 import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedOutput;
 import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
@@ -30,13 +30,12 @@ import com.amazonaws.services.kinesis.model.Record;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.KinesisEvent;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.jcodec.codecs.h264.encode.DumbRateControl;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
@@ -50,6 +49,16 @@ import java.util.stream.Collectors;
  * frame again (using Jcodec) and then publishes into new derived Kinesis Video streams. The new stream can be
  * viewed using Kinesis Video Streams console or using HLS playback.
  *
+ * The output stream is configured with system properties, e.g. in JAVA_TOOL_OPTIONS:
+ * - PassThroughWithoutOverlay: true to forward GOPs without any face to draw without decoding and encoding them
+ *   again. It is off by default, so every frame is transcoded.
+ * - OutputKeyFrameInterval: number of frames in a GOP of the output stream. By default there is one GOP per input
+ *   fragment.
+ * - OutputFollowSourceKeyFrames: true to start a GOP at every key frame of the input stream.
+ * - OutputFrameBitRate: bit rate of the fixed rate control of the encoder.
+ * - OutputConstantQp: true to encode with a constant quantizer instead of the fixed rate control, for a steady
+ *   quality at a variable bit rate.
+ *
  * NOTE: For Instructions to run this Lambda, please refer README.
  * NOTE: As this lambda executes resource intense decoding and encoding (using Jcodec which is not optimal
  * https://github.com/jcodec/jcodec#performance--quality-considerations), the new Kinesis Video stream might be delayed significantly.
@@ -58,6 +67,12 @@ import java.util.stream.Collectors;
 public final class KinesisVideoRekognitionLambdaExample implements RequestHandler<KinesisEvent, Context> {
     private static final int NUM_RETRIES = 10;
     private static final int KCL_INIT_DELAY_MILLIS = 10_000;
+    private static final int PREFETCHED_FRAGMENTS = 3;
+    private static final String PASS_THROUGH_WITHOUT_OVERLAY = "PassThroughWithoutOverlay";
+    private static final String OUTPUT_KEY_FRAME_INTERVAL = "OutputKeyFrameInterval";
+    private static final String OUTPUT_FOLLOW_SOURCE_KEY_FRAMES = "OutputFollowSourceKeyFrames";
+    private static final String OUTPUT_FRAME_BIT_RATE = "OutputFrameBitRate";
+    private static final String OUTPUT_CONSTANT_QP = "OutputConstantQp";
     private final ExecutorService kdsWorkers = Executors.newFixedThreadPool(100);
     private final AWSCredentialsProvider credentialsProvider = new DefaultAWSCredentialsProviderChain();
     private final RekognizedFragmentsIndex rekognizedFragmentsIndex = new RekognizedFragmentsIndex();
@@ -66,6 +81,7 @@ public final class KinesisVideoRekognitionLambdaExample implements RequestHandle
     private String outputKvsStreamName;
     private StreamOps kvsClient;
     private FragmentCheckpointManager fragmentCheckpointManager;
+    private KinesisVideoMediaClientPool mediaClientPool;
     private H264FrameProcessor h264FrameProcessor;
     /**
      * Main method to test the integration locally in desktop.
@@ -101,17 +117,50 @@ public final class KinesisVideoRekognitionLambdaExample implements RequestHandle
         this.inputKvsStreamName = kvsStreamName;
         outputKvsStreamName = kvsStreamName + "-Rekognized";
         kvsClient = new StreamOps(regionName, kvsStreamName, credentialsProvider);
-       log.debug("H264FrameProcessor.create");
-        h264FrameProcessor = H264FrameProcessor.create(credentialsProvider, outputKvsStreamName, regionName);
-        fragmentCheckpointManager = new DDBBasedFragmentCheckpointManager(kvsClient.getRegion(), credentialsProvider);
+        if (h264FrameProcessor == null || !h264FrameProcessor.getOutputKvsStreamName().equals(outputKvsStreamName)) {
+            if (h264FrameProcessor != null) {
+                // Stops the sender thread of the previous output stream.
+                h264FrameProcessor.close();
+            }
+            // Reused across executions of a warm lambda container, its producer runs a sender thread.
+            log.debug("H264FrameProcessor.create");
+            h264FrameProcessor = H264FrameProcessor.create(credentialsProvider, outputKvsStreamName, regionName);
+            configureOutput(h264FrameProcessor);
+        }
+        if (fragmentCheckpointManager == null) {
+            // Reused across executions of a warm lambda container, it flushes checkpoints in the background.
+            fragmentCheckpointManager = new DDBBasedFragmentCheckpointManager(kvsClient.getRegion(),
+                    credentialsProvider);
+        }
+        if (mediaClientPool == null) {
+            // Reused across executions of a warm lambda container, it caches data endpoints and connections.
+            mediaClientPool = KinesisVideoMediaClientPool.create(regionName, credentialsProvider,
+                    kvsClient.getAmazonKinesisVideo());
+        }
         log.info("Initialized with input KVS stream: {}, output {}, region : {}",
                 inputKvsStreamName, outputKvsStreamName, regionName);
     }
 
+    /**
+     * Apply the output stream settings from the system properties, see the class documentation.
+     */
+    private static void configureOutput(final H264FrameProcessor frameProcessor) {
+        frameProcessor.setPassThroughWithoutOverlay(Boolean.getBoolean(PASS_THROUGH_WITHOUT_OVERLAY));
+        frameProcessor.setKeyFrameInterval(Integer.getInteger(OUTPUT_KEY_FRAME_INTERVAL, 0));
+        frameProcessor.setFollowSourceKeyFrames(Boolean.getBoolean(OUTPUT_FOLLOW_SOURCE_KEY_FRAMES));
+        final Integer frameBitRate = Integer.getInteger(OUTPUT_FRAME_BIT_RATE);
+        if (frameBitRate != null) {
+            frameProcessor.setFrameBitRate(frameBitRate);
+        }
+        if (Boolean.getBoolean(OUTPUT_CONSTANT_QP)) {
+            frameProcessor.setRateControlSupplier(DumbRateControl::new);
+        }
+    }
+
     /**
      * Process Rekognized outputs for each rekognized output. For each kinesis event record i.e for each
      * fragment number create a call getMediaForFragmentList, parse fragments, decode frame, draw bounding box,
-     * encode frame, call KVS PutFrame.
+     * encode frame, call KVS PutFrame. The media of the next fragments is fetched while a fragment is processed.
      *
      * @throws InterruptedException
      */
@@ -120,43 +169,64 @@ public final class KinesisVideoRekognitionLambdaExample implements RequestHandle
         final Optional<FragmentCheckpoint> lastFragmentNumber = fragmentCheckpointManager
                 .getLastProcessedItem(inputKvsStreamName);
 
-        String fragmentNumber = null;
         while (!rekognizedFragmentsIndex.isEmpty()) {
-            final RekognizedFragmentsIndex.RekognizedFragment rekognizedFragment = rekognizedFragmentsIndex.poll();
-            fragmentNumber = rekognizedFragment.getFragmentNumber();
-            final List<RekognizedOutput> rekognizedOutputList = rekognizedFragment.getRekognizedOutputs();
-            if (lastFragmentNumber.isPresent()
-                    && (fragmentNumber.equals(lastFragmentNumber.get().getFragmentNumber())
-                    || rekognizedFragment.getServerTime() <= lastFragmentNumber.get().getServerTime())) {
-                // If the current fragment number is equal to the last processed fragment number or if the current
-                // fragment's server time is older than or equal than last processed fragment's server time then
-                // skip this fragment number and proceed to next fragment.
-                log.info("Current fragment number : {} is already processed or older than last processed fragment. "
-                        + "So skipping..", fragmentNumber);
-                continue;
+            final List<RekognizedFragmentsIndex.RekognizedFragment> rekognizedFragments = new ArrayList<>();
+            while (!rekognizedFragmentsIndex.isEmpty()) {
+                final RekognizedFragmentsIndex.RekognizedFragment rekognizedFragment =
+                        rekognizedFragmentsIndex.poll();
+                final String fragmentNumber = rekognizedFragment.getFragmentNumber();
+                if (lastFragmentNumber.isPresent()
+                        && (fragmentNumber.equals(lastFragmentNumber.get().getFragmentNumber())
+                        || rekognizedFragment.getServerTime() <= lastFragmentNumber.get().getServerTime())) {
+                    // If the current fragment number is equal to the last processed fragment number or if the
+                    // current fragment's server time is older than or equal than last processed fragment's server
+                    // time then skip this fragment number and proceed to next fragment.
+                    log.info("Current fragment number : {} is already processed or older than last processed "
+                            + "fragment. So skipping..", fragmentNumber);
+                    continue;
+                }
+                rekognizedFragments.add(rekognizedFragment);
             }
-            try {
-                final FrameVisitor frameVisitor = FrameVisitor.create(h264FrameProcessor);
-                final GetMediaForFragmentListWorker worker = GetMediaForFragmentListWorker.create(
-                        kvsClient.getStreamName(),
-                        Collections.singletonList(fragmentNumber),
-                        kvsClient.getCredentialsProvider(),
-                        kvsClient.getRegion(),
-                        kvsClient.getAmazonKinesisVideo(),
-                        frameVisitor);
-                h264FrameProcessor.setRekognizedOutputs(rekognizedOutputList);
-                worker.run();
-                // For every fragment, the rekognition output needs to be set and the encoder needs to be reset
-                // as the JCodec encoder always treats first frame as IDR frame
-                h264FrameProcessor.resetEncoder();
-                log.info("Fragment {} processed successfully ...", fragmentNumber);
+            processRekognizedFragments(rekognizedFragments);
+        }
+        // Checkpoints are written behind, persist them before the lambda execution ends.
+        fragmentCheckpointManager.flush();
+    }
+
+    private void processRekognizedFragments(
+            final List<RekognizedFragmentsIndex.RekognizedFragment> rekognizedFragments) {
+        // One fragment per request, each fragment has its own Rekognition outputs and checkpoint.
+        try (GetMediaForFragmentListPrefetcher prefetcher = GetMediaForFragmentListPrefetcher.create(
+                inputKvsStreamName,
+                rekognizedFragments.stream().map(RekognizedFragmentsIndex.RekognizedFragment::getFragmentNumber)
+                        .iterator(),
+                mediaClientPool,
+                1,
+                PREFETCHED_FRAGMENTS)) {
+            for (final RekognizedFragmentsIndex.RekognizedFragment rekognizedFragment : rekognizedFragments) {
+                final String fragmentNumber = rekognizedFragment.getFragmentNumber();
+                try {
+                    final GetMediaForFragmentListPrefetcher.FragmentListPayload payload = prefetcher.next();
+                    final FrameVisitor frameVisitor = FrameVisitor.create(h264FrameProcessor);
+                    h264FrameProcessor.setRekognizedFragment(rekognizedFragment);
+                    StreamingMkvReader.createDefault(new InputStreamParserByteSource(payload.getPayload()))
+                            .apply(frameVisitor);
+                    // For every fragment, the rekognition output needs to be set and the encoder needs to be reset
+                    // as the JCodec encoder always treats first frame as IDR frame. This does nothing while every
+                    // frame was passed through.
+                    h264FrameProcessor.resetEncoder();
+                    // Frames are sent to the producer asynchronously, wait for them before checkpointing the
+                    // fragment.
+                    h264FrameProcessor.flush();
+                    log.info("Fragment {} processed successfully ...", fragmentNumber);
 
-                // Once the current fragment number is processed save it as a checkpoint.
-                fragmentCheckpointManager.saveCheckPoint(inputKvsStreamName, fragmentNumber,
-                        rekognizedFragment.getProducerTime(), rekognizedFragment.getServerTime());
+                    // Once the current fragment number is processed save it as a checkpoint.
+                    fragmentCheckpointManager.saveCheckPoint(inputKvsStreamName, fragmentNumber,
+                            rekognizedFragment.getProducerTime(), rekognizedFragment.getServerTime());
 
-            } catch (final Exception e) {
-                log.error("Error while processing fragment number: {}", fragmentNumber, e);
+                } catch (final Exception e) {
+                    log.error("Error while processing fragment number: {}", fragmentNumber, e);
+                }
             }
         }
     }
@@ -245,61 +315,17 @@ public final class KinesisVideoRekognitionLambdaExample implements RequestHandle
      * @param record The record to be processed.
      */
     private void processSingleRecord(final Record record) {
-
-        String data = null;
-        final ObjectMapper mapper = new ObjectMapper();
         try {
-            final ByteBuffer buffer = record.getData();
-            data = new String(buffer.array(), "UTF-8");
-            final RekognitionOutput output = mapper.readValue(data, RekognitionOutput.class);
-
-            // Get the fragment number from Rekognition Output
-            final String fragmentNumber = output
-                    .getInputInformation()
-                    .getKinesisVideo()
-                    .getFragmentNumber();
-            final Double frameOffsetInSeconds = output
-                    .getInputInformation()
-                    .getKinesisVideo()
-                    .getFrameOffsetInSeconds();
-            final Double serverTimestamp = output
-                    .getInputInformation()
-                    .getKinesisVideo()
-                    .getServerTimestamp();
-            final Double producerTimestamp = output
-                    .getInputInformation()
-                    .getKinesisVideo()
-                    .getProducerTimestamp();
-            final double detectedTime = output.getInputInformation().getKinesisVideo().getServerTimestamp()
-                    + output.getInputInformation().getKinesisVideo().getFrameOffsetInSeconds() * 1000L;
-            final RekognizedOutput rekognizedOutput = RekognizedOutput.builder()
-                    .fragmentNumber(fragmentNumber)
-                    .serverTimestamp(serverTimestamp)
-                    .producerTimestamp(producerTimestamp)
-                    .frameOffsetInSeconds(frameOffsetInSeconds)
-                    .detectedTime(detectedTime)
-                    .build();
-
-            // Add face search response
-            final List<FaceSearchResponse> responses = output.getFaceSearchResponse();
-
-            responses.forEach(response -> {
-                final DetectedFace detectedFace = response.getDetectedFace();
-                final List<MatchedFace> matchedFaces = response.getMatchedFaces();
-                final RekognizedOutput.FaceSearchOutput faceSearchOutput = RekognizedOutput.FaceSearchOutput.builder()
-                        .detectedFace(detectedFace)
-                        .matchedFaceList(matchedFaces)
-                        .build();
-                rekognizedOutput.addFaceSearchOutput(faceSearchOutput);
-            });
+            final RekognizedOutput rekognizedOutput = RekognizedOutputReader.INSTANCE.read(record.getData());
 
             // Add it to the index
+            final String fragmentNumber = rekognizedOutput.getFragmentNumber();
             log.info("Found Rekognized results for fragment number : {}", fragmentNumber);
-            rekognizedFragmentsIndex.add(fragmentNumber, producerTimestamp.longValue(),
-                    serverTimestamp.longValue(), rekognizedOutput);
+            rekognizedFragmentsIndex.add(fragmentNumber, rekognizedOutput.getProducerTimestamp().longValue(),
+                    rekognizedOutput.getServerTimestamp().longValue(), rekognizedOutput);
 
         } catch (final NumberFormatException e) {
-            log.warn("Record does not match sample record format. Ignoring record with data : {}", data, e);
+            log.warn("Record does not match sample record format. Ignoring record : {}", record, e);
         } catch (final Exception e) {
             log.error("Unable to process record !", e);
         }
@@ -15,13 +15,8 @@ See the License for the specific language governing permissions and limitations
 package com.amazonaws.kinesisvideo.parser.kinesis;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.kinesisvideo.parser.rekognition.pojo.DetectedFace;
-import com.amazonaws.kinesisvideo.parser.rekognition.pojo.FaceSearchResponse;
-import com.amazonaws.kinesisvideo.parser.rekognition.pojo.MatchedFace;
-import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognitionOutput;
 import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedFragmentsIndex;
 import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedOutput;
-import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedOutput.FaceSearchOutput;
 import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
 import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
 import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
@@ -29,15 +24,21 @@ import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
 import com.amazonaws.services.kinesis.clientlibrary.lib.worker.ShutdownReason;
 import com.amazonaws.services.kinesis.model.Record;
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.slf4j.Logger;
@@ -47,14 +48,24 @@ public class KinesisRecordProcessor implements IRecordProcessor {
     private static final Logger log = LoggerFactory.getLogger(KinesisRecordProcessor.class);
     private static final Log LOG = LogFactory.getLog(KinesisRecordProcessor.class);
     private String kinesisShardId;
+    private static final long INITIAL_BACKOFF_TIME_IN_MILLIS = 100L;
     private static final long BACKOFF_TIME_IN_MILLIS = 3000L;
+    private static final int MAX_DEAD_LETTER_RECORDS = 1000;
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread thread = new Thread(r, "kinesis-record-processor-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
     private static final int NUM_RETRIES = 10;
-    private static final String DELIMITER = "$";
     private static final long CHECKPOINT_INTERVAL_MILLIS = 1000L;
+    private static final long TERMINATE_WAIT_MILLIS = NUM_RETRIES * BACKOFF_TIME_IN_MILLIS;
     private long nextCheckpointTimeInMillis;
-    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
     private final RekognizedFragmentsIndex rekognizedFragmentsIndex;
-    private StringBuilder stringBuilder = new StringBuilder();
+    private final Deque<FailedRecord> deadLetterRecords = new ArrayDeque<>();
+    /* Records waiting for a retry, by fragment number. The head of each queue is being retried. */
+    private final Map<String, Deque<PendingRecord>> retryingFragments = new HashMap<>();
+    /* Batches that are not checkpointed yet, oldest first. Only used by the KCL thread. */
+    private final Deque<Batch> uncheckpointedBatches = new ArrayDeque<>();
 
     public KinesisRecordProcessor(RekognizedFragmentsIndex rekognizedFragmentsIndex, AWSCredentialsProvider awsCredentialsProvider) {
         this.rekognizedFragmentsIndex = rekognizedFragmentsIndex;
@@ -65,111 +76,199 @@ public class KinesisRecordProcessor implements IRecordProcessor {
         this.kinesisShardId = shardId;
     }
 
-    public void printCallStack() {
-        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-        log.debug("Call stack:");
-
-        for(StackTraceElement element : stackTrace) {
-            log.debug("\tat {}", element);
-        }
-
-    }
-
     public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
         log.info("Processing " + records.size() + " records from " + this.kinesisShardId);
         LOG.info("Processing " + records.size() + " records from " + this.kinesisShardId);
-        this.printCallStack();
-        this.processRecordsWithRetries(records);
+        Batch batch = new Batch(records.isEmpty() ? null : records.get(records.size() - 1));
+        this.processRecordsWithRetries(records, batch);
+        this.uncheckpointedBatches.addLast(batch);
         if (System.currentTimeMillis() > this.nextCheckpointTimeInMillis) {
-            this.checkpoint(checkpointer);
-            this.nextCheckpointTimeInMillis = System.currentTimeMillis() + 1000L;
+            this.checkpointFinishedBatches(checkpointer);
+            this.nextCheckpointTimeInMillis = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MILLIS;
         }
 
     }
 
-    private void processRecordsWithRetries(List<Record> records) {
-        for(Record record : records) {
-            boolean processedSuccessfully = false;
+    /**
+     * Decode the records in parallel and add them to the index in the order of the batch, which keeps the order of
+     * the records of each fragment. Records that fail to be added are retried with exponential backoff on the retry
+     * scheduler, so that the shard keeps going meanwhile. The later records of their fragment wait behind them, in
+     * this and the next batches. Records that don't decode, or still fail after all retries, go to the dead-letter
+     * list. A batch is only checkpointed once none of its records is waiting for a retry.
+     */
+    private void processRecordsWithRetries(List<Record> records, Batch batch) {
+        List<DecodedRecord> decodedRecords = records.parallelStream().map(DecodedRecord::decode).collect(Collectors.toList());
 
-            for(int i = 0; i < 10; ++i) {
-                try {
-                    this.processSingleRecord(record);
-                    processedSuccessfully = true;
-                    break;
-                } catch (Throwable t) {
-                    LOG.warn("Caught throwable while processing record " + record, t);
-
-                    try {
-                        Thread.sleep(3000L);
-                    } catch (InterruptedException e) {
-                        LOG.debug("Interrupted sleep", e);
-                    }
-                }
+        for(DecodedRecord decodedRecord : decodedRecords) {
+            this.processDecodedRecord(decodedRecord, batch);
+        }
+
+    }
+
+    private void processDecodedRecord(DecodedRecord decodedRecord, Batch batch) {
+        Record record = decodedRecord.record;
+        if (decodedRecord.failure != null) {
+            // Decoding the same data again gives the same outcome, so it is not retried.
+            if (decodedRecord.malformed) {
+                LOG.info("Record does not match sample record format. Ignoring record " + record);
+            } else {
+                LOG.error("Couldn't decode record " + record + ". Skipping the record.", decodedRecord.failure);
+            }
+            this.addDeadLetter(record, decodedRecord.failure, 1);
+            return;
+        }
+
+        String fragmentNumber = decodedRecord.rekognizedOutput.getFragmentNumber();
+        PendingRecord pendingRecord = new PendingRecord(decodedRecord, batch);
+        synchronized(this.retryingFragments) {
+            Deque<PendingRecord> retryingRecords = this.retryingFragments.get(fragmentNumber);
+            if (retryingRecords != null) {
+                batch.pendingRecords.incrementAndGet();
+                retryingRecords.addLast(pendingRecord);
+                return;
             }
+        }
 
-            if (!processedSuccessfully) {
-                LOG.error("Couldn't process record " + record + ". Skipping the record.");
+        if (!this.tryAdd(pendingRecord)) {
+            synchronized(this.retryingFragments) {
+                Deque<PendingRecord> retryingRecords = new ArrayDeque<>();
+                retryingRecords.addLast(pendingRecord);
+                this.retryingFragments.put(fragmentNumber, retryingRecords);
+                batch.pendingRecords.incrementAndGet();
             }
+            this.scheduleRetry(fragmentNumber, pendingRecord);
         }
 
     }
 
-    private void processSingleRecord(Record record) {
-        String data = null;
-        ObjectMapper mapper = new ObjectMapper();
-
+    private boolean tryAdd(PendingRecord pendingRecord) {
+        ++pendingRecord.attempts;
         try {
-            ByteBuffer buffer = record.getData();
-            data = new String(buffer.array(), "UTF-8");
-            this.stringBuilder = this.stringBuilder.append(data).append("$");
-            RekognitionOutput output = (RekognitionOutput)mapper.readValue(data, RekognitionOutput.class);
-            log.debug("KDS-RecordProcessor -Rekognition output: " + output);
-            String fragmentNumber = output.getInputInformation().getKinesisVideo().getFragmentNumber();
-            Double frameOffsetInSeconds = output.getInputInformation().getKinesisVideo().getFrameOffsetInSeconds();
-            Double serverTimestamp = output.getInputInformation().getKinesisVideo().getServerTimestamp();
-            Double producerTimestamp = output.getInputInformation().getKinesisVideo().getProducerTimestamp();
-            double detectedTime = output.getInputInformation().getKinesisVideo().getServerTimestamp() + output.getInputInformation().getKinesisVideo().getFrameOffsetInSeconds() * (double)1000.0F;
-            RekognizedOutput rekognizedOutput = RekognizedOutput.builder().fragmentNumber(fragmentNumber).serverTimestamp(serverTimestamp).producerTimestamp(producerTimestamp).frameOffsetInSeconds(frameOffsetInSeconds).detectedTime(detectedTime).build();
-            List<FaceSearchResponse> responses = output.getFaceSearchResponse();
-            log.debug("KDS-RecordProcessor -FaceSearch responses: " + responses);
-
-            for(FaceSearchResponse response : responses) {
-                DetectedFace detectedFace = response.getDetectedFace();
-                List<MatchedFace> matchedFaces = response.getMatchedFaces();
-                RekognizedOutput.FaceSearchOutput faceSearchOutput = FaceSearchOutput.builder().detectedFace(detectedFace).matchedFaceList(matchedFaces).build();
-                rekognizedOutput.addFaceSearchOutput(faceSearchOutput);
+            RekognizedOutput rekognizedOutput = pendingRecord.decodedRecord.rekognizedOutput;
+            log.debug("KDS-RecordProcessor -Rekognized output: {}", rekognizedOutput);
+            this.rekognizedFragmentsIndex.add(rekognizedOutput.getFragmentNumber(), rekognizedOutput.getProducerTimestamp().longValue(), rekognizedOutput.getServerTimestamp().longValue(), rekognizedOutput);
+            return true;
+        } catch (RuntimeException e) {
+            pendingRecord.failure = e;
+            return false;
+        }
+    }
+
+    private void scheduleRetry(String fragmentNumber, PendingRecord pendingRecord) {
+        long backoffMillis = Math.min(INITIAL_BACKOFF_TIME_IN_MILLIS << (pendingRecord.attempts - 1), BACKOFF_TIME_IN_MILLIS);
+        LOG.warn("Caught throwable while processing record " + pendingRecord.decodedRecord.record + ", retrying in " + backoffMillis + " ms", pendingRecord.failure);
+        RETRY_SCHEDULER.schedule(() -> this.retry(fragmentNumber, pendingRecord), backoffMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retry the record at the head of its fragment's queue. Once it is added or dead-lettered, the records queued
+     * behind it are added in order, until one of them fails and is retried in turn.
+     */
+    private void retry(String fragmentNumber, PendingRecord pendingRecord) {
+        if (!this.tryAdd(pendingRecord)) {
+            if (pendingRecord.attempts < NUM_RETRIES) {
+                this.scheduleRetry(fragmentNumber, pendingRecord);
+                return;
             }
 
-            this.rekognizedFragmentsIndex.add(fragmentNumber, producerTimestamp.longValue(), serverTimestamp.longValue(), rekognizedOutput);
-        } catch (NumberFormatException var19) {
-            LOG.info("Record does not match sample record format. Ignoring record with data; " + data);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        } catch (JsonParseException e) {
-            e.printStackTrace();
-        } catch (JsonMappingException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            Record record = pendingRecord.decodedRecord.record;
+            LOG.error("Couldn't process record " + record + " after " + pendingRecord.attempts + " attempts. Skipping the record.", pendingRecord.failure);
+            this.addDeadLetter(record, pendingRecord.failure, pendingRecord.attempts);
         }
 
+        while(true) {
+            PendingRecord nextRecord;
+            synchronized(this.retryingFragments) {
+                Deque<PendingRecord> retryingRecords = this.retryingFragments.get(fragmentNumber);
+                retryingRecords.removeFirst().batch.pendingRecords.decrementAndGet();
+                nextRecord = retryingRecords.peekFirst();
+                if (nextRecord == null) {
+                    this.retryingFragments.remove(fragmentNumber);
+                    this.retryingFragments.notifyAll();
+                    return;
+                }
+            }
+
+            if (!this.tryAdd(nextRecord)) {
+                this.scheduleRetry(fragmentNumber, nextRecord);
+                return;
+            }
+        }
+    }
+
+    private void addDeadLetter(Record record, Throwable failure, int attempts) {
+        synchronized(this.deadLetterRecords) {
+            if (this.deadLetterRecords.size() >= MAX_DEAD_LETTER_RECORDS) {
+                this.deadLetterRecords.removeFirst();
+            }
+
+            this.deadLetterRecords.addLast(new FailedRecord(record, failure, attempts));
+        }
+    }
+
+    /**
+     * @return The most recent records that could not be processed, oldest first.
+     */
+    public List<FailedRecord> getDeadLetterRecords() {
+        synchronized(this.deadLetterRecords) {
+            return new ArrayList<>(this.deadLetterRecords);
+        }
     }
 
     public void shutdown(IRecordProcessorCheckpointer checkpointer, ShutdownReason reason) {
         LOG.info("Shutting down record processor for shard: " + this.kinesisShardId);
         if (reason == ShutdownReason.TERMINATE) {
-            this.checkpoint(checkpointer);
+            this.awaitRetries(TERMINATE_WAIT_MILLIS);
+            this.checkpointFinishedBatches(checkpointer);
         }
 
     }
 
-    private void checkpoint(IRecordProcessorCheckpointer checkpointer) {
+    private void awaitRetries(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized(this.retryingFragments) {
+            long remainingMillis;
+            while(!this.retryingFragments.isEmpty() && (remainingMillis = deadline - System.currentTimeMillis()) > 0L) {
+                try {
+                    this.retryingFragments.wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checkpoint up to the last record of the latest batch that, like all batches before it, has no record waiting
+     * for a retry. Checkpointing further could lose the waiting records on failover.
+     */
+    private void checkpointFinishedBatches(IRecordProcessorCheckpointer checkpointer) {
+        Record lastFinishedRecord = null;
+        while(!this.uncheckpointedBatches.isEmpty() && this.uncheckpointedBatches.peekFirst().pendingRecords.get() == 0) {
+            Record lastRecord = this.uncheckpointedBatches.removeFirst().lastRecord;
+            if (lastRecord != null) {
+                lastFinishedRecord = lastRecord;
+            }
+        }
+
+        if (!this.uncheckpointedBatches.isEmpty()) {
+            LOG.info("Holding back checkpoint of shard " + this.kinesisShardId + " while records are retried");
+        }
+
+        if (lastFinishedRecord != null) {
+            this.checkpoint(checkpointer, lastFinishedRecord);
+        }
+
+    }
+
+    private void checkpoint(IRecordProcessorCheckpointer checkpointer, Record record) {
         LOG.info("Checkpointing shard " + this.kinesisShardId);
         int i = 0;
 
         while(i < 10) {
             try {
-                checkpointer.checkpoint();
+                checkpointer.checkpoint(record);
                 break;
             } catch (ShutdownException se) {
                 LOG.info("Caught shutdown exception, skipping checkpoint.", se);
@@ -196,4 +295,70 @@ public class KinesisRecordProcessor implements IRecordProcessor {
         }
 
     }
+
+    /**
+     * A record that could not be added to the index, with the failure of its last attempt.
+     */
+    @Getter
+    @ToString
+    @RequiredArgsConstructor
+    public static final class FailedRecord {
+        private final Record record;
+        private final Throwable failure;
+        private final int attempts;
+    }
+
+    /**
+     * Records of a call to {@link #processRecords}, with the number of them waiting for a retry.
+     */
+    private static final class Batch {
+        private final Record lastRecord;
+        private final AtomicInteger pendingRecords = new AtomicInteger();
+
+        private Batch(Record lastRecord) {
+            this.lastRecord = lastRecord;
+        }
+    }
+
+    /**
+     * A decoded record that is waiting to be added to the index.
+     */
+    private static final class PendingRecord {
+        private final DecodedRecord decodedRecord;
+        private final Batch batch;
+        private int attempts;
+        private Throwable failure;
+
+        private PendingRecord(DecodedRecord decodedRecord, Batch batch) {
+            this.decodedRecord = decodedRecord;
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * Outcome of decoding a record. Records that are not valid Rekognition output are malformed.
+     */
+    private static final class DecodedRecord {
+        private final Record record;
+        private final RekognizedOutput rekognizedOutput;
+        private final Throwable failure;
+        private final boolean malformed;
+
+        private DecodedRecord(Record record, RekognizedOutput rekognizedOutput, Throwable failure, boolean malformed) {
+            this.record = record;
+            this.rekognizedOutput = rekognizedOutput;
+            this.failure = failure;
+            this.malformed = malformed;
+        }
+
+        private static DecodedRecord decode(Record record) {
+            try {
+                return new DecodedRecord(record, RekognizedOutputReader.INSTANCE.read(record.getData()), null, false);
+            } catch (IOException | NumberFormatException e) {
+                return new DecodedRecord(record, null, e, true);
+            } catch (RuntimeException e) {
+                return new DecodedRecord(record, null, e, false);
+            }
+        }
+    }
 }
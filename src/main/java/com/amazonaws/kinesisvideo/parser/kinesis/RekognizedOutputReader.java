@@ -0,0 +1,191 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.kinesis;
+
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.DetectedFace;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.MatchedFace;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedOutput;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the Rekognition stream processor output of a Kinesis Data Streams record into a {@link RekognizedOutput}.
+ *
+ * The record is parsed straight from its byte buffer with the streaming API, picking the Kinesis Video fields and the
+ * face search responses and skipping everything else. Only the detected and matched faces are data bound. The reader
+ * holds no state of its own, so the shared {@link #INSTANCE} can be used from any number of threads.
+ */
+public final class RekognizedOutputReader {
+
+    public static final RekognizedOutputReader INSTANCE = new RekognizedOutputReader(new ObjectMapper());
+
+    private static final double MILLIS_IN_SEC = 1000.0;
+
+    private final ObjectMapper mapper;
+    private final ObjectReader detectedFaceReader;
+    private final ObjectReader matchedFacesReader;
+
+    private RekognizedOutputReader(final ObjectMapper mapper) {
+        this.mapper = mapper;
+        this.detectedFaceReader = mapper.readerFor(DetectedFace.class);
+        this.matchedFacesReader = mapper.readerFor(new TypeReference<List<MatchedFace>>() { });
+    }
+
+    /**
+     * Read the record data. The position of the buffer is left unchanged.
+     *
+     * @param data Record data holding a Rekognition output in JSON.
+     * @return Rekognized output with the face search outputs of the record.
+     * @throws IOException if the data is not valid JSON or misses a Kinesis Video field.
+     */
+    public RekognizedOutput read(final ByteBuffer data) throws IOException {
+        try (JsonParser parser = createParser(data)) {
+            return read(parser);
+        }
+    }
+
+    private JsonParser createParser(final ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            return mapper.getFactory().createParser(data.array(), data.arrayOffset() + data.position(),
+                    data.remaining());
+        }
+        return mapper.getFactory().createParser(new ByteBufferBackedInputStream(data.duplicate()));
+    }
+
+    private RekognizedOutput read(final JsonParser parser) throws IOException {
+        expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+        final KinesisVideoFields kinesisVideo = new KinesisVideoFields();
+        final List<RekognizedOutput.FaceSearchOutput> faceSearchOutputs = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("InputInformation".equals(fieldName) && value == JsonToken.START_OBJECT) {
+                readInputInformation(parser, kinesisVideo);
+            } else if ("FaceSearchResponse".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    faceSearchOutputs.add(readFaceSearchResponse(parser));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (kinesisVideo.fragmentNumber == null || kinesisVideo.frameOffsetInSeconds == null
+                || kinesisVideo.serverTimestamp == null || kinesisVideo.producerTimestamp == null) {
+            throw JsonMappingException.from(parser, "Rekognition output misses Kinesis Video input information");
+        }
+        final RekognizedOutput rekognizedOutput = RekognizedOutput.builder()
+                .fragmentNumber(kinesisVideo.fragmentNumber)
+                .serverTimestamp(kinesisVideo.serverTimestamp)
+                .producerTimestamp(kinesisVideo.producerTimestamp)
+                .frameOffsetInSeconds(kinesisVideo.frameOffsetInSeconds)
+                .detectedTime(kinesisVideo.serverTimestamp + kinesisVideo.frameOffsetInSeconds * MILLIS_IN_SEC)
+                .build();
+        faceSearchOutputs.forEach(rekognizedOutput::addFaceSearchOutput);
+        return rekognizedOutput;
+    }
+
+    private void readInputInformation(final JsonParser parser, final KinesisVideoFields kinesisVideo)
+            throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_OBJECT && "KinesisVideo".equals(fieldName)) {
+                readKinesisVideo(parser, kinesisVideo);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readKinesisVideo(final JsonParser parser, final KinesisVideoFields kinesisVideo) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            switch (fieldName) {
+                case "FragmentNumber":
+                    kinesisVideo.fragmentNumber = parser.getValueAsString();
+                    break;
+                case "FrameOffsetInSeconds":
+                    kinesisVideo.frameOffsetInSeconds = readDouble(parser, value);
+                    break;
+                case "ServerTimestamp":
+                    kinesisVideo.serverTimestamp = readDouble(parser, value);
+                    break;
+                case "ProducerTimestamp":
+                    kinesisVideo.producerTimestamp = readDouble(parser, value);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private RekognizedOutput.FaceSearchOutput readFaceSearchResponse(final JsonParser parser) throws IOException {
+        DetectedFace detectedFace = null;
+        List<MatchedFace> matchedFaces = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.getCurrentName();
+            final JsonToken value = parser.nextToken();
+            if ("DetectedFace".equals(fieldName) && value == JsonToken.START_OBJECT) {
+                detectedFace = detectedFaceReader.readValue(parser);
+            } else if ("MatchedFaces".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                matchedFaces = matchedFacesReader.readValue(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return RekognizedOutput.FaceSearchOutput.builder()
+                .detectedFace(detectedFace)
+                .matchedFaceList(matchedFaces)
+                .build();
+    }
+
+    private static Double readDouble(final JsonParser parser, final JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value == JsonToken.VALUE_STRING) {
+            // Same leniency as data binding, which coerces numbers in strings.
+            return Double.valueOf(parser.getText().trim());
+        }
+        if (!value.isNumeric()) {
+            throw JsonMappingException.from(parser, "Expected a number but got " + value);
+        }
+        return parser.getDoubleValue();
+    }
+
+    private static void expect(final JsonParser parser, final JsonToken actual, final JsonToken expected)
+            throws IOException {
+        if (actual != expected) {
+            throw JsonMappingException.from(parser, "Expected " + expected + " but got " + actual);
+        }
+    }
+
+    private static final class KinesisVideoFields {
+        private String fragmentNumber;
+        private Double frameOffsetInSeconds;
+        private Double serverTimestamp;
+        private Double producerTimestamp;
+    }
+}
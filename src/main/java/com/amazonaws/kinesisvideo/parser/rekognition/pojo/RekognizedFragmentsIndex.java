@@ -13,16 +13,26 @@ See the License for the specific language governing permissions and limitations
 */
 package com.amazonaws.kinesisvideo.parser.rekognition.pojo;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
 
 /**
  * Index which stores results for each fragment number from Rekognition output i.e Kinesis Data Streams.
@@ -38,17 +48,72 @@ import lombok.extern.slf4j.Slf4j;
  * 2. ConcurrentHashMap: Rekognition output is stored as the value with the corresponding fragment number as the key
  * for the hash map. This is used while integrating with KVS GetMedia API, as the caller gets the fragment number
  * from real-time fragments retrieved. So the index needs an efficient search mechanism to search the Rekognition
- * outputs for a given fragment number. Searching in the above LinkedDeque becomes expensive as the number of items
- * stored in it increases if none of the items are processed. So this hash map serves as the index for the queue for
- * fast retrieval O(1) compared to linear search O(N).
+ * outputs for a given fragment number. This hash map serves as the index for the queue for fast retrieval O(1)
+ * compared to linear search O(N).
  *
+ * The index has no global lock. Updates of a fragment are serialized by the hash map bin of its fragment number,
+ * and a fragment leaves the index by being claimed exactly once, by poll, remove or eviction, under the same bin
+ * lock as the updates. Only taking fragments off the head of the queue is locked. Removed fragments are dropped from
+ * the map right away and from the queue lazily, which keeps remove O(1).
+ *
+ * So that a lagging consumer can't grow the index without bound, fragments are evicted oldest first once their server
+ * time is more than the max age behind the newest server time seen, or once the index holds more than the max number
+ * of fragments.
  */
 @Slf4j
 @ToString
 public class RekognizedFragmentsIndex {
 
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10 * 60 * 1000L;
+    public static final int DEFAULT_MAX_FRAGMENTS = 10000;
+
+    private static final ScheduledThreadPoolExecutor TIMEOUT_SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+        final Thread thread = new Thread(r, "rekognized-fragments-index-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Timeouts are cancelled as soon as the fragment arrives, don't keep them around until they would fire.
+        TIMEOUT_SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
     private final ConcurrentHashMap<String, RekognizedFragment> rekognizedOutputMap = new ConcurrentHashMap<>();
     private final ConcurrentLinkedQueue<RekognizedFragment> rekognizedOutputQueue = new ConcurrentLinkedQueue<>();
+    private final long maxAgeMillis;
+    private final int maxFragments;
+    @ToString.Exclude
+    private final ConcurrentHashMap<String, CompletableFuture<RekognizedFragment>> waiters = new ConcurrentHashMap<>();
+    private final AtomicLong newestServerTime = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicInteger claimedInQueue = new AtomicInteger();
+    // Taken by everything that removes from the queue, adding to it needs no lock.
+    @ToString.Exclude
+    private final ReentrantLock headLock = new ReentrantLock();
+    @ToString.Exclude
+    private final LongAdder expiredCount = new LongAdder();
+    @ToString.Exclude
+    private final LongAdder overflowCount = new LongAdder();
+
+    public RekognizedFragmentsIndex() {
+        this(DEFAULT_MAX_AGE_MILLIS, DEFAULT_MAX_FRAGMENTS);
+    }
+
+    private RekognizedFragmentsIndex(final long maxAgeMillis, final int maxFragments) {
+        Validate.isTrue(maxAgeMillis > 0, "Max age must be positive");
+        Validate.isTrue(maxFragments > 0, "Max number of fragments must be positive");
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxFragments = maxFragments;
+    }
+
+    /**
+     * Create an index with the given eviction limits.
+     *
+     * @param maxAgeMillis Fragments with a server time older than this relative to the newest fragment are evicted.
+     * @param maxFragments Maximum number of fragments kept, the oldest fragments are evicted beyond it.
+     */
+    public static RekognizedFragmentsIndex create(final long maxAgeMillis, final int maxFragments) {
+        return new RekognizedFragmentsIndex(maxAgeMillis, maxFragments);
+    }
 
     /**
      * Add Rekognized output to the index for a fragment number and its other attributes like producer time,
@@ -59,20 +124,66 @@ public class RekognizedFragmentsIndex {
      * @param serverTime Server time of the fragment
      * @param rekognizedOutput Rekognition output of the fragment
      */
-    public synchronized void add(final String fragmentNumber, final Long producerTime, final Long serverTime,
-                                 final RekognizedOutput rekognizedOutput) {
+    public void add(final String fragmentNumber, final Long producerTime, final Long serverTime,
+                    final RekognizedOutput rekognizedOutput) {
 
-        if (rekognizedOutputMap.containsKey(fragmentNumber)) {
-            final RekognizedFragment rekognizedFragment = rekognizedOutputMap.get(fragmentNumber);
-            rekognizedFragment.addRekognizedOutput(rekognizedOutput);
-        } else {
+        final boolean[] created = new boolean[1];
+        final RekognizedFragment added = rekognizedOutputMap.compute(fragmentNumber, (key, existing) -> {
+            if (existing != null && !existing.isClaimed()) {
+                existing.addRekognizedOutput(rekognizedOutput);
+                return existing;
+            }
             final RekognizedFragment rekognizedFragment =
                     new RekognizedFragment(fragmentNumber, producerTime, serverTime);
             rekognizedFragment.addRekognizedOutput(rekognizedOutput);
+            // Queued inside compute so that the queue order follows the order fragments appear in the map.
             rekognizedOutputQueue.add(rekognizedFragment);
-            rekognizedOutputMap.put(fragmentNumber, rekognizedFragment);
-        }
+            created[0] = true;
+            return rekognizedFragment;
+        });
         log.debug("Added rekognized fragment number {} to the index.", fragmentNumber);
+        final CompletableFuture<RekognizedFragment> waiter = waiters.remove(fragmentNumber);
+        if (waiter != null) {
+            waiter.complete(added);
+        }
+        if (created[0]) {
+            if (serverTime != null) {
+                newestServerTime.accumulateAndGet(serverTime, Math::max);
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Wait for Rekognition output of a fragment. The returned future is completed with the fragment as soon as output
+     * for it is added, or right away if the index already has it. If no output arrives within the timeout, the future
+     * completes exceptionally with a {@link TimeoutException}. Callers waiting for the same fragment share a future.
+     *
+     * @param fragmentNumber Input fragment number.
+     * @param timeoutMillis Maximum time to wait in milliseconds.
+     * @return Future of the rekognized fragment.
+     */
+    public CompletableFuture<RekognizedFragment> awaitFragment(final String fragmentNumber, final long timeoutMillis) {
+        final RekognizedFragment existing = rekognizedOutputMap.get(fragmentNumber);
+        if (existing != null) {
+            return CompletableFuture.completedFuture(existing);
+        }
+        final CompletableFuture<RekognizedFragment> waiter =
+                waiters.computeIfAbsent(fragmentNumber, key -> new CompletableFuture<>());
+        // Output added between the lookup above and registering the waiter would not complete it.
+        final RekognizedFragment added = rekognizedOutputMap.get(fragmentNumber);
+        if (added != null) {
+            waiters.remove(fragmentNumber, waiter);
+            waiter.complete(added);
+            return waiter;
+        }
+        final ScheduledFuture<?> timeout = TIMEOUT_SCHEDULER.schedule(() -> {
+            waiters.remove(fragmentNumber, waiter);
+            waiter.completeExceptionally(new TimeoutException("No rekognized output for fragment number "
+                    + fragmentNumber + " after " + timeoutMillis + " ms"));
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        waiter.whenComplete((fragment, throwable) -> timeout.cancel(false));
+        return waiter;
     }
 
     /**
@@ -80,20 +191,26 @@ public class RekognizedFragmentsIndex {
      *
      * @return RekognizedFragment if exists. If not returns null.
      */
-    public synchronized RekognizedFragment poll() {
-
-        final RekognizedFragment rekognizedFragment = rekognizedOutputQueue.poll();
-        rekognizedOutputMap.remove(rekognizedFragment.getFragmentNumber());
-        return rekognizedFragment;
+    public RekognizedFragment poll() {
+        headLock.lock();
+        try {
+            RekognizedFragment rekognizedFragment;
+            while ((rekognizedFragment = rekognizedOutputQueue.poll()) != null) {
+                if (claim(rekognizedFragment)) {
+                    return rekognizedFragment;
+                }
+                claimedInQueue.decrementAndGet();
+            }
+            return null;
+        } finally {
+            headLock.unlock();
+        }
     }
 
     public int size() {
         log.debug("Rekognized index Map size : {} queue size : {}",
                 rekognizedOutputMap.size(), rekognizedOutputQueue.size());
-        if (rekognizedOutputMap.size() != rekognizedOutputQueue.size()) {
-            throw new IllegalStateException("RekognizedFragmentsIndex map and queue size doesn't match");
-        }
-        return this.rekognizedOutputQueue.size();
+        return rekognizedOutputMap.size();
     }
 
     /**
@@ -101,20 +218,19 @@ public class RekognizedFragmentsIndex {
      *
      * @return true if exists. false otherwise.
      */
-    public synchronized boolean isEmpty() {
-        return rekognizedOutputQueue.isEmpty();
+    public boolean isEmpty() {
+        return rekognizedOutputMap.isEmpty();
     }
 
     /**
      * Gets the list of Rekognized Output for the given fragment number.
      *
      * @param fragmentNumber Input fragment number.
-     * @return List of rekognized outputs if exists. null otherwise.
+     * @return Snapshot of the rekognized outputs ordered by frame offset if exists. null otherwise.
      */
-    public synchronized List<RekognizedOutput> getRekognizedOutputList(final String fragmentNumber) {
-        return (rekognizedOutputMap.containsKey(fragmentNumber))
-                ? rekognizedOutputMap.get(fragmentNumber).getRekognizedOutputs()
-                : null;
+    public List<RekognizedOutput> getRekognizedOutputList(final String fragmentNumber) {
+        final RekognizedFragment rekognizedFragment = rekognizedOutputMap.get(fragmentNumber);
+        return rekognizedFragment != null ? rekognizedFragment.getRekognizedOutputs() : null;
     }
 
     /**
@@ -122,25 +238,136 @@ public class RekognizedFragmentsIndex {
      *
      * @param fragmentNumber Input fragment number.
      */
-    public synchronized void remove(final String fragmentNumber) {
-        if (rekognizedOutputMap.containsKey(fragmentNumber)) {
-            final RekognizedFragment rekognizedFragment = rekognizedOutputMap.remove(fragmentNumber);
-            rekognizedOutputQueue.remove(rekognizedFragment);
+    public void remove(final String fragmentNumber) {
+        final RekognizedFragment rekognizedFragment = rekognizedOutputMap.get(fragmentNumber);
+        if (rekognizedFragment != null && claim(rekognizedFragment)) {
+            // The fragment stays in the queue until poll or eviction reaches it. Purge the queue once most of it is
+            // made of removed fragments, so that consumers which only remove don't grow it.
+            if (claimedInQueue.incrementAndGet() > rekognizedOutputMap.size() + maxFragments / 2) {
+                purgeClaimed();
+            }
         }
     }
 
+    /**
+     * @return Number of fragments evicted because their server time was older than the max age.
+     */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+
+    /**
+     * @return Number of fragments evicted because the index was over the max number of fragments.
+     */
+    public long getOverflowCount() {
+        return overflowCount.sum();
+    }
+
+    /**
+     * @return Total number of fragments evicted without being consumed.
+     */
+    public long getEvictedCount() {
+        return getExpiredCount() + getOverflowCount();
+    }
+
+    /**
+     * Evict from the head of the queue, which holds the oldest fragments. The age check stops at the first fragment
+     * that is young enough, so a fragment that arrived out of order may outlive the max age until those before it go.
+     */
+    private void evict() {
+        if (!needsEviction(rekognizedOutputQueue.peek())) {
+            return;
+        }
+        headLock.lock();
+        try {
+            RekognizedFragment head;
+            while (needsEviction(head = rekognizedOutputQueue.peek())) {
+                final boolean expired = isExpired(head);
+                if (claim(head)) {
+                    if (expired) {
+                        expiredCount.increment();
+                    } else {
+                        overflowCount.increment();
+                    }
+                    log.warn("Evicted rekognized fragment number {} with server time {} from the index, {}",
+                            head.getFragmentNumber(), head.getServerTime(), expired ? "expired" : "index is full");
+                } else {
+                    claimedInQueue.decrementAndGet();
+                }
+                rekognizedOutputQueue.poll();
+            }
+        } finally {
+            headLock.unlock();
+        }
+    }
+
+    private boolean needsEviction(final RekognizedFragment head) {
+        return head != null && (head.isClaimed() || rekognizedOutputMap.size() > maxFragments || isExpired(head));
+    }
+
+    private boolean isExpired(final RekognizedFragment rekognizedFragment) {
+        return rekognizedFragment.getServerTime() != null
+                && rekognizedFragment.getServerTime() < newestServerTime.get() - maxAgeMillis;
+    }
+
+    private void purgeClaimed() {
+        headLock.lock();
+        try {
+            rekognizedOutputQueue.removeIf(rekognizedFragment -> {
+                if (rekognizedFragment.isClaimed()) {
+                    claimedInQueue.decrementAndGet();
+                    return true;
+                }
+                return false;
+            });
+        } finally {
+            headLock.unlock();
+        }
+    }
+
+    /**
+     * Claim the fragment and drop it from the map under the map bin of its fragment number, so that an output added
+     * concurrently either goes to the fragment before it is claimed or to a new fragment.
+     *
+     * @return true if this call claimed the fragment.
+     */
+    private boolean claim(final RekognizedFragment rekognizedFragment) {
+        final boolean[] claimed = new boolean[1];
+        rekognizedOutputMap.computeIfPresent(rekognizedFragment.getFragmentNumber(), (key, existing) -> {
+            if (existing == rekognizedFragment && rekognizedFragment.claim()) {
+                claimed[0] = true;
+                return null;
+            }
+            return existing;
+        });
+        return claimed[0];
+    }
+
+    /**
+     * Rekognition outputs of a fragment in the index, see {@link RekognizedOutputs}.
+     */
     @Getter
-    @ToString
-    @EqualsAndHashCode
+    @ToString(callSuper = true)
+    @EqualsAndHashCode(callSuper = true)
     @RequiredArgsConstructor
-    public static class RekognizedFragment {
+    public static class RekognizedFragment extends RekognizedOutputs {
         private final String fragmentNumber;
         private final Long producerTime;
         private final Long serverTime;
-        private final List<RekognizedOutput> rekognizedOutputs = new ArrayList<>();
+        @Getter(lombok.AccessLevel.NONE)
+        @ToString.Exclude
+        @EqualsAndHashCode.Exclude
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        /**
+         * @return true if the fragment was taken out of the index by poll, remove or eviction.
+         */
+        public boolean isClaimed() {
+            return claimed.get();
+        }
 
-        public void addRekognizedOutput(final RekognizedOutput rekognizedOutput) {
-            this.rekognizedOutputs.add(rekognizedOutput);
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
         }
     }
 }
@@ -0,0 +1,124 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.rekognition.pojo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Rekognition outputs ordered by their frame offset for a nearest match lookup from the offset of a decoded frame.
+ * Outputs are kept in a skip list so that lookups, adds from record processors and removal of consumed outputs are all
+ * O(log n) and don't need a lock.
+ */
+@Slf4j
+@ToString
+@EqualsAndHashCode
+public class RekognizedOutputs {
+    private static final double MILLIS_IN_SEC = 1000.0;
+
+    private final ConcurrentSkipListMap<Double, RekognizedOutput> rekognizedOutputs = new ConcurrentSkipListMap<>();
+
+    /**
+     * Create a holder of the given outputs that is not part of a {@link RekognizedFragmentsIndex}.
+     */
+    public static RekognizedOutputs of(final List<RekognizedOutput> rekognizedOutputs) {
+        final RekognizedOutputs outputs = new RekognizedOutputs();
+        rekognizedOutputs.forEach(outputs::addRekognizedOutput);
+        return outputs;
+    }
+
+    /**
+     * Add an output. An output with the same frame offset as an earlier one is a redelivery of the same sampled frame
+     * and is ignored.
+     */
+    public void addRekognizedOutput(final RekognizedOutput rekognizedOutput) {
+        Validate.notNull(rekognizedOutput.getFrameOffsetInSeconds(), "Rekognized output has no frame offset");
+        if (this.rekognizedOutputs.putIfAbsent(rekognizedOutput.getFrameOffsetInSeconds(), rekognizedOutput) != null) {
+            log.debug("Ignoring rekognized output with duplicate frame offset {} for fragment number {}",
+                    rekognizedOutput.getFrameOffsetInSeconds(), rekognizedOutput.getFragmentNumber());
+        }
+    }
+
+    /**
+     * @return Unmodifiable snapshot of the remaining outputs, ordered by frame offset. Later adds and removals don't
+     * show in it, outputs are removed with {@link #consumeNearest(long, long)}.
+     */
+    public List<RekognizedOutput> getRekognizedOutputs() {
+        return Collections.unmodifiableList(new ArrayList<>(this.rekognizedOutputs.values()));
+    }
+
+    /**
+     * @return true if no outputs are left.
+     */
+    public boolean isEmpty() {
+        return this.rekognizedOutputs.isEmpty();
+    }
+
+    /**
+     * Find the output with the frame offset closest to the given one.
+     *
+     * @param frameOffsetMillis Offset of the frame from the start of the fragment in milliseconds.
+     * @param toleranceMillis Maximum distance between the offsets in milliseconds.
+     * @return The closest output if it is within the tolerance.
+     */
+    public Optional<RekognizedOutput> findNearest(final long frameOffsetMillis, final long toleranceMillis) {
+        return Optional.ofNullable(nearestEntry(frameOffsetMillis, toleranceMillis)).map(Map.Entry::getValue);
+    }
+
+    /**
+     * Like {@link #findNearest(long, long)}, and removes the output it finds.
+     */
+    public Optional<RekognizedOutput> consumeNearest(final long frameOffsetMillis, final long toleranceMillis) {
+        while (true) {
+            final Map.Entry<Double, RekognizedOutput> nearest = nearestEntry(frameOffsetMillis, toleranceMillis);
+            if (nearest == null) {
+                return Optional.empty();
+            }
+            if (this.rekognizedOutputs.remove(nearest.getKey(), nearest.getValue())) {
+                return Optional.of(nearest.getValue());
+            }
+            // Consumed concurrently, look again.
+        }
+    }
+
+    private Map.Entry<Double, RekognizedOutput> nearestEntry(final long frameOffsetMillis, final long toleranceMillis) {
+        final double frameOffsetInSeconds = frameOffsetMillis / MILLIS_IN_SEC;
+        final Map.Entry<Double, RekognizedOutput> floor = this.rekognizedOutputs.floorEntry(frameOffsetInSeconds);
+        final Map.Entry<Double, RekognizedOutput> ceiling = this.rekognizedOutputs.ceilingEntry(frameOffsetInSeconds);
+        final Map.Entry<Double, RekognizedOutput> nearest;
+        if (floor == null) {
+            nearest = ceiling;
+        } else if (ceiling == null) {
+            nearest = floor;
+        } else {
+            nearest = distanceMillis(frameOffsetMillis, floor) <= distanceMillis(frameOffsetMillis, ceiling)
+                    ? floor : ceiling;
+        }
+        return nearest != null && distanceMillis(frameOffsetMillis, nearest) <= toleranceMillis ? nearest : null;
+    }
+
+    private static double distanceMillis(final long frameOffsetMillis,
+                                         final Map.Entry<Double, RekognizedOutput> entry) {
+        return Math.abs(frameOffsetMillis - entry.getKey() * MILLIS_IN_SEC);
+    }
+}
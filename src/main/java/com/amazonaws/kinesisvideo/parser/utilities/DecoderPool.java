@@ -0,0 +1,305 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of worker threads that decodes frames of many streams concurrently.
+ *
+ * Each stream is registered with its own, stateful, frame processor (typically a {@link H264FrameDecoder} or one of
+ * its subclasses) and is pinned to one worker thread so that its frames are always processed in order by the same
+ * thread and the decoder's reference frames stay consistent. {@link #forStream} returns a
+ * {@link FrameVisitor.FrameProcessor} that only enqueues frames, so it can be plugged into a {@link FrameVisitor}
+ * on the thread that parses the GetMedia response.
+ *
+ * Every stream has a bounded queue. When a stream's queue is full the queued frames are discarded and all frames up
+ * to the next key frame are dropped, so that the decoder only ever sees complete GOPs and the latency stays bounded.
+ *
+ * Frames are handed to the stream's processor without the tag processor because tag processors are cleared by the
+ * parsing thread at the end of every cluster. Failures of a stream's processor are rethrown to the parsing thread on
+ * the next frame of that stream.
+ */
+@Slf4j
+public class DecoderPool implements AutoCloseable {
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    private final List<ExecutorService> workers;
+    private final int queueCapacity;
+    private final Map<String, StreamDecoder> streamDecoders = new ConcurrentHashMap<>();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final AtomicLong totalDroppedFrames = new AtomicLong();
+
+    private DecoderPool(final int threads, final int queueCapacity) {
+        Validate.isTrue(threads > 0, "Number of threads must be positive");
+        Validate.isTrue(queueCapacity > 0, "Queue capacity must be positive");
+        this.queueCapacity = queueCapacity;
+        this.workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            final int workerIndex = i;
+            workers.add(Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "decoder-pool-" + workerIndex);
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+    }
+
+    public static DecoderPool create(final int threads, final int queueCapacity) {
+        return new DecoderPool(threads, queueCapacity);
+    }
+
+    /**
+     * Register a stream with the pool.
+     *
+     * @param streamId Unique id of the stream, for example the stream name.
+     * @param decoder Processor that decodes the frames of this stream. It is only ever invoked from one worker thread.
+     * @return A frame processor that queues the frames of this stream for decoding. Closing it closes the decoder and
+     * unregisters the stream once its queued frames have been processed.
+     */
+    public FrameVisitor.FrameProcessor forStream(final String streamId, final FrameVisitor.FrameProcessor decoder) {
+        final ExecutorService worker = workers.get(Math.floorMod(nextWorker.getAndIncrement(), workers.size()));
+        final StreamDecoder streamDecoder = new StreamDecoder(streamId, decoder, worker);
+        Validate.isTrue(streamDecoders.putIfAbsent(streamId, streamDecoder) == null,
+                "Stream " + streamId + " is already registered");
+        return streamDecoder;
+    }
+
+    public long getDroppedFrameCount(final String streamId) {
+        final StreamDecoder streamDecoder = streamDecoders.get(streamId);
+        return streamDecoder == null ? 0 : streamDecoder.getDroppedFrames().get();
+    }
+
+    public int getQueueDepth(final String streamId) {
+        final StreamDecoder streamDecoder = streamDecoders.get(streamId);
+        return streamDecoder == null ? 0 : streamDecoder.queueDepth();
+    }
+
+    public long getTotalDroppedFrameCount() {
+        return totalDroppedFrames.get();
+    }
+
+    /**
+     * Close all streams, wait for their queued frames to be decoded and stop the worker threads.
+     */
+    @Override
+    public void close() {
+        final List<StreamDecoder> openStreams = new ArrayList<>(streamDecoders.values());
+        openStreams.forEach(StreamDecoder::close);
+        for (final StreamDecoder streamDecoder : openStreams) {
+            try {
+                streamDecoder.getTerminated().get(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (final ExecutionException | TimeoutException e) {
+                log.warn("Stream {} did not finish decoding its queued frames", streamDecoder.streamId, e);
+            }
+        }
+        workers.forEach(ExecutorService::shutdown);
+        for (final ExecutorService worker : workers) {
+            try {
+                if (!worker.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("Decoder pool worker did not terminate, shutting it down by force");
+                    worker.shutdownNow();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                worker.shutdownNow();
+            }
+        }
+    }
+
+    private static final class QueuedFrame {
+        private final Frame frame;
+        private final MkvTrackMetadata trackMetadata;
+        private final Optional<FragmentMetadata> fragmentMetadata;
+        private final Optional<BigInteger> timescale;
+        private final Optional<BigInteger> fragmentTimecode;
+
+        private QueuedFrame(final Frame frame, final MkvTrackMetadata trackMetadata,
+                            final Optional<FragmentMetadata> fragmentMetadata, final Optional<BigInteger> timescale,
+                            final Optional<BigInteger> fragmentTimecode) {
+            this.frame = frame;
+            this.trackMetadata = trackMetadata;
+            this.fragmentMetadata = fragmentMetadata;
+            this.timescale = timescale;
+            this.fragmentTimecode = fragmentTimecode;
+        }
+    }
+
+    private final class StreamDecoder implements FrameVisitor.FrameProcessor {
+        private final String streamId;
+        private final FrameVisitor.FrameProcessor decoder;
+        private final ExecutorService worker;
+        private final ArrayDeque<QueuedFrame> queue = new ArrayDeque<>();
+        @Getter
+        private final AtomicLong droppedFrames = new AtomicLong();
+        @Getter
+        private final CompletableFuture<Void> terminated = new CompletableFuture<>();
+
+        // Guarded by queue.
+        private boolean scheduled;
+        private boolean dropUntilKeyFrame;
+        private boolean closed;
+
+        private volatile FrameProcessException failure;
+
+        private StreamDecoder(final String streamId, final FrameVisitor.FrameProcessor decoder,
+                              final ExecutorService worker) {
+            this.streamId = streamId;
+            this.decoder = decoder;
+            this.worker = worker;
+        }
+
+        @Override
+        public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                            final Optional<FragmentMetadata> fragmentMetadata,
+                            final Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                            final Optional<BigInteger> timescale, final Optional<BigInteger> fragmentTimecode)
+                throws FrameProcessException {
+            if (failure != null) {
+                throw failure;
+            }
+            synchronized (queue) {
+                Validate.validState(!closed, "Stream %s is closed", streamId);
+                if (dropUntilKeyFrame && !frame.isKeyFrame()) {
+                    drop(1);
+                    return;
+                }
+                dropUntilKeyFrame = false;
+                if (queue.size() >= queueCapacity) {
+                    log.warn("Decode queue for stream {} is full, dropping frames until the next key frame", streamId);
+                    // A key frame starts a new group of pictures and is still decoded.
+                    dropUntilKeyFrame = !frame.isKeyFrame();
+                    drop(dropUntilKeyFrame ? queue.size() + 1 : queue.size());
+                    queue.clear();
+                    if (dropUntilKeyFrame) {
+                        return;
+                    }
+                }
+                queue.add(new QueuedFrame(frame, trackMetadata, fragmentMetadata, timescale, fragmentTimecode));
+                if (!scheduled) {
+                    scheduled = true;
+                    worker.execute(this::drain);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (queue) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (scheduled) {
+                    // The running drain closes the decoder once the queue is empty.
+                    return;
+                }
+            }
+            worker.execute(this::terminate);
+        }
+
+        private void terminate() {
+            try {
+                decoder.close();
+            } catch (final RuntimeException e) {
+                log.error("Failure closing decoder for stream {}", streamId, e);
+            } finally {
+                streamDecoders.remove(streamId, this);
+                terminated.complete(null);
+            }
+        }
+
+        private int queueDepth() {
+            synchronized (queue) {
+                return queue.size();
+            }
+        }
+
+        private void drop(final int frames) {
+            droppedFrames.addAndGet(frames);
+            totalDroppedFrames.addAndGet(frames);
+        }
+
+        /**
+         * Decode the frames queued so far. Runs on the stream's worker and yields after one batch so that the other
+         * streams pinned to the same worker get their turn.
+         */
+        private void drain() {
+            int batch;
+            synchronized (queue) {
+                batch = queue.size();
+            }
+            while (batch-- > 0) {
+                final QueuedFrame queuedFrame;
+                synchronized (queue) {
+                    queuedFrame = queue.poll();
+                }
+                if (queuedFrame == null) {
+                    break;
+                }
+                decode(queuedFrame);
+            }
+            synchronized (queue) {
+                if (!queue.isEmpty()) {
+                    worker.execute(this::drain);
+                    return;
+                }
+                scheduled = false;
+                if (!closed) {
+                    return;
+                }
+            }
+            terminate();
+        }
+
+        private void decode(final QueuedFrame queuedFrame) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                decoder.process(queuedFrame.frame, queuedFrame.trackMetadata, queuedFrame.fragmentMetadata,
+                        Optional.empty(), queuedFrame.timescale, queuedFrame.fragmentTimecode);
+            } catch (final FrameProcessException e) {
+                log.error("Failure decoding frame for stream {}", streamId, e);
+                failure = e;
+            } catch (final RuntimeException e) {
+                log.error("Failure decoding frame for stream {}", streamId, e);
+                failure = new FrameProcessException("Failure decoding frame for stream " + streamId, e);
+            }
+        }
+    }
+}
@@ -13,22 +13,30 @@ See the License for the specific language governing permissions and limitations
 */
 package com.amazonaws.kinesisvideo.parser.utilities;
 
+import com.amazonaws.AmazonWebServiceRequest;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClientBuilder;
 import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
 import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
@@ -36,15 +44,31 @@ import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * DynamoDB helper class to access FragmentCheckpoint table. Used by the KinesisVideoRekognitionLambdaExample to save
  * fragment checkpoints between successive lambda executions.
+ *
+ * Helpers created for the same region and credentials provider share one client and its connection pool. With an
+ * {@link AmazonDynamoDBAsync} client, the async methods don't block the caller.
  */
 @Slf4j
 public class DynamoDBHelper {
@@ -55,43 +79,74 @@ public class DynamoDBHelper {
     private static final String SERVER_TIME = "ServerTime";
     private static final String PRODUCER_TIME = "ProducerTime";
     private static final String UPDATED_TIME = "UpdatedTime";
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+    private static final int MAX_CONNECTIONS = 50;
+    private static final String CHECKPOINT_PROJECTION = "#fn, #st, #pt, #ut";
+    private static final Map<List<Object>, AmazonDynamoDBAsync> SHARED_CLIENTS = new ConcurrentHashMap<>();
+    // Clients known to have the table, so that it is only described once per client.
+    private static final Set<AmazonDynamoDB> CLIENTS_WITH_TABLE =
+            Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<>()));
     private final AmazonDynamoDB ddbClient;
+    private final AmazonDynamoDBAsync ddbAsyncClient;
 
     public DynamoDBHelper(final Regions region, final AWSCredentialsProvider credentialsProvider) {
+        this(getSharedClient(region, credentialsProvider));
+    }
+
+    /**
+     * @param ddbClient Client to use, also for the async methods if it is an {@link AmazonDynamoDBAsync}.
+     */
+    public DynamoDBHelper(final AmazonDynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+        this.ddbAsyncClient = ddbClient instanceof AmazonDynamoDBAsync ? (AmazonDynamoDBAsync) ddbClient : null;
+    }
+
+    /**
+     * Get the client shared by all helpers for the region and credentials provider, creating it on first use.
+     */
+    public static AmazonDynamoDBAsync getSharedClient(final Regions region,
+                                                      final AWSCredentialsProvider credentialsProvider) {
+        return SHARED_CLIENTS.computeIfAbsent(Arrays.asList(region, credentialsProvider),
+                key -> createClient(region, credentialsProvider));
+    }
+
+    private static AmazonDynamoDBAsync createClient(final Regions region,
+                                                    final AWSCredentialsProvider credentialsProvider) {
         final ClientConfiguration clientConfiguration = new ClientConfiguration()
                 .withConnectionTimeout(ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT)
                 .withRetryPolicy(ClientConfiguration.DEFAULT_RETRY_POLICY)
                 .withRequestTimeout(ClientConfiguration.DEFAULT_REQUEST_TIMEOUT)
-                .withSocketTimeout(ClientConfiguration.DEFAULT_SOCKET_TIMEOUT);
-        ddbClient = AmazonDynamoDBClient.builder()
+                .withSocketTimeout(ClientConfiguration.DEFAULT_SOCKET_TIMEOUT)
+                .withMaxConnections(MAX_CONNECTIONS)
+                .withTcpKeepAlive(true);
+        final AtomicInteger threadCount = new AtomicInteger();
+        return AmazonDynamoDBAsyncClientBuilder.standard()
                 .withClientConfiguration(clientConfiguration)
                 .withCredentials(credentialsProvider)
                 .withRegion(region)
+                .withExecutorFactory(() -> Executors.newFixedThreadPool(MAX_CONNECTIONS, r -> {
+                    final Thread thread = new Thread(r, "dynamodb-helper-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }))
                 .build();
     }
 
     /**
-     * Creates the FragmentCheckpoint table if it doesn't exist already.
+     * Creates the FragmentCheckpoint table if it doesn't exist already. The table is only looked up once per client.
      */
     public void createTableIfDoesntExist() {
+        if (CLIENTS_WITH_TABLE.contains(ddbClient)) {
+            return;
+        }
         // Check if table exists
         if (!checkIfTableExists()) {
             log.info("Creating table : {}", TABLE_NAME);
-            final CreateTableRequest request = new CreateTableRequest() {{
-                setAttributeDefinitions(
-                        Collections.singletonList(
-                                new AttributeDefinition(
-                                        KVS_STREAM_NAME,
-                                        ScalarAttributeType.S)));
-                setKeySchema(
-                        Collections.singletonList(
-                                new KeySchemaElement(
-                                        KVS_STREAM_NAME,
-                                        KeyType.HASH)));
-                setProvisionedThroughput(
-                        new ProvisionedThroughput(1000L, 1000L));
-                setTableName(TABLE_NAME);
-            }};
+            final CreateTableRequest request = new CreateTableRequest()
+                    .withAttributeDefinitions(new AttributeDefinition(KVS_STREAM_NAME, ScalarAttributeType.S))
+                    .withKeySchema(new KeySchemaElement(KVS_STREAM_NAME, KeyType.HASH))
+                    .withProvisionedThroughput(new ProvisionedThroughput(1000L, 1000L))
+                    .withTableName(TABLE_NAME);
 
             try {
                 final CreateTableResult result = ddbClient.createTable(request);
@@ -101,15 +156,13 @@ public class DynamoDBHelper {
                 throw e;
             }
         }
+        CLIENTS_WITH_TABLE.add(ddbClient);
     }
 
     private boolean checkIfTableExists() {
         try {
-            final DescribeTableRequest request = new DescribeTableRequest() {{
-                setTableName(TABLE_NAME);
-            }};
             final TableDescription table_info =
-                    ddbClient.describeTable(request).getTable();
+                    ddbClient.describeTable(new DescribeTableRequest().withTableName(TABLE_NAME)).getTable();
             log.info("Table exists : {}", table_info.getTableName());
             return true;
         } catch (final ResourceNotFoundException e) {
@@ -121,27 +174,69 @@ public class DynamoDBHelper {
     }
 
     /**
-     * Gets the FragmentCheckpoint item from the table for the specified stream name.
+     * Gets the FragmentCheckpoint item from the table for the specified stream name. Only the checkpoint attributes
+     * are fetched.
      *
      * @param streamName Input stream name
      * @return FragmentCheckpoint entry. null if any exception is thrown.
      */
     public Map<String, AttributeValue> getItem(final String streamName) {
         try {
-            final Map<String,AttributeValue> key = new HashMap<>();
-            key.put(KVS_STREAM_NAME, new AttributeValue().withS(streamName));
-            final GetItemRequest getItemRequest = new GetItemRequest() {{
-                setTableName(TABLE_NAME);
-                setKey(key);
-            }};
-
-            return ddbClient.getItem(getItemRequest).getItem();
+            return ddbClient.getItem(getItemRequest(streamName, CHECKPOINT_PROJECTION)).getItem();
         } catch (final AmazonDynamoDBException e) {
             log.warn("Error while getting item from table!", e);
         }
         return null;
     }
 
+    /**
+     * Async variant of {@link #getItem}. The future completes exceptionally if the call fails.
+     */
+    public CompletableFuture<Map<String, AttributeValue>> getItemAsync(final String streamName) {
+        final GetItemRequest request = getItemRequest(streamName, CHECKPOINT_PROJECTION);
+        if (ddbAsyncClient == null) {
+            return callNow(() -> ddbClient.getItem(request).getItem());
+        }
+        final CompletableFuture<Map<String, AttributeValue>> future = new CompletableFuture<>();
+        ddbAsyncClient.getItemAsync(request, completing(future, GetItemResult::getItem));
+        return future;
+    }
+
+    /**
+     * Gets only the checkpointed fragment number of the stream.
+     *
+     * @param streamName Input stream name
+     * @return Fragment number. null if there is no checkpoint or any exception is thrown.
+     */
+    public String getFragmentNumber(final String streamName) {
+        try {
+            final Map<String, AttributeValue> item = ddbClient.getItem(getItemRequest(streamName, "#fn")).getItem();
+            return item != null && item.containsKey(FRAGMENT_NUMBER) ? item.get(FRAGMENT_NUMBER).getS() : null;
+        } catch (final AmazonDynamoDBException e) {
+            log.warn("Error while getting fragment number from table!", e);
+        }
+        return null;
+    }
+
+    private static GetItemRequest getItemRequest(final String streamName, final String projection) {
+        return new GetItemRequest()
+                .withTableName(TABLE_NAME)
+                .withKey(Collections.singletonMap(KVS_STREAM_NAME, new AttributeValue().withS(streamName)))
+                .withProjectionExpression(projection)
+                .withExpressionAttributeNames(checkpointAttributeNames(projection));
+    }
+
+    private static Map<String, String> checkpointAttributeNames(final String expression) {
+        final Map<String, String> names = new HashMap<>();
+        names.put("#fn", FRAGMENT_NUMBER);
+        names.put("#pt", PRODUCER_TIME);
+        names.put("#st", SERVER_TIME);
+        names.put("#ut", UPDATED_TIME);
+        // DynamoDB rejects names that the expressions don't use.
+        names.keySet().removeIf(name -> !expression.contains(name));
+        return names;
+    }
+
     /**
      * Put item into FragmentCheckpoint table for the given input parameters
      *
@@ -154,17 +249,11 @@ public class DynamoDBHelper {
     public void putItem(final String streamName, final String fragmentNumber,
                          final Long producerTime, final Long serverTime, final Long updatedTime) {
         try {
-            final Map<String,AttributeValue> item = new HashMap<>();
-            item.put(KVS_STREAM_NAME, new AttributeValue().withS(streamName));
-            item.put(FRAGMENT_NUMBER, new AttributeValue().withS(fragmentNumber));
-            item.put(UPDATED_TIME, new AttributeValue().withN(updatedTime.toString()));
-            item.put(PRODUCER_TIME, new AttributeValue().withN(producerTime.toString()));
-            item.put(SERVER_TIME, new AttributeValue().withN(serverTime.toString()));
+            final Map<String,AttributeValue> item = toItem(streamName, fragmentNumber, producerTime, serverTime,
+                    updatedTime);
             final PutItemRequest putItemRequest = new PutItemRequest()
-            {{
-                setTableName(TABLE_NAME);
-                setItem(item);
-            }};
+                    .withTableName(TABLE_NAME)
+                    .withItem(item);
 
             final PutItemResult result = ddbClient.putItem(putItemRequest);
             log.info("Item saved : ", result.getAttributes());
@@ -197,11 +286,9 @@ public class DynamoDBHelper {
             updates.put(SERVER_TIME, new AttributeValueUpdate().withValue(
                     new AttributeValue().withN(serverTime.toString())));
             final UpdateItemRequest updateItemRequest = new UpdateItemRequest()
-            {{
-                setTableName(TABLE_NAME);
-                setKey(key);
-                setAttributeUpdates(updates);
-            }};
+                    .withTableName(TABLE_NAME)
+                    .withKey(key)
+                    .withAttributeUpdates(updates);
 
             final UpdateItemResult result = ddbClient.updateItem(updateItemRequest);
             log.info("Item updated : {}", result.getAttributes());
@@ -209,4 +296,148 @@ public class DynamoDBHelper {
             log.warn("Error while updating item in the table!", e);
         }
     }
+
+    /**
+     * Update the FragmentCheckpoint item of the stream in a single call, creating it if it doesn't exist. The update
+     * only applies if the item has no server time yet or an older one than the given server time, so that a late
+     * write can't move the checkpoint back.
+     *
+     * @param streamName KVS Stream name
+     * @param fragmentNumber Last processed fragment's fragment number
+     * @param producerTime Last processed fragment's producer time
+     * @param serverTime Last processed fragment's server time
+     * @param updatedTime Time when the entry is going to be updated.
+     * @return false if the item already holds a newer checkpoint.
+     * @throws AmazonDynamoDBException if the update fails otherwise.
+     */
+    public boolean updateItemIfNewer(final String streamName, final String fragmentNumber,
+                                     final Long producerTime, final Long serverTime, final Long updatedTime) {
+        try {
+            ddbClient.updateItem(updateItemIfNewerRequest(streamName, fragmentNumber, producerTime, serverTime,
+                    updatedTime));
+            return true;
+        } catch (final ConditionalCheckFailedException e) {
+            log.info("Checkpoint for stream name {} is newer than fragment number {}", streamName, fragmentNumber);
+            return false;
+        }
+    }
+
+    /**
+     * Async variant of {@link #updateItemIfNewer}. The future completes with false if the item already holds a newer
+     * checkpoint, and exceptionally if the update fails otherwise.
+     */
+    public CompletableFuture<Boolean> updateItemIfNewerAsync(final String streamName, final String fragmentNumber,
+                                                             final Long producerTime, final Long serverTime,
+                                                             final Long updatedTime) {
+        if (ddbAsyncClient == null) {
+            return callNow(() -> updateItemIfNewer(streamName, fragmentNumber, producerTime, serverTime,
+                    updatedTime));
+        }
+        final CompletableFuture<UpdateItemResult> update = new CompletableFuture<>();
+        ddbAsyncClient.updateItemAsync(updateItemIfNewerRequest(streamName, fragmentNumber, producerTime, serverTime,
+                updatedTime), completing(update, Function.identity()));
+        return update.handle((result, e) -> {
+            if (e == null) {
+                return true;
+            }
+            if (e instanceof ConditionalCheckFailedException) {
+                log.info("Checkpoint for stream name {} is newer than fragment number {}", streamName,
+                        fragmentNumber);
+                return false;
+            }
+            throw e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
+        });
+    }
+
+    private static UpdateItemRequest updateItemIfNewerRequest(final String streamName, final String fragmentNumber,
+                                                              final Long producerTime, final Long serverTime,
+                                                              final Long updatedTime) {
+        final String updateExpression = "SET #fn = :fn, #pt = :pt, #st = :st, #ut = :ut";
+        final Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":fn", new AttributeValue().withS(fragmentNumber));
+        values.put(":pt", new AttributeValue().withN(producerTime.toString()));
+        values.put(":st", new AttributeValue().withN(serverTime.toString()));
+        values.put(":ut", new AttributeValue().withN(updatedTime.toString()));
+        return new UpdateItemRequest()
+                .withTableName(TABLE_NAME)
+                .withKey(Collections.singletonMap(KVS_STREAM_NAME, new AttributeValue().withS(streamName)))
+                .withUpdateExpression(updateExpression)
+                .withConditionExpression("attribute_not_exists(#st) OR #st <= :st")
+                .withExpressionAttributeNames(checkpointAttributeNames(updateExpression))
+                .withExpressionAttributeValues(values);
+    }
+
+    /**
+     * Put FragmentCheckpoint items with BatchWriteItem, in batches of at most {@value #MAX_BATCH_WRITE_ITEMS} items.
+     * Unlike {@link #updateItemIfNewer}, the puts are unconditional.
+     *
+     * @param items Items created by {@link #toItem}, at most one per stream name.
+     * @return Items DynamoDB left unprocessed, to be retried by the caller.
+     * @throws AmazonDynamoDBException if a batch fails.
+     */
+    public List<Map<String, AttributeValue>> batchPutItems(final List<Map<String, AttributeValue>> items) {
+        final List<Map<String, AttributeValue>> unprocessedItems = new ArrayList<>();
+        for (int start = 0; start < items.size(); start += MAX_BATCH_WRITE_ITEMS) {
+            final List<WriteRequest> writeRequests = new ArrayList<>();
+            for (final Map<String, AttributeValue> item
+                    : items.subList(start, Math.min(start + MAX_BATCH_WRITE_ITEMS, items.size()))) {
+                writeRequests.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+            }
+            final BatchWriteItemResult result = ddbClient.batchWriteItem(new BatchWriteItemRequest()
+                    .withRequestItems(Collections.singletonMap(TABLE_NAME, writeRequests)));
+            final List<WriteRequest> unprocessed = result.getUnprocessedItems() != null
+                    ? result.getUnprocessedItems().get(TABLE_NAME) : null;
+            if (unprocessed != null) {
+                unprocessed.forEach(writeRequest -> unprocessedItems.add(writeRequest.getPutRequest().getItem()));
+            }
+        }
+        return unprocessedItems;
+    }
+
+    private static <T> CompletableFuture<T> callNow(final Supplier<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(call.get());
+        } catch (final RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static <R extends AmazonWebServiceRequest, S, T> AsyncHandler<R, S> completing(
+            final CompletableFuture<T> future, final Function<S, T> mapper) {
+        return new AsyncHandler<R, S>() {
+            @Override
+            public void onError(final Exception exception) {
+                future.completeExceptionally(exception);
+            }
+
+            @Override
+            public void onSuccess(final R request, final S result) {
+                future.complete(mapper.apply(result));
+            }
+        };
+    }
+
+    /**
+     * Create a FragmentCheckpoint item for the given input parameters.
+     */
+    public static Map<String, AttributeValue> toItem(final String streamName, final String fragmentNumber,
+                                                     final Long producerTime, final Long serverTime,
+                                                     final Long updatedTime) {
+        final Map<String,AttributeValue> item = new HashMap<>();
+        item.put(KVS_STREAM_NAME, new AttributeValue().withS(streamName));
+        item.put(FRAGMENT_NUMBER, new AttributeValue().withS(fragmentNumber));
+        item.put(UPDATED_TIME, new AttributeValue().withN(updatedTime.toString()));
+        item.put(PRODUCER_TIME, new AttributeValue().withN(producerTime.toString()));
+        item.put(SERVER_TIME, new AttributeValue().withN(serverTime.toString()));
+        return item;
+    }
+
+    /**
+     * @return Stream name of an item created by {@link #toItem}.
+     */
+    public static String getStreamName(final Map<String, AttributeValue> item) {
+        return item.get(KVS_STREAM_NAME).getS();
+    }
 }
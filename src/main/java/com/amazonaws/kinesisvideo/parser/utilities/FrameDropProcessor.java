@@ -0,0 +1,126 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.math.BigInteger;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Frame processor that protects a slow processor (for example a {@link H264FrameRenderer}) from falling ever further
+ * behind a live stream.
+ *
+ * While the pipeline is overloaded, that is while the last reported millisBehindNow or the depth of a queue in front of
+ * the processor is above its threshold, the remaining frames of the current GOP are dropped. Key frames are always
+ * passed on, so the processor resumes on a clean decode point and, under sustained overload, degrades to only
+ * processing key frames.
+ *
+ * Kinesis Video reports millisBehindNow in the tags at the end of a fragment, so the value of the previous fragment
+ * is used for the frames of the current one.
+ */
+@Slf4j
+public class FrameDropProcessor implements FrameVisitor.FrameProcessor {
+    private final FrameVisitor.FrameProcessor delegate;
+    private final long maxMillisBehindNow;
+    private final IntSupplier queueDepth;
+    private final int maxQueueDepth;
+
+    private final AtomicLong droppedFrameCount = new AtomicLong();
+    private final AtomicLong droppedGopCount = new AtomicLong();
+
+    private FragmentMetadata lastFragmentMetadata;
+    private OptionalLong millisBehindNow = OptionalLong.empty();
+    private boolean dropUntilKeyFrame;
+
+    @Builder
+    private FrameDropProcessor(@NonNull final FrameVisitor.FrameProcessor delegate,
+                               final Long maxMillisBehindNow,
+                               final IntSupplier queueDepth,
+                               final Integer maxQueueDepth) {
+        Validate.isTrue(maxMillisBehindNow != null || maxQueueDepth != null,
+                "Either maxMillisBehindNow or maxQueueDepth must be set");
+        Validate.isTrue(maxQueueDepth == null || queueDepth != null, "maxQueueDepth requires a queueDepth supplier");
+        this.delegate = delegate;
+        this.maxMillisBehindNow = maxMillisBehindNow == null ? Long.MAX_VALUE : maxMillisBehindNow;
+        this.queueDepth = queueDepth == null ? () -> 0 : queueDepth;
+        this.maxQueueDepth = maxQueueDepth == null ? Integer.MAX_VALUE : maxQueueDepth;
+    }
+
+    @Override
+    public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                        final Optional<FragmentMetadata> fragmentMetadata,
+                        final Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor,
+                        final Optional<BigInteger> timescale, final Optional<BigInteger> fragmentTimecode)
+            throws FrameProcessException {
+        updateMillisBehindNow(fragmentMetadata);
+        if (frame.isKeyFrame()) {
+            dropUntilKeyFrame = false;
+        } else if (!dropUntilKeyFrame && isOverloaded()) {
+            log.debug("Dropping frames until the next key frame, millisBehindNow {} queue depth {}",
+                    millisBehindNow, queueDepth.getAsInt());
+            dropUntilKeyFrame = true;
+            droppedGopCount.incrementAndGet();
+        }
+
+        if (dropUntilKeyFrame) {
+            droppedFrameCount.incrementAndGet();
+            return;
+        }
+        delegate.process(frame, trackMetadata, fragmentMetadata, tagProcessor, timescale, fragmentTimecode);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    public long getDroppedFrameCount() {
+        return droppedFrameCount.get();
+    }
+
+    /**
+     * @return The number of times the frames up to the next key frame were dropped.
+     */
+    public long getDroppedGopCount() {
+        return droppedGopCount.get();
+    }
+
+    private boolean isOverloaded() {
+        return (millisBehindNow.isPresent() && millisBehindNow.getAsLong() > maxMillisBehindNow)
+                || queueDepth.getAsInt() > maxQueueDepth;
+    }
+
+    private void updateMillisBehindNow(final Optional<FragmentMetadata> fragmentMetadata) {
+        if (!fragmentMetadata.isPresent()) {
+            return;
+        }
+        final FragmentMetadata current = fragmentMetadata.get();
+        if (current.getMillisBehindNow().isPresent()) {
+            millisBehindNow = current.getMillisBehindNow();
+        } else if (lastFragmentMetadata != null && lastFragmentMetadata != current
+                && lastFragmentMetadata.getMillisBehindNow().isPresent()) {
+            millisBehindNow = lastFragmentMetadata.getMillisBehindNow();
+        }
+        lastFragmentMetadata = current;
+    }
+}
@@ -15,6 +15,7 @@ package com.amazonaws.kinesisvideo.parser.utilities;
 
 import java.awt.image.BufferedImage;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoFrameViewer;
@@ -28,6 +29,7 @@ import com.amazonaws.kinesisvideo.parser.mkv.MkvValue;
 import com.amazonaws.kinesisvideo.parser.mkv.visitors.CompositeMkvElementVisitor;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
 import org.jcodec.codecs.h264.H264Decoder;
 import org.jcodec.codecs.h264.mp4.AvcCBox;
 import org.jcodec.common.model.ColorSpace;
@@ -36,8 +38,6 @@ import org.jcodec.scale.AWTUtil;
 import org.jcodec.scale.Transform;
 import org.jcodec.scale.Yuv420jToRgb;
 
-import static org.jcodec.codecs.h264.H264Utils.splitMOVPacket;
-
 @Slf4j
 public class FrameRendererVisitor extends CompositeMkvElementVisitor {
 
@@ -53,6 +53,8 @@ public class FrameRendererVisitor extends CompositeMkvElementVisitor {
 
     private byte[] codecPrivateData;
 
+    private final List<ByteBuffer> nalUnits = new ArrayList<>();
+
     private FrameRendererVisitor(final FragmentMetadataVisitor fragmentMetadataVisitor,
                                  final KinesisVideoFrameViewer kinesisVideoFrameViewer) {
         super(fragmentMetadataVisitor);
@@ -91,6 +93,8 @@ public class FrameRendererVisitor extends CompositeMkvElementVisitor {
                 final ByteBuffer frameBuffer = frame.getVal().getFrameData();
                 final MkvTrackMetadata trackMetadata = fragmentMetadataVisitor.getMkvTrackMetadata(
                         frame.getVal().getTrackNumber());
+                Validate.isTrue(VideoCodec.of(trackMetadata) == VideoCodec.H264,
+                        "Only H.264 tracks can be rendered, the codec of the track is %s", trackMetadata.getCodecId());
                 final int pixelWidth = trackMetadata.getPixelWidth().get().intValue();
                 final int pixelHeight = trackMetadata.getPixelHeight().get().intValue();
                 codecPrivateData = trackMetadata.getCodecPrivateData().array();
@@ -108,8 +112,9 @@ public class FrameRendererVisitor extends CompositeMkvElementVisitor {
 
                 final Picture buf = Picture.create(pixelWidth + ((16 - (pixelWidth % 16)) % 16),
                         pixelHeight + ((16 - (pixelHeight % 16)) % 16), ColorSpace.YUV420J);
-                final List<ByteBuffer> byteBuffers = splitMOVPacket(frameBuffer, avcC);
-                final Picture pic = decoder.decodeFrameFromNals(byteBuffers, buf.getData());
+                nalUnits.clear();
+                H264NalUnitIterator.create(avcC.getNalLengthSize()).reset(frameBuffer).addRemainingTo(nalUnits);
+                final Picture pic = decoder.decodeFrameFromNals(nalUnits, buf.getData());
 
                 if (pic != null) {
                     // Work around for color issues in JCodec
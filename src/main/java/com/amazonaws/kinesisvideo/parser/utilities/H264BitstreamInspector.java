@@ -0,0 +1,353 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+import org.jcodec.codecs.h264.H264Utils;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.codecs.h264.io.model.SliceType;
+import org.jcodec.codecs.h264.mp4.AvcCBox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Frame processor that reads the NAL unit headers, sequence parameter sets, slice types and SEI messages of H.264
+ * and H.265 frames straight from the frame data, without decoding the frames, and reports them as a
+ * {@link H264FrameInfo} per frame. The codec is picked from the codec id of the track.
+ *
+ * This is a small fraction of the cost of a decode, so it can be used to track resolution changes or to extract
+ * SEI user data (such as camera timestamps) from every frame of a stream. It can be combined with a decoder through a
+ * processor that calls both. The slice type is only reported for H.264, reading it from an H.265 slice header
+ * requires the picture parameter set.
+ */
+@Slf4j
+public class H264BitstreamInspector implements FrameVisitor.FrameProcessor {
+    private static final int CHROMA_FORMAT_MONOCHROME = 0;
+    private static final int CHROMA_FORMAT_420 = 1;
+    private static final int CHROMA_FORMAT_422 = 2;
+    private static final int CHROMA_FORMAT_444 = 3;
+    private static final int MACROBLOCK_SIZE = 16;
+    private static final int SEI_FF_BYTE = 0xff;
+    private static final int HEVC_PROFILE_TIER_LEVEL_GENERAL_BITS = 88;
+    private static final int HEVC_SUB_LAYER_PROFILE_BITS = 88;
+    private static final int HEVC_SUB_LAYER_LEVEL_BITS = 8;
+    private static final int HEVC_MAX_SUB_LAYERS = 8;
+
+    private final Consumer<H264FrameInfo> frameInfoConsumer;
+    private final H264RbspReader reader = new H264RbspReader();
+
+    private ByteBuffer codecPrivateDataSource;
+    private byte[] codecPrivateData;
+    private NalUnitIterator nalUnitIterator;
+    private H264FrameInfo.Sps sps;
+
+    // State of the frame being inspected.
+    private boolean idr;
+    private boolean spsChanged;
+    private Optional<SliceType> sliceType;
+    private List<H264FrameInfo.SeiMessage> seiMessages;
+
+    private H264BitstreamInspector(final Consumer<H264FrameInfo> frameInfoConsumer) {
+        this.frameInfoConsumer = frameInfoConsumer;
+    }
+
+    public static H264BitstreamInspector create(final Consumer<H264FrameInfo> frameInfoConsumer) {
+        Validate.notNull(frameInfoConsumer);
+        return new H264BitstreamInspector(frameInfoConsumer);
+    }
+
+    @Override
+    public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                        final Optional<FragmentMetadata> fragmentMetadata) {
+        frameInfoConsumer.accept(inspect(frame, trackMetadata));
+    }
+
+    /**
+     * Inspect a single frame.
+     */
+    public H264FrameInfo inspect(final Frame frame, final MkvTrackMetadata trackMetadata) {
+        idr = false;
+        sliceType = Optional.empty();
+        seiMessages = Collections.emptyList();
+        spsChanged = updateCodecPrivateData(trackMetadata);
+
+        int nalUnitCount = 0;
+        final ByteBuffer frameData = frame.getFrameData();
+        nalUnitIterator.reset(frameData);
+        while (nalUnitIterator.next()) {
+            nalUnitCount++;
+            final int payloadOffset = nalUnitIterator.offset() + nalUnitIterator.headerLength();
+            final int nalLimit = nalUnitIterator.offset() + nalUnitIterator.length();
+            if (nalUnitIterator.getCodec() == VideoCodec.HEVC) {
+                inspectHevcNalUnit(nalUnitIterator.nalType(), frameData, payloadOffset, nalLimit);
+            } else {
+                inspectH264NalUnit(nalUnitIterator.nalType(), frameData, payloadOffset, nalLimit);
+            }
+        }
+
+        return H264FrameInfo.builder()
+                .trackNumber(frame.getTrackNumber())
+                .timeCode(frame.getTimeCode())
+                .keyFrame(frame.isKeyFrame())
+                .idr(idr)
+                .nalUnitCount(nalUnitCount)
+                .sliceType(sliceType)
+                .sps(Optional.ofNullable(sps))
+                .spsChanged(spsChanged)
+                .seiMessages(seiMessages)
+                .build();
+    }
+
+    private void inspectH264NalUnit(final int nalType, final ByteBuffer frameData, final int payloadOffset,
+                                    final int nalLimit) {
+        switch (nalType) {
+            case H264NalUnitIterator.NAL_TYPE_IDR_SLICE:
+            case H264NalUnitIterator.NAL_TYPE_NON_IDR_SLICE:
+                idr |= nalType == H264NalUnitIterator.NAL_TYPE_IDR_SLICE;
+                if (!sliceType.isPresent()) {
+                    sliceType = readSliceType(frameData, payloadOffset, nalLimit);
+                }
+                break;
+            case H264NalUnitIterator.NAL_TYPE_SPS:
+                spsChanged |= updateSps(readSps(frameData, payloadOffset, nalLimit));
+                break;
+            case H264NalUnitIterator.NAL_TYPE_SEI:
+                readSeiMessages(frameData, payloadOffset, nalLimit);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void inspectHevcNalUnit(final int nalType, final ByteBuffer frameData, final int payloadOffset,
+                                    final int nalLimit) {
+        switch (nalType) {
+            case HevcNalUnitIterator.NAL_TYPE_SPS:
+                spsChanged |= updateSps(readHevcSps(frameData, payloadOffset, nalLimit));
+                break;
+            case HevcNalUnitIterator.NAL_TYPE_PREFIX_SEI:
+            case HevcNalUnitIterator.NAL_TYPE_SUFFIX_SEI:
+                readSeiMessages(frameData, payloadOffset, nalLimit);
+                break;
+            default:
+                idr |= HevcNalUnitIterator.isIrap(nalType);
+                break;
+        }
+    }
+
+    /**
+     * Track the codec private data of the track, with an identity check first because the track metadata is recreated
+     * for every fragment.
+     *
+     * @return true if the sequence parameter set changed.
+     */
+    private boolean updateCodecPrivateData(final MkvTrackMetadata trackMetadata) {
+        final ByteBuffer trackCodecPrivateData = trackMetadata.getCodecPrivateData();
+        if (trackCodecPrivateData == codecPrivateDataSource) {
+            return false;
+        }
+        codecPrivateDataSource = trackCodecPrivateData;
+        final byte[] data = trackCodecPrivateData.array();
+        if (Arrays.equals(data, codecPrivateData) && nalUnitIterator.getCodec() == VideoCodec.of(trackMetadata)) {
+            return false;
+        }
+        codecPrivateData = data;
+        if (VideoCodec.of(trackMetadata) == VideoCodec.HEVC) {
+            final HvcCBox hvcC = HvcCBox.parseHvcCBox(ByteBuffer.wrap(codecPrivateData));
+            nalUnitIterator = HevcNalUnitIterator.create(hvcC.getNalLengthSize());
+            if (hvcC.getSpsList().isEmpty()) {
+                return false;
+            }
+            final ByteBuffer spsBuffer = hvcC.getSpsList().get(0);
+            return updateSps(readHevcSps(spsBuffer, spsBuffer.position() + nalUnitIterator.headerLength(),
+                    spsBuffer.limit()));
+        }
+        final AvcCBox avcC = AvcCBox.parseAvcCBox(ByteBuffer.wrap(codecPrivateData));
+        nalUnitIterator = H264NalUnitIterator.create(avcC.getNalLengthSize());
+        if (avcC.getSpsList().isEmpty()) {
+            return false;
+        }
+        final ByteBuffer spsBuffer = avcC.getSpsList().get(0);
+        return updateSps(readSps(spsBuffer, spsBuffer.position(), spsBuffer.limit()));
+    }
+
+    private boolean updateSps(final Optional<H264FrameInfo.Sps> newSps) {
+        if (!newSps.isPresent() || newSps.get().equals(sps)) {
+            return false;
+        }
+        log.debug("Sequence parameter set changed to {}", newSps.get());
+        sps = newSps.get();
+        return true;
+    }
+
+    private Optional<SliceType> readSliceType(final ByteBuffer buffer, final int offset, final int limit) {
+        try {
+            reader.reset(buffer, offset, limit);
+            // first_mb_in_slice
+            reader.readUe();
+            final int sliceTypeValue = reader.readUe();
+            return Optional.of(SliceType.values()[sliceTypeValue % SliceType.values().length]);
+        } catch (final IllegalStateException e) {
+            log.warn("Unable to read the slice header", e);
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<H264FrameInfo.Sps> readSps(final ByteBuffer buffer, final int offset, final int limit) {
+        final ByteBuffer spsBuffer = buffer.duplicate();
+        spsBuffer.limit(limit);
+        spsBuffer.position(offset);
+        try {
+            return Optional.of(toSps(H264Utils.readSPS(spsBuffer)));
+        } catch (final RuntimeException e) {
+            log.warn("Unable to read the sequence parameter set", e);
+            return Optional.empty();
+        }
+    }
+
+    private static H264FrameInfo.Sps toSps(final SeqParameterSet seqParameterSet) {
+        final int chromaFormat = SeqParameterSet.fromColor(seqParameterSet.chromaFormatIdc);
+        final int frameHeightFactor = seqParameterSet.frameMbsOnlyFlag ? 1 : 2;
+        int width = (seqParameterSet.picWidthInMbsMinus1 + 1) * MACROBLOCK_SIZE;
+        int height = frameHeightFactor * (seqParameterSet.picHeightInMapUnitsMinus1 + 1) * MACROBLOCK_SIZE;
+        if (seqParameterSet.frameCroppingFlag) {
+            final int cropUnitX;
+            final int cropUnitY;
+            if (chromaFormat == CHROMA_FORMAT_MONOCHROME || seqParameterSet.separateColourPlaneFlag) {
+                cropUnitX = 1;
+                cropUnitY = frameHeightFactor;
+            } else {
+                cropUnitX = chromaFormat == CHROMA_FORMAT_420 || chromaFormat == CHROMA_FORMAT_422 ? 2 : 1;
+                cropUnitY = (chromaFormat == CHROMA_FORMAT_420 ? 2 : 1) * frameHeightFactor;
+            }
+            width -= cropUnitX * (seqParameterSet.frameCropLeftOffset + seqParameterSet.frameCropRightOffset);
+            height -= cropUnitY * (seqParameterSet.frameCropTopOffset + seqParameterSet.frameCropBottomOffset);
+        }
+        return H264FrameInfo.Sps.builder()
+                .profileIdc(seqParameterSet.profileIdc)
+                .levelIdc(seqParameterSet.levelIdc)
+                .seqParameterSetId(seqParameterSet.seqParameterSetId)
+                .width(width)
+                .height(height)
+                .build();
+    }
+
+    /**
+     * Read the fields of an H.265 sequence parameter set up to the conformance window (ITU-T H.265 7.3.2.2).
+     */
+    private Optional<H264FrameInfo.Sps> readHevcSps(final ByteBuffer buffer, final int offset, final int limit) {
+        try {
+            reader.reset(buffer, offset, limit);
+            // sps_video_parameter_set_id
+            reader.readBits(4);
+            final int maxSubLayersMinus1 = reader.readBits(3);
+            // sps_temporal_id_nesting_flag
+            reader.readBit();
+
+            // profile_tier_level: the general profile space, tier and profile come first, the level last.
+            reader.readBits(2);
+            reader.readBit();
+            final int profileIdc = reader.readBits(5);
+            skipBits(HEVC_PROFILE_TIER_LEVEL_GENERAL_BITS - 8);
+            final int levelIdc = reader.readBits(8);
+            final boolean[] subLayerProfilePresent = new boolean[maxSubLayersMinus1];
+            final boolean[] subLayerLevelPresent = new boolean[maxSubLayersMinus1];
+            for (int i = 0; i < maxSubLayersMinus1; i++) {
+                subLayerProfilePresent[i] = reader.readBit();
+                subLayerLevelPresent[i] = reader.readBit();
+            }
+            if (maxSubLayersMinus1 > 0) {
+                skipBits(2 * (HEVC_MAX_SUB_LAYERS - maxSubLayersMinus1));
+            }
+            for (int i = 0; i < maxSubLayersMinus1; i++) {
+                if (subLayerProfilePresent[i]) {
+                    skipBits(HEVC_SUB_LAYER_PROFILE_BITS);
+                }
+                if (subLayerLevelPresent[i]) {
+                    skipBits(HEVC_SUB_LAYER_LEVEL_BITS);
+                }
+            }
+
+            final int seqParameterSetId = reader.readUe();
+            final int chromaFormat = reader.readUe();
+            final boolean separateColourPlane = chromaFormat == CHROMA_FORMAT_444 && reader.readBit();
+            int width = reader.readUe();
+            int height = reader.readUe();
+            if (reader.readBit()) {
+                // Conformance window offsets are in chroma samples.
+                final boolean subsampled = chromaFormat != CHROMA_FORMAT_MONOCHROME && !separateColourPlane;
+                final int subWidth = subsampled && chromaFormat != CHROMA_FORMAT_444 ? 2 : 1;
+                final int subHeight = subsampled && chromaFormat == CHROMA_FORMAT_420 ? 2 : 1;
+                width -= subWidth * (reader.readUe() + reader.readUe());
+                height -= subHeight * (reader.readUe() + reader.readUe());
+            }
+            return Optional.of(H264FrameInfo.Sps.builder()
+                    .profileIdc(profileIdc)
+                    .levelIdc(levelIdc)
+                    .seqParameterSetId(seqParameterSetId)
+                    .width(width)
+                    .height(height)
+                    .build());
+        } catch (final IllegalStateException e) {
+            log.warn("Unable to read the sequence parameter set", e);
+            return Optional.empty();
+        }
+    }
+
+    private void skipBits(final int bits) {
+        for (int i = 0; i < bits; i++) {
+            reader.readBit();
+        }
+    }
+
+    private void readSeiMessages(final ByteBuffer buffer, final int offset, final int limit) {
+        if (seiMessages.isEmpty()) {
+            seiMessages = new ArrayList<>();
+        }
+        reader.reset(buffer, offset, limit);
+        try {
+            while (reader.hasMoreBytes() && !reader.isAtTrailingBits()) {
+                final int payloadType = readSeiValue();
+                final int payloadSize = readSeiValue();
+                final byte[] payload = new byte[payloadSize];
+                for (int i = 0; i < payloadSize; i++) {
+                    payload[i] = (byte) reader.readByte();
+                }
+                seiMessages.add(new H264FrameInfo.SeiMessage(payloadType, payload));
+            }
+        } catch (final IllegalStateException e) {
+            log.warn("Truncated SEI message", e);
+        }
+    }
+
+    /**
+     * Read an SEI payload type or size, coded as a run of 0xFF bytes followed by the last byte.
+     */
+    private int readSeiValue() {
+        int value = 0;
+        int nextByte;
+        while ((nextByte = reader.readByte()) == SEI_FF_BYTE) {
+            value += SEI_FF_BYTE;
+        }
+        return value + nextByte;
+    }
+}
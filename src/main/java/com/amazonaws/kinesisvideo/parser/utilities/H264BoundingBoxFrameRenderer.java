@@ -14,8 +14,8 @@ See the License for the specific language governing permissions and limitations
 package com.amazonaws.kinesisvideo.parser.utilities;
 
 import java.awt.image.BufferedImage;
-import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 
 import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoBoundingBoxFrameViewer;
 import com.amazonaws.kinesisvideo.parser.mkv.Frame;
@@ -29,13 +29,13 @@ import lombok.extern.slf4j.Slf4j;
 public class H264BoundingBoxFrameRenderer extends H264FrameRenderer {
 
     private static final int DEFAULT_MAX_TIMEOUT = 100;
-    private static final int WAIT_TIMEOUT = 3;
     private static final int MILLIS_IN_SEC = 1000;
     private static final int OFFSET_DELTA_THRESHOLD = 10;
 
     private final KinesisVideoBoundingBoxFrameViewer kinesisVideoBoundingBoxFrameViewer;
     private final RekognizedFragmentsIndex rekognizedFragmentsIndex;
     private RekognizedOutput currentRekognizedOutput = null;
+    private RekognizedFragmentsIndex.RekognizedFragment currentFragment = null;
 
     @Setter
     private int maxTimeout = DEFAULT_MAX_TIMEOUT;
@@ -69,24 +69,12 @@ public class H264BoundingBoxFrameRenderer extends H264FrameRenderer {
         if (rekognizedFragmentsIndex != null && fragmentMetadata.isPresent()) {
             final String fragmentNumber = fragmentMetadata.get().getFragmentNumberString();
 
-            int timeout = 0;
-            List<RekognizedOutput> rekognizedOutputs = null;
-
-            // if rekognizedOutputs is null then Rekognition did not return the results for this fragment.
-            // Wait until the results are received.
-            while (true) {
-                rekognizedOutputs = rekognizedFragmentsIndex.getRekognizedOutputList(fragmentNumber);
-                if (rekognizedOutputs != null) {
-                    break;
-                } else {
-                    timeout += waitForResults(WAIT_TIMEOUT);
-                    if (timeout >= maxTimeout) {
-                        log.warn("No rekognized result after waiting for {} ms ", timeout);
-                        break;
-                    }
-                }
+            // If Rekognition did not return the results for this fragment yet, wait until they are received. The
+            // fragment is kept after it is removed from the index, for the remaining frames of the fragment.
+            if (currentFragment == null || !currentFragment.getFragmentNumber().equals(fragmentNumber)) {
+                currentFragment = awaitFragment(fragmentNumber);
             }
-            if (rekognizedOutputs != null) {
+            if (currentFragment != null) {
 
                 // Currently Rekognition samples frames and calculates the frame offset from the fragment start time.
                 // So, in order to match with rekognition results, we have to compute the same frame offset from the
@@ -99,7 +87,7 @@ public class H264BoundingBoxFrameRenderer extends H264FrameRenderer {
                         ? frame.getTimeCode() - keyFrameTimecode : 0;
                 log.debug("Current Fragment Number : {} Computed Frame offset : {}", fragmentNumber, frameOffset);
                 if (log.isDebugEnabled()) {
-                    rekognizedOutputs
+                    currentFragment.getRekognizedOutputs()
                             .forEach(p -> log.debug("frameOffsetInSeconds from Rekognition : {}",
                                     p.getFrameOffsetInSeconds()));
                 }
@@ -107,18 +95,15 @@ public class H264BoundingBoxFrameRenderer extends H264FrameRenderer {
                 // Check whether the computed offset matches the rekognized output frame offset. Rekognition
                 // output is in seconds whereas the frame offset is calculated in milliseconds.
                 // NOTE: Rekognition frame offset doesn't exactly match with the computed offset below. So
-                // take the closest one possible within 10ms delta.
-                rekognizedOutput = rekognizedOutputs.stream()
-                        .filter(p -> isOffsetDeltaWithinThreshold(frameOffset, p))
-                        .findFirst();
+                // take the closest one possible within 10ms delta. It is consumed, so it's not matched again.
+                rekognizedOutput = currentFragment.consumeNearest(frameOffset, OFFSET_DELTA_THRESHOLD);
 
                 // Remove from the index once the RekognizedOutput is processed. Else it would increase the memory
                 // footprint and blow up the JVM.
                 if (rekognizedOutput.isPresent()) {
                     log.debug("Computed offset matched with retrieved offset. Delta : {}",
                             Math.abs(frameOffset - (rekognizedOutput.get().getFrameOffsetInSeconds() * MILLIS_IN_SEC)));
-                    rekognizedOutputs.remove(rekognizedOutput.get());
-                    if (rekognizedOutputs.isEmpty()) {
+                    if (currentFragment.isEmpty()) {
                         log.debug("All frames processed for this fragment number : {}", fragmentNumber);
                         rekognizedFragmentsIndex.remove(fragmentNumber);
                     }
@@ -128,10 +113,6 @@ public class H264BoundingBoxFrameRenderer extends H264FrameRenderer {
         return rekognizedOutput;
     }
 
-    private boolean isOffsetDeltaWithinThreshold(final long frameOffset, final RekognizedOutput output) {
-        return Math.abs(frameOffset - (output.getFrameOffsetInSeconds() * MILLIS_IN_SEC)) <= OFFSET_DELTA_THRESHOLD;
-    }
-
     void renderFrame(final BufferedImage bufferedImage, final Optional<RekognizedOutput> rekognizedOutput) {
         if (rekognizedOutput.isPresent()) {
             System.out.println("Rendering Rekognized sampled frame...");
@@ -147,15 +128,16 @@ public class H264BoundingBoxFrameRenderer extends H264FrameRenderer {
     }
 
 
-    private long waitForResults(final long timeout) {
-        final long startTime = System.currentTimeMillis();
+    private RekognizedFragmentsIndex.RekognizedFragment awaitFragment(final String fragmentNumber) {
         try {
-            log.info("No rekognized results for this fragment number. Waiting ....");
-            Thread.sleep(timeout);
+            return rekognizedFragmentsIndex.awaitFragment(fragmentNumber, maxTimeout).get();
+        } catch (final ExecutionException e) {
+            log.warn("No rekognized result after waiting for {} ms ", maxTimeout);
         } catch (final InterruptedException e) {
             log.warn("Error while waiting for rekognized output !", e);
+            Thread.currentThread().interrupt();
         }
-        return System.currentTimeMillis() - startTime;
+        return null;
     }
 
 }
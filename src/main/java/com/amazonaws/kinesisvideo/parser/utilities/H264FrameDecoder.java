@@ -17,6 +17,7 @@ import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
 import org.jcodec.codecs.h264.H264Decoder;
 import org.jcodec.codecs.h264.mp4.AvcCBox;
 import org.jcodec.common.model.ColorSpace;
@@ -27,13 +28,21 @@ import org.jcodec.scale.Yuv420jToRgb;
 
 import java.awt.image.BufferedImage;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
-import static org.jcodec.codecs.h264.H264Utils.splitMOVPacket;
-
 /**
  * H264 Frame Decoder class which uses JCodec decoder to decode frames.
+ *
+ * The SPS/PPS from the codec private data are parsed and handed to the decoder only when the codec private data
+ * changes, and the intermediate pictures as well as the output image are reused for as long as the resolution
+ * stays the same. As a result the {@link BufferedImage} returned by {@link #decodeH264Frame} is owned by the decoder
+ * and is overwritten by the next call; callers that need to keep a frame around must copy it.
+ *
+ * Conversion to RGB and AWT only happens in {@link #decodeH264Frame}. Consumers that work on raw planes can use
+ * {@link #decodeH264FrameToYuv} instead, and {@link #process} only decodes without any conversion.
  */
 @Slf4j
 public class H264FrameDecoder implements FrameVisitor.FrameProcessor  {
@@ -45,52 +54,189 @@ public class H264FrameDecoder implements FrameVisitor.FrameProcessor  {
     private int frameCount;
 
     private byte[] codecPrivateData;
+    private ByteBuffer codecPrivateDataSource;
+    private H264NalUnitIterator nalUnitIterator;
+    private final List<ByteBuffer> nalUnits = new ArrayList<>();
+
+    // Buffers reused across frames with the same resolution. The RGB ones are allocated on first use.
+    private int pixelWidth;
+    private int pixelHeight;
+    private Picture rgb;
+    private Picture yuv;
+    private BufferedImage bufferedImage;
+    private final byte[][] swappedPlanes = new byte[3][];
+    private Picture swappedYuv;
+    private byte[] row;
 
     @Override
     public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
                         final Optional<FragmentMetadata> fragmentMetadata) throws FrameProcessException {
-        decodeH264Frame(frame, trackMetadata);
+        decodePicture(frame, trackMetadata);
     }
 
     public BufferedImage decodeH264Frame(final Frame frame, final MkvTrackMetadata trackMetadata) {
-        final ByteBuffer frameBuffer = frame.getFrameData();
-        final int pixelWidth = trackMetadata.getPixelWidth().get().intValue();
-        final int pixelHeight = trackMetadata.getPixelHeight().get().intValue();
-        codecPrivateData = trackMetadata.getCodecPrivateData().array();
-        log.debug("Decoding frames ... ");
-        // Read the bytes that appear to comprise the header
-        // See: https://www.matroska.org/technical/specs/index.html#simpleblock_structure
-
-        final Picture rgb = Picture.create(pixelWidth, pixelHeight, ColorSpace.RGB);
-        final BufferedImage bufferedImage = new BufferedImage(pixelWidth, pixelHeight, BufferedImage.TYPE_3BYTE_BGR);
-        final AvcCBox avcC = AvcCBox.parseAvcCBox(ByteBuffer.wrap(codecPrivateData));
-
-        decoder.addSps(avcC.getSpsList());
-        decoder.addPps(avcC.getPpsList());
-
-        final Picture buf = Picture.create(pixelWidth + ((16 - (pixelWidth % 16)) % 16),
-                pixelHeight + ((16 - (pixelHeight % 16)) % 16), ColorSpace.YUV420J);
-        final List<ByteBuffer> byteBuffers = splitMOVPacket(frameBuffer, avcC);
-        final Picture pic = decoder.decodeFrameFromNals(byteBuffers, buf.getData());
+        final Picture pic = decodePicture(frame, trackMetadata);
+        updateRgbBuffers();
 
         if (pic != null) {
             // Work around for color issues in JCodec
             // https://github.com/jcodec/jcodec/issues/59
             // https://github.com/jcodec/jcodec/issues/192
-            final byte[][] dataTemp = new byte[3][pic.getData().length];
-            dataTemp[0] = pic.getPlaneData(0);
-            dataTemp[1] = pic.getPlaneData(2);
-            dataTemp[2] = pic.getPlaneData(1);
+            swappedPlanes[0] = pic.getPlaneData(0);
+            swappedPlanes[1] = pic.getPlaneData(2);
+            swappedPlanes[2] = pic.getPlaneData(1);
 
-            final Picture tmpBuf = Picture.createPicture(pixelWidth, pixelHeight, dataTemp, ColorSpace.YUV420J);
-            transform.transform(tmpBuf, rgb);
+            transform.transform(swappedYuv, rgb);
             AWTUtil.toBufferedImage(rgb, bufferedImage);
-            frameCount++;
         }
         return bufferedImage;
     }
 
+    /**
+     * Decode a frame into a newly allocated {@link YuvFrame} without going through RGB and AWT.
+     *
+     * @param frame Frame to decode.
+     * @param trackMetadata Metadata of the track the frame belongs to.
+     * @param options Crop, downscale and grayscale options.
+     * @return The decoded planes, or empty if the decoder did not output a picture for this frame.
+     */
+    public Optional<YuvFrame> decodeH264FrameToYuv(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                                   final YuvDecodeOptions options) {
+        final YuvFrame yuvFrame = YuvFrame.allocate(
+                options.outputWidth(trackMetadata.getPixelWidth().get().intValue()),
+                options.outputHeight(trackMetadata.getPixelHeight().get().intValue()),
+                options.isGrayscale());
+        return decodeH264FrameToYuv(frame, trackMetadata, options, yuvFrame) ? Optional.of(yuvFrame) : Optional.empty();
+    }
+
+    /**
+     * Decode a frame into caller supplied YUV planes without going through RGB and AWT. Each plane buffer is
+     * cleared, filled with unsigned 8 bit samples and flipped so that it is ready to be read.
+     *
+     * @param frame Frame to decode.
+     * @param trackMetadata Metadata of the track the frame belongs to.
+     * @param options Crop, downscale and grayscale options.
+     * @param yuvFrame Destination planes. The dimensions must match the output size of the options.
+     * @return true if a picture was decoded into the planes, false if the decoder did not output a picture.
+     */
+    public boolean decodeH264FrameToYuv(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                        final YuvDecodeOptions options, final YuvFrame yuvFrame) {
+        final int width = trackMetadata.getPixelWidth().get().intValue();
+        final int height = trackMetadata.getPixelHeight().get().intValue();
+        Validate.isTrue(yuvFrame.getWidth() == options.outputWidth(width)
+                && yuvFrame.getHeight() == options.outputHeight(height),
+                "YuvFrame dimensions do not match the decode options");
+        Validate.isTrue(options.isGrayscale() || !yuvFrame.isGrayscale(), "YuvFrame has no chroma planes");
+
+        final Picture pic = decodePicture(frame, trackMetadata);
+        if (pic == null) {
+            return false;
+        }
+
+        // The decoder outputs the planes in Y, Cb, Cr order. The plane swap used for the RGB path compensates for
+        // AWTUtil writing RGB bytes into a BGR image and is not needed here.
+        final int scale = options.getDownscaleFactor();
+        copyPlane(pic.getPlaneData(0), pic.getPlaneWidth(0), options.getCropX(), options.getCropY(), scale,
+                yuvFrame.getWidth(), yuvFrame.getHeight(), yuvFrame.getYPlane());
+        if (!options.isGrayscale()) {
+            final int chromaWidth = YuvFrame.chromaWidth(yuvFrame.getWidth());
+            final int chromaHeight = YuvFrame.chromaHeight(yuvFrame.getHeight());
+            copyPlane(pic.getPlaneData(1), pic.getPlaneWidth(1), options.getCropX() / 2, options.getCropY() / 2,
+                    scale, chromaWidth, chromaHeight, yuvFrame.getUPlane().get());
+            copyPlane(pic.getPlaneData(2), pic.getPlaneWidth(2), options.getCropX() / 2, options.getCropY() / 2,
+                    scale, chromaWidth, chromaHeight, yuvFrame.getVPlane().get());
+        }
+        return true;
+    }
+
     public ByteBuffer getCodecPrivateData() {
         return ByteBuffer.wrap(codecPrivateData);
     }
+
+    private Picture decodePicture(final Frame frame, final MkvTrackMetadata trackMetadata) {
+        Validate.isTrue(VideoCodec.of(trackMetadata) == VideoCodec.H264,
+                "Only H.264 tracks can be decoded, the codec of the track is %s", trackMetadata.getCodecId());
+        final ByteBuffer frameBuffer = frame.getFrameData();
+        updateCodecPrivateData(trackMetadata.getCodecPrivateData());
+        updateBuffers(trackMetadata.getPixelWidth().get().intValue(), trackMetadata.getPixelHeight().get().intValue());
+        log.debug("Decoding frames ... ");
+        // Read the bytes that appear to comprise the header
+        // See: https://www.matroska.org/technical/specs/index.html#simpleblock_structure
+
+        nalUnits.clear();
+        nalUnitIterator.reset(frameBuffer).addRemainingTo(nalUnits);
+        final Picture pic = decoder.decodeFrameFromNals(nalUnits, yuv.getData());
+        if (pic != null) {
+            frameCount++;
+        }
+        return pic;
+    }
+
+    /**
+     * Copy a cropped and subsampled region of a JCodec plane into the destination buffer. JCodec stores samples as
+     * signed values centered on zero, so they are shifted back into the unsigned 0-255 range.
+     */
+    private void copyPlane(final byte[] plane, final int stride, final int offsetX, final int offsetY,
+                           final int scale, final int width, final int height, final ByteBuffer destination) {
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        destination.clear();
+        for (int y = 0; y < height; y++) {
+            int src = (offsetY + y * scale) * stride + offsetX;
+            for (int x = 0; x < width; x++, src += scale) {
+                row[x] = (byte) (plane[src] + 128);
+            }
+            destination.put(row, 0, width);
+        }
+        destination.flip();
+    }
+
+    /**
+     * Parse the AvcC box and feed the SPS/PPS to the decoder only when the codec private data has changed.
+     * The track metadata is recreated for every fragment, so an identity check is followed by a content check.
+     */
+    private void updateCodecPrivateData(final ByteBuffer trackCodecPrivateData) {
+        if (trackCodecPrivateData == codecPrivateDataSource) {
+            return;
+        }
+        codecPrivateDataSource = trackCodecPrivateData;
+        final byte[] data = trackCodecPrivateData.array();
+        if (Arrays.equals(data, codecPrivateData)) {
+            return;
+        }
+        log.debug("Codec private data changed, updating SPS/PPS");
+        codecPrivateData = data;
+        final AvcCBox avcC = AvcCBox.parseAvcCBox(ByteBuffer.wrap(codecPrivateData));
+        nalUnitIterator = H264NalUnitIterator.create(avcC.getNalLengthSize());
+        decoder.addSps(avcC.getSpsList());
+        decoder.addPps(avcC.getPpsList());
+    }
+
+    /**
+     * (Re)allocate the decode buffer when the resolution changes. The color conversion buffers are only allocated
+     * once a frame is actually converted to RGB.
+     */
+    private void updateBuffers(final int width, final int height) {
+        if (yuv != null && width == pixelWidth && height == pixelHeight) {
+            return;
+        }
+        log.debug("Allocating decode buffers for resolution {}x{}", width, height);
+        pixelWidth = width;
+        pixelHeight = height;
+        yuv = Picture.create(width + ((16 - (width % 16)) % 16),
+                height + ((16 - (height % 16)) % 16), ColorSpace.YUV420J);
+        rgb = null;
+        bufferedImage = null;
+        swappedYuv = null;
+    }
+
+    private void updateRgbBuffers() {
+        if (bufferedImage != null) {
+            return;
+        }
+        rgb = Picture.create(pixelWidth, pixelHeight, ColorSpace.RGB);
+        bufferedImage = new BufferedImage(pixelWidth, pixelHeight, BufferedImage.TYPE_3BYTE_BGR);
+        swappedYuv = Picture.createPicture(pixelWidth, pixelHeight, swappedPlanes, ColorSpace.YUV420J);
+    }
 }
@@ -14,10 +14,13 @@ See the License for the specific language governing permissions and limitations
 package com.amazonaws.kinesisvideo.parser.utilities;
 
 import com.amazonaws.kinesisvideo.parser.examples.lambda.EncodedFrame;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
 import org.jcodec.codecs.h264.H264Encoder;
 import org.jcodec.codecs.h264.H264Utils;
 import org.jcodec.codecs.h264.encode.H264FixedRateControl;
+import org.jcodec.codecs.h264.encode.RateControl;
 import org.jcodec.codecs.h264.io.model.PictureParameterSet;
 import org.jcodec.codecs.h264.io.model.SeqParameterSet;
 import org.jcodec.codecs.h264.io.model.SliceType;
@@ -27,40 +30,70 @@ import org.jcodec.common.model.ColorSpace;
 import org.jcodec.common.model.Picture;
 import org.jcodec.common.model.Size;
 import org.jcodec.scale.AWTUtil;
+import org.jcodec.scale.RgbToYuv420j;
+import org.jcodec.scale.Transform;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static java.util.Arrays.asList;
 
 /**
  * H264 Frame Encoder class which uses JCodec encoder to encode frames.
+ *
+ * An encoder is created for one resolution and reuses its input picture and output buffer for every frame, so the
+ * byte buffer of the returned {@link EncodedFrame} is owned by the encoder and is overwritten by the next call;
+ * callers that need to keep the encoded data around must copy it. Frames can be encoded from a
+ * {@link BufferedImage} or, without any color conversion, from the planes of a {@link YuvFrame}. Use
+ * {@link H264FrameEncoderCache} to switch between resolutions without rebuilding encoders.
+ *
+ * The first frame is encoded as an IDR frame and the following ones as P frames. A new GOP starts every
+ * {@link #setKeyFrameInterval key frame interval} frames, when a frame is encoded with {@code forceKeyFrame}, for
+ * example to follow the key frames of a source stream, or after {@link #setFrameNumber setFrameNumber(0)}.
  */
 @Slf4j
 public class H264FrameEncoder {
 
-    private Picture toEncode;
-    private H264Encoder encoder;
-    private SeqParameterSet sps;
-    private PictureParameterSet pps;
+    private final Transform transform = new RgbToYuv420j();
+    private final Picture toEncode;
+    private Picture rgb;
+    private byte[] row;
+    private final H264Encoder encoder;
+    private final SeqParameterSet sps;
+    private final PictureParameterSet pps;
     private ByteBuffer out;
-    private byte[] cpd;
+    private final byte[] cpd;
     private int frameNumber;
+    @Getter
+    private int keyFrameInterval;
+    @Getter
+    private final int width;
+    @Getter
+    private final int height;
 
     public H264FrameEncoder(final int width, final int height, final int bitRate) {
-        this.encoder = new H264Encoder(new H264FixedRateControl(bitRate));
-        this.out = ByteBuffer.allocate(width * height * 6);
+        this(width, height, new H264FixedRateControl(bitRate));
+    }
+
+    /**
+     * @param rateControl Rate control of the encoder, it is used by this encoder only.
+     */
+    public H264FrameEncoder(final int width, final int height, final RateControl rateControl) {
+        Validate.notNull(rateControl);
+        this.encoder = new H264Encoder(rateControl);
+        this.width = width;
+        this.height = height;
+        this.toEncode = Picture.create(width, height, ColorSpace.YUV420J);
+        this.out = ByteBuffer.allocate(encoder.estimateBufferSize(toEncode));
         this.frameNumber = 0;
 
         final Size size = new Size(width, height);
         sps = this.encoder.initSPS(size);
         pps = this.encoder.initPPS();
 
-        final ByteBuffer spsBuffer = ByteBuffer.allocate(512);
-        this.sps.write(spsBuffer);
-        spsBuffer.flip();
-
         final ByteBuffer serialSps = ByteBuffer.allocate(512);
         this.sps.write(serialSps);
         serialSps.flip();
@@ -81,11 +114,55 @@ public class H264FrameEncoder {
     }
 
     public EncodedFrame encodeFrame(final BufferedImage bi) {
+        return encodeFrame(bi, false);
+    }
 
+    /**
+     * @param forceKeyFrame Start a new GOP with this frame.
+     */
+    public EncodedFrame encodeFrame(final BufferedImage bi, final boolean forceKeyFrame) {
+        Validate.isTrue(bi.getWidth() == width && bi.getHeight() == height,
+                "Image is %sx%s, the encoder is for %sx%s", bi.getWidth(), bi.getHeight(), width, height);
         // Perform conversion from buffered image to pic
-        out.clear();
-        toEncode = AWTUtil.fromBufferedImage(bi, ColorSpace.YUV420J);
+        if (rgb == null) {
+            rgb = Picture.create(width, height, ColorSpace.RGB);
+        }
+        AWTUtil.fromBufferedImage(bi, rgb);
+        transform.transform(rgb, toEncode);
+        return encode(forceKeyFrame);
+    }
+
+    /**
+     * Encode a frame from its planes, with unsigned samples as returned by
+     * {@link H264FrameDecoder#decodeH264FrameToYuv}. The chroma of a grayscale frame is encoded as neutral gray.
+     */
+    public EncodedFrame encodeFrame(final YuvFrame yuvFrame) {
+        return encodeFrame(yuvFrame, false);
+    }
 
+    /**
+     * @param forceKeyFrame Start a new GOP with this frame.
+     */
+    public EncodedFrame encodeFrame(final YuvFrame yuvFrame, final boolean forceKeyFrame) {
+        Validate.isTrue(yuvFrame.getWidth() == width && yuvFrame.getHeight() == height,
+                "Frame is %sx%s, the encoder is for %sx%s", yuvFrame.getWidth(), yuvFrame.getHeight(), width, height);
+        copyPlane(yuvFrame.getYPlane(), width, height, 0);
+        if (yuvFrame.isGrayscale()) {
+            Arrays.fill(toEncode.getPlaneData(1), (byte) 0);
+            Arrays.fill(toEncode.getPlaneData(2), (byte) 0);
+        } else {
+            final int chromaWidth = YuvFrame.chromaWidth(width);
+            final int chromaHeight = YuvFrame.chromaHeight(height);
+            copyPlane(yuvFrame.getUPlane().get(), chromaWidth, chromaHeight, 1);
+            copyPlane(yuvFrame.getVPlane().get(), chromaWidth, chromaHeight, 2);
+        }
+        return encode(forceKeyFrame);
+    }
+
+    private EncodedFrame encode(final boolean forceKeyFrame) {
+        if (forceKeyFrame || (keyFrameInterval > 0 && frameNumber >= keyFrameInterval)) {
+            frameNumber = 0;
+        }
         // First frame is treated as I Frame (IDR Frame)
         final SliceType sliceType = this.frameNumber == 0 ? SliceType.I : SliceType.P;
         log.debug("Encoding frame no: {}, frame type : {}", frameNumber, sliceType);
@@ -93,7 +170,17 @@ public class H264FrameEncoder {
         final boolean idr = this.frameNumber == 0;
 
         // Encode image into H.264 frame, the result is stored in 'out' buffer
-        final ByteBuffer data = encoder.doEncodeFrame(toEncode, out, idr, this.frameNumber++, sliceType);
+        ByteBuffer data = null;
+        while (data == null) {
+            out.clear();
+            try {
+                data = encoder.doEncodeFrame(toEncode, out, idr, this.frameNumber, sliceType);
+            } catch (final BufferOverflowException e) {
+                log.debug("Encoded frame does not fit in {} bytes, growing the output buffer", out.capacity());
+                out = ByteBuffer.allocate(out.capacity() * 2);
+            }
+        }
+        this.frameNumber++;
         return EncodedFrame.builder()
                 .byteBuffer(data)
                 .isKeyFrame(idr)
@@ -101,10 +188,41 @@ public class H264FrameEncoder {
                 .build();
     }
 
+    /**
+     * Copy an unsigned plane into the picture to encode. JCodec stores samples as signed values centered on zero.
+     */
+    private void copyPlane(final ByteBuffer source, final int planeWidth, final int planeHeight, final int plane) {
+        final byte[] destination = toEncode.getPlaneData(plane);
+        final int stride = toEncode.getPlaneWidth(plane);
+        final int copyWidth = Math.min(planeWidth, stride);
+        if (row == null || row.length < planeWidth) {
+            row = new byte[planeWidth];
+        }
+        final ByteBuffer src = source.duplicate();
+        for (int y = 0; y < planeHeight && y < toEncode.getPlaneHeight(plane); y++) {
+            src.get(row, 0, planeWidth);
+            final int rowOffset = y * stride;
+            for (int x = 0; x < copyWidth; x++) {
+                destination[rowOffset + x] = (byte) ((row[x] & 0xff) - 128);
+            }
+        }
+    }
+
     public void setFrameNumber(final int frameNumber) {
         this.frameNumber = frameNumber;
     }
 
+    /**
+     * @param keyFrameInterval Number of frames in a GOP, 0 to only encode the first frame as a key frame.
+     */
+    public void setKeyFrameInterval(final int keyFrameInterval) {
+        Validate.isTrue(keyFrameInterval >= 0, "Key frame interval must not be negative");
+        this.keyFrameInterval = keyFrameInterval;
+        if (keyFrameInterval > 0) {
+            encoder.setKeyInterval(keyFrameInterval);
+        }
+    }
+
     public SeqParameterSet getSps() {
         return sps;
     }
@@ -0,0 +1,87 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.Validate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Small cache of {@link H264FrameEncoder}s by resolution, so that a stream whose resolution changes back and forth
+ * does not rebuild its encoder every time. The least recently used encoder is evicted once the cache is full.
+ *
+ * Switching to a different encoder restarts it with an IDR frame, because its reference frames belong to the frames
+ * it encoded before the switch. The cache is meant to be used by a single stream and is not thread safe.
+ */
+@Slf4j
+public class H264FrameEncoderCache {
+    private final BiFunction<Integer, Integer, H264FrameEncoder> encoderFactory;
+    private final Map<Long, H264FrameEncoder> encoders;
+    private H264FrameEncoder current;
+
+    private H264FrameEncoderCache(final int maxEncoders,
+                                  final BiFunction<Integer, Integer, H264FrameEncoder> encoderFactory) {
+        Validate.isTrue(maxEncoders > 0, "Cache size must be positive");
+        this.encoderFactory = encoderFactory;
+        this.encoders = new LinkedHashMap<Long, H264FrameEncoder>(maxEncoders, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, H264FrameEncoder> eldest) {
+                return size() > maxEncoders;
+            }
+        };
+    }
+
+    public static H264FrameEncoderCache create(final int maxEncoders, final int bitRate) {
+        return create(maxEncoders, (width, height) -> new H264FrameEncoder(width, height, bitRate));
+    }
+
+    /**
+     * @param encoderFactory Creates the encoder for a width and height, for example with a custom rate control or
+     *                       key frame interval.
+     */
+    public static H264FrameEncoderCache create(final int maxEncoders,
+                                               final BiFunction<Integer, Integer, H264FrameEncoder> encoderFactory) {
+        Validate.notNull(encoderFactory);
+        return new H264FrameEncoderCache(maxEncoders, encoderFactory);
+    }
+
+    /**
+     * Get the encoder for a resolution, creating it if it is not cached.
+     */
+    public H264FrameEncoder get(final int width, final int height) {
+        if (current != null && current.getWidth() == width && current.getHeight() == height) {
+            return current;
+        }
+        final long key = ((long) width << 32) | (height & 0xffffffffL);
+        H264FrameEncoder encoder = encoders.get(key);
+        if (encoder == null) {
+            log.debug("Creating encoder for resolution {}x{}", width, height);
+            encoder = encoderFactory.apply(width, height);
+            Validate.validState(encoder.getWidth() == width && encoder.getHeight() == height,
+                    "Encoder factory returned an encoder for %sx%s", encoder.getWidth(), encoder.getHeight());
+            encoders.put(key, encoder);
+        } else {
+            encoder.setFrameNumber(0);
+        }
+        current = encoder;
+        return encoder;
+    }
+
+    public int size() {
+        return encoders.size();
+    }
+}
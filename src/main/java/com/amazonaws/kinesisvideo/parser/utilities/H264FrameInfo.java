@@ -0,0 +1,126 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import org.jcodec.codecs.h264.io.model.SliceType;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Information about an H.264 frame read from its NAL units by {@link H264BitstreamInspector}, without decoding it.
+ */
+@Builder
+@Getter
+@ToString
+public class H264FrameInfo {
+    private final long trackNumber;
+    private final int timeCode;
+    private final boolean keyFrame;
+    /**
+     * True if the frame contains an IDR slice.
+     */
+    private final boolean idr;
+    private final int nalUnitCount;
+    /**
+     * Type of the first slice of the frame, if the frame contains a slice.
+     */
+    @NonNull
+    private final Optional<SliceType> sliceType;
+    /**
+     * The sequence parameter set in effect for this frame, from the codec private data or from the frame itself.
+     */
+    @NonNull
+    private final Optional<Sps> sps;
+    /**
+     * True if the sequence parameter set changed with this frame, for example because of a resolution change.
+     */
+    private final boolean spsChanged;
+    @NonNull
+    private final List<SeiMessage> seiMessages;
+
+    /**
+     * The fields of a sequence parameter set that matter to consumers of a stream.
+     */
+    @Builder
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    public static class Sps {
+        private final int profileIdc;
+        private final int levelIdc;
+        private final int seqParameterSetId;
+        /**
+         * Width in pixels after cropping.
+         */
+        private final int width;
+        /**
+         * Height in pixels after cropping.
+         */
+        private final int height;
+    }
+
+    /**
+     * An SEI message, with the emulation prevention bytes removed from its payload.
+     */
+    @ToString(exclude = "payload")
+    public static class SeiMessage {
+        public static final int PAYLOAD_TYPE_USER_DATA_REGISTERED = 4;
+        public static final int PAYLOAD_TYPE_USER_DATA_UNREGISTERED = 5;
+        private static final int UUID_SIZE = 16;
+
+        @Getter
+        private final int payloadType;
+        private final byte[] payload;
+
+        SeiMessage(final int payloadType, final byte[] payload) {
+            this.payloadType = payloadType;
+            this.payload = payload;
+        }
+
+        public ByteBuffer getPayload() {
+            return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        }
+
+        /**
+         * @return The UUID of a user_data_unregistered message, for example the UUID of a producer that embeds
+         * camera timestamps in the stream.
+         */
+        public Optional<UUID> getUserDataUuid() {
+            if (payloadType != PAYLOAD_TYPE_USER_DATA_UNREGISTERED || payload.length < UUID_SIZE) {
+                return Optional.empty();
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(payload);
+            return Optional.of(new UUID(buffer.getLong(), buffer.getLong()));
+        }
+
+        /**
+         * @return The user data of a user_data_unregistered message, that is the payload after the UUID.
+         */
+        public Optional<ByteBuffer> getUserData() {
+            if (!getUserDataUuid().isPresent()) {
+                return Optional.empty();
+            }
+            return Optional.of(ByteBuffer.wrap(payload, UUID_SIZE, payload.length - UUID_SIZE).slice()
+                    .asReadOnlyBuffer());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Iterator over the NAL units of an H.264 frame in AVCC format.
+ */
+public final class H264NalUnitIterator extends NalUnitIterator {
+    public static final int NAL_TYPE_NON_IDR_SLICE = 1;
+    public static final int NAL_TYPE_IDR_SLICE = 5;
+    public static final int NAL_TYPE_SEI = 6;
+    public static final int NAL_TYPE_SPS = 7;
+    public static final int NAL_TYPE_PPS = 8;
+    public static final int NAL_TYPE_ACCESS_UNIT_DELIMITER = 9;
+
+    private static final int HEADER_LENGTH = 1;
+    private static final int NAL_TYPE_MASK = 0x1f;
+    private static final int NAL_REF_IDC_SHIFT = 5;
+    private static final int NAL_REF_IDC_MASK = 0x3;
+    private static final int AVCC_LENGTH_SIZE_OFFSET = 4;
+    private static final int AVCC_LENGTH_SIZE_MASK = 0x3;
+    private static final int AVCC_SPS_COUNT_MASK = 0x1f;
+    private static final byte[] ANNEX_B_START_CODE = new byte[] {0, 0, 0, 1};
+
+    private H264NalUnitIterator(final int nalLengthSize) {
+        super(nalLengthSize);
+    }
+
+    public static H264NalUnitIterator create(final int nalLengthSize) {
+        return new H264NalUnitIterator(nalLengthSize);
+    }
+
+    /**
+     * Create an iterator for the NAL length size in the avcC box of the codec private data.
+     */
+    public static H264NalUnitIterator createFromCodecPrivateData(final ByteBuffer codecPrivateData) {
+        return create(nalLengthSize(codecPrivateData));
+    }
+
+    /**
+     * Read the NAL length size from an avcC box, without parsing the rest of the box.
+     */
+    public static int nalLengthSize(final ByteBuffer codecPrivateData) {
+        Validate.isTrue(codecPrivateData.remaining() > AVCC_LENGTH_SIZE_OFFSET, "Codec private data is too short");
+        return (codecPrivateData.get(codecPrivateData.position() + AVCC_LENGTH_SIZE_OFFSET)
+                & AVCC_LENGTH_SIZE_MASK) + 1;
+    }
+
+    /**
+     * Extract the SPS and PPS NAL units of an avcC box in Annex-B format, to send them in-band ahead of a key frame.
+     */
+    public static byte[] parameterSetsToAnnexB(final ByteBuffer codecPrivateData) {
+        final ByteBuffer avcC = codecPrivateData.duplicate();
+        Validate.isTrue(avcC.remaining() > AVCC_LENGTH_SIZE_OFFSET + 1, "Codec private data is too short");
+        avcC.position(avcC.position() + AVCC_LENGTH_SIZE_OFFSET + 1);
+        final ByteArrayOutputStream parameterSets = new ByteArrayOutputStream();
+        copyParameterSets(avcC, avcC.get() & AVCC_SPS_COUNT_MASK, parameterSets);
+        copyParameterSets(avcC, avcC.get() & 0xff, parameterSets);
+        return parameterSets.toByteArray();
+    }
+
+    private static void copyParameterSets(final ByteBuffer avcC, final int count,
+                                          final ByteArrayOutputStream parameterSets) {
+        for (int i = 0; i < count; i++) {
+            final int length = avcC.getShort() & 0xffff;
+            Validate.isTrue(length <= avcC.remaining(), "Parameter set runs past the end of the avcC box");
+            parameterSets.write(ANNEX_B_START_CODE, 0, ANNEX_B_START_CODE.length);
+            for (int j = 0; j < length; j++) {
+                parameterSets.write(avcC.get());
+            }
+        }
+    }
+
+    @Override
+    public H264NalUnitIterator reset(final ByteBuffer frameBuffer) {
+        super.reset(frameBuffer);
+        return this;
+    }
+
+    @Override
+    public VideoCodec getCodec() {
+        return VideoCodec.H264;
+    }
+
+    @Override
+    public int nalType() {
+        return buffer.get(offset) & NAL_TYPE_MASK;
+    }
+
+    @Override
+    public int headerLength() {
+        return HEADER_LENGTH;
+    }
+
+    @Override
+    public boolean isRandomAccessSlice() {
+        return nalType() == NAL_TYPE_IDR_SLICE;
+    }
+
+    public int nalRefIdc() {
+        return (buffer.get(offset) >> NAL_REF_IDC_SHIFT) & NAL_REF_IDC_MASK;
+    }
+
+    /**
+     * @return true if the frame contains an IDR slice.
+     */
+    public static boolean containsIdrSlice(final ByteBuffer frameBuffer, final int nalLengthSize) {
+        return create(nalLengthSize).reset(frameBuffer).next(NAL_TYPE_IDR_SLICE);
+    }
+}
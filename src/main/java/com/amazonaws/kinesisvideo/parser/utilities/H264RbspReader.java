@@ -0,0 +1,115 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bit reader over the payload of a NAL unit that removes the emulation prevention bytes on the fly, so that
+ * fields can be read from a frame buffer without unescaping or copying it first.
+ */
+final class H264RbspReader {
+    private static final int EMULATION_PREVENTION_BYTE = 0x03;
+
+    private ByteBuffer buffer;
+    private int index;
+    private int limit;
+    private int zeroCount;
+    private int currentByte;
+    private int bitsLeft;
+
+    /**
+     * Start reading at the given absolute offset of the buffer, usually right after the NAL unit header.
+     */
+    H264RbspReader reset(final ByteBuffer nalBuffer, final int offset, final int nalLimit) {
+        this.buffer = nalBuffer;
+        this.index = offset;
+        this.limit = nalLimit;
+        this.zeroCount = 0;
+        this.bitsLeft = 0;
+        return this;
+    }
+
+    /**
+     * @return true if there are RBSP bytes left to read, ignoring the rest of a partially read byte.
+     */
+    boolean hasMoreBytes() {
+        skipEmulationPrevention();
+        return index < limit;
+    }
+
+    /**
+     * @return true if the next byte is the last one and only contains the RBSP stop bit, that is when the remaining
+     * data is just the RBSP trailing bits.
+     */
+    boolean isAtTrailingBits() {
+        skipEmulationPrevention();
+        return index == limit - 1 && (buffer.get(index) & 0xff) == 0x80;
+    }
+
+    int readByte() {
+        if (bitsLeft == 0) {
+            return nextByte();
+        }
+        return readBits(8);
+    }
+
+    boolean readBit() {
+        if (bitsLeft == 0) {
+            currentByte = nextByte();
+            bitsLeft = 8;
+        }
+        bitsLeft--;
+        return ((currentByte >> bitsLeft) & 1) == 1;
+    }
+
+    int readBits(final int bits) {
+        int value = 0;
+        for (int i = 0; i < bits; i++) {
+            value = (value << 1) | (readBit() ? 1 : 0);
+        }
+        return value;
+    }
+
+    /**
+     * Read an unsigned Exp-Golomb coded value.
+     */
+    int readUe() {
+        int leadingZeroBits = 0;
+        while (!readBit()) {
+            leadingZeroBits++;
+            if (leadingZeroBits > 31) {
+                throw new IllegalStateException("Invalid Exp-Golomb code");
+            }
+        }
+        return (int) ((1L << leadingZeroBits) - 1 + readBits(leadingZeroBits));
+    }
+
+    private int nextByte() {
+        skipEmulationPrevention();
+        if (index >= limit) {
+            throw new IllegalStateException("Read past the end of the NAL unit");
+        }
+        final int value = buffer.get(index++) & 0xff;
+        zeroCount = value == 0 ? zeroCount + 1 : 0;
+        return value;
+    }
+
+    private void skipEmulationPrevention() {
+        if (zeroCount >= 2 && index < limit && buffer.get(index) == EMULATION_PREVENTION_BYTE) {
+            index++;
+            zeroCount = 0;
+        }
+    }
+}
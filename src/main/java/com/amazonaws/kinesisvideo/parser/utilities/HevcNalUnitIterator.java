@@ -0,0 +1,98 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Iterator over the NAL units of an H.265 frame in HVCC format.
+ */
+public final class HevcNalUnitIterator extends NalUnitIterator {
+    public static final int NAL_TYPE_BLA_W_LP = 16;
+    public static final int NAL_TYPE_IDR_W_RADL = 19;
+    public static final int NAL_TYPE_IDR_N_LP = 20;
+    public static final int NAL_TYPE_CRA = 21;
+    public static final int NAL_TYPE_RESERVED_IRAP_23 = 23;
+    public static final int NAL_TYPE_VPS = 32;
+    public static final int NAL_TYPE_SPS = 33;
+    public static final int NAL_TYPE_PPS = 34;
+    public static final int NAL_TYPE_ACCESS_UNIT_DELIMITER = 35;
+    public static final int NAL_TYPE_PREFIX_SEI = 39;
+    public static final int NAL_TYPE_SUFFIX_SEI = 40;
+
+    /**
+     * NAL unit types below this one are slices (VCL NAL units).
+     */
+    private static final int NAL_TYPE_FIRST_NON_VCL = 32;
+    private static final int HEADER_LENGTH = 2;
+    private static final int NAL_TYPE_SHIFT = 1;
+    private static final int NAL_TYPE_MASK = 0x3f;
+    private static final int TEMPORAL_ID_PLUS1_MASK = 0x7;
+
+    private HevcNalUnitIterator(final int nalLengthSize) {
+        super(nalLengthSize);
+    }
+
+    public static HevcNalUnitIterator create(final int nalLengthSize) {
+        return new HevcNalUnitIterator(nalLengthSize);
+    }
+
+    /**
+     * Create an iterator for the NAL length size in the hvcC box of the codec private data.
+     */
+    public static HevcNalUnitIterator createFromCodecPrivateData(final ByteBuffer codecPrivateData) {
+        return create(HvcCBox.nalLengthSize(codecPrivateData));
+    }
+
+    @Override
+    public HevcNalUnitIterator reset(final ByteBuffer frameBuffer) {
+        super.reset(frameBuffer);
+        return this;
+    }
+
+    @Override
+    public VideoCodec getCodec() {
+        return VideoCodec.HEVC;
+    }
+
+    @Override
+    public int nalType() {
+        return (buffer.get(offset) >> NAL_TYPE_SHIFT) & NAL_TYPE_MASK;
+    }
+
+    @Override
+    public int headerLength() {
+        return HEADER_LENGTH;
+    }
+
+    @Override
+    public boolean isRandomAccessSlice() {
+        return isIrap(nalType());
+    }
+
+    public int temporalId() {
+        return (buffer.get(offset + 1) & TEMPORAL_ID_PLUS1_MASK) - 1;
+    }
+
+    /**
+     * @return true if the NAL unit type is a slice of an intra random access point picture (BLA, IDR or CRA).
+     */
+    public static boolean isIrap(final int nalType) {
+        return nalType >= NAL_TYPE_BLA_W_LP && nalType <= NAL_TYPE_RESERVED_IRAP_23;
+    }
+
+    public static boolean isSlice(final int nalType) {
+        return nalType < NAL_TYPE_FIRST_NON_VCL;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parser for the HEVCDecoderConfigurationRecord (hvcC box, ISO/IEC 14496-15) carried in the codec private data of
+ * H.265 tracks. It is the H.265 counterpart of JCodec's AvcCBox.
+ */
+@Getter
+@ToString(exclude = {"vpsList", "spsList", "ppsList", "seiList"})
+public final class HvcCBox {
+    private static final int FIXED_HEADER_LENGTH = 23;
+
+    private final int configurationVersion;
+    private final int profileSpace;
+    private final boolean tierFlag;
+    private final int profileIdc;
+    private final int levelIdc;
+    private final int chromaFormat;
+    private final int bitDepthLuma;
+    private final int bitDepthChroma;
+    private final int nalLengthSize;
+    private final List<ByteBuffer> vpsList;
+    private final List<ByteBuffer> spsList;
+    private final List<ByteBuffer> ppsList;
+    private final List<ByteBuffer> seiList;
+
+    private HvcCBox(final ByteBuffer input) {
+        Validate.isTrue(input.remaining() >= FIXED_HEADER_LENGTH, "hvcC box is too short");
+        configurationVersion = input.get() & 0xff;
+        final int profile = input.get() & 0xff;
+        profileSpace = profile >> 6;
+        tierFlag = (profile & 0x20) != 0;
+        profileIdc = profile & 0x1f;
+        // general_profile_compatibility_flags and general_constraint_indicator_flags
+        input.position(input.position() + 4 + 6);
+        levelIdc = input.get() & 0xff;
+        // min_spatial_segmentation_idc and parallelismType
+        input.position(input.position() + 2 + 1);
+        chromaFormat = input.get() & 0x3;
+        bitDepthLuma = (input.get() & 0x7) + 8;
+        bitDepthChroma = (input.get() & 0x7) + 8;
+        // avgFrameRate
+        input.position(input.position() + 2);
+        nalLengthSize = (input.get() & 0x3) + 1;
+
+        final List<ByteBuffer> vps = new ArrayList<>();
+        final List<ByteBuffer> sps = new ArrayList<>();
+        final List<ByteBuffer> pps = new ArrayList<>();
+        final List<ByteBuffer> sei = new ArrayList<>();
+        final int numArrays = input.get() & 0xff;
+        for (int i = 0; i < numArrays; i++) {
+            final int nalType = input.get() & 0x3f;
+            final int numNalUnits = input.getShort() & 0xffff;
+            for (int j = 0; j < numNalUnits; j++) {
+                final int nalUnitLength = input.getShort() & 0xffff;
+                Validate.isTrue(nalUnitLength <= input.remaining(), "hvcC NAL unit runs past the end of the box");
+                final ByteBuffer nalUnit = input.duplicate();
+                nalUnit.limit(input.position() + nalUnitLength);
+                input.position(input.position() + nalUnitLength);
+                switch (nalType) {
+                    case HevcNalUnitIterator.NAL_TYPE_VPS:
+                        vps.add(nalUnit.slice());
+                        break;
+                    case HevcNalUnitIterator.NAL_TYPE_SPS:
+                        sps.add(nalUnit.slice());
+                        break;
+                    case HevcNalUnitIterator.NAL_TYPE_PPS:
+                        pps.add(nalUnit.slice());
+                        break;
+                    case HevcNalUnitIterator.NAL_TYPE_PREFIX_SEI:
+                    case HevcNalUnitIterator.NAL_TYPE_SUFFIX_SEI:
+                        sei.add(nalUnit.slice());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        vpsList = Collections.unmodifiableList(vps);
+        spsList = Collections.unmodifiableList(sps);
+        ppsList = Collections.unmodifiableList(pps);
+        seiList = Collections.unmodifiableList(sei);
+    }
+
+    /**
+     * Parse an hvcC box. The NAL units in the parameter set lists include their two byte header and share the content
+     * of the input buffer.
+     */
+    public static HvcCBox parseHvcCBox(final ByteBuffer codecPrivateData) {
+        return new HvcCBox(codecPrivateData.duplicate());
+    }
+
+    /**
+     * Read the NAL length size from an hvcC box, without parsing the rest of the box.
+     */
+    static int nalLengthSize(final ByteBuffer codecPrivateData) {
+        Validate.isTrue(codecPrivateData.remaining() >= FIXED_HEADER_LENGTH, "hvcC box is too short");
+        return (codecPrivateData.get(codecPrivateData.position() + FIXED_HEADER_LENGTH - 2) & 0x3) + 1;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Iterator over the NAL units of a frame in the length prefixed format used by Matroska for H.264 (AVCC) and
+ * H.265 (HVCC), that is the payload of a SimpleBlock where every NAL unit is prefixed by its length in big endian.
+ * The size of the length prefix comes from the codec private data of the track.
+ *
+ * The iterator does not allocate or copy anything: it only keeps a cursor into the frame buffer and exposes the type,
+ * offset and length of the current NAL unit. Offsets are absolute indexes into the frame buffer. An instance can be
+ * reused for many frames by calling {@link #reset(ByteBuffer)}.
+ */
+public abstract class NalUnitIterator {
+    private final int nalLengthSize;
+    protected ByteBuffer buffer;
+    private int nextOffset;
+    private int limit;
+    protected int offset;
+    private int length;
+
+    protected NalUnitIterator(final int nalLengthSize) {
+        Validate.inclusiveBetween(1, 4, nalLengthSize, "NAL length size must be 1, 2, 3 or 4");
+        this.nalLengthSize = nalLengthSize;
+    }
+
+    /**
+     * Create an iterator for the codec and the NAL length size of the track.
+     */
+    public static NalUnitIterator forTrack(final MkvTrackMetadata trackMetadata) {
+        switch (VideoCodec.of(trackMetadata)) {
+            case HEVC:
+                return HevcNalUnitIterator.createFromCodecPrivateData(trackMetadata.getCodecPrivateData());
+            case H264:
+            default:
+                return H264NalUnitIterator.createFromCodecPrivateData(trackMetadata.getCodecPrivateData());
+        }
+    }
+
+    public abstract VideoCodec getCodec();
+
+    /**
+     * @return Type of the current NAL unit.
+     */
+    public abstract int nalType();
+
+    /**
+     * @return Size of the header of a NAL unit, the payload of the NAL unit follows it.
+     */
+    public abstract int headerLength();
+
+    /**
+     * @return true if the current NAL unit is a slice of a picture that decoding can start from, an IDR picture for
+     * H.264 and an IRAP picture for H.265.
+     */
+    public abstract boolean isRandomAccessSlice();
+
+    /**
+     * Start iterating over the NAL units between the position and the limit of the frame buffer. The position and
+     * limit of the buffer are not changed.
+     */
+    public NalUnitIterator reset(final ByteBuffer frameBuffer) {
+        this.buffer = frameBuffer;
+        this.nextOffset = frameBuffer.position();
+        this.limit = frameBuffer.limit();
+        this.offset = -1;
+        this.length = 0;
+        return this;
+    }
+
+    /**
+     * Move to the next NAL unit.
+     *
+     * @return false when there are no more NAL units in the frame.
+     */
+    public boolean next() {
+        while (limit - nextOffset > nalLengthSize) {
+            final int nalLength = readLength(buffer, nextOffset, nalLengthSize);
+            offset = nextOffset + nalLengthSize;
+            // Like JCodec, a NAL unit that runs past the end of the frame is truncated. Empty ones are skipped.
+            length = nalLength < 0 ? limit - offset : Math.min(nalLength, limit - offset);
+            nextOffset = offset + length;
+            if (length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move to the next NAL unit of the given type.
+     *
+     * @return false when the frame does not contain any more NAL units of the type.
+     */
+    public boolean next(final int nalType) {
+        while (next()) {
+            if (nalType() == nalType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Absolute offset of the current NAL unit, starting with its header.
+     */
+    public int offset() {
+        return offset;
+    }
+
+    /**
+     * @return Length of the current NAL unit, including its header.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return true if the remaining NAL units contain a random access slice.
+     */
+    public boolean containsRandomAccessSlice() {
+        while (next()) {
+            if (isRandomAccessSlice()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append a view of every remaining NAL unit to the list, in the form expected by the JCodec decoder. The views
+     * share the content of the frame buffer.
+     */
+    public void addRemainingTo(final List<ByteBuffer> nalUnits) {
+        while (next()) {
+            final ByteBuffer nalUnit = buffer.duplicate();
+            nalUnit.limit(offset + length);
+            nalUnit.position(offset);
+            nalUnits.add(nalUnit);
+        }
+    }
+
+    /**
+     * Write every remaining NAL unit to the destination in Annex-B format, that is with a 4 byte start code instead of
+     * the length prefix. Unlike {@link #convertToAnnexB} this works for every NAL length size.
+     *
+     * @return The number of bytes written.
+     */
+    public int writeRemainingAsAnnexB(final ByteBuffer destination) {
+        final int start = destination.position();
+        final ByteBuffer source = buffer.duplicate();
+        while (next()) {
+            destination.putInt(1);
+            source.limit(offset + length);
+            source.position(offset);
+            destination.put(source);
+        }
+        return destination.position() - start;
+    }
+
+    /**
+     * Convert a frame from the length prefixed format to Annex-B format in place, by replacing every length prefix
+     * with a start code. This only works for 3 and 4 byte length prefixes, the prefixes of the other sizes are shorter
+     * than a start code. All lengths are validated before the first prefix is replaced, so a frame with an invalid
+     * length is left unchanged. The position and limit of the buffer are not changed.
+     */
+    public static void convertToAnnexB(final ByteBuffer frameBuffer, final int nalLengthSize) {
+        Validate.isTrue(nalLengthSize == 3 || nalLengthSize == 4,
+                "Only 3 and 4 byte NAL lengths can be converted to start codes in place, got %d", nalLengthSize);
+        final int limit = frameBuffer.limit();
+        int index = frameBuffer.position();
+        while (limit - index >= nalLengthSize) {
+            final int nalLength = readLength(frameBuffer, index, nalLengthSize);
+            Validate.isTrue(nalLength >= 0 && nalLength <= limit - index - nalLengthSize,
+                    "Invalid NAL unit length %d at offset %d", nalLength, index);
+            index += nalLengthSize + nalLength;
+        }
+        index = frameBuffer.position();
+        while (limit - index >= nalLengthSize) {
+            final int nalLength = readLength(frameBuffer, index, nalLengthSize);
+            for (int i = 0; i < nalLengthSize - 1; i++) {
+                frameBuffer.put(index + i, (byte) 0);
+            }
+            frameBuffer.put(index + nalLengthSize - 1, (byte) 1);
+            index += nalLengthSize + nalLength;
+        }
+    }
+
+    private static int readLength(final ByteBuffer buffer, final int index, final int nalLengthSize) {
+        int nalLength = 0;
+        for (int i = 0; i < nalLengthSize; i++) {
+            nalLength = (nalLength << 8) | (buffer.get(index + i) & 0xff);
+        }
+        return nalLength;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import lombok.Getter;
+
+/**
+ * Video codecs of the tracks that the frame pipeline understands, identified by their Matroska codec id.
+ */
+public enum VideoCodec {
+    H264("V_MPEG4/ISO/AVC"),
+    HEVC("V_MPEGH/ISO/HEVC");
+
+    @Getter
+    private final String codecId;
+
+    VideoCodec(final String codecId) {
+        this.codecId = codecId;
+    }
+
+    /**
+     * Codec of a track. Tracks without a known codec id are treated as H.264, which is what the pipeline has always
+     * assumed.
+     */
+    public static VideoCodec of(final MkvTrackMetadata trackMetadata) {
+        return HEVC.codecId.equals(trackMetadata.getCodecId()) ? HEVC : H264;
+    }
+}
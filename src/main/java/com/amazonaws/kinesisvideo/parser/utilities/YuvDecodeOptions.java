@@ -0,0 +1,86 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Options for decoding H264 frames straight into YUV 4:2:0 planes using
+ * {@link H264FrameDecoder#decodeH264FrameToYuv}.
+ *
+ * The crop rectangle is applied first and is expressed in pixels of the decoded frame. A crop width or height of 0
+ * extends the crop to the right or bottom edge of the frame. The cropped region is then downscaled by sampling every
+ * n-th pixel. Chroma planes are cropped and downscaled consistently with the luma plane unless grayscale is set,
+ * in which case only the Y plane is produced.
+ */
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@Builder
+@Getter
+@ToString
+public class YuvDecodeOptions {
+    @Builder.Default
+    private boolean grayscale = false;
+
+    @Builder.Default
+    private int cropX = 0;
+    @Builder.Default
+    private int cropY = 0;
+    @Builder.Default
+    private int cropWidth = 0;
+    @Builder.Default
+    private int cropHeight = 0;
+
+    @Builder.Default
+    private int downscaleFactor = 1;
+
+    public static YuvDecodeOptions defaults() {
+        return builder().build();
+    }
+
+    int croppedWidth(final int frameWidth) {
+        validate(frameWidth, cropX, cropWidth);
+        return cropWidth == 0 ? frameWidth - cropX : cropWidth;
+    }
+
+    int croppedHeight(final int frameHeight) {
+        validate(frameHeight, cropY, cropHeight);
+        return cropHeight == 0 ? frameHeight - cropY : cropHeight;
+    }
+
+    /**
+     * Width of the Y plane produced for a frame of the given width.
+     */
+    public int outputWidth(final int frameWidth) {
+        return croppedWidth(frameWidth) / downscaleFactor;
+    }
+
+    /**
+     * Height of the Y plane produced for a frame of the given height.
+     */
+    public int outputHeight(final int frameHeight) {
+        return croppedHeight(frameHeight) / downscaleFactor;
+    }
+
+    private void validate(final int frameSize, final int cropOffset, final int cropSize) {
+        Validate.isTrue(downscaleFactor >= 1, "Downscale factor must be at least 1");
+        // Chroma planes are subsampled by 2 so the crop offset has to be even to keep them aligned.
+        Validate.isTrue(cropOffset >= 0 && cropOffset % 2 == 0, "Crop offset must be even and non-negative");
+        Validate.isTrue(cropSize >= 0 && cropOffset + cropSize <= frameSize, "Crop exceeds frame bounds");
+    }
+}
@@ -0,0 +1,75 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Planar YUV 4:2:0 (I420) image with unsigned 8 bit samples. The chroma planes are absent for grayscale images.
+ * The plane buffers can either be allocated by this class or supplied by the caller so that a consumer can decode
+ * into buffers it already owns (for example direct buffers shared with a native inference runtime).
+ */
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@Getter
+@ToString(exclude = {"yPlane", "uPlane", "vPlane"})
+public class YuvFrame {
+    private final int width;
+    private final int height;
+    private final ByteBuffer yPlane;
+    private final Optional<ByteBuffer> uPlane;
+    private final Optional<ByteBuffer> vPlane;
+
+    public static YuvFrame allocate(final int width, final int height, final boolean grayscale) {
+        return new YuvFrame(width, height,
+                ByteBuffer.allocate(width * height),
+                grayscale ? Optional.empty() : Optional.of(ByteBuffer.allocate(chromaSize(width, height))),
+                grayscale ? Optional.empty() : Optional.of(ByteBuffer.allocate(chromaSize(width, height))));
+    }
+
+    public static YuvFrame wrap(final int width, final int height, final ByteBuffer yPlane) {
+        return wrap(width, height, yPlane, Optional.empty(), Optional.empty());
+    }
+
+    public static YuvFrame wrap(final int width, final int height, final ByteBuffer yPlane,
+                                final Optional<ByteBuffer> uPlane, final Optional<ByteBuffer> vPlane) {
+        Validate.isTrue(uPlane.isPresent() == vPlane.isPresent(), "Both or none of the chroma planes are needed");
+        Validate.isTrue(yPlane.capacity() >= width * height, "Y plane is too small");
+        uPlane.ifPresent(u -> Validate.isTrue(u.capacity() >= chromaSize(width, height), "U plane is too small"));
+        vPlane.ifPresent(v -> Validate.isTrue(v.capacity() >= chromaSize(width, height), "V plane is too small"));
+        return new YuvFrame(width, height, yPlane, uPlane, vPlane);
+    }
+
+    public boolean isGrayscale() {
+        return !uPlane.isPresent();
+    }
+
+    public static int chromaWidth(final int width) {
+        return (width + 1) / 2;
+    }
+
+    public static int chromaHeight(final int height) {
+        return (height + 1) / 2;
+    }
+
+    public static int chromaSize(final int width, final int height) {
+        return chromaWidth(width) * chromaHeight(height);
+    }
+}
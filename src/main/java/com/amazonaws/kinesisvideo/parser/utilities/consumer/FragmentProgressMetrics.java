@@ -0,0 +1,47 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities.consumer;
+
+/**
+ * Progress and latency metrics of the fragments processed by one or more {@link FragmentProgressTracker}s.
+ */
+public interface FragmentProgressMetrics {
+    long getFragmentsCount();
+
+    /**
+     * @return Number of fragments whose metadata reported an error instead of timestamps.
+     */
+    long getErrorFragmentsCount();
+
+    long getClustersCount();
+
+    long getSimpleBlocksCount();
+
+    /**
+     * @return Time from the start to the end of parsing each fragment, in microseconds. This includes the time spent
+     * waiting for the fragment's data to arrive as well as the time spent by the processing visitor.
+     */
+    LatencyHistogram getParseTimeMicros();
+
+    /**
+     * @return Difference between the server side and producer side timestamps of each fragment, in milliseconds.
+     */
+    LatencyHistogram getProducerToServerMillis();
+
+    /**
+     * @return Time from the server side timestamp of each fragment to the end of its parsing, in milliseconds. This
+     * is the lag of the consumer behind ingestion.
+     */
+    LatencyHistogram getServerToConsumerMillis();
+}
@@ -0,0 +1,95 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities.consumer;
+
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Accumulates the {@link FragmentProgressMetrics} of fragments. It can be shared by the trackers of successive or
+ * concurrent GetMedia calls.
+ */
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+public class FragmentProgressRecorder implements FragmentProgressMetrics {
+    private final LongSupplier currentTimeMillis;
+    private final LongAdder fragmentsCount = new LongAdder();
+    private final LongAdder errorFragmentsCount = new LongAdder();
+    private final LongAdder clustersCount = new LongAdder();
+    private final LongAdder simpleBlocksCount = new LongAdder();
+    @Getter
+    private final LatencyHistogram parseTimeMicros = new LatencyHistogram();
+    @Getter
+    private final LatencyHistogram producerToServerMillis = new LatencyHistogram();
+    @Getter
+    private final LatencyHistogram serverToConsumerMillis = new LatencyHistogram();
+
+    public static FragmentProgressRecorder create() {
+        return new FragmentProgressRecorder(System::currentTimeMillis);
+    }
+
+    /**
+     * Record a fragment whose parsing just ended.
+     */
+    void recordFragment(final FragmentMetadata fragmentMetadata,
+            final int clusters,
+            final int simpleBlocks,
+            final long parseNanos) {
+        fragmentsCount.increment();
+        clustersCount.add(clusters);
+        simpleBlocksCount.add(simpleBlocks);
+        parseTimeMicros.record(TimeUnit.NANOSECONDS.toMicros(parseNanos));
+        if (fragmentMetadata.isSuccess()) {
+            producerToServerMillis.record(fragmentMetadata.getServerSideTimestampMillis()
+                    - fragmentMetadata.getProducerSideTimestampMillis());
+            serverToConsumerMillis.record(currentTimeMillis.getAsLong()
+                    - fragmentMetadata.getServerSideTimestampMillis());
+        } else {
+            errorFragmentsCount.increment();
+        }
+    }
+
+    @Override
+    public long getFragmentsCount() {
+        return fragmentsCount.sum();
+    }
+
+    @Override
+    public long getErrorFragmentsCount() {
+        return errorFragmentsCount.sum();
+    }
+
+    @Override
+    public long getClustersCount() {
+        return clustersCount.sum();
+    }
+
+    @Override
+    public long getSimpleBlocksCount() {
+        return simpleBlocksCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FragmentProgressMetrics(fragments=%d, errorFragments=%d, clusters=%d, simpleBlocks=%d, "
+                        + "parseTimeMicros=%s, producerToServerMillis=%s, serverToConsumerMillis=%s)",
+                getFragmentsCount(), getErrorFragmentsCount(), getClustersCount(), getSimpleBlocksCount(),
+                parseTimeMicros, producerToServerMillis, serverToConsumerMillis);
+    }
+}
@@ -13,6 +13,7 @@ See the License for the specific language governing permissions and limitations
 */
 package com.amazonaws.kinesisvideo.parser.utilities.consumer;
 
+import com.amazonaws.kinesisvideo.parser.ebml.EBMLTypeInfo;
 import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvDataElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
@@ -20,69 +21,107 @@ import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvEndMasterElement;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvStartMasterElement;
 import com.amazonaws.kinesisvideo.parser.mkv.visitors.CompositeMkvElementVisitor;
-import com.amazonaws.kinesisvideo.parser.mkv.visitors.CountVisitor;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
 /**
  * This class is used to track the progress in processing the output of a GetMedia call.
- *
+ * At the end of each fragment, the fragment's counts and timings are recorded in a {@link FragmentProgressRecorder}
+ * before the end of fragment callback is invoked.
  */
 public class FragmentProgressTracker extends CompositeMkvElementVisitor {
-    private final CountVisitor countVisitor;
+    private final ProgressVisitor progressVisitor;
 
 
     private FragmentProgressTracker(MkvElementVisitor processingVisitor,
             FragmentMetadataVisitor metadataVisitor,
-            CountVisitor countVisitor,
-            EndOfSegmentVisitor endOfSegmentVisitor) {
-        super(metadataVisitor, processingVisitor, countVisitor, endOfSegmentVisitor);
-        this.countVisitor = countVisitor;
+            ProgressVisitor progressVisitor) {
+        super(metadataVisitor, processingVisitor, progressVisitor);
+        this.progressVisitor = progressVisitor;
     }
 
     public static FragmentProgressTracker create(MkvElementVisitor processingVisitor,
             FragmentMetadataCallback callback) {
+        return create(processingVisitor, callback, FragmentProgressRecorder.create());
+    }
+
+    /**
+     * @param recorder Recorder of the fragment metrics, which may be shared with other trackers.
+     */
+    public static FragmentProgressTracker create(MkvElementVisitor processingVisitor,
+            FragmentMetadataCallback callback,
+            FragmentProgressRecorder recorder) {
         FragmentMetadataVisitor metadataVisitor = FragmentMetadataVisitor.create();
         return new FragmentProgressTracker(processingVisitor,
                 metadataVisitor,
-                CountVisitor.create(MkvTypeInfos.CLUSTER,
-                        MkvTypeInfos.SEGMENT,
-                        MkvTypeInfos.SIMPLEBLOCK,
-                        MkvTypeInfos.TAG),
-                new EndOfSegmentVisitor(metadataVisitor, callback));
+                new ProgressVisitor(metadataVisitor, callback, recorder));
     }
 
     public int getClustersCount() {
-        return countVisitor.getCount(MkvTypeInfos.CLUSTER);
+        return progressVisitor.clustersCount;
     }
 
     public int getSegmentsCount() {
-        return countVisitor.getCount(MkvTypeInfos.SEGMENT);
+        return progressVisitor.segmentsCount;
     }
 
     public int getSimpleBlocksCount() {
-        return countVisitor.getCount(MkvTypeInfos.SIMPLEBLOCK);
+        return progressVisitor.simpleBlocksCount;
+    }
+
+    public FragmentProgressMetrics getMetrics() {
+        return progressVisitor.getRecorder();
     }
 
+    /**
+     * Counts the elements in primitive counters and times each segment, which holds one fragment.
+     */
     @RequiredArgsConstructor
-    private static class EndOfSegmentVisitor extends MkvElementVisitor {
+    private static class ProgressVisitor extends MkvElementVisitor {
         private final FragmentMetadataVisitor metadataVisitor;
         private final FragmentMetadataCallback endOfFragmentCallback;
+        @Getter
+        private final FragmentProgressRecorder recorder;
+        private int segmentsCount;
+        private int clustersCount;
+        private int simpleBlocksCount;
+        private int clustersCountAtSegmentStart;
+        private int simpleBlocksCountAtSegmentStart;
+        private long segmentStartNanos;
 
         @Override
         public void visit(MkvStartMasterElement startMasterElement) throws MkvElementVisitException {
-
+            EBMLTypeInfo typeInfo = startMasterElement.getElementMetaData().getTypeInfo();
+            if (MkvTypeInfos.CLUSTER.equals(typeInfo)) {
+                clustersCount++;
+            } else if (MkvTypeInfos.SEGMENT.equals(typeInfo)) {
+                segmentsCount++;
+                clustersCountAtSegmentStart = clustersCount;
+                simpleBlocksCountAtSegmentStart = simpleBlocksCount;
+                segmentStartNanos = System.nanoTime();
+            }
         }
 
         @Override
         public void visit(MkvEndMasterElement endMasterElement) throws MkvElementVisitException {
             if (MkvTypeInfos.SEGMENT.equals(endMasterElement.getElementMetaData().getTypeInfo())) {
-                metadataVisitor.getCurrentFragmentMetadata().ifPresent(endOfFragmentCallback::call);
+                long parseNanos = System.nanoTime() - segmentStartNanos;
+                metadataVisitor.getCurrentFragmentMetadata().ifPresent(fragmentMetadata -> {
+                    recorder.recordFragment(fragmentMetadata,
+                            clustersCount - clustersCountAtSegmentStart,
+                            simpleBlocksCount - simpleBlocksCountAtSegmentStart,
+                            parseNanos);
+                    endOfFragmentCallback.call(fragmentMetadata);
+                });
             }
         }
 
         @Override
         public void visit(MkvDataElement dataElement) throws MkvElementVisitException {
+            if (MkvTypeInfos.SIMPLEBLOCK.equals(dataElement.getElementMetaData().getTypeInfo())) {
+                simpleBlocksCount++;
+            }
         }
     }
 
@@ -26,9 +26,11 @@ import java.io.InputStream;
  * The first parameter for process method is the payload inputStream in a GetMediaResult returned by a call to GetMedia.
  * Implementations of the process method of this interface should block until all the data in the inputStream has been
  * processed or the process method decides to stop for some other reason. The FragmentMetadataCallback is invoked at
- * the end of every processed fragment.
+ * the end of every processed fragment. The progress metrics of all fragments processed by this consumer are
+ * available from {@link #getProgressMetrics()}.
  */
 public abstract class GetMediaResponseStreamConsumer implements AutoCloseable {
+    private final FragmentProgressRecorder progressRecorder = FragmentProgressRecorder.create();
 
     public abstract void process(InputStream inputStream, FragmentMetadataCallback callback)
             throws MkvElementVisitException, IOException;
@@ -37,7 +39,11 @@ public abstract class GetMediaResponseStreamConsumer implements AutoCloseable {
             FragmentMetadataCallback endOfFragmentCallback,
             MkvElementVisitor mkvElementVisitor) throws MkvElementVisitException {
         StreamingMkvReader.createDefault(new InputStreamParserByteSource(inputStream))
-                .apply(FragmentProgressTracker.create(mkvElementVisitor, endOfFragmentCallback));
+                .apply(FragmentProgressTracker.create(mkvElementVisitor, endOfFragmentCallback, progressRecorder));
+    }
+
+    public FragmentProgressMetrics getProgressMetrics() {
+        return progressRecorder;
     }
 
     @Override
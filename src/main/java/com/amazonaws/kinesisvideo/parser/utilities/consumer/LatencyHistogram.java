@@ -0,0 +1,103 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities.consumer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative latencies, safe to record and read from multiple threads.
+ *
+ * Values are counted in logarithmic buckets: each power of two is split into 16 linear sub-buckets, so a recorded
+ * value is reported with a relative error of at most 1/16 (6.25%) and values below 16 are exact. Recording a value
+ * does not allocate. Negative values, e.g. from clock skew between the producer and the consumer, are recorded as 0.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(final long value) {
+        final long nonNegativeValue = Math.max(0, value);
+        bucketCounts.incrementAndGet(bucketIndex(nonNegativeValue));
+        count.increment();
+        sum.add(nonNegativeValue);
+        max.accumulate(nonNegativeValue);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long total = count.sum();
+        return total > 0 ? sum.sum() / (double) total : 0;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100.
+     * @return The highest value of the bucket containing the percentile, capped at the recorded maximum, or 0 if no
+     * value has been recorded.
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += bucketCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueInBucket(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LatencyHistogram(count=%d, mean=%.1f, p50=%d, p90=%d, p99=%d, max=%d)", getCount(),
+                getMean(), getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99), getMax());
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long highestValueInBucket(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long lowestValue = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowestValue + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.ResponseMetadata;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.SdkHttpMetadata;
+import com.amazonaws.kinesisvideo.parser.TestResourceUtil;
+import com.amazonaws.kinesisvideo.parser.examples.lambda.FragmentCheckpoint;
+import com.amazonaws.kinesisvideo.parser.examples.lambda.FragmentCheckpointManager;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.visitors.CompositeMkvElementVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.consumer.FragmentMetadataCallback;
+import com.amazonaws.kinesisvideo.parser.utilities.consumer.GetMediaResponseStreamConsumer;
+import com.amazonaws.kinesisvideo.parser.utilities.consumer.GetMediaResponseStreamConsumerFactory;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
+import com.amazonaws.services.kinesisvideo.model.GetDataEndpointResult;
+import com.amazonaws.services.kinesisvideo.model.GetMediaRequest;
+import com.amazonaws.services.kinesisvideo.model.GetMediaResult;
+import com.amazonaws.services.kinesisvideo.model.StartSelector;
+import com.amazonaws.services.kinesisvideo.model.StartSelectorType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+public class ContinuousGetMediaWorkerTest {
+    private static final String STREAM_NAME = "stream";
+    private static final StartSelector NOW = new StartSelector().withStartSelectorType(StartSelectorType.NOW);
+
+    @Test
+    public void resumeFromCheckpointAndRetryFailedCalls() {
+        final InMemoryCheckpointManager checkpointManager = new InMemoryCheckpointManager();
+        checkpointManager.saveCheckPoint(STREAM_NAME, "1", 0L, 0L);
+        final List<GetMediaRequest> requests = new ArrayList<>();
+        final AtomicReference<ContinuousGetMediaWorker> worker = new AtomicReference<>();
+        final AmazonKinesisVideoMedia videoMedia = videoMedia(request -> {
+            requests.add(request);
+            switch (requests.size()) {
+                case 1:
+                    return getMediaResult(500, new ByteArrayInputStream(new byte[0]));
+                case 2:
+                    return getMediaResult(200, testInputStream());
+                default:
+                    worker.get().stop();
+                    return getMediaResult(200, new ByteArrayInputStream(new byte[0]));
+            }
+        });
+        worker.set(createWorker(videoMedia, checkpointManager, false, 0L));
+
+        worker.get().run();
+
+        Assert.assertEquals(3, requests.size());
+        Assert.assertEquals("1", requests.get(0).getStartSelector().getAfterFragmentNumber());
+        Assert.assertEquals("1", requests.get(1).getStartSelector().getAfterFragmentNumber());
+        final String lastFragmentNumber = checkpointManager.getLastProcessedItem(STREAM_NAME).get()
+                .getFragmentNumber();
+        Assert.assertNotEquals("1", lastFragmentNumber);
+        Assert.assertEquals(StartSelectorType.FRAGMENT_NUMBER.toString(),
+                requests.get(1).getStartSelector().getStartSelectorType());
+        // The test stream's continuation tokens are the fragment numbers.
+        Assert.assertEquals(StartSelectorType.CONTINUATION_TOKEN.toString(),
+                requests.get(2).getStartSelector().getStartSelectorType());
+        Assert.assertEquals(lastFragmentNumber, requests.get(2).getStartSelector().getContinuationToken());
+        Assert.assertEquals(1, checkpointManager.flushes.get());
+    }
+
+    @Test
+    public void switchToStandbyOpenedWhileResponseStalls() {
+        final InMemoryCheckpointManager checkpointManager = new InMemoryCheckpointManager();
+        final Thread workerThread = Thread.currentThread();
+        final List<GetMediaRequest> workerRequests = new CopyOnWriteArrayList<>();
+        final List<GetMediaRequest> standbyRequests = new CopyOnWriteArrayList<>();
+        final AtomicLong droppedAtNanos = new AtomicLong();
+        final AtomicLong standbyReadAtNanos = new AtomicLong();
+        final AtomicInteger dataEndpointRequests = new AtomicInteger();
+        final AtomicReference<ContinuousGetMediaWorker> worker = new AtomicReference<>();
+        final AmazonKinesisVideoMedia videoMedia = videoMedia(request -> {
+            if (Thread.currentThread() != workerThread) {
+                standbyRequests.add(request);
+                return getMediaResult(200, new InputStream() {
+                    @Override
+                    public int read() {
+                        standbyReadAtNanos.compareAndSet(0L, System.nanoTime());
+                        return -1;
+                    }
+                });
+            }
+            workerRequests.add(request);
+            if (workerRequests.size() == 1) {
+                // The last fragment is only complete at its end: stall inside it until a standby is open, then drop.
+                return getMediaResult(200, new SequenceInputStream(testInputStream(),
+                        new StallingInputStream(() -> standbyRequests.stream().anyMatch(standby ->
+                                checkpointManager.getLastProcessedItem(STREAM_NAME)
+                                        .map(FragmentCheckpoint::getFragmentNumber)
+                                        .filter(standby.getStartSelector().getContinuationToken()::equals)
+                                        .isPresent()), droppedAtNanos)));
+            }
+            worker.get().stop();
+            return getMediaResult(200, new ByteArrayInputStream(new byte[0]));
+        });
+        worker.set(createWorker(videoMedia, checkpointManager, true, 100L, dataEndpointRequests));
+
+        worker.get().run();
+
+        final String lastCompleteFragment = checkpointManager.getLastProcessedItem(STREAM_NAME).get()
+                .getFragmentNumber();
+        // A slow parse may open and close standbys for earlier fragments, the one used starts after the
+        // last complete fragment.
+        Assert.assertFalse(standbyRequests.isEmpty());
+        Assert.assertEquals(lastCompleteFragment,
+                standbyRequests.get(standbyRequests.size() - 1).getStartSelector().getContinuationToken());
+        // The worker switched to the standby, then made its own call once the standby response ended.
+        Assert.assertEquals(2, workerRequests.size());
+        Assert.assertEquals(NOW, workerRequests.get(0).getStartSelector());
+        Assert.assertEquals(lastCompleteFragment, workerRequests.get(1).getStartSelector().getContinuationToken());
+        // The dropped response is not treated as a failure: the data endpoint is kept and there is no backoff.
+        Assert.assertEquals(1, dataEndpointRequests.get());
+        Assert.assertTrue(standbyReadAtNanos.get() > 0L);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(standbyReadAtNanos.get() - droppedAtNanos.get()) < 100L);
+    }
+
+    @Test
+    public void noStandbyWhileFragmentsArrive() {
+        final InMemoryCheckpointManager checkpointManager = new InMemoryCheckpointManager();
+        final Thread workerThread = Thread.currentThread();
+        final List<GetMediaRequest> standbyRequests = new CopyOnWriteArrayList<>();
+        final AtomicInteger workerRequests = new AtomicInteger();
+        final AtomicReference<ContinuousGetMediaWorker> worker = new AtomicReference<>();
+        final AmazonKinesisVideoMedia videoMedia = videoMedia(request -> {
+            if (Thread.currentThread() != workerThread) {
+                standbyRequests.add(request);
+            } else if (workerRequests.incrementAndGet() == 2) {
+                worker.get().stop();
+            }
+            return getMediaResult(200, testInputStream());
+        });
+        worker.set(createWorker(videoMedia, checkpointManager, true, 10_000L));
+
+        worker.get().run();
+
+        Assert.assertEquals(2, workerRequests.get());
+        Assert.assertTrue(standbyRequests.isEmpty());
+    }
+
+    @Test
+    public void reportRedeliveredFragmentsOnce() {
+        final InMemoryCheckpointManager checkpointManager = new InMemoryCheckpointManager();
+        final List<GetMediaRequest> requests = new ArrayList<>();
+        final AtomicReference<ContinuousGetMediaWorker> worker = new AtomicReference<>();
+        final AmazonKinesisVideoMedia videoMedia = videoMedia(request -> {
+            requests.add(request);
+            if (requests.size() == 2) {
+                worker.get().stop();
+            }
+            return getMediaResult(200, testInputStream());
+        });
+        worker.set(createWorker(videoMedia, checkpointManager, false, 0L));
+
+        worker.get().run();
+
+        Assert.assertEquals(2, requests.size());
+        Assert.assertEquals(5, checkpointManager.saves.get());
+    }
+
+    private static ContinuousGetMediaWorker createWorker(final AmazonKinesisVideoMedia videoMedia,
+                                                         final FragmentCheckpointManager checkpointManager,
+                                                         final boolean warmStandby,
+                                                         final long stallMillis) {
+        return createWorker(videoMedia, checkpointManager, warmStandby, stallMillis, new AtomicInteger());
+    }
+
+    private static ContinuousGetMediaWorker createWorker(final AmazonKinesisVideoMedia videoMedia,
+                                                         final FragmentCheckpointManager checkpointManager,
+                                                         final boolean warmStandby,
+                                                         final long stallMillis,
+                                                         final AtomicInteger dataEndpointRequests) {
+        final AWSStaticCredentialsProvider credentialsProvider =
+                new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret"));
+        final AmazonKinesisVideo amazonKinesisVideo = (AmazonKinesisVideo) Proxy.newProxyInstance(
+                AmazonKinesisVideo.class.getClassLoader(), new Class<?>[] {AmazonKinesisVideo.class},
+                (proxy, method, args) -> {
+                    dataEndpointRequests.incrementAndGet();
+                    return new GetDataEndpointResult().withDataEndpoint("http://localhost");
+                });
+        final KinesisVideoMediaClientPool clientPool = new KinesisVideoMediaClientPool(Regions.US_WEST_2,
+                credentialsProvider, amazonKinesisVideo, KinesisVideoMediaClientPool.DEFAULT_ENDPOINT_TTL_MILLIS,
+                endpoint -> videoMedia, endpoint -> null);
+        return new ContinuousGetMediaWorker(Regions.US_WEST_2,
+                credentialsProvider,
+                STREAM_NAME,
+                NOW,
+                clientPool,
+                new GetMediaResponseStreamConsumerFactory() {
+                    @Override
+                    public GetMediaResponseStreamConsumer createConsumer() {
+                        return new TestConsumer();
+                    }
+                },
+                checkpointManager,
+                warmStandby,
+                stallMillis);
+    }
+
+    private static AmazonKinesisVideoMedia videoMedia(final Function<GetMediaRequest, GetMediaResult> getMedia) {
+        return (AmazonKinesisVideoMedia) Proxy.newProxyInstance(AmazonKinesisVideoMedia.class.getClassLoader(),
+                new Class<?>[] {AmazonKinesisVideoMedia.class}, (proxy, method, args) -> {
+                    if ("getMedia".equals(method.getName())) {
+                        return getMedia.apply((GetMediaRequest) args[0]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static GetMediaResult getMediaResult(final int statusCode, final InputStream payload) {
+        final HttpResponse httpResponse = new HttpResponse(new DefaultRequest<>("kinesisvideo"), null);
+        httpResponse.setStatusCode(statusCode);
+        final GetMediaResult result = new GetMediaResult().withPayload(payload);
+        result.setSdkHttpMetadata(SdkHttpMetadata.from(httpResponse));
+        result.setSdkResponseMetadata(new ResponseMetadata(Collections.emptyMap()));
+        return result;
+    }
+
+    private static InputStream testInputStream() {
+        try {
+            return TestResourceUtil.getTestInputStream("output_get_media.mkv");
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class TestConsumer extends GetMediaResponseStreamConsumer {
+        @Override
+        public void process(final InputStream inputStream, final FragmentMetadataCallback callback)
+                throws MkvElementVisitException {
+            processWithFragmentEndCallbacks(inputStream, callback, new CompositeMkvElementVisitor());
+        }
+    }
+
+    private static class StallingInputStream extends InputStream {
+        private final BooleanSupplier resume;
+        private final AtomicLong droppedAtNanos;
+
+        StallingInputStream(final BooleanSupplier resume, final AtomicLong droppedAtNanos) {
+            this.resume = resume;
+            this.droppedAtNanos = droppedAtNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final long deadline = System.currentTimeMillis() + 10_000L;
+            while (!resume.getAsBoolean() && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(10L);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            droppedAtNanos.set(System.nanoTime());
+            throw new IOException("Connection reset");
+        }
+    }
+
+    private static class InMemoryCheckpointManager implements FragmentCheckpointManager {
+        private final Map<String, FragmentCheckpoint> checkpoints = new ConcurrentHashMap<>();
+        private final AtomicInteger saves = new AtomicInteger();
+        private final AtomicInteger flushes = new AtomicInteger();
+
+        @Override
+        public Optional<FragmentCheckpoint> getLastProcessedItem(final String streamName) {
+            return Optional.ofNullable(checkpoints.get(streamName));
+        }
+
+        @Override
+        public void saveCheckPoint(final String streamName, final String fragmentNumber, final Long producerTime,
+                                   final Long serverTime) {
+            saves.incrementAndGet();
+            checkpoints.put(streamName, new FragmentCheckpoint(streamName, fragmentNumber, serverTime, producerTime,
+                    System.currentTimeMillis()));
+        }
+
+        @Override
+        public void flush() {
+            flushes.incrementAndGet();
+        }
+    }
+}
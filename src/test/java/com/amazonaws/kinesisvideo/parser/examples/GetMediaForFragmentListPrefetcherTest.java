@@ -0,0 +1,218 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.kinesisvideo.parser.TestResourceUtil;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.mkv.visitors.CountVisitor;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
+import com.amazonaws.services.kinesisvideo.model.GetDataEndpointResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the prefetcher against an embedded HTTP server standing in for GetMediaForFragmentList.
+ */
+public class GetMediaForFragmentListPrefetcherTest {
+    private static final String STREAM_NAME = "stream";
+    private static final Pattern FRAGMENTS = Pattern.compile("\"Fragments\":\\[([^\\]]*)\\]");
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private volatile ResponseWriter responseWriter;
+
+    private interface ResponseWriter {
+        void write(HttpExchange exchange, List<String> fragmentNumbers) throws IOException;
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/getMediaForFragmentList", exchange -> {
+            requests.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                final Matcher matcher = FRAGMENTS.matcher(readRequest(exchange));
+                Assert.assertTrue(matcher.find());
+                final List<String> fragmentNumbers = Arrays.stream(matcher.group(1).split(","))
+                        .map(fragmentNumber -> fragmentNumber.replace("\"", ""))
+                        .collect(Collectors.toList());
+                responseWriter.write(exchange, fragmentNumbers);
+            } finally {
+                inFlight.decrementAndGet();
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void returnBatchesInOrderWithRequestsInFlight() {
+        // Responses take a random time, so that they complete out of order.
+        responseWriter = (exchange, fragmentNumbers) -> {
+            sleep(ThreadLocalRandom.current().nextInt(20, 60));
+            writeResponse(exchange, 200, String.join(",", fragmentNumbers).getBytes(StandardCharsets.UTF_8));
+        };
+        final List<String> fragmentNumbers = IntStream.range(0, 23).mapToObj(i -> String.valueOf(1000 + i))
+                .collect(Collectors.toList());
+
+        final List<String> received = new ArrayList<>();
+        try (GetMediaForFragmentListPrefetcher prefetcher = GetMediaForFragmentListPrefetcher.create(STREAM_NAME,
+                fragmentNumbers.iterator(), createPool(), 5, 3)) {
+            while (prefetcher.hasNext()) {
+                final GetMediaForFragmentListPrefetcher.FragmentListPayload payload = prefetcher.next();
+                Assert.assertEquals(String.join(",", payload.getFragmentNumbers()), read(payload.getPayload()));
+                received.addAll(payload.getFragmentNumbers());
+                // Processing time, during which the next requests are fetched.
+                sleep(30);
+            }
+        }
+
+        Assert.assertEquals(fragmentNumbers, received);
+        Assert.assertEquals(5, requests.get());
+        Assert.assertTrue(maxInFlight.get() > 1);
+        Assert.assertTrue(maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void parsePrefetchedTestFile() throws IOException, MkvElementVisitException {
+        final byte[] testFile = TestResourceUtil.getTestInputByteArray("output_get_media.mkv");
+        responseWriter = (exchange, fragmentNumbers) -> writeResponse(exchange, 200, testFile);
+        final KinesisVideoMediaClientPool pool = createPool();
+
+        try (GetMediaForFragmentListPrefetcher prefetcher = GetMediaForFragmentListPrefetcher.create(STREAM_NAME,
+                Arrays.asList("1", "2", "3").iterator(), pool, 1, 2)) {
+            int payloads = 0;
+            while (prefetcher.hasNext()) {
+                final CountVisitor countVisitor = CountVisitor.create(MkvTypeInfos.SEGMENT);
+                StreamingMkvReader.createDefault(new InputStreamParserByteSource(prefetcher.next().getPayload()))
+                        .apply(countVisitor);
+                Assert.assertEquals(5, countVisitor.getCount(MkvTypeInfos.SEGMENT));
+                payloads++;
+            }
+            Assert.assertEquals(3, payloads);
+        }
+        Assert.assertEquals(3L * testFile.length, pool.getStreamMetrics(STREAM_NAME).getBytesRead());
+    }
+
+    @Test
+    public void throwFailedRequestAndContinue() {
+        responseWriter = (exchange, fragmentNumbers) -> {
+            if (fragmentNumbers.contains("2")) {
+                exchange.getResponseHeaders().add("x-amzn-ErrorType", "ResourceNotFoundException");
+                writeResponse(exchange, 404, "{\"message\":\"Fragment not found\"}".getBytes(StandardCharsets.UTF_8));
+            } else {
+                writeResponse(exchange, 200, fragmentNumbers.get(0).getBytes(StandardCharsets.UTF_8));
+            }
+        };
+
+        try (GetMediaForFragmentListPrefetcher prefetcher = GetMediaForFragmentListPrefetcher.create(STREAM_NAME,
+                Arrays.asList("1", "2", "3").iterator(), createPool(), 1, 3)) {
+            Assert.assertEquals("1", read(prefetcher.next().getPayload()));
+            try {
+                prefetcher.next();
+                Assert.fail("Expected the failed request to be thrown");
+            } catch (final AmazonServiceException e) {
+                Assert.assertEquals(404, e.getStatusCode());
+            }
+            Assert.assertEquals("3", read(prefetcher.next().getPayload()));
+            Assert.assertFalse(prefetcher.hasNext());
+        }
+    }
+
+    private KinesisVideoMediaClientPool createPool() {
+        final String endpoint = "http://localhost:" + server.getAddress().getPort();
+        final AmazonKinesisVideo amazonKinesisVideo = (AmazonKinesisVideo) Proxy.newProxyInstance(
+                AmazonKinesisVideo.class.getClassLoader(), new Class<?>[] {AmazonKinesisVideo.class},
+                (proxy, method, args) -> new GetDataEndpointResult().withDataEndpoint(endpoint));
+        return KinesisVideoMediaClientPool.create(Regions.US_WEST_2,
+                new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")), amazonKinesisVideo,
+                KinesisVideoMediaClientPool.DEFAULT_ENDPOINT_TTL_MILLIS, new ClientConfiguration());
+    }
+
+    private static void writeResponse(final HttpExchange exchange, final int statusCode, final byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "video/webm");
+        exchange.sendResponseHeaders(statusCode, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String readRequest(final HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return read(in);
+        }
+    }
+
+    private static String read(final InputStream in) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.kinesisvideo.parser.TestResourceUtil;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.visitors.CountVisitor;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
+import com.amazonaws.services.kinesisvideo.model.APIName;
+import com.amazonaws.services.kinesisvideo.model.GetDataEndpointRequest;
+import com.amazonaws.services.kinesisvideo.model.GetDataEndpointResult;
+import com.amazonaws.services.kinesisvideo.model.GetMediaRequest;
+import com.amazonaws.services.kinesisvideo.model.StartSelector;
+import com.amazonaws.services.kinesisvideo.model.StartSelectorType;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs the media workers against an embedded HTTP server that serves the bundled test files.
+ */
+public class KinesisVideoMediaClientPoolTest {
+    private static final String STREAM_NAME = "stream";
+    private static final String TEST_FILE = "output_get_media.mkv";
+    private static final AWSStaticCredentialsProvider CREDENTIALS_PROVIDER =
+            new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret"));
+
+    private final List<String> servedPaths = new CopyOnWriteArrayList<>();
+    private final List<GetDataEndpointRequest> endpointRequests = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private byte[] testFile;
+
+    @Before
+    public void startServer() throws IOException {
+        testFile = TestResourceUtil.getTestInputByteArray(TEST_FILE);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            servedPaths.add(exchange.getRequestURI().getPath());
+            try (InputStream requestBody = exchange.getRequestBody()) {
+                while (requestBody.read() >= 0) {
+                    // Drain the request.
+                }
+            }
+            exchange.getResponseHeaders().add("Content-Type", "video/webm");
+            exchange.sendResponseHeaders(200, testFile.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(testFile);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void cacheDataEndpointsAndShareClients() {
+        final KinesisVideoMediaClientPool pool = createPool(KinesisVideoMediaClientPool.DEFAULT_ENDPOINT_TTL_MILLIS);
+
+        Assert.assertSame(pool.getMediaClient(STREAM_NAME), pool.getMediaClient(STREAM_NAME));
+        Assert.assertEquals(1, endpointRequests.size());
+        // Streams on the same data endpoint share the client.
+        Assert.assertSame(pool.getMediaClient(STREAM_NAME), pool.getMediaClient("other-stream"));
+        Assert.assertEquals(2, endpointRequests.size());
+        pool.getArchivedMediaClient(STREAM_NAME, APIName.GET_MEDIA_FOR_FRAGMENT_LIST);
+        Assert.assertEquals(3, endpointRequests.size());
+
+        pool.invalidateDataEndpoint(STREAM_NAME, APIName.GET_MEDIA);
+        pool.getMediaClient(STREAM_NAME);
+        Assert.assertEquals(4, endpointRequests.size());
+        Assert.assertEquals(APIName.GET_MEDIA.toString(), endpointRequests.get(3).getAPIName());
+    }
+
+    @Test
+    public void expireDataEndpoints() {
+        final KinesisVideoMediaClientPool pool = createPool(0L);
+
+        pool.getDataEndpoint(STREAM_NAME, APIName.GET_MEDIA);
+        pool.getDataEndpoint(STREAM_NAME, APIName.GET_MEDIA);
+        Assert.assertEquals(2, endpointRequests.size());
+    }
+
+    @Test
+    public void getMediaFromEmbeddedServer() {
+        final KinesisVideoMediaClientPool pool = createPool(KinesisVideoMediaClientPool.DEFAULT_ENDPOINT_TTL_MILLIS);
+        final CountVisitor countVisitor = CountVisitor.create(MkvTypeInfos.SEGMENT, MkvTypeInfos.SIMPLEBLOCK);
+
+        GetMediaWorker.create(STREAM_NAME, new StartSelector().withStartSelectorType(StartSelectorType.EARLIEST),
+                pool, countVisitor).run();
+
+        Assert.assertEquals(Collections.singletonList("/getMedia"), servedPaths);
+        Assert.assertEquals(5, countVisitor.getCount(MkvTypeInfos.SEGMENT));
+        Assert.assertTrue(countVisitor.getCount(MkvTypeInfos.SIMPLEBLOCK) > 0);
+        final KinesisVideoMediaClientPool.StreamMetrics metrics = pool.getStreamMetrics(STREAM_NAME);
+        Assert.assertEquals(1, metrics.getResponseCount());
+        Assert.assertEquals(testFile.length, metrics.getBytesRead());
+        Assert.assertTrue(metrics.getLastTimeToFirstByteMillis() > 0);
+        Assert.assertEquals(metrics.getLastTimeToFirstByteMillis(), metrics.getAverageTimeToFirstByteMillis(), 1e-9);
+        Assert.assertTrue(metrics.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void getMediaForFragmentListFromEmbeddedServer() {
+        final KinesisVideoMediaClientPool pool = createPool(KinesisVideoMediaClientPool.DEFAULT_ENDPOINT_TTL_MILLIS);
+
+        for (int i = 0; i < 2; i++) {
+            final CountVisitor countVisitor = CountVisitor.create(MkvTypeInfos.SEGMENT);
+            new GetMediaForFragmentListWorker(STREAM_NAME, Collections.singletonList("1"), pool, countVisitor).run();
+            Assert.assertEquals(5, countVisitor.getCount(MkvTypeInfos.SEGMENT));
+        }
+
+        Assert.assertEquals(2, servedPaths.size());
+        Assert.assertEquals("/getMediaForFragmentList", servedPaths.get(0));
+        Assert.assertEquals(1, endpointRequests.size());
+        Assert.assertEquals(2, pool.getStreamMetrics(STREAM_NAME).getResponseCount());
+        Assert.assertEquals(2L * testFile.length, pool.getStreamMetrics(STREAM_NAME).getBytesRead());
+    }
+
+    @Test
+    public void closeShutsDownClientsAndReleasesSharedPool() {
+        final AmazonKinesisVideo amazonKinesisVideo = amazonKinesisVideo();
+        final KinesisVideoMediaClientPool pool =
+                KinesisVideoMediaClientPool.getShared(Regions.US_WEST_2, CREDENTIALS_PROVIDER, amazonKinesisVideo);
+        Assert.assertSame(pool,
+                KinesisVideoMediaClientPool.getShared(Regions.US_WEST_2, CREDENTIALS_PROVIDER, amazonKinesisVideo));
+        final AmazonKinesisVideoMedia mediaClient = pool.getMediaClient(STREAM_NAME);
+
+        pool.close();
+
+        try {
+            mediaClient.getMedia(new GetMediaRequest().withStreamName(STREAM_NAME)
+                    .withStartSelector(new StartSelector().withStartSelectorType(StartSelectorType.EARLIEST)));
+            Assert.fail("Expected the media client to be shut down");
+        } catch (final IllegalStateException e) {
+            Assert.assertTrue(servedPaths.isEmpty());
+        }
+        try {
+            pool.getMediaClient(STREAM_NAME);
+            Assert.fail("Expected the closed pool to reject new clients");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        Assert.assertNotSame(pool,
+                KinesisVideoMediaClientPool.getShared(Regions.US_WEST_2, CREDENTIALS_PROVIDER, amazonKinesisVideo));
+    }
+
+    private KinesisVideoMediaClientPool createPool(final long endpointTtlMillis) {
+        return KinesisVideoMediaClientPool.create(Regions.US_WEST_2, CREDENTIALS_PROVIDER, amazonKinesisVideo(),
+                endpointTtlMillis, new ClientConfiguration());
+    }
+
+    private AmazonKinesisVideo amazonKinesisVideo() {
+        final String endpoint = "http://localhost:" + server.getAddress().getPort();
+        return (AmazonKinesisVideo) Proxy.newProxyInstance(
+                AmazonKinesisVideo.class.getClassLoader(), new Class<?>[] {AmazonKinesisVideo.class},
+                (proxy, method, args) -> {
+                    // Shared pools are keyed by the client instance.
+                    if ("hashCode".equals(method.getName())) {
+                        return System.identityHashCode(proxy);
+                    }
+                    if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    }
+                    if (!"getDataEndpoint".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    endpointRequests.add((GetDataEndpointRequest) args[0]);
+                    return new GetDataEndpointResult().withDataEndpoint(endpoint);
+                });
+    }
+}
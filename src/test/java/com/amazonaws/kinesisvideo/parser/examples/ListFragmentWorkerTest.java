@@ -0,0 +1,184 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
+import com.amazonaws.services.kinesisvideo.model.Fragment;
+import com.amazonaws.services.kinesisvideo.model.FragmentSelector;
+import com.amazonaws.services.kinesisvideo.model.FragmentSelectorType;
+import com.amazonaws.services.kinesisvideo.model.GetDataEndpointResult;
+import com.amazonaws.services.kinesisvideo.model.ListFragmentsRequest;
+import com.amazonaws.services.kinesisvideo.model.ListFragmentsResult;
+import com.amazonaws.services.kinesisvideo.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+public class ListFragmentWorkerTest {
+    private static final String STREAM_NAME = "stream";
+    private static final int FRAGMENT_COUNT = 2500;
+
+    @Test
+    public void listShardsConcurrentlyInNumericOrder() {
+        final AtomicInteger requests = new AtomicInteger();
+        final ListFragmentWorker worker = createWorker(request -> {
+            requests.incrementAndGet();
+            return listFragments(request);
+        }, 4);
+
+        final List<String> fragmentNumbers = worker.call();
+
+        // Fragment numbers grow from 2 to 5 digits, a string sort would put "10" before "9".
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < FRAGMENT_COUNT; i++) {
+            expected.add(fragmentNumber(i));
+        }
+        Assert.assertEquals(expected, fragmentNumbers);
+        // Each shard lists about 626 fragments in pages of 1000.
+        Assert.assertEquals(4, requests.get());
+    }
+
+    @Test
+    public void returnFirstShardWhileLaterShardsAreListed() throws InterruptedException {
+        final CountDownLatch laterShardsReleased = new CountDownLatch(1);
+        final ListFragmentWorker worker = createWorker(request -> {
+            if (request.getFragmentSelector() != null
+                    && request.getFragmentSelector().getTimestampRange().getStartTimestamp().getTime() > 0) {
+                try {
+                    laterShardsReleased.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return listFragments(request);
+        }, 2);
+
+        final Iterator<String> iterator = worker.iterator();
+        Assert.assertEquals(fragmentNumber(0), iterator.next());
+        Assert.assertEquals(fragmentNumber(1), iterator.next());
+        laterShardsReleased.countDown();
+        int count = 2;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        Assert.assertEquals(FRAGMENT_COUNT, count);
+    }
+
+    @Test(expected = ResourceNotFoundException.class)
+    public void throwListingFailures() {
+        createWorker(request -> {
+            throw new ResourceNotFoundException("Stream not found");
+        }, 2).call();
+    }
+
+    @Test
+    public void splitTimestampRange() {
+        final List<FragmentSelector> shards = ListFragmentWorker.split(selector(0, 1000), 3);
+        Assert.assertEquals(3, shards.size());
+        Assert.assertEquals(0L, startMillis(shards.get(0)));
+        Assert.assertEquals(333L, shards.get(0).getTimestampRange().getEndTimestamp().getTime());
+        Assert.assertEquals(333L, startMillis(shards.get(1)));
+        Assert.assertEquals(1000L, shards.get(2).getTimestampRange().getEndTimestamp().getTime());
+        Assert.assertEquals(FragmentSelectorType.SERVER_TIMESTAMP.toString(),
+                shards.get(2).getFragmentSelectorType());
+        Assert.assertEquals(2, ListFragmentWorker.split(selector(0, 2), 3).size());
+    }
+
+    private static long startMillis(final FragmentSelector selector) {
+        return selector.getTimestampRange().getStartTimestamp().getTime();
+    }
+
+    private static FragmentSelector selector(final long startMillis, final long endMillis) {
+        return new FragmentSelector().withFragmentSelectorType(FragmentSelectorType.SERVER_TIMESTAMP)
+                .withTimestampRange(new TimestampRange()
+                        .withStartTimestamp(new Date(startMillis))
+                        .withEndTimestamp(new Date(endMillis)));
+    }
+
+    private static String fragmentNumber(final int index) {
+        return String.valueOf(10 + index * 7);
+    }
+
+    /**
+     * Fragment i has server timestamp i ms, including both ends of the range. Next tokens are offsets into the
+     * range, encoded with the range.
+     */
+    private static ListFragmentsResult listFragments(final ListFragmentsRequest request) {
+        final long start;
+        final long end;
+        final int offset;
+        if (request.getNextToken() != null) {
+            final String[] token = request.getNextToken().split(":");
+            start = Long.parseLong(token[0]);
+            end = Long.parseLong(token[1]);
+            offset = Integer.parseInt(token[2]);
+        } else {
+            start = request.getFragmentSelector().getTimestampRange().getStartTimestamp().getTime();
+            end = request.getFragmentSelector().getTimestampRange().getEndTimestamp().getTime();
+            offset = 0;
+        }
+        final List<Fragment> fragments = new ArrayList<>();
+        final long first = start + offset;
+        final long last = Math.min(Math.min(end, FRAGMENT_COUNT - 1), first + request.getMaxResults() - 1);
+        for (long i = first; i <= last; i++) {
+            fragments.add(new Fragment().withFragmentNumber(fragmentNumber((int) i))
+                    .withServerTimestamp(new Date(i)));
+        }
+        // Pages are not sorted.
+        final List<Fragment> reversed = fragments.stream()
+                .sorted((a, b) -> b.getServerTimestamp().compareTo(a.getServerTimestamp()))
+                .collect(Collectors.toList());
+        final ListFragmentsResult result = new ListFragmentsResult().withFragments(reversed);
+        if (last < Math.min(end, FRAGMENT_COUNT - 1)) {
+            result.setNextToken(start + ":" + end + ":" + (last + 1 - start));
+        }
+        return result;
+    }
+
+    private static ListFragmentWorker createWorker(final Function<ListFragmentsRequest, ListFragmentsResult> listFragments,
+                                                   final int shardCount) {
+        final AmazonKinesisVideoArchivedMedia archivedMedia = (AmazonKinesisVideoArchivedMedia) Proxy.newProxyInstance(
+                AmazonKinesisVideoArchivedMedia.class.getClassLoader(),
+                new Class<?>[] {AmazonKinesisVideoArchivedMedia.class}, (proxy, method, args) -> {
+                    if ("listFragments".equals(method.getName())) {
+                        return listFragments.apply((ListFragmentsRequest) args[0]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        final AmazonKinesisVideo amazonKinesisVideo = (AmazonKinesisVideo) Proxy.newProxyInstance(
+                AmazonKinesisVideo.class.getClassLoader(), new Class<?>[] {AmazonKinesisVideo.class},
+                (proxy, method, args) -> new GetDataEndpointResult().withDataEndpoint("http://localhost"));
+        final KinesisVideoMediaClientPool clientPool = new KinesisVideoMediaClientPool(Regions.US_WEST_2,
+                new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")), amazonKinesisVideo,
+                KinesisVideoMediaClientPool.DEFAULT_ENDPOINT_TTL_MILLIS, endpoint -> null,
+                endpoint -> archivedMedia);
+        return new ListFragmentWorker(STREAM_NAME, clientPool, selector(0, FRAGMENT_COUNT - 1), shardCount);
+    }
+}
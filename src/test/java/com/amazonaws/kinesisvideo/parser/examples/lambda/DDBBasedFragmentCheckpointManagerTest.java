@@ -0,0 +1,134 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples.lambda;
+
+import com.amazonaws.kinesisvideo.parser.utilities.DynamoDBHelper;
+import com.amazonaws.kinesisvideo.parser.utilities.InMemoryDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class DDBBasedFragmentCheckpointManagerTest {
+    private static final String TABLE_NAME = "FragmentCheckpoint";
+
+    @Test
+    public void coalesceCheckpointsOfAStreamIntoOneUpdate() {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        final DDBBasedFragmentCheckpointManager manager =
+                new DDBBasedFragmentCheckpointManager(new DynamoDBHelper(dynamoDB), 0L, 25);
+        for (int i = 1; i <= 100; i++) {
+            manager.saveCheckPoint("stream", "fragment-" + i, 1000L + i, 2000L + i);
+        }
+        Assert.assertEquals(0, dynamoDB.getCalls("updateItem"));
+        Assert.assertEquals("fragment-100", manager.getLastProcessedItem("stream").get().getFragmentNumber());
+        Assert.assertEquals(0, dynamoDB.getCalls("getItem"));
+
+        manager.flush();
+        Assert.assertEquals(1, dynamoDB.getCalls("updateItem"));
+        final Map<String, AttributeValue> item = dynamoDB.getStoredItem(TABLE_NAME, "stream");
+        Assert.assertEquals("fragment-100", item.get("FragmentNumber").getS());
+        Assert.assertEquals("1100", item.get("ProducerTime").getN());
+        Assert.assertEquals("2100", item.get("ServerTime").getN());
+
+        manager.flush();
+        Assert.assertEquals(1, dynamoDB.getCalls("updateItem"));
+    }
+
+    @Test
+    public void readCheckpointWrittenByAnotherManager() {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        final DDBBasedFragmentCheckpointManager writer =
+                new DDBBasedFragmentCheckpointManager(new DynamoDBHelper(dynamoDB), 0L, 25);
+        writer.saveCheckPoint("stream", "fragment-1", 1000L, 2000L);
+        writer.close();
+
+        final DDBBasedFragmentCheckpointManager reader =
+                new DDBBasedFragmentCheckpointManager(new DynamoDBHelper(dynamoDB), 0L, 25);
+        final FragmentCheckpoint checkpoint = reader.getLastProcessedItem("stream").get();
+        Assert.assertEquals("fragment-1", checkpoint.getFragmentNumber());
+        Assert.assertEquals(Long.valueOf(1000L), checkpoint.getProducerTime());
+        Assert.assertEquals(Long.valueOf(2000L), checkpoint.getServerTime());
+        Assert.assertFalse(reader.getLastProcessedItem("other").isPresent());
+        reader.getLastProcessedItem("stream");
+        Assert.assertEquals(2, dynamoDB.getCalls("getItem"));
+    }
+
+    @Test
+    public void olderCheckpointDoesNotOverwriteNewerOne() {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        final DDBBasedFragmentCheckpointManager newer =
+                new DDBBasedFragmentCheckpointManager(new DynamoDBHelper(dynamoDB), 0L, 25);
+        newer.saveCheckPoint("stream", "fragment-2", 1002L, 2002L);
+        newer.flush();
+        final DDBBasedFragmentCheckpointManager older =
+                new DDBBasedFragmentCheckpointManager(new DynamoDBHelper(dynamoDB), 0L, 25);
+        older.saveCheckPoint("stream", "fragment-1", 1001L, 2001L);
+        older.flush();
+
+        Assert.assertEquals("fragment-2", dynamoDB.getStoredItem(TABLE_NAME, "stream").get("FragmentNumber").getS());
+        Assert.assertEquals("fragment-2", older.getLastProcessedItem("stream").get().getFragmentNumber());
+        Assert.assertEquals(1, dynamoDB.getCalls("getItem"));
+    }
+
+    @Test
+    public void batchWriteStreamsAndRetryUnprocessed() {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        dynamoDB.setUnprocessedPerBatch(1);
+        final DDBBasedFragmentCheckpointManager manager =
+                new DDBBasedFragmentCheckpointManager(new DynamoDBHelper(dynamoDB), 0L, 3);
+        manager.saveCheckPoint("stream-1", "fragment-1", 1000L, 2000L);
+        manager.saveCheckPoint("stream-2", "fragment-2", 1000L, 2000L);
+        Assert.assertEquals(0, dynamoDB.getCalls("batchWriteItem"));
+        manager.saveCheckPoint("stream-3", "fragment-3", 1000L, 2000L);
+        Assert.assertEquals(1, dynamoDB.getCalls("batchWriteItem"));
+        Assert.assertEquals(0, dynamoDB.getCalls("updateItem"));
+        Assert.assertEquals(2, storedStreams(dynamoDB));
+
+        dynamoDB.setUnprocessedPerBatch(0);
+        manager.flush();
+        Assert.assertEquals(3, storedStreams(dynamoDB));
+        Assert.assertEquals(1, dynamoDB.getCalls("updateItem"));
+    }
+
+    @Test
+    public void flushPeriodically() throws Exception {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        final DDBBasedFragmentCheckpointManager manager =
+                new DDBBasedFragmentCheckpointManager(new DynamoDBHelper(dynamoDB), 20L, 25);
+        try {
+            manager.saveCheckPoint("stream", "fragment-1", 1000L, 2000L);
+            final long deadline = System.currentTimeMillis() + 10000L;
+            while (dynamoDB.getStoredItem(TABLE_NAME, "stream") == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            Assert.assertEquals("fragment-1", dynamoDB.getStoredItem(TABLE_NAME, "stream").get("FragmentNumber").getS());
+        } finally {
+            manager.close();
+        }
+    }
+
+    private static int storedStreams(final InMemoryDynamoDB dynamoDB) {
+        int stored = 0;
+        for (int i = 1; i <= 3; i++) {
+            final Map<String, AttributeValue> item = dynamoDB.getStoredItem(TABLE_NAME, "stream-" + i);
+            if (item != null) {
+                Assert.assertEquals("fragment-" + i, item.get("FragmentNumber").getS());
+                stored++;
+            }
+        }
+        return stored;
+    }
+}
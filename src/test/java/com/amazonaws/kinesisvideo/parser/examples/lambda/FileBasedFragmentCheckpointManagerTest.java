@@ -0,0 +1,176 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples.lambda;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class FileBasedFragmentCheckpointManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoverLatestCheckpointsOnReopen() throws IOException {
+        final Path logFile = folder.getRoot().toPath().resolve("checkpoints.log");
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile)) {
+            manager.saveCheckPoint("stream-1", "fragment-1", 1000L, 2000L);
+            manager.saveCheckPoint("stream-2", "fragment-5", null, 2005L);
+            manager.saveCheckPoint("stream-1", "fragment-2", 1001L, 2001L);
+            Assert.assertEquals("fragment-2", manager.getLastProcessedItem("stream-1").get().getFragmentNumber());
+        }
+
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile)) {
+            final FragmentCheckpoint first = manager.getLastProcessedItem("stream-1").get();
+            Assert.assertEquals("fragment-2", first.getFragmentNumber());
+            Assert.assertEquals(Long.valueOf(1001L), first.getProducerTime());
+            Assert.assertEquals(Long.valueOf(2001L), first.getServerTime());
+            final FragmentCheckpoint second = manager.getLastProcessedItem("stream-2").get();
+            Assert.assertEquals("fragment-5", second.getFragmentNumber());
+            Assert.assertNull(second.getProducerTime());
+            Assert.assertFalse(manager.getLastProcessedItem("stream-3").isPresent());
+        }
+    }
+
+    @Test
+    public void ignoreTornRecordAtTheEndOfTheLog() throws IOException {
+        final Path logFile = folder.getRoot().toPath().resolve("checkpoints.log");
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile)) {
+            manager.saveCheckPoint("stream", "fragment-1", 1000L, 2000L);
+            manager.saveCheckPoint("stream", "fragment-2", 1001L, 2001L);
+        }
+        final long validLength = Files.size(logFile);
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+            channel.truncate(validLength - 3);
+            channel.position(channel.size());
+            channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}));
+        }
+
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile)) {
+            Assert.assertEquals("fragment-1", manager.getLastProcessedItem("stream").get().getFragmentNumber());
+            manager.saveCheckPoint("stream", "fragment-3", 1002L, 2002L);
+        }
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile)) {
+            Assert.assertEquals("fragment-3", manager.getLastProcessedItem("stream").get().getFragmentNumber());
+        }
+    }
+
+    @Test
+    public void compactLogToLatestCheckpoints() throws IOException {
+        final Path logFile = folder.getRoot().toPath().resolve("checkpoints.log");
+        long sizeBeforeCompaction = 0;
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile, 100)) {
+            for (int i = 1; i <= 1000; i++) {
+                manager.saveCheckPoint("stream-" + (i % 4), "fragment-" + i, 1000L + i, 2000L + i);
+                if (i == 100) {
+                    sizeBeforeCompaction = Files.size(logFile);
+                }
+            }
+        }
+        Assert.assertTrue(Files.size(logFile) < sizeBeforeCompaction);
+
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile)) {
+            for (int i = 997; i <= 1000; i++) {
+                Assert.assertEquals("fragment-" + i,
+                        manager.getLastProcessedItem("stream-" + (i % 4)).get().getFragmentNumber());
+            }
+        }
+    }
+
+    @Test
+    public void shareSyncsBetweenConcurrentCheckpoints() throws Exception {
+        final Path logFile = folder.getRoot().toPath().resolve("checkpoints.log");
+        final int streams = 8;
+        final CountDownLatch firstSyncStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirstSync = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(streams + 1);
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile,
+                FileBasedFragmentCheckpointManager.DEFAULT_COMPACTION_THRESHOLD, channel -> {
+                    firstSyncStarted.countDown();
+                    try {
+                        releaseFirstSync.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    channel.force(false);
+                })) {
+            final List<Future<?>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> manager.saveCheckPoint("first", "fragment-1", 1L, 1L)));
+            Assert.assertTrue(firstSyncStarted.await(10, TimeUnit.SECONDS));
+            // The committer is blocked in the first sync, the next checkpoints are appended meanwhile.
+            for (int s = 0; s < streams; s++) {
+                final String streamName = "stream-" + s;
+                futures.add(executor.submit(() -> manager.saveCheckPoint(streamName, "fragment-1", 1L, 1L)));
+            }
+            for (int s = 0; s < streams; s++) {
+                while (!manager.getLastProcessedItem("stream-" + s).isPresent()) {
+                    Thread.sleep(1L);
+                }
+            }
+            releaseFirstSync.countDown();
+            for (final Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            Assert.assertEquals(2, manager.getSyncCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void recoverConcurrentCheckpoints() throws Exception {
+        final Path logFile = folder.getRoot().toPath().resolve("checkpoints.log");
+        final int streams = 8;
+        final int checkpointsPerStream = 200;
+        final ExecutorService executor = Executors.newFixedThreadPool(streams);
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int s = 0; s < streams; s++) {
+                final String streamName = "stream-" + s;
+                futures.add(executor.submit(() -> {
+                    for (int i = 1; i <= checkpointsPerStream; i++) {
+                        manager.saveCheckPoint(streamName, "fragment-" + i, (long) i, (long) i);
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try (FileBasedFragmentCheckpointManager manager = FileBasedFragmentCheckpointManager.create(logFile)) {
+            for (int s = 0; s < streams; s++) {
+                Assert.assertEquals("fragment-" + checkpointsPerStream,
+                        manager.getLastProcessedItem("stream-" + s).get().getFragmentNumber());
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples.lambda;
+
+import com.amazonaws.kinesisvideo.parser.TestResourceUtil;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.BoundingBox;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.DetectedFace;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedOutput;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+import com.amazonaws.regions.Regions;
+import org.jcodec.codecs.h264.encode.DumbRateControl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+public class H264FrameProcessorTest {
+    // output_get_media.mkv has 5 fragments of 60 frames, each fragment is a single GOP.
+    private static final String TEST_STREAM = "output_get_media.mkv";
+    private static final int FRAMES_PER_FRAGMENT = 60;
+
+    @Test
+    public void resetEncoderBeforeAnyTranscodedFrame() {
+        final RecordingFrameProcessor processor = new RecordingFrameProcessor();
+        processor.setPassThroughWithoutOverlay(true);
+
+        processor.resetEncoder();
+    }
+
+    @Test
+    public void passThroughGopsWithoutOverlay() throws Exception {
+        final RecordingFrameProcessor processor = new RecordingFrameProcessor();
+        processor.setPassThroughWithoutOverlay(true);
+
+        // The encoder is not reset between fragments, so a transcoded GOP after a pass-through one only starts with a
+        // key frame because it is forced.
+        process(processor, Integer.MAX_VALUE, (fragment, frame) -> {
+            if (frame == 0) {
+                switch (fragment) {
+                    case 1:
+                        // Faces at the start, none at the end so nothing is drawn on the next fragment.
+                        processor.setRekognizedOutputs(
+                                outputs(rekognizedOutput(0.0, true), rekognizedOutput(1.0, false)));
+                        break;
+                    case 3:
+                        processor.setRekognizedOutputs(outputs(rekognizedOutput(0.0, true)));
+                        break;
+                    default:
+                        processor.setRekognizedOutputs(Collections.emptyList());
+                }
+            } else if (fragment == 2 && frame == FRAMES_PER_FRAGMENT / 2) {
+                // Too late for this GOP, it is only switched at its key frame.
+                processor.setRekognizedOutputs(outputs(rekognizedOutput(1.0, true)));
+            }
+        });
+
+        Assert.assertEquals(5 * FRAMES_PER_FRAGMENT, processor.frames.size());
+        assertFragment(processor.frames, 0, true, true);
+        assertFragment(processor.frames, 1, false, true);
+        assertFragment(processor.frames, 2, true, true);
+        assertFragment(processor.frames, 3, false, true);
+        // The faces of the last GOP are still drawn, and no key frame is forced between transcoded GOPs.
+        assertFragment(processor.frames, 4, false, false);
+    }
+
+    @Test
+    public void keyFrameIntervalStartsGops() throws Exception {
+        final RecordingFrameProcessor processor = new RecordingFrameProcessor();
+        final AtomicInteger rateControls = new AtomicInteger();
+        processor.setKeyFrameInterval(20);
+        processor.setRateControlSupplier(() -> {
+            rateControls.incrementAndGet();
+            return new DumbRateControl();
+        });
+
+        process(processor, FRAMES_PER_FRAGMENT + 20, withoutFaces(processor));
+
+        Assert.assertEquals(Arrays.asList(0, 20, 40, 60), keyFrames(processor.frames));
+        Assert.assertEquals(1, rateControls.get());
+    }
+
+    @Test
+    public void followSourceKeyFrames() throws Exception {
+        final RecordingFrameProcessor processor = new RecordingFrameProcessor();
+        processor.setFollowSourceKeyFrames(true);
+
+        // The encoder is not reset between fragments, the second GOP only starts at the source key frame.
+        process(processor, FRAMES_PER_FRAGMENT + 20, withoutFaces(processor));
+
+        Assert.assertEquals(Arrays.asList(0, FRAMES_PER_FRAGMENT), keyFrames(processor.frames));
+    }
+
+    private static BiConsumer<Integer, Integer> withoutFaces(final H264FrameProcessor processor) {
+        return (fragment, frame) -> {
+            if (frame == 0) {
+                processor.setRekognizedOutputs(Collections.emptyList());
+            }
+        };
+    }
+
+    private static List<Integer> keyFrames(final List<PutFrame> frames) {
+        final List<Integer> keyFrames = new ArrayList<>();
+        for (int i = 0; i < frames.size(); i++) {
+            if (frames.get(i).keyFrame) {
+                keyFrames.add(i);
+            }
+        }
+        return keyFrames;
+    }
+
+    /**
+     * Process the first maxFrames video frames of the test stream, calling beforeFrame with the index of the fragment
+     * and of the frame in the fragment before every one of them.
+     */
+    private static void process(final H264FrameProcessor processor, final int maxFrames,
+                                final BiConsumer<Integer, Integer> beforeFrame) throws Exception {
+        final FrameVisitor.FrameProcessor callback = new FrameVisitor.FrameProcessor() {
+            private String fragmentNumber;
+            private int fragment = -1;
+            private int frame;
+            private int frames;
+
+            @Override
+            public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                final Optional<FragmentMetadata> fragmentMetadata) throws FrameProcessException {
+                if (frames++ >= maxFrames) {
+                    return;
+                }
+                final String number = fragmentMetadata.get().getFragmentNumberString();
+                if (!number.equals(fragmentNumber)) {
+                    fragmentNumber = number;
+                    fragment++;
+                    this.frame = 0;
+                }
+                beforeFrame.accept(fragment, this.frame++);
+                processor.process(frame, trackMetadata, fragmentMetadata);
+            }
+        };
+        StreamingMkvReader.createDefault(new InputStreamParserByteSource(
+                TestResourceUtil.getTestInputStream(TEST_STREAM)))
+                .apply(FrameVisitor.create(callback));
+    }
+
+    private static void assertFragment(final List<PutFrame> frames, final int fragment, final boolean passedThrough,
+                                       final boolean startsWithKeyFrame) {
+        for (int i = 0; i < FRAMES_PER_FRAGMENT; i++) {
+            final PutFrame frame = frames.get(fragment * FRAMES_PER_FRAGMENT + i);
+            Assert.assertEquals("Frame " + i + " of fragment " + fragment, passedThrough, frame.passedThrough);
+            Assert.assertEquals("Frame " + i + " of fragment " + fragment, i == 0 && startsWithKeyFrame,
+                    frame.keyFrame);
+        }
+    }
+
+    private static List<RekognizedOutput> outputs(final RekognizedOutput... outputs) {
+        final List<RekognizedOutput> list = new ArrayList<>();
+        Collections.addAll(list, outputs);
+        return list;
+    }
+
+    private static RekognizedOutput rekognizedOutput(final double frameOffsetInSeconds, final boolean withFace) {
+        final RekognizedOutput rekognizedOutput = RekognizedOutput.builder()
+                .frameOffsetInSeconds(frameOffsetInSeconds)
+                .build();
+        if (withFace) {
+            final BoundingBox boundingBox = new BoundingBox();
+            boundingBox.setLeft(0.25);
+            boundingBox.setTop(0.25);
+            boundingBox.setWidth(0.5);
+            boundingBox.setHeight(0.5);
+            final DetectedFace detectedFace = new DetectedFace();
+            detectedFace.setBoundingBox(boundingBox);
+            rekognizedOutput.addFaceSearchOutput(RekognizedOutput.FaceSearchOutput.builder()
+                    .detectedFace(detectedFace)
+                    .build());
+        }
+        return rekognizedOutput;
+    }
+
+    static final class PutFrame {
+        final boolean keyFrame;
+        final boolean passedThrough;
+
+        PutFrame(final boolean keyFrame, final boolean passedThrough) {
+            this.keyFrame = keyFrame;
+            this.passedThrough = passedThrough;
+        }
+    }
+
+    /**
+     * Records the frames instead of sending them to a Kinesis Video producer.
+     */
+    static final class RecordingFrameProcessor extends H264FrameProcessor {
+        final List<PutFrame> frames = new ArrayList<>();
+        private ByteBuffer sourceCodecPrivateData;
+
+        RecordingFrameProcessor() {
+            super(null, "output", Regions.US_WEST_2);
+        }
+
+        @Override
+        public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                            final Optional<FragmentMetadata> fragmentMetadata) throws FrameProcessException {
+            sourceCodecPrivateData = trackMetadata.getCodecPrivateData();
+            super.process(frame, trackMetadata, fragmentMetadata);
+        }
+
+        @Override
+        void putFrame(final EncodedFrame encodedFrame, final int width, final int height, final int timeCode) {
+            // Passed through frames keep the codec private data of the source, the encoder has its own.
+            frames.add(new PutFrame(encodedFrame.isKeyFrame(),
+                    encodedFrame.getCpd().equals(sourceCodecPrivateData)));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.examples.lambda;
+
+import com.amazonaws.kinesisvideo.common.exception.KinesisVideoException;
+import com.amazonaws.kinesisvideo.internal.client.mediasource.MediaSourceSink;
+import com.amazonaws.kinesisvideo.internal.producer.KinesisVideoProducerStream;
+import com.amazonaws.kinesisvideo.producer.KinesisVideoFrame;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class KVSMediaSourceTest {
+    private static final long FRAGMENT_START_MILLIS = 1_500_000_000_000L;
+    private static final long HUNDREDS_OF_NANOS_IN_MS = 10000L;
+
+    @Test
+    public void timestampsAndDurationsFromSourceTimecodes() {
+        final RecordingSink sink = new RecordingSink();
+        final KVSMediaSource mediaSource = new KVSMediaSource(null);
+        mediaSource.initialize(sink);
+
+        final ByteBuffer reused = ByteBuffer.allocate(4);
+        putFrame(mediaSource, reused, (byte) 1, true, 0);
+        putFrame(mediaSource, reused, (byte) 2, false, 33);
+        putFrame(mediaSource, reused, (byte) 3, false, 67);
+        mediaSource.flush();
+
+        Assert.assertEquals(3, sink.frames.size());
+        assertFrame(sink.frames.get(0), 0, true, 0, 33, (byte) 1);
+        assertFrame(sink.frames.get(1), 1, false, 33, 34, (byte) 2);
+        // The last frame has nothing after it and keeps the previous duration.
+        assertFrame(sink.frames.get(2), 2, false, 67, 34, (byte) 3);
+        mediaSource.stop();
+        Assert.assertTrue(mediaSource.isStopped());
+    }
+
+    @Test
+    public void stopSendsQueuedFrames() {
+        final RecordingSink sink = new RecordingSink();
+        final KVSMediaSource mediaSource = new KVSMediaSource(null, 2, 1, 0);
+        mediaSource.initialize(sink);
+
+        final ByteBuffer reused = ByteBuffer.allocate(4);
+        for (int i = 0; i < 10; i++) {
+            putFrame(mediaSource, reused, (byte) i, i == 0, i * 10);
+        }
+        mediaSource.stop();
+
+        Assert.assertEquals(10, sink.frames.size());
+        for (int i = 0; i < 10; i++) {
+            assertFrame(sink.frames.get(i), i, i == 0, i * 10, 10, (byte) i);
+        }
+    }
+
+    @Test
+    public void timestampsNeverGoBack() {
+        final RecordingSink sink = new RecordingSink();
+        final KVSMediaSource mediaSource = new KVSMediaSource(null);
+        mediaSource.initialize(sink);
+
+        final ByteBuffer reused = ByteBuffer.allocate(4);
+        putFrame(mediaSource, reused, (byte) 1, true, 40);
+        putFrame(mediaSource, reused, (byte) 2, false, 40);
+        putFrame(mediaSource, reused, (byte) 3, false, 20);
+        mediaSource.stop();
+
+        Assert.assertEquals(FRAGMENT_START_MILLIS + 40, sink.frames.get(0).timestampMillis);
+        Assert.assertEquals(FRAGMENT_START_MILLIS + 41, sink.frames.get(1).timestampMillis);
+        Assert.assertEquals(FRAGMENT_START_MILLIS + 42, sink.frames.get(2).timestampMillis);
+    }
+
+    @Test
+    public void sinkFailureIsReported() {
+        final RecordingSink sink = new RecordingSink();
+        sink.failure = new KinesisVideoException("put frame failed");
+        final KVSMediaSource mediaSource = new KVSMediaSource(null);
+        mediaSource.initialize(sink);
+
+        final ByteBuffer reused = ByteBuffer.allocate(4);
+        putFrame(mediaSource, reused, (byte) 1, true, 0);
+        try {
+            mediaSource.flush();
+            Assert.fail("Expected the sink failure");
+        } catch (final RuntimeException e) {
+            Assert.assertSame(sink.failure, e.getCause());
+        }
+        try {
+            putFrame(mediaSource, reused, (byte) 2, false, 33);
+            Assert.fail("Expected the sink failure");
+        } catch (final RuntimeException e) {
+            Assert.assertSame(sink.failure, e.getCause());
+        }
+        mediaSource.stop();
+    }
+
+    private static void putFrame(final KVSMediaSource mediaSource, final ByteBuffer buffer, final byte value,
+            final boolean isKeyFrame, final int timeCode) {
+        buffer.clear();
+        buffer.put(value).put(value).flip();
+        final EncodedFrame encodedFrame = EncodedFrame.builder()
+                .byteBuffer(buffer)
+                .isKeyFrame(isKeyFrame)
+                .timeCode(timeCode)
+                .producerSideTimeStampMillis(FRAGMENT_START_MILLIS)
+                .build();
+        mediaSource.putFrameData(encodedFrame, timeCode);
+    }
+
+    private static void assertFrame(final SentFrame frame, final int index, final boolean isKeyFrame,
+            final long timeCode, final long durationMillis, final byte value) {
+        Assert.assertEquals(index, frame.index);
+        Assert.assertEquals(isKeyFrame, frame.isKeyFrame);
+        Assert.assertEquals(FRAGMENT_START_MILLIS + timeCode, frame.timestampMillis);
+        Assert.assertEquals(durationMillis, frame.durationMillis);
+        Assert.assertArrayEquals(new byte[] {value, value}, frame.data);
+    }
+
+    private static final class SentFrame {
+        private final int index;
+        private final boolean isKeyFrame;
+        private final long timestampMillis;
+        private final long durationMillis;
+        private final byte[] data;
+
+        private SentFrame(final KinesisVideoFrame frame) {
+            Assert.assertEquals(frame.getDecodingTs(), frame.getPresentationTs());
+            this.index = frame.getIndex();
+            this.isKeyFrame = frame.getFlags() == 1;
+            this.timestampMillis = frame.getPresentationTs() / HUNDREDS_OF_NANOS_IN_MS;
+            this.durationMillis = frame.getDuration() / HUNDREDS_OF_NANOS_IN_MS;
+            this.data = new byte[frame.getData().remaining()];
+            frame.getData().duplicate().get(this.data);
+        }
+    }
+
+    private static final class RecordingSink implements MediaSourceSink {
+        private final List<SentFrame> frames = Collections.synchronizedList(new ArrayList<>());
+        private KinesisVideoException failure;
+
+        @Override
+        public void onFrame(final KinesisVideoFrame frame) throws KinesisVideoException {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            this.frames.add(new SentFrame(frame));
+        }
+
+        @Override
+        public void onCodecPrivateData(final byte[] codecPrivateData) {
+        }
+
+        @Override
+        public void onCodecPrivateData(final byte[] codecPrivateData, final int trackId) {
+        }
+
+        @Override
+        public void onFragmentMetadata(final String metadataName, final String metadataValue,
+                final boolean persistent) {
+        }
+
+        @Override
+        public KinesisVideoProducerStream getProducerStream() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.kinesis;
+
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedFragmentsIndex;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedOutput;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+import com.amazonaws.services.kinesis.model.Record;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KinesisRecordProcessorTest {
+
+    private static final IRecordProcessorCheckpointer CHECKPOINTER = (IRecordProcessorCheckpointer) Proxy.newProxyInstance(
+            KinesisRecordProcessorTest.class.getClassLoader(), new Class<?>[] {IRecordProcessorCheckpointer.class},
+            (proxy, method, args) -> null);
+
+    @Test
+    public void malformedRecordsGoToDeadLetterList() {
+        final RekognizedFragmentsIndex index = new RekognizedFragmentsIndex();
+        final KinesisRecordProcessor processor = new KinesisRecordProcessor(index, null);
+        final Record malformed = record("{\"InputInformation\":");
+        final Record notRekognitionOutput = record("{\"StreamProcessorInformation\":{\"Status\":\"RUNNING\"}}");
+        final List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            records.add(record(sample(0.1 * i)));
+        }
+        records.add(5, malformed);
+        records.add(10, notRekognitionOutput);
+
+        processor.initialize("shard-1");
+        processor.processRecords(records, CHECKPOINTER);
+
+        final List<RekognizedOutput> outputs = index.getRekognizedOutputList(fragmentNumber());
+        Assert.assertEquals(20, outputs.size());
+        final List<KinesisRecordProcessor.FailedRecord> deadLetters = processor.getDeadLetterRecords();
+        Assert.assertEquals(2, deadLetters.size());
+        Assert.assertSame(malformed, deadLetters.get(0).getRecord());
+        Assert.assertSame(notRekognitionOutput, deadLetters.get(1).getRecord());
+        Assert.assertTrue(deadLetters.get(0).getFailure() instanceof IOException);
+        Assert.assertEquals(1, deadLetters.get(0).getAttempts());
+    }
+
+    @Test
+    public void failedRecordsAreRetriedInTheBackground() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(2);
+        final RekognizedFragmentsIndex index = new RekognizedFragmentsIndex() {
+            @Override
+            public void add(final String fragmentNumber, final Long producerTime, final Long serverTime,
+                            final RekognizedOutput rekognizedOutput) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("Index unavailable");
+                }
+                super.add(fragmentNumber, producerTime, serverTime, rekognizedOutput);
+            }
+        };
+        final KinesisRecordProcessor processor = new KinesisRecordProcessor(index, null);
+
+        processor.initialize("shard-1");
+        processor.processRecords(Arrays.asList(record(sample(0.0))), CHECKPOINTER);
+        Assert.assertTrue(index.isEmpty());
+
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (index.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(1, index.getRekognizedOutputList(fragmentNumber()).size());
+        Assert.assertTrue(processor.getDeadLetterRecords().isEmpty());
+    }
+
+    @Test
+    public void checkpointIsHeldBackWhileRecordsAreRetried() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(1);
+        final RekognizedFragmentsIndex index = new RekognizedFragmentsIndex() {
+            @Override
+            public void add(final String fragmentNumber, final Long producerTime, final Long serverTime,
+                            final RekognizedOutput rekognizedOutput) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("Index unavailable");
+                }
+                super.add(fragmentNumber, producerTime, serverTime, rekognizedOutput);
+            }
+        };
+        final List<Object> checkpoints = new ArrayList<>();
+        final IRecordProcessorCheckpointer checkpointer = (IRecordProcessorCheckpointer) Proxy.newProxyInstance(
+                KinesisRecordProcessorTest.class.getClassLoader(), new Class<?>[] {IRecordProcessorCheckpointer.class},
+                (proxy, method, args) -> {
+                    synchronized (checkpoints) {
+                        checkpoints.add(args == null ? "latest" : args[0]);
+                    }
+                    return null;
+                });
+        final KinesisRecordProcessor processor = new KinesisRecordProcessor(index, null);
+        final Record first = record(sample(0.0));
+        final Record second = record(sample(0.1));
+
+        processor.initialize("shard-1");
+        processor.processRecords(Arrays.asList(first, second), checkpointer);
+        // The second record waits behind the retried first record of the same fragment.
+        Assert.assertTrue(index.isEmpty());
+        Assert.assertTrue(checkpoints.isEmpty());
+
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while ((index.isEmpty() || index.getRekognizedOutputList(fragmentNumber()).size() < 2)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        final List<RekognizedOutput> outputs = index.getRekognizedOutputList(fragmentNumber());
+        Assert.assertEquals(2, outputs.size());
+        Assert.assertEquals(0.0, outputs.get(0).getFrameOffsetInSeconds(), 0.0);
+        Assert.assertEquals(0.1, outputs.get(1).getFrameOffsetInSeconds(), 0.0);
+
+        Thread.sleep(1100L);
+        processor.processRecords(new ArrayList<>(), checkpointer);
+        Assert.assertEquals(Arrays.asList(second), checkpoints);
+    }
+
+    private static String fragmentNumber() {
+        return "91343852333181432392682062607743920146264440135";
+    }
+
+    private static String sample(final double frameOffsetInSeconds) {
+        return RekognizedOutputReaderTest.SAMPLE_RECORD.replace("\"FrameOffsetInSeconds\":2.0",
+                "\"FrameOffsetInSeconds\":" + frameOffsetInSeconds);
+    }
+
+    private static Record record(final String data) {
+        return new Record().withData(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+    }
+}
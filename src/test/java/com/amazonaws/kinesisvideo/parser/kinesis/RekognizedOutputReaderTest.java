@@ -0,0 +1,108 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.kinesis;
+
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.FaceSearchResponse;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.KinesisVideo;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognitionOutput;
+import com.amazonaws.kinesisvideo.parser.rekognition.pojo.RekognizedOutput;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class RekognizedOutputReaderTest {
+
+    static final String SAMPLE_RECORD = "{"
+            + "\"InputInformation\":{\"KinesisVideo\":{"
+            + "\"StreamArn\":\"arn:aws:kinesisvideo:us-west-2:123456789012:stream/test/1510552593261\","
+            + "\"FragmentNumber\":\"91343852333181432392682062607743920146264440135\","
+            + "\"ServerTimestamp\":1.510552593455E9,\"ProducerTimestamp\":1.510552593193E9,"
+            + "\"FrameOffsetInSeconds\":2.0}},"
+            + "\"StreamProcessorInformation\":{\"Status\":\"RUNNING\"},"
+            + "\"FaceSearchResponse\":[{"
+            + "\"DetectedFace\":{\"BoundingBox\":{\"Height\":0.075,\"Width\":0.05625,\"Left\":0.428125,"
+            + "\"Top\":0.40833333},\"Confidence\":99.975174,"
+            + "\"Landmarks\":[{\"X\":0.4452057,\"Y\":0.4395594,\"Type\":\"eyeLeft\"},"
+            + "{\"X\":0.46340984,\"Y\":0.43744427,\"Type\":\"eyeRight\"}],"
+            + "\"Pose\":{\"Pitch\":2.9691637,\"Roll\":-6.8904796,\"Yaw\":23.84388},"
+            + "\"Quality\":{\"Brightness\":40.592964,\"Sharpness\":96.09616}},"
+            + "\"MatchedFaces\":[{\"Similarity\":88.863960,\"Face\":{\"BoundingBox\":{\"Height\":0.557692,"
+            + "\"Width\":0.749838,\"Left\":0.103426,\"Top\":0.206731},"
+            + "\"FaceId\":\"ed1b560f-d6af-5158-989a-ff586c931545\",\"Confidence\":99.9999,"
+            + "\"ImageId\":\"8a5a0c57-1ff8-5bb0-aa20-23f17c8b05b7\",\"ExternalImageId\":\"Jeff_Bezos\"}}]},"
+            + "{\"DetectedFace\":{\"BoundingBox\":{\"Height\":0.1,\"Width\":0.1,\"Left\":0.1,\"Top\":0.1},"
+            + "\"Confidence\":98.5},\"MatchedFaces\":[]}]}";
+
+    @Test
+    public void readMatchesDataBinding() throws IOException {
+        final RekognitionOutput expected = new ObjectMapper().readValue(SAMPLE_RECORD, RekognitionOutput.class);
+        final KinesisVideo kinesisVideo = expected.getInputInformation().getKinesisVideo();
+
+        final RekognizedOutput output = RekognizedOutputReader.INSTANCE.read(utf8(SAMPLE_RECORD));
+
+        Assert.assertEquals(kinesisVideo.getFragmentNumber(), output.getFragmentNumber());
+        Assert.assertEquals(kinesisVideo.getServerTimestamp(), output.getServerTimestamp());
+        Assert.assertEquals(kinesisVideo.getProducerTimestamp(), output.getProducerTimestamp());
+        Assert.assertEquals(kinesisVideo.getFrameOffsetInSeconds(), output.getFrameOffsetInSeconds());
+        Assert.assertEquals(kinesisVideo.getServerTimestamp() + kinesisVideo.getFrameOffsetInSeconds() * 1000L,
+                output.getDetectedTime(), 0.0);
+
+        Assert.assertEquals(expected.getFaceSearchResponse().size(), output.getFaceSearchOutputs().size());
+        for (int i = 0; i < expected.getFaceSearchResponse().size(); i++) {
+            final FaceSearchResponse response = expected.getFaceSearchResponse().get(i);
+            final RekognizedOutput.FaceSearchOutput faceSearchOutput = output.getFaceSearchOutputs().get(i);
+            Assert.assertEquals(response.getDetectedFace(), faceSearchOutput.getDetectedFace());
+            Assert.assertEquals(response.getMatchedFaces(), faceSearchOutput.getMatchedFaceList());
+        }
+        Assert.assertEquals("Jeff_Bezos", output.getFaceSearchOutputs().get(0).getMatchedFaceList().get(0)
+                .getFace().getExternalImageId());
+    }
+
+    @Test
+    public void readSliceAndDirectBufferWithoutMovingPosition() throws IOException {
+        final byte[] bytes = SAMPLE_RECORD.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer padded = ByteBuffer.allocate(bytes.length + 8);
+        padded.position(4);
+        padded.put(bytes).flip().position(4);
+        final ByteBuffer slice = padded.slice();
+        slice.limit(bytes.length);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+
+        for (final ByteBuffer data : new ByteBuffer[] {slice, direct}) {
+            final RekognizedOutput output = RekognizedOutputReader.INSTANCE.read(data);
+            Assert.assertEquals("91343852333181432392682062607743920146264440135", output.getFragmentNumber());
+            Assert.assertEquals(2, output.getFaceSearchOutputs().size());
+            Assert.assertEquals(0, data.position());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectRecordWithoutKinesisVideoInformation() throws IOException {
+        RekognizedOutputReader.INSTANCE.read(utf8("{\"StreamProcessorInformation\":{\"Status\":\"RUNNING\"}}"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectRecordThatIsNotJson() throws IOException {
+        RekognizedOutputReader.INSTANCE.read(utf8("not json"));
+    }
+
+    private static ByteBuffer utf8(final String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.rekognition.pojo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class RekognizedFragmentsIndexTest {
+
+    @Test
+    public void pollInInsertionOrderAndRemove() {
+        final RekognizedFragmentsIndex index = new RekognizedFragmentsIndex();
+        index.add("1", 100L, 1000L, output(0.0));
+        index.add("2", 200L, 2000L, output(0.0));
+        index.add("1", 100L, 1000L, output(0.5));
+        index.add("3", 300L, 3000L, output(0.0));
+        Assert.assertEquals(3, index.size());
+        Assert.assertEquals(2, index.getRekognizedOutputList("1").size());
+
+        index.remove("2");
+        Assert.assertNull(index.getRekognizedOutputList("2"));
+        Assert.assertEquals(2, index.size());
+
+        final RekognizedFragmentsIndex.RekognizedFragment first = index.poll();
+        Assert.assertEquals("1", first.getFragmentNumber());
+        Assert.assertEquals(2, first.getRekognizedOutputs().size());
+        Assert.assertEquals("3", index.poll().getFragmentNumber());
+        Assert.assertNull(index.poll());
+        Assert.assertTrue(index.isEmpty());
+        Assert.assertEquals(0, index.getEvictedCount());
+    }
+
+    @Test
+    public void addAfterRemoveStartsNewFragment() {
+        final RekognizedFragmentsIndex index = new RekognizedFragmentsIndex();
+        index.add("1", 100L, 1000L, output(0.0));
+        index.remove("1");
+        index.add("1", 100L, 1000L, output(0.5));
+
+        final RekognizedFragmentsIndex.RekognizedFragment fragment = index.poll();
+        Assert.assertEquals("1", fragment.getFragmentNumber());
+        Assert.assertEquals(1, fragment.getRekognizedOutputs().size());
+        Assert.assertNull(index.poll());
+    }
+
+    @Test
+    public void evictExpiredFragments() {
+        final RekognizedFragmentsIndex index = RekognizedFragmentsIndex.create(5000L, 100);
+        index.add("1", 100L, 1000L, output(0.0));
+        index.add("2", 200L, 2000L, output(0.0));
+        index.add("3", 300L, 6000L, output(0.0));
+        Assert.assertEquals(3, index.size());
+
+        index.add("4", 400L, 7500L, output(0.0));
+        Assert.assertEquals(2, index.getExpiredCount());
+        Assert.assertEquals(0, index.getOverflowCount());
+        Assert.assertNull(index.getRekognizedOutputList("1"));
+        Assert.assertNull(index.getRekognizedOutputList("2"));
+        Assert.assertEquals("3", index.poll().getFragmentNumber());
+        Assert.assertEquals("4", index.poll().getFragmentNumber());
+    }
+
+    @Test
+    public void evictOldestFragmentsBeyondMaxSize() {
+        final RekognizedFragmentsIndex index = RekognizedFragmentsIndex.create(60000L, 2);
+        for (int i = 1; i <= 5; i++) {
+            index.add(Integer.toString(i), i * 100L, i * 1000L, output(0.0));
+        }
+        Assert.assertEquals(2, index.size());
+        Assert.assertEquals(3, index.getOverflowCount());
+        Assert.assertEquals(3, index.getEvictedCount());
+        Assert.assertEquals("4", index.poll().getFragmentNumber());
+        Assert.assertEquals("5", index.poll().getFragmentNumber());
+    }
+
+    @Test
+    public void removedFragmentsDoNotCountAgainstMaxSize() {
+        final RekognizedFragmentsIndex index = RekognizedFragmentsIndex.create(60000L, 2);
+        for (int i = 1; i <= 1000; i++) {
+            index.add(Integer.toString(i), i * 10L, i * 10L, output(0.0));
+            index.remove(Integer.toString(i));
+        }
+        Assert.assertTrue(index.isEmpty());
+        Assert.assertEquals(0, index.getEvictedCount());
+        Assert.assertNull(index.poll());
+    }
+
+    @Test
+    public void concurrentAddAndPoll() throws Exception {
+        final int producers = 4;
+        final int fragmentsPerProducer = 2000;
+        final RekognizedFragmentsIndex index = new RekognizedFragmentsIndex();
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < fragmentsPerProducer; i++) {
+                    final String fragmentNumber = producer + "-" + i;
+                    index.add(fragmentNumber, (long) i, (long) i, output(0.0));
+                    index.add(fragmentNumber, (long) i, (long) i, output(0.5));
+                }
+            }));
+        }
+        final Set<String> polled = new HashSet<>();
+        int outputs = 0;
+        threads.forEach(Thread::start);
+        while (threads.stream().anyMatch(Thread::isAlive) || !index.isEmpty()) {
+            final RekognizedFragmentsIndex.RekognizedFragment fragment = index.poll();
+            if (fragment != null) {
+                // A fragment polled between its two adds comes back once more with the second output.
+                polled.add(fragment.getFragmentNumber());
+                outputs += fragment.getRekognizedOutputs().size();
+            }
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(index.poll());
+        Assert.assertEquals(producers * fragmentsPerProducer, polled.size());
+        Assert.assertEquals(2 * producers * fragmentsPerProducer, outputs);
+        Assert.assertEquals(0, index.getEvictedCount());
+    }
+
+    @Test
+    public void awaitFragmentCompletedByAdd() throws Exception {
+        final RekognizedFragmentsIndex index = new RekognizedFragmentsIndex();
+        final CompletableFuture<RekognizedFragmentsIndex.RekognizedFragment> future = index.awaitFragment("1", 10000L);
+        Assert.assertFalse(future.isDone());
+        Assert.assertSame(future, index.awaitFragment("1", 10000L));
+
+        index.add("1", 100L, 1000L, output(0.0));
+        Assert.assertTrue(future.isDone());
+        Assert.assertEquals("1", future.get().getFragmentNumber());
+        Assert.assertSame(future.get(), index.awaitFragment("1", 0L).get());
+    }
+
+    @Test
+    public void awaitFragmentTimesOut() throws Exception {
+        final RekognizedFragmentsIndex index = new RekognizedFragmentsIndex();
+        final CompletableFuture<RekognizedFragmentsIndex.RekognizedFragment> future = index.awaitFragment("1", 10L);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("Expected a timeout");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // A later wait for the same fragment starts over.
+        final CompletableFuture<RekognizedFragmentsIndex.RekognizedFragment> retry = index.awaitFragment("1", 10000L);
+        index.add("1", 100L, 1000L, output(0.0));
+        Assert.assertEquals("1", retry.get(10, TimeUnit.SECONDS).getFragmentNumber());
+    }
+
+    @Test
+    public void nearestOutputByFrameOffset() {
+        final RekognizedFragmentsIndex.RekognizedFragment fragment =
+                new RekognizedFragmentsIndex.RekognizedFragment("1", 100L, 1000L);
+        for (final double offset : new double[] {0.4, 0.0, 0.2, 0.1, 0.3}) {
+            fragment.addRekognizedOutput(output(offset));
+        }
+        // Redelivered record of an already added sampled frame.
+        fragment.addRekognizedOutput(output(0.2));
+
+        final List<Double> offsets = new ArrayList<>();
+        fragment.getRekognizedOutputs().forEach(o -> offsets.add(o.getFrameOffsetInSeconds()));
+        Assert.assertEquals(Arrays.asList(0.0, 0.1, 0.2, 0.3, 0.4), offsets);
+
+        Assert.assertEquals(0.2, fragment.findNearest(195L, 10L).get().getFrameOffsetInSeconds(), 0.0);
+        Assert.assertEquals(0.2, fragment.findNearest(204L, 10L).get().getFrameOffsetInSeconds(), 0.0);
+        Assert.assertEquals(0.4, fragment.findNearest(410L, 10L).get().getFrameOffsetInSeconds(), 0.0);
+        Assert.assertFalse(fragment.findNearest(150L, 10L).isPresent());
+        Assert.assertFalse(fragment.findNearest(411L, 10L).isPresent());
+        Assert.assertEquals(5, fragment.getRekognizedOutputs().size());
+
+        Assert.assertEquals(0.1, fragment.consumeNearest(100L, 10L).get().getFrameOffsetInSeconds(), 0.0);
+        Assert.assertFalse(fragment.consumeNearest(100L, 10L).isPresent());
+        Assert.assertEquals(0.0, fragment.consumeNearest(5L, 10L).get().getFrameOffsetInSeconds(), 0.0);
+        Assert.assertEquals(3, fragment.getRekognizedOutputs().size());
+        fragment.consumeNearest(200L, 10L);
+        fragment.consumeNearest(300L, 10L);
+        fragment.consumeNearest(400L, 10L);
+        Assert.assertTrue(fragment.isEmpty());
+    }
+
+    @Test
+    public void outputsOutsideOfAnIndex() {
+        final RekognizedOutputs outputs = RekognizedOutputs.of(Arrays.asList(output(0.2), output(0.0)));
+        Assert.assertEquals(0.0, outputs.getRekognizedOutputs().get(0).getFrameOffsetInSeconds(), 0.0);
+        Assert.assertEquals(0.2, outputs.findNearest(200L, 10L).get().getFrameOffsetInSeconds(), 0.0);
+        Assert.assertTrue(RekognizedOutputs.of(new ArrayList<>()).isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void outputsSnapshotIsUnmodifiable() {
+        final RekognizedFragmentsIndex.RekognizedFragment fragment =
+                new RekognizedFragmentsIndex.RekognizedFragment("1", 100L, 1000L);
+        fragment.addRekognizedOutput(output(0.0));
+        fragment.getRekognizedOutputs().remove(0);
+    }
+
+    private static RekognizedOutput output(final double frameOffsetInSeconds) {
+        return RekognizedOutput.builder().frameOffsetInSeconds(frameOffsetInSeconds).build();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.TestResourceUtil;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DecoderPoolTest {
+
+    @Test
+    public void decodeStreamsConcurrently() throws Exception {
+        final H264FrameDecoder decoder1 = new H264FrameDecoder();
+        final H264FrameDecoder decoder2 = new H264FrameDecoder();
+        try (DecoderPool decoderPool = DecoderPool.create(2, 1000)) {
+            final Thread parser1 = parse("kinesis_video_renderer_example_output.mkv",
+                    FrameVisitor.create(decoderPool.forStream("stream1", decoder1)));
+            final Thread parser2 = parse("vogels_330.mkv",
+                    FrameVisitor.create(decoderPool.forStream("stream2", decoder2), Optional.empty(),
+                            Optional.of(1L)));
+            parser1.join();
+            parser2.join();
+        }
+
+        Assert.assertEquals(444, decoder1.getFrameCount());
+        Assert.assertEquals(909, decoder2.getFrameCount());
+    }
+
+    @Test
+    public void dropUntilKeyFrameWhenQueueIsFull() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final List<Frame> processed = Collections.synchronizedList(new ArrayList<>());
+        final FrameVisitor.FrameProcessor slowDecoder = new FrameVisitor.FrameProcessor() {
+            @Override
+            public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                final Optional<FragmentMetadata> fragmentMetadata) {
+                started.countDown();
+                try {
+                    blocked.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.add(frame);
+            }
+        };
+
+        final DecoderPool decoderPool = DecoderPool.create(1, 3);
+        final FrameVisitor.FrameProcessor processor = decoderPool.forStream("stream", slowDecoder);
+        // GOP of 10 frames, the worker is blocked on the first one, so the queue overflows on the 5th frame
+        // and everything after the first frame is dropped.
+        submit(processor, 0, true);
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i < 10; i++) {
+            submit(processor, i, false);
+        }
+        Assert.assertEquals(0, decoderPool.getQueueDepth("stream"));
+        Assert.assertEquals(9, decoderPool.getDroppedFrameCount("stream"));
+
+        blocked.countDown();
+        submit(processor, 10, true);
+        submit(processor, 11, false);
+        decoderPool.close();
+
+        Assert.assertEquals(9, decoderPool.getTotalDroppedFrameCount());
+        Assert.assertEquals(3, processed.size());
+        Assert.assertEquals(0, processed.get(0).getTimeCode());
+        Assert.assertEquals(10, processed.get(1).getTimeCode());
+        Assert.assertEquals(11, processed.get(2).getTimeCode());
+    }
+
+    @Test
+    public void keyFrameOverflowingTheQueueIsNotCountedAsDropped() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final List<Frame> processed = Collections.synchronizedList(new ArrayList<>());
+        final FrameVisitor.FrameProcessor slowDecoder = new FrameVisitor.FrameProcessor() {
+            @Override
+            public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                final Optional<FragmentMetadata> fragmentMetadata) {
+                started.countDown();
+                try {
+                    blocked.await(10, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.add(frame);
+            }
+        };
+
+        final DecoderPool decoderPool = DecoderPool.create(1, 3);
+        final FrameVisitor.FrameProcessor processor = decoderPool.forStream("stream", slowDecoder);
+        submit(processor, 0, true);
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i < 4; i++) {
+            submit(processor, i, false);
+        }
+        // The key frame overflows the queue, the 3 queued frames are dropped and the key frame is decoded.
+        submit(processor, 4, true);
+        Assert.assertEquals(3, decoderPool.getDroppedFrameCount("stream"));
+        Assert.assertEquals(1, decoderPool.getQueueDepth("stream"));
+
+        blocked.countDown();
+        decoderPool.close();
+
+        Assert.assertEquals(3, decoderPool.getTotalDroppedFrameCount());
+        Assert.assertEquals(2, processed.size());
+        Assert.assertEquals(4, processed.get(1).getTimeCode());
+    }
+
+    @Test(expected = FrameProcessException.class)
+    public void decodeFailureIsRethrown() throws Exception {
+        final FrameVisitor.FrameProcessor failingDecoder = new FrameVisitor.FrameProcessor() {
+            @Override
+            public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                final Optional<FragmentMetadata> fragmentMetadata) {
+                throw new IllegalStateException("Decode failure");
+            }
+        };
+        final DecoderPool decoderPool = DecoderPool.create(1, 3);
+        final FrameVisitor.FrameProcessor processor = decoderPool.forStream("stream", failingDecoder);
+        submit(processor, 0, true);
+        for (int i = 1; i < 100; i++) {
+            Thread.sleep(10);
+            submit(processor, i, false);
+        }
+    }
+
+    private static void submit(final FrameVisitor.FrameProcessor processor, final int timeCode,
+                               final boolean keyFrame) throws FrameProcessException {
+        final Frame frame = Frame.builder()
+                .trackNumber(1)
+                .timeCode(timeCode)
+                .keyFrame(keyFrame)
+                .lacing(Frame.Lacing.NO)
+                .frameData(ByteBuffer.allocate(0))
+                .build();
+        processor.process(frame, MkvTrackMetadata.builder().trackNumber(BigInteger.ONE).build(), Optional.empty(),
+                Optional.empty(), Optional.empty(), Optional.empty());
+    }
+
+    private static Thread parse(final String fileName, final FrameVisitor frameVisitor) {
+        final Thread thread = new Thread(() -> {
+            try {
+                StreamingMkvReader.createDefault(
+                        new InputStreamParserByteSource(TestResourceUtil.getTestInputStream(fileName)))
+                        .apply(frameVisitor);
+            } catch (final Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class DynamoDBHelperTest {
+
+    @Test
+    public void describeTableOncePerClient() {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        new DynamoDBHelper(dynamoDB).createTableIfDoesntExist();
+        new DynamoDBHelper(dynamoDB).createTableIfDoesntExist();
+        new DynamoDBHelper(dynamoDB).createTableIfDoesntExist();
+        Assert.assertEquals(1, dynamoDB.getCalls("describeTable"));
+        Assert.assertEquals(1, dynamoDB.getCalls("createTable"));
+    }
+
+    @Test
+    public void shareClientPerRegionAndCredentials() {
+        final AWSStaticCredentialsProvider credentialsProvider =
+                new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret"));
+        Assert.assertSame(DynamoDBHelper.getSharedClient(Regions.US_WEST_2, credentialsProvider),
+                DynamoDBHelper.getSharedClient(Regions.US_WEST_2, credentialsProvider));
+        Assert.assertNotSame(DynamoDBHelper.getSharedClient(Regions.US_WEST_2, credentialsProvider),
+                DynamoDBHelper.getSharedClient(Regions.US_EAST_1, credentialsProvider));
+    }
+
+    @Test
+    public void readOnlyCheckpointAttributes() throws Exception {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        final DynamoDBHelper helper = new DynamoDBHelper(dynamoDB);
+        helper.createTableIfDoesntExist();
+        final Map<String, AttributeValue> storedItem = DynamoDBHelper.toItem("stream", "fragment-1", 1000L, 2000L,
+                3000L);
+        storedItem.put("Other", new AttributeValue().withS("value"));
+        dynamoDB.putItem("FragmentCheckpoint", storedItem);
+
+        Assert.assertEquals("fragment-1", helper.getFragmentNumber("stream"));
+        Assert.assertNull(helper.getFragmentNumber("other-stream"));
+        final Map<String, AttributeValue> item = helper.getItemAsync("stream").get();
+        Assert.assertEquals(4, item.size());
+        Assert.assertEquals("2000", item.get("ServerTime").getN());
+        Assert.assertFalse(item.containsKey("Other"));
+    }
+
+    @Test
+    public void updateItemIfNewerAsync() throws Exception {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        final DynamoDBHelper helper = new DynamoDBHelper(dynamoDB);
+        helper.createTableIfDoesntExist();
+
+        Assert.assertTrue(helper.updateItemIfNewerAsync("stream", "fragment-2", 1002L, 2002L, 3002L).get());
+        Assert.assertFalse(helper.updateItemIfNewerAsync("stream", "fragment-1", 1001L, 2001L, 3001L).get());
+        Assert.assertEquals("fragment-2", helper.getFragmentNumber("stream"));
+        Assert.assertTrue(helper.updateItemIfNewerAsync("stream", "fragment-3", 1003L, 2003L, 3003L).get());
+        Assert.assertEquals("fragment-3", helper.getFragmentNumber("stream"));
+    }
+}
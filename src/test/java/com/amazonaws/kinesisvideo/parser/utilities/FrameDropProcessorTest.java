@@ -0,0 +1,126 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FrameDropProcessorTest {
+
+    private final List<Long> processed = new ArrayList<>();
+    private final FrameVisitor.FrameProcessor recorder = new FrameVisitor.FrameProcessor() {
+        @Override
+        public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                            final Optional<FragmentMetadata> fragmentMetadata) {
+            processed.add((long) frame.getTimeCode());
+        }
+    };
+
+    @Test
+    public void dropRestOfGopWhenBehindNow() throws FrameProcessException {
+        final FrameDropProcessor processor = FrameDropProcessor.builder()
+                .delegate(recorder)
+                .maxMillisBehindNow(1000L)
+                .build();
+
+        // millisBehindNow is only known at the end of the first fragment.
+        final FragmentMetadata fragment1 = fragmentMetadata("1");
+        submit(processor, 0, true, fragment1);
+        submit(processor, 1, false, fragment1);
+        fragment1.setMillisBehindNow(OptionalLong.of(5000));
+
+        final FragmentMetadata fragment2 = fragmentMetadata("2");
+        submit(processor, 2, true, fragment2);
+        submit(processor, 3, false, fragment2);
+        submit(processor, 4, false, fragment2);
+        fragment2.setMillisBehindNow(OptionalLong.of(100));
+
+        final FragmentMetadata fragment3 = fragmentMetadata("3");
+        submit(processor, 5, true, fragment3);
+        submit(processor, 6, false, fragment3);
+
+        Assert.assertEquals(listOf(0L, 1L, 2L, 5L, 6L), processed);
+        Assert.assertEquals(2, processor.getDroppedFrameCount());
+        Assert.assertEquals(1, processor.getDroppedGopCount());
+    }
+
+    @Test
+    public void dropRestOfGopWhenQueueIsDeep() throws FrameProcessException {
+        final AtomicInteger queueDepth = new AtomicInteger();
+        final FrameDropProcessor processor = FrameDropProcessor.builder()
+                .delegate(recorder)
+                .queueDepth(queueDepth::get)
+                .maxQueueDepth(10)
+                .build();
+
+        submit(processor, 0, true, null);
+        queueDepth.set(11);
+        submit(processor, 1, false, null);
+        queueDepth.set(0);
+        submit(processor, 2, false, null);
+        submit(processor, 3, true, null);
+        submit(processor, 4, false, null);
+
+        Assert.assertEquals(listOf(0L, 3L, 4L), processed);
+        Assert.assertEquals(2, processor.getDroppedFrameCount());
+        Assert.assertEquals(1, processor.getDroppedGopCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thresholdIsRequired() {
+        FrameDropProcessor.builder().delegate(recorder).build();
+    }
+
+    private static List<Long> listOf(final Long... values) {
+        final List<Long> list = new ArrayList<>();
+        for (final Long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static FragmentMetadata fragmentMetadata(final String fragmentNumber) {
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("AWS_KINESISVIDEO_FRAGMENT_NUMBER", fragmentNumber);
+        tags.put("AWS_KINESISVIDEO_SERVER_TIMESTAMP", "1.0");
+        tags.put("AWS_KINESISVIDEO_PRODUCER_TIMESTAMP", "1.0");
+        return FragmentMetadata.createFromtagNametoValueMap(tags);
+    }
+
+    private static void submit(final FrameVisitor.FrameProcessor processor, final int timeCode,
+                               final boolean keyFrame, final FragmentMetadata fragmentMetadata)
+            throws FrameProcessException {
+        final Frame frame = Frame.builder()
+                .trackNumber(1)
+                .timeCode(timeCode)
+                .keyFrame(keyFrame)
+                .lacing(Frame.Lacing.NO)
+                .frameData(ByteBuffer.allocate(0))
+                .build();
+        processor.process(frame, MkvTrackMetadata.builder().trackNumber(BigInteger.ONE).build(),
+                Optional.ofNullable(fragmentMetadata), Optional.empty(), Optional.empty(), Optional.empty());
+    }
+}
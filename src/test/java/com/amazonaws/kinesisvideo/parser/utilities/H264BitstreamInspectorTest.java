@@ -0,0 +1,135 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.TestResourceUtil;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import org.jcodec.codecs.h264.io.model.SliceType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public class H264BitstreamInspectorTest {
+
+    @Test
+    public void inspectFramesWithoutDecoding() throws Exception {
+        final List<H264FrameInfo> frameInfos = new ArrayList<>();
+        final List<MkvTrackMetadata> trackMetadatas = new ArrayList<>();
+        final H264BitstreamInspector inspector = H264BitstreamInspector.create(frameInfos::add);
+        final FrameVisitor.FrameProcessor processor = new FrameVisitor.FrameProcessor() {
+            @Override
+            public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                final Optional<FragmentMetadata> fragmentMetadata) {
+                trackMetadatas.add(trackMetadata);
+                inspector.process(frame, trackMetadata, fragmentMetadata);
+            }
+        };
+        StreamingMkvReader.createDefault(new InputStreamParserByteSource(
+                TestResourceUtil.getTestInputStream("kinesis_video_renderer_example_output.mkv")))
+                .apply(FrameVisitor.create(processor));
+
+        Assert.assertEquals(444, frameInfos.size());
+        Assert.assertTrue(frameInfos.get(0).isSpsChanged());
+        long spsChanges = 0;
+        for (int i = 0; i < frameInfos.size(); i++) {
+            final H264FrameInfo frameInfo = frameInfos.get(i);
+            final H264FrameInfo.Sps sps = frameInfo.getSps().get();
+            Assert.assertEquals(trackMetadatas.get(i).getPixelWidth().get().intValue(), sps.getWidth());
+            Assert.assertEquals(trackMetadatas.get(i).getPixelHeight().get().intValue(), sps.getHeight());
+            Assert.assertEquals(frameInfo.isKeyFrame(), frameInfo.isIdr());
+            if (frameInfo.isIdr()) {
+                Assert.assertEquals(SliceType.I, frameInfo.getSliceType().get());
+            }
+            if (frameInfo.isSpsChanged()) {
+                spsChanges++;
+            }
+        }
+        Assert.assertEquals(1, spsChanges);
+    }
+
+    @Test
+    public void readUserDataUnregisteredSei() {
+        final UUID uuid = UUID.randomUUID();
+        final byte[] userData = "time\0\0\1".getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer rbsp = ByteBuffer.allocate(16 + userData.length);
+        rbsp.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).put(userData);
+
+        // NAL header, payload type 5, payload size, payload with an emulation prevention byte and the trailing bits.
+        final ByteBuffer nal = ByteBuffer.allocate(64);
+        nal.put((byte) 0x06).put((byte) 5).put((byte) rbsp.capacity());
+        nal.put(rbsp.array(), 0, 16).put("time".getBytes(StandardCharsets.US_ASCII))
+                .put(new byte[] {0, 0, 3, 1}).put((byte) 0x80);
+        nal.flip();
+        final ByteBuffer frameData = ByteBuffer.allocate(4 + nal.remaining());
+        frameData.putInt(nal.remaining()).put(nal);
+        frameData.flip();
+
+        final H264FrameInfo frameInfo = H264BitstreamInspector.create(f -> { }).inspect(
+                Frame.builder()
+                        .trackNumber(1)
+                        .timeCode(0)
+                        .keyFrame(false)
+                        .lacing(Frame.Lacing.NO)
+                        .frameData(frameData)
+                        .build(),
+                MkvTrackMetadata.builder()
+                        .trackNumber(BigInteger.ONE)
+                        // avcC with 4 byte NAL lengths and no SPS/PPS.
+                        .codecPrivateData(ByteBuffer.wrap(new byte[] {1, 0x42, 0, 0x1e, (byte) 0xff, (byte) 0xe0, 0}))
+                        .build());
+
+        Assert.assertEquals(1, frameInfo.getNalUnitCount());
+        Assert.assertFalse(frameInfo.getSps().isPresent());
+        Assert.assertEquals(1, frameInfo.getSeiMessages().size());
+        final H264FrameInfo.SeiMessage seiMessage = frameInfo.getSeiMessages().get(0);
+        Assert.assertEquals(H264FrameInfo.SeiMessage.PAYLOAD_TYPE_USER_DATA_UNREGISTERED,
+                seiMessage.getPayloadType());
+        Assert.assertEquals(uuid, seiMessage.getUserDataUuid().get());
+        Assert.assertEquals(ByteBuffer.wrap(userData), seiMessage.getUserData().get());
+    }
+
+    @Test
+    public void inspectHevcFrame() {
+        final H264FrameInfo frameInfo = H264BitstreamInspector.create(f -> { }).inspect(
+                Frame.builder()
+                        .trackNumber(1)
+                        .timeCode(0)
+                        .keyFrame(true)
+                        .lacing(Frame.Lacing.NO)
+                        .frameData(HevcNalUnitIteratorTest.frame())
+                        .build(),
+                HevcNalUnitIteratorTest.trackMetadata());
+
+        Assert.assertEquals(2, frameInfo.getNalUnitCount());
+        Assert.assertTrue(frameInfo.isIdr());
+        Assert.assertFalse(frameInfo.getSliceType().isPresent());
+        Assert.assertTrue(frameInfo.isSpsChanged());
+        final H264FrameInfo.Sps sps = frameInfo.getSps().get();
+        Assert.assertEquals(1, sps.getProfileIdc());
+        Assert.assertEquals(HevcNalUnitIteratorTest.LEVEL_IDC, sps.getLevelIdc());
+        Assert.assertEquals(HevcNalUnitIteratorTest.WIDTH, sps.getWidth());
+        Assert.assertEquals(HevcNalUnitIteratorTest.HEIGHT, sps.getHeight());
+        Assert.assertEquals(1, frameInfo.getSeiMessages().size());
+        Assert.assertEquals(new UUID(0, 0), frameInfo.getSeiMessages().get(0).getUserDataUuid().get());
+    }
+}
@@ -16,6 +16,7 @@ package com.amazonaws.kinesisvideo.parser.utilities;
 import com.amazonaws.kinesisvideo.parser.TestResourceUtil;
 import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
 import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.amazonaws.kinesisvideo.parser.mkv.visitors.CompositeMkvElementVisitor;
@@ -23,10 +24,14 @@ import com.amazonaws.kinesisvideo.parser.mkv.visitors.CountVisitor;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Optional;
+import java.util.Set;
 
 public class H264FrameDecoderTest {
 
@@ -79,4 +84,105 @@ public class H264FrameDecoderTest {
         Assert.assertEquals(909, frameDecoder.getFrameCount()); // Video frames
         Assert.assertEquals(1425, frameProcessor.getFramesCount()); // Audio frames
     }
+
+    @Test
+    public void frameDecodeReusesImageBuffers() throws Exception {
+        final InputStream in = TestResourceUtil.getTestInputStream("kinesis_video_renderer_example_output.mkv");
+        final Set<BufferedImage> decodedImages = Collections.newSetFromMap(new IdentityHashMap<>());
+        final H264FrameDecoder frameDecoder = new H264FrameDecoder() {
+            @Override
+            public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                final Optional<FragmentMetadata> fragmentMetadata) {
+                decodedImages.add(decodeH264Frame(frame, trackMetadata));
+            }
+        };
+        final StreamingMkvReader mkvStreamReader =
+                StreamingMkvReader.createDefault(new InputStreamParserByteSource(in));
+
+        mkvStreamReader.apply(FrameVisitor.create(frameDecoder));
+
+        Assert.assertEquals(444, frameDecoder.getFrameCount());
+        Assert.assertEquals(1, decodedImages.size());
+    }
+
+    @Test
+    public void frameDecodeToYuvMatchesRgb() throws Exception {
+        final InputStream in = TestResourceUtil.getTestInputStream("kinesis_video_renderer_example_output.mkv");
+        final H264FrameDecoder rgbDecoder = new H264FrameDecoder();
+        final H264FrameDecoder yuvDecoder = new H264FrameDecoder();
+        final YuvDecodeOptions options = YuvDecodeOptions.defaults();
+        final double[] maxAverageLumaDelta = new double[1];
+        final FrameVisitor.FrameProcessor frameProcessor = new FrameVisitor.FrameProcessor() {
+            @Override
+            public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                final Optional<FragmentMetadata> fragmentMetadata) {
+                final Frame copy = frame.toBuilder().frameData(frame.getFrameData().duplicate()).build();
+                final BufferedImage image = rgbDecoder.decodeH264Frame(frame, trackMetadata);
+                final YuvFrame yuvFrame = yuvDecoder.decodeH264FrameToYuv(copy, trackMetadata, options).get();
+
+                Assert.assertEquals(image.getWidth(), yuvFrame.getWidth());
+                Assert.assertEquals(image.getHeight(), yuvFrame.getHeight());
+                Assert.assertEquals(yuvFrame.getWidth() * yuvFrame.getHeight(), yuvFrame.getYPlane().remaining());
+                Assert.assertEquals(YuvFrame.chromaSize(yuvFrame.getWidth(), yuvFrame.getHeight()),
+                        yuvFrame.getUPlane().get().remaining());
+
+                long delta = 0;
+                for (int y = 0; y < image.getHeight(); y++) {
+                    for (int x = 0; x < image.getWidth(); x++) {
+                        final int rgb = image.getRGB(x, y);
+                        final double luma = 0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff)
+                                + 0.114 * (rgb & 0xff);
+                        delta += Math.abs(Math.round(luma)
+                                - (yuvFrame.getYPlane().get(y * yuvFrame.getWidth() + x) & 0xff));
+                    }
+                }
+                maxAverageLumaDelta[0] = Math.max(maxAverageLumaDelta[0],
+                        (double) delta / (image.getWidth() * image.getHeight()));
+            }
+        };
+        final StreamingMkvReader mkvStreamReader =
+                StreamingMkvReader.createDefault(new InputStreamParserByteSource(in));
+
+        mkvStreamReader.apply(FrameVisitor.create(frameProcessor));
+
+        Assert.assertEquals(444, yuvDecoder.getFrameCount());
+        Assert.assertTrue("Average luma delta " + maxAverageLumaDelta[0], maxAverageLumaDelta[0] < 3.0);
+    }
+
+    @Test
+    public void frameDecodeToCroppedGrayscale() throws Exception {
+        final InputStream in = TestResourceUtil.getTestInputStream("vogels_330.mkv");
+        final H264FrameDecoder frameDecoder = new H264FrameDecoder();
+        final YuvDecodeOptions options = YuvDecodeOptions.builder()
+                .grayscale(true)
+                .cropX(10)
+                .cropY(20)
+                .downscaleFactor(2)
+                .build();
+        final ByteBuffer yPlane = ByteBuffer.allocateDirect(1 << 20);
+        final int[] decodedFrames = new int[1];
+        final FrameVisitor.FrameProcessor frameProcessor = new FrameVisitor.FrameProcessor() {
+            @Override
+            public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                final Optional<FragmentMetadata> fragmentMetadata) {
+                final int width = options.outputWidth(trackMetadata.getPixelWidth().get().intValue());
+                final int height = options.outputHeight(trackMetadata.getPixelHeight().get().intValue());
+                Assert.assertEquals((trackMetadata.getPixelWidth().get().intValue() - 10) / 2, width);
+                Assert.assertEquals((trackMetadata.getPixelHeight().get().intValue() - 20) / 2, height);
+
+                final YuvFrame yuvFrame = YuvFrame.wrap(width, height, yPlane);
+                if (frameDecoder.decodeH264FrameToYuv(frame, trackMetadata, options, yuvFrame)) {
+                    Assert.assertEquals(width * height, yPlane.remaining());
+                    Assert.assertTrue(yuvFrame.isGrayscale());
+                    decodedFrames[0]++;
+                }
+            }
+        };
+        final StreamingMkvReader mkvStreamReader =
+                StreamingMkvReader.createDefault(new InputStreamParserByteSource(in));
+
+        mkvStreamReader.apply(FrameVisitor.create(frameProcessor, Optional.empty(), Optional.of(1L)));
+
+        Assert.assertEquals(909, decodedFrames[0]);
+    }
 }
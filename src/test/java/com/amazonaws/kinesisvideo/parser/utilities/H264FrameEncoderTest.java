@@ -0,0 +1,118 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.examples.lambda.EncodedFrame;
+import org.jcodec.codecs.h264.encode.DumbRateControl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+public class H264FrameEncoderTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int BIT_RATE = 1024;
+
+    @Test
+    public void encodeYuvFramesIntoReusedBuffer() {
+        final H264FrameEncoder encoder = new H264FrameEncoder(WIDTH, HEIGHT, BIT_RATE);
+        final YuvFrame yuvFrame = YuvFrame.allocate(WIDTH, HEIGHT, false);
+
+        EncodedFrame previous = null;
+        for (int i = 0; i < 5; i++) {
+            fill(yuvFrame, i);
+            final EncodedFrame encodedFrame = encoder.encodeFrame(yuvFrame);
+            Assert.assertEquals(i == 0, encodedFrame.isKeyFrame());
+            Assert.assertTrue(encodedFrame.getByteBuffer().hasRemaining());
+            Assert.assertArrayEquals(encoder.getCodecPrivateData(), encodedFrame.getCpd().array());
+            if (previous != null) {
+                Assert.assertSame(previous.getByteBuffer().array(), encodedFrame.getByteBuffer().array());
+            }
+            previous = encodedFrame;
+        }
+    }
+
+    @Test
+    public void encodeGrayscaleAndImageFrames() {
+        final H264FrameEncoder encoder = new H264FrameEncoder(WIDTH, HEIGHT, BIT_RATE);
+        final YuvFrame grayscale = YuvFrame.allocate(WIDTH, HEIGHT, true);
+        fill(grayscale, 0);
+        Assert.assertTrue(encoder.encodeFrame(grayscale).isKeyFrame());
+        Assert.assertFalse(encoder.encodeFrame(new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR))
+                .isKeyFrame());
+    }
+
+    @Test
+    public void startGopsAtKeyFrameIntervalAndOnDemand() {
+        final H264FrameEncoder encoder = new H264FrameEncoder(WIDTH, HEIGHT, new DumbRateControl());
+        encoder.setKeyFrameInterval(3);
+        final YuvFrame yuvFrame = YuvFrame.allocate(WIDTH, HEIGHT, false);
+        fill(yuvFrame, 0);
+
+        final StringBuilder frameTypes = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            // Follow a source key frame in the middle of the second GOP.
+            frameTypes.append(encoder.encodeFrame(yuvFrame, i == 4).isKeyFrame() ? 'I' : 'P');
+        }
+        Assert.assertEquals("IPPIIPPI", frameTypes.toString());
+        Assert.assertEquals(3, encoder.getKeyInterval());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectFrameOfOtherResolution() {
+        new H264FrameEncoder(WIDTH, HEIGHT, BIT_RATE).encodeFrame(YuvFrame.allocate(WIDTH * 2, HEIGHT, false));
+    }
+
+    @Test
+    public void reuseCachedEncoders() {
+        final H264FrameEncoderCache cache = H264FrameEncoderCache.create(2, BIT_RATE);
+        final H264FrameEncoder encoder = cache.get(WIDTH, HEIGHT);
+        final YuvFrame yuvFrame = YuvFrame.allocate(WIDTH, HEIGHT, false);
+        fill(yuvFrame, 0);
+        encoder.encodeFrame(yuvFrame);
+        Assert.assertSame(encoder, cache.get(WIDTH, HEIGHT));
+        Assert.assertFalse(encoder.encodeFrame(yuvFrame).isKeyFrame());
+
+        final H264FrameEncoder other = cache.get(WIDTH / 2, HEIGHT / 2);
+        Assert.assertNotSame(encoder, other);
+        Assert.assertEquals(2, cache.size());
+
+        // Switching back restarts the encoder with a key frame.
+        Assert.assertSame(encoder, cache.get(WIDTH, HEIGHT));
+        Assert.assertTrue(encoder.encodeFrame(yuvFrame).isKeyFrame());
+
+        // The least recently used encoder is evicted.
+        cache.get(WIDTH * 2, HEIGHT * 2);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertSame(encoder, cache.get(WIDTH, HEIGHT));
+        Assert.assertNotSame(other, cache.get(WIDTH / 2, HEIGHT / 2));
+    }
+
+    private static void fill(final YuvFrame yuvFrame, final int offset) {
+        final ByteBuffer y = yuvFrame.getYPlane();
+        for (int i = 0; i < y.limit(); i++) {
+            y.put(i, (byte) ((i + offset) % 256));
+        }
+        yuvFrame.getUPlane().ifPresent(u -> fillWith(u, 100));
+        yuvFrame.getVPlane().ifPresent(v -> fillWith(v, 150));
+    }
+
+    private static void fillWith(final ByteBuffer plane, final int value) {
+        for (int i = 0; i < plane.limit(); i++) {
+            plane.put(i, (byte) value);
+        }
+    }
+}
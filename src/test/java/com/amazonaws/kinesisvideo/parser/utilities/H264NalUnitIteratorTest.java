@@ -0,0 +1,133 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.kinesisvideo.parser.TestResourceUtil;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+public class H264NalUnitIteratorTest {
+
+    private static final byte[] FRAME = new byte[] {
+            0, 0, 0, 2, 0x65, (byte) 0xaa,
+            0, 0, 0, 0,
+            0, 0, 0, 3, 0x06, 1, 2 };
+
+    @Test
+    public void iterateNalUnits() {
+        final H264NalUnitIterator iterator = H264NalUnitIterator.create(4).reset(ByteBuffer.wrap(FRAME));
+
+        Assert.assertTrue(iterator.next());
+        Assert.assertEquals(H264NalUnitIterator.NAL_TYPE_IDR_SLICE, iterator.nalType());
+        Assert.assertEquals(3, iterator.nalRefIdc());
+        Assert.assertEquals(4, iterator.offset());
+        Assert.assertEquals(2, iterator.length());
+
+        // The empty NAL unit is skipped.
+        Assert.assertTrue(iterator.next());
+        Assert.assertEquals(H264NalUnitIterator.NAL_TYPE_SEI, iterator.nalType());
+        Assert.assertEquals(14, iterator.offset());
+        Assert.assertEquals(3, iterator.length());
+
+        Assert.assertFalse(iterator.next());
+    }
+
+    @Test
+    public void addNalUnitsFromBufferPosition() {
+        final ByteBuffer frameBuffer = ByteBuffer.wrap(FRAME);
+        frameBuffer.position(10);
+        final List<ByteBuffer> nalUnits = new ArrayList<>();
+        H264NalUnitIterator.create(4).reset(frameBuffer).addRemainingTo(nalUnits);
+
+        Assert.assertEquals(1, nalUnits.size());
+        Assert.assertEquals(ByteBuffer.wrap(FRAME, 14, 3), nalUnits.get(0));
+        Assert.assertEquals(10, frameBuffer.position());
+    }
+
+    @Test
+    public void convertToAnnexBInPlace() {
+        final byte[] frame = FRAME.clone();
+        H264NalUnitIterator.convertToAnnexB(ByteBuffer.wrap(frame), 4);
+        Assert.assertArrayEquals(new byte[] {
+                0, 0, 0, 1, 0x65, (byte) 0xaa,
+                0, 0, 0, 1,
+                0, 0, 0, 1, 0x06, 1, 2 }, frame);
+    }
+
+    @Test
+    public void convertToAnnexBLeavesInvalidFrameUnchanged() {
+        final byte[] frame = new byte[] {0, 0, 0, 2, 0x65, (byte) 0xaa, 0, 0, 0, 9, 0x06};
+        try {
+            H264NalUnitIterator.convertToAnnexB(ByteBuffer.wrap(frame), 4);
+            Assert.fail("Expected the invalid NAL unit length to be rejected");
+        } catch (final IllegalArgumentException e) {
+            Assert.assertArrayEquals(new byte[] {0, 0, 0, 2, 0x65, (byte) 0xaa, 0, 0, 0, 9, 0x06}, frame);
+        }
+    }
+
+    @Test
+    public void writeAnnexBForShortLengths() {
+        final byte[] frame = new byte[] {0, 2, 0x41, 0x11, 0, 1, 0x01};
+        final ByteBuffer annexB = ByteBuffer.allocate(32);
+        final int written = H264NalUnitIterator.create(2).reset(ByteBuffer.wrap(frame)).writeRemainingAsAnnexB(annexB);
+
+        Assert.assertEquals(11, written);
+        annexB.flip();
+        Assert.assertEquals(ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x41, 0x11, 0, 0, 0, 1, 0x01}), annexB);
+    }
+
+    @Test
+    public void extractParameterSetsFromAvcC() {
+        final byte[] codecPrivateData = new byte[] {
+                0x01, 0x64, 0x00, 0x28, (byte) 0xff, (byte) 0xe1, 0x00, 0x03, 0x27, 0x64, 0x00,
+                0x01, 0x00, 0x02, 0x28, (byte) 0xee };
+
+        Assert.assertArrayEquals(new byte[] {0, 0, 0, 1, 0x27, 0x64, 0x00, 0, 0, 0, 1, 0x28, (byte) 0xee},
+                H264NalUnitIterator.parameterSetsToAnnexB(ByteBuffer.wrap(codecPrivateData)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void convertToAnnexBRequiresLongLengths() {
+        H264NalUnitIterator.convertToAnnexB(ByteBuffer.wrap(FRAME.clone()), 2);
+    }
+
+    @Test
+    public void keyFramesContainIdrSlices() throws Exception {
+        final List<Boolean> keyFrames = new ArrayList<>();
+        final List<Boolean> idrFrames = new ArrayList<>();
+        final FrameVisitor.FrameProcessor processor = new FrameVisitor.FrameProcessor() {
+            @Override
+            public void process(final Frame frame, final MkvTrackMetadata trackMetadata,
+                                final Optional<FragmentMetadata> fragmentMetadata) {
+                final int nalLengthSize = H264NalUnitIterator.nalLengthSize(trackMetadata.getCodecPrivateData());
+                keyFrames.add(frame.isKeyFrame());
+                idrFrames.add(H264NalUnitIterator.containsIdrSlice(frame.getFrameData(), nalLengthSize));
+            }
+        };
+        StreamingMkvReader.createDefault(new InputStreamParserByteSource(
+                TestResourceUtil.getTestInputStream("kinesis_video_renderer_example_output.mkv")))
+                .apply(FrameVisitor.create(processor));
+
+        Assert.assertEquals(444, keyFrames.size());
+        Assert.assertEquals(keyFrames, idrFrames);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+public class HevcNalUnitIteratorTest {
+
+    static final int WIDTH = 1920;
+    static final int HEIGHT = 1080;
+    static final int LEVEL_IDC = 120;
+
+    @Test
+    public void parseHvcC() {
+        final HvcCBox hvcC = HvcCBox.parseHvcCBox(ByteBuffer.wrap(hvcC()));
+
+        Assert.assertEquals(1, hvcC.getConfigurationVersion());
+        Assert.assertEquals(1, hvcC.getProfileIdc());
+        Assert.assertEquals(LEVEL_IDC, hvcC.getLevelIdc());
+        Assert.assertEquals(1, hvcC.getChromaFormat());
+        Assert.assertEquals(8, hvcC.getBitDepthLuma());
+        Assert.assertEquals(4, hvcC.getNalLengthSize());
+        Assert.assertEquals(0, hvcC.getVpsList().size());
+        Assert.assertEquals(1, hvcC.getSpsList().size());
+        Assert.assertEquals(ByteBuffer.wrap(spsNalUnit()), hvcC.getSpsList().get(0));
+    }
+
+    @Test
+    public void iterateHevcNalUnits() {
+        final MkvTrackMetadata trackMetadata = trackMetadata();
+        final NalUnitIterator iterator = NalUnitIterator.forTrack(trackMetadata).reset(frame());
+
+        Assert.assertEquals(VideoCodec.HEVC, iterator.getCodec());
+        Assert.assertTrue(iterator.next());
+        Assert.assertEquals(HevcNalUnitIterator.NAL_TYPE_PREFIX_SEI, iterator.nalType());
+        Assert.assertFalse(iterator.isRandomAccessSlice());
+        Assert.assertTrue(iterator.next());
+        Assert.assertEquals(HevcNalUnitIterator.NAL_TYPE_IDR_W_RADL, iterator.nalType());
+        Assert.assertEquals(0, ((HevcNalUnitIterator) iterator).temporalId());
+        Assert.assertTrue(iterator.isRandomAccessSlice());
+        Assert.assertFalse(iterator.next());
+
+        Assert.assertTrue(NalUnitIterator.forTrack(trackMetadata).reset(frame()).containsRandomAccessSlice());
+    }
+
+    static MkvTrackMetadata trackMetadata() {
+        return MkvTrackMetadata.builder()
+                .trackNumber(BigInteger.ONE)
+                .codecId(VideoCodec.HEVC.getCodecId())
+                .codecPrivateData(ByteBuffer.wrap(hvcC()))
+                .build();
+    }
+
+    /**
+     * A frame with a prefix SEI holding an empty user_data_unregistered message and an IDR slice.
+     */
+    static ByteBuffer frame() {
+        final byte[] sei = new byte[] {0x4e, 0x01, 5, 16, 0, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                (byte) 0x80};
+        final byte[] slice = new byte[] {0x26, 0x01, (byte) 0xaf, 0x11};
+        final ByteBuffer frame = ByteBuffer.allocate(8 + sei.length + slice.length);
+        frame.putInt(sei.length).put(sei).putInt(slice.length).put(slice);
+        frame.flip();
+        return frame;
+    }
+
+    static byte[] hvcC() {
+        final byte[] sps = spsNalUnit();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(1);
+        // Main profile, compatibility and constraint flags, level.
+        out.write(0x01);
+        out.write(0x60);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(0x90);
+        for (int i = 0; i < 5; i++) {
+            out.write(0);
+        }
+        out.write(LEVEL_IDC);
+        // min_spatial_segmentation_idc, parallelismType, 4:2:0, 8 bit luma and chroma, avgFrameRate.
+        out.write(0xf0);
+        out.write(0);
+        out.write(0xfc);
+        out.write(0xfd);
+        out.write(0xf8);
+        out.write(0xf8);
+        out.write(0);
+        out.write(0);
+        // One temporal layer, 4 byte NAL lengths, one array with the SPS.
+        out.write(0x0f);
+        out.write(1);
+        out.write(0x80 | HevcNalUnitIterator.NAL_TYPE_SPS);
+        out.write(0);
+        out.write(1);
+        out.write(sps.length >> 8);
+        out.write(sps.length & 0xff);
+        out.write(sps, 0, sps.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * A Main profile 1920x1080 SPS with two sub layers, the height is coded as 1088 with a conformance window.
+     */
+    static byte[] spsNalUnit() {
+        final BitWriter bits = new BitWriter();
+        // sps_video_parameter_set_id, sps_max_sub_layers_minus1, sps_temporal_id_nesting_flag
+        bits.write(0, 4).write(1, 3).write(1, 1);
+        // general_profile_space, general_tier_flag, general_profile_idc, compatibility flags
+        bits.write(0, 2).write(0, 1).write(1, 5).write(0x60000000L, 32);
+        // progressive, interlaced, non packed, frame only, 43 reserved bits and general_inbld_flag
+        bits.write(0x9, 4).write(0, 43).write(0, 1);
+        bits.write(LEVEL_IDC, 8);
+        // sub_layer_profile_present_flag, sub_layer_level_present_flag, reserved bits, sub layer level
+        bits.write(0, 1).write(1, 1).write(0, 14).write(90, 8);
+        // sps_seq_parameter_set_id, chroma_format_idc, pic_width_in_luma_samples, pic_height_in_luma_samples
+        bits.writeUe(0).writeUe(1).writeUe(WIDTH).writeUe(1088);
+        // conformance_window_flag and offsets in chroma samples
+        bits.write(1, 1).writeUe(0).writeUe(0).writeUe(0).writeUe(4);
+        // rbsp_stop_one_bit
+        bits.write(1, 1);
+
+        final byte[] rbsp = bits.toByteArray();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x42);
+        out.write(0x01);
+        int zeros = 0;
+        for (final byte b : rbsp) {
+            if (zeros >= 2 && (b & 0xff) <= 3) {
+                out.write(3);
+                zeros = 0;
+            }
+            out.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return out.toByteArray();
+    }
+
+    private static final class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        BitWriter write(final long value, final int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >> i) & 1);
+                if (++count == 8) {
+                    out.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+            return this;
+        }
+
+        BitWriter writeUe(final int value) {
+            final int bits = 32 - Integer.numberOfLeadingZeros(value + 1);
+            return write(0, bits - 1).write(value + 1, bits);
+        }
+
+        byte[] toByteArray() {
+            if (count > 0) {
+                write(0, 8 - count);
+            }
+            return out.toByteArray();
+        }
+    }
+}
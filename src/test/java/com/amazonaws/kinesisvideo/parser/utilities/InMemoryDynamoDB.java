@@ -0,0 +1,213 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory stand-in for the DynamoDB calls made on the FragmentCheckpoint table, with a single string hash key.
+ * Expressions are limited to the forms used by {@link DynamoDBHelper}. Async calls complete on the calling thread.
+ */
+public class InMemoryDynamoDB extends AbstractAmazonDynamoDBAsync {
+    private static final Pattern NEWER_CONDITION =
+            Pattern.compile("attribute_not_exists\\((#\\w+)\\) OR (#\\w+) <= (:\\w+)");
+
+    private final Map<String, String> hashKeys = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Map<String, AttributeValue>>> tables = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private volatile int unprocessedPerBatch = 0;
+
+    public int getCalls(final String operation) {
+        final AtomicInteger count = calls.get(operation);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * Leave the last items of every batch write unprocessed.
+     */
+    public void setUnprocessedPerBatch(final int unprocessedPerBatch) {
+        this.unprocessedPerBatch = unprocessedPerBatch;
+    }
+
+    public Map<String, AttributeValue> getStoredItem(final String tableName, final String key) {
+        return table(tableName).get(key);
+    }
+
+    @Override
+    public CreateTableResult createTable(final CreateTableRequest request) {
+        count("createTable");
+        hashKeys.put(request.getTableName(), request.getKeySchema().get(0).getAttributeName());
+        tables.put(request.getTableName(), new ConcurrentHashMap<>());
+        return new CreateTableResult().withTableDescription(new TableDescription().withTableName(request.getTableName()));
+    }
+
+    @Override
+    public DescribeTableResult describeTable(final DescribeTableRequest request) {
+        count("describeTable");
+        table(request.getTableName());
+        return new DescribeTableResult().withTable(new TableDescription().withTableName(request.getTableName()));
+    }
+
+    @Override
+    public GetItemResult getItem(final GetItemRequest request) {
+        count("getItem");
+        final Map<String, AttributeValue> item = table(request.getTableName()).get(key(request.getTableName(),
+                request.getKey()));
+        if (item == null || request.getProjectionExpression() == null) {
+            return new GetItemResult().withItem(item);
+        }
+        final Map<String, AttributeValue> projected = new HashMap<>();
+        for (final String name : request.getProjectionExpression().split(",\\s*")) {
+            final String attribute = resolve(name, request.getExpressionAttributeNames());
+            if (item.containsKey(attribute)) {
+                projected.put(attribute, item.get(attribute));
+            }
+        }
+        return new GetItemResult().withItem(projected);
+    }
+
+    @Override
+    public PutItemResult putItem(final PutItemRequest request) {
+        count("putItem");
+        put(request.getTableName(), request.getItem());
+        return new PutItemResult();
+    }
+
+    @Override
+    public synchronized UpdateItemResult updateItem(final UpdateItemRequest request) {
+        count("updateItem");
+        final String tableName = request.getTableName();
+        final String key = key(tableName, request.getKey());
+        final Map<String, AttributeValue> item = new HashMap<>(table(tableName).getOrDefault(key, request.getKey()));
+        if (request.getConditionExpression() != null) {
+            final Matcher matcher = NEWER_CONDITION.matcher(request.getConditionExpression());
+            if (!matcher.matches()) {
+                throw new UnsupportedOperationException(request.getConditionExpression());
+            }
+            final AttributeValue current = item.get(resolve(matcher.group(2), request.getExpressionAttributeNames()));
+            final AttributeValue limit = request.getExpressionAttributeValues().get(matcher.group(3));
+            if (current != null && Long.parseLong(current.getN()) > Long.parseLong(limit.getN())) {
+                throw new ConditionalCheckFailedException("The conditional request failed");
+            }
+        }
+        if (request.getUpdateExpression() != null) {
+            for (final String assignment : request.getUpdateExpression().replaceFirst("^SET ", "").split(",\\s*")) {
+                final String[] parts = assignment.split("\\s*=\\s*");
+                item.put(resolve(parts[0], request.getExpressionAttributeNames()),
+                        request.getExpressionAttributeValues().get(parts[1]));
+            }
+        }
+        if (request.getAttributeUpdates() != null) {
+            request.getAttributeUpdates().forEach((name, update) -> item.put(name, update.getValue()));
+        }
+        table(tableName).put(key, item);
+        return new UpdateItemResult();
+    }
+
+    @Override
+    public BatchWriteItemResult batchWriteItem(final BatchWriteItemRequest request) {
+        count("batchWriteItem");
+        final Map<String, List<WriteRequest>> unprocessed = new HashMap<>();
+        request.getRequestItems().forEach((tableName, writeRequests) -> {
+            final int processed = Math.max(0, writeRequests.size() - unprocessedPerBatch);
+            writeRequests.subList(0, processed).forEach(w -> put(tableName, w.getPutRequest().getItem()));
+            if (processed < writeRequests.size()) {
+                unprocessed.put(tableName, new ArrayList<>(writeRequests.subList(processed, writeRequests.size())));
+            }
+        });
+        return new BatchWriteItemResult().withUnprocessedItems(unprocessed);
+    }
+
+    @Override
+    public Future<GetItemResult> getItemAsync(final GetItemRequest request,
+                                              final AsyncHandler<GetItemRequest, GetItemResult> handler) {
+        return callAsync(request, handler, this::getItem);
+    }
+
+    @Override
+    public Future<UpdateItemResult> updateItemAsync(final UpdateItemRequest request,
+                                                    final AsyncHandler<UpdateItemRequest, UpdateItemResult> handler) {
+        return callAsync(request, handler, this::updateItem);
+    }
+
+    private static <Q extends AmazonWebServiceRequest, R> Future<R> callAsync(
+            final Q request, final AsyncHandler<Q, R> handler, final Function<Q, R> call) {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        try {
+            final R result = call.apply(request);
+            future.complete(result);
+            handler.onSuccess(request, result);
+        } catch (final RuntimeException e) {
+            future.completeExceptionally(e);
+            handler.onError(e);
+        }
+        return future;
+    }
+
+    private void put(final String tableName, final Map<String, AttributeValue> item) {
+        table(tableName).put(key(tableName, item), Collections.unmodifiableMap(new HashMap<>(item)));
+    }
+
+    private Map<String, Map<String, AttributeValue>> table(final String tableName) {
+        final Map<String, Map<String, AttributeValue>> table = tables.get(tableName);
+        if (table == null) {
+            throw new ResourceNotFoundException("Table " + tableName + " not found");
+        }
+        return table;
+    }
+
+    private String key(final String tableName, final Map<String, AttributeValue> item) {
+        return item.get(hashKeys.get(tableName)).getS();
+    }
+
+    private static String resolve(final String name, final Map<String, String> names) {
+        return name.startsWith("#") ? names.get(name) : name;
+    }
+
+    private void count(final String operation) {
+        calls.computeIfAbsent(operation, o -> new AtomicInteger()).incrementAndGet();
+    }
+}
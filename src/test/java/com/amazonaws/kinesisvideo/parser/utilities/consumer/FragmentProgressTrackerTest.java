@@ -0,0 +1,94 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities.consumer;
+
+import com.amazonaws.kinesisvideo.parser.TestResourceUtil;
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.ebml.MkvTypeInfos;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.mkv.visitors.CountVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for FragmentProgressTracker
+ */
+public class FragmentProgressTrackerTest {
+
+    @Test
+    public void countElementsAndRecordFragmentLatencies() throws IOException, MkvElementVisitException {
+        final long now = System.currentTimeMillis();
+        final CountVisitor countVisitor = CountVisitor.create(MkvTypeInfos.CLUSTER,
+                MkvTypeInfos.SEGMENT,
+                MkvTypeInfos.SIMPLEBLOCK);
+        final List<FragmentMetadata> fragments = new ArrayList<>();
+        final FragmentProgressTracker tracker = FragmentProgressTracker.create(countVisitor, fragments::add,
+                new FragmentProgressRecorder(() -> now));
+        parse(tracker);
+
+        Assert.assertEquals(countVisitor.getCount(MkvTypeInfos.SEGMENT), tracker.getSegmentsCount());
+        Assert.assertEquals(countVisitor.getCount(MkvTypeInfos.CLUSTER), tracker.getClustersCount());
+        Assert.assertEquals(countVisitor.getCount(MkvTypeInfos.SIMPLEBLOCK), tracker.getSimpleBlocksCount());
+
+        final FragmentProgressMetrics metrics = tracker.getMetrics();
+        Assert.assertEquals(5, fragments.size());
+        Assert.assertEquals(5, metrics.getFragmentsCount());
+        Assert.assertEquals(0, metrics.getErrorFragmentsCount());
+        Assert.assertEquals(tracker.getClustersCount(), metrics.getClustersCount());
+        Assert.assertEquals(tracker.getSimpleBlocksCount(), metrics.getSimpleBlocksCount());
+        Assert.assertEquals(5, metrics.getParseTimeMicros().getCount());
+
+        final long maxProducerToServerMillis = fragments.stream()
+                .mapToLong(f -> f.getServerSideTimestampMillis() - f.getProducerSideTimestampMillis())
+                .max().getAsLong();
+        final long maxServerToConsumerMillis = fragments.stream()
+                .mapToLong(f -> now - f.getServerSideTimestampMillis())
+                .max().getAsLong();
+        Assert.assertEquals(5, metrics.getProducerToServerMillis().getCount());
+        Assert.assertEquals(Math.max(0, maxProducerToServerMillis), metrics.getProducerToServerMillis().getMax());
+        Assert.assertEquals(5, metrics.getServerToConsumerMillis().getCount());
+        Assert.assertEquals(maxServerToConsumerMillis, metrics.getServerToConsumerMillis().getMax());
+    }
+
+    @Test
+    public void shareRecorderBetweenTrackers() throws IOException, MkvElementVisitException {
+        final FragmentProgressRecorder recorder = FragmentProgressRecorder.create();
+        final List<FragmentMetadata> fragments = new ArrayList<>();
+        final CountVisitor countVisitor = CountVisitor.create(MkvTypeInfos.SIMPLEBLOCK);
+
+        parse(FragmentProgressTracker.create(countVisitor, fragments::add, recorder));
+        final FragmentProgressTracker secondTracker = FragmentProgressTracker.create(countVisitor, fragments::add,
+                recorder);
+        parse(secondTracker);
+
+        Assert.assertEquals(10, fragments.size());
+        Assert.assertEquals(5, secondTracker.getSegmentsCount());
+        Assert.assertEquals(10, recorder.getFragmentsCount());
+        Assert.assertEquals(countVisitor.getCount(MkvTypeInfos.SIMPLEBLOCK), recorder.getSimpleBlocksCount());
+        Assert.assertEquals(10, recorder.getServerToConsumerMillis().getCount());
+    }
+
+    private static void parse(final FragmentProgressTracker tracker) throws IOException, MkvElementVisitException {
+        try (InputStream in = TestResourceUtil.getTestInputStream("output_get_media.mkv")) {
+            StreamingMkvReader.createDefault(new InputStreamParserByteSource(in)).apply(tracker);
+        }
+    }
+}
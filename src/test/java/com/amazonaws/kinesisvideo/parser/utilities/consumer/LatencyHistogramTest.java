@@ -0,0 +1,73 @@
+/*
+Copyright 2017-2017 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License"). 
+You may not use this file except in compliance with the License. 
+A copy of the License is located at
+
+   http://aws.amazon.com/apache2.0/
+
+or in the "license" file accompanying this file. 
+This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and limitations under the License.
+*/
+package com.amazonaws.kinesisvideo.parser.utilities.consumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for LatencyHistogram
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+        Assert.assertEquals(10000, histogram.getCount());
+        Assert.assertEquals(10000, histogram.getMax());
+        Assert.assertEquals(5000.5, histogram.getMean(), 0.001);
+        Assert.assertEquals(1, histogram.getValueAtPercentile(0));
+        Assert.assertEquals(10000, histogram.getValueAtPercentile(100));
+        assertWithinPrecision(5000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(9900, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void recordNegativeValuesAsZero() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-20);
+        histogram.record(7);
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(7, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketsCoverAllValues() {
+        long previousHighestValue = -1;
+        for (int index = 0; index <= LatencyHistogram.bucketIndex(Long.MAX_VALUE); index++) {
+            final long highestValue = LatencyHistogram.highestValueInBucket(index);
+            Assert.assertEquals(index, LatencyHistogram.bucketIndex(previousHighestValue + 1));
+            Assert.assertEquals(index, LatencyHistogram.bucketIndex(highestValue));
+            previousHighestValue = highestValue;
+        }
+        Assert.assertEquals(Long.MAX_VALUE, previousHighestValue);
+    }
+
+    private static void assertWithinPrecision(final long expected, final long actual) {
+        Assert.assertTrue(actual + " is not within 1/16 of " + expected,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+}